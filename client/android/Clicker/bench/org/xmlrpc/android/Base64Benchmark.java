@@ -0,0 +1,90 @@
+package org.xmlrpc.android;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.Random;
+
+/**
+ * Compares Base64Coder against its old implementation and the Base64
+ * class, encoding and decoding blobs of a few sizes.
+ *
+ * <pre>
+ * javac -d /tmp/bench -cp kxml2-2.3.0.jar -sourcepath src bench/org/xmlrpc/android/*.java
+ * java -cp kxml2-2.3.0.jar:/tmp/bench org.xmlrpc.android.Base64Benchmark [-w warmupMs] [-m measureMs] [filter]
+ * </pre>
+ */
+public class Base64Benchmark {
+	private static final int[] SIZES = { 48, 1024, 16 * 1024, 256 * 1024 };
+
+	public static void main(String[] args) throws Exception {
+		Benchmark benchmark = new Benchmark(args);
+		Random random = new Random(42);
+		for (int size : SIZES) {
+			final byte[] data = new byte[size];
+			random.nextBytes(data);
+			final String encoded = new String(Base64Coder.encode(data));
+			final char[] encodedChars = encoded.toCharArray();
+			final byte[] encodedBytes = encoded.getBytes("US-ASCII");
+			final char[] chars = new char[Base64Coder.encodedLength(size)];
+			final byte[] bytes = new byte[size];
+			final ByteBuffer dataBuffer = ByteBuffer.wrap(data);
+			final CharBuffer charBuffer = CharBuffer.wrap(chars);
+			final ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
+
+			benchmark.run("encode/legacy/" + size, new Benchmark.Op() {
+				public void run() {
+					LegacyBase64Coder.encode(data);
+				}
+			});
+			benchmark.run("encode/Base64/" + size, new Benchmark.Op() {
+				public void run() throws Exception {
+					Base64.encodeBytesToBytes(data, 0, data.length, Base64.NO_OPTIONS);
+				}
+			});
+			benchmark.run("encode/Base64Coder/" + size, new Benchmark.Op() {
+				public void run() {
+					Base64Coder.encode(data);
+				}
+			});
+			benchmark.run("encode/Base64Coder-into/" + size, new Benchmark.Op() {
+				public void run() {
+					Base64Coder.encode(data, 0, data.length, chars, 0);
+				}
+			});
+			benchmark.run("encode/Base64Coder-buffer/" + size, new Benchmark.Op() {
+				public void run() {
+					dataBuffer.clear();
+					charBuffer.clear();
+					Base64Coder.encode(dataBuffer, charBuffer);
+				}
+			});
+
+			benchmark.run("decode/legacy/" + size, new Benchmark.Op() {
+				public void run() {
+					LegacyBase64Coder.decode(encoded);
+				}
+			});
+			benchmark.run("decode/Base64/" + size, new Benchmark.Op() {
+				public void run() throws Exception {
+					Base64.decode(encodedBytes, 0, encodedBytes.length, Base64.NO_OPTIONS);
+				}
+			});
+			benchmark.run("decode/Base64Coder/" + size, new Benchmark.Op() {
+				public void run() {
+					Base64Coder.decode(encoded);
+				}
+			});
+			benchmark.run("decode/Base64Coder-into/" + size, new Benchmark.Op() {
+				public void run() {
+					Base64Coder.decode(encodedChars, 0, encodedChars.length, bytes, 0);
+				}
+			});
+			benchmark.run("decode/Base64Coder-buffer/" + size, new Benchmark.Op() {
+				public void run() {
+					byteBuffer.clear();
+					Base64Coder.decode(CharBuffer.wrap(encodedChars), byteBuffer);
+				}
+			});
+		}
+	}
+}
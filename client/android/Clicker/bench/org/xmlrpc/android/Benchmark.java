@@ -0,0 +1,123 @@
+package org.xmlrpc.android;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+
+/**
+ * Minimal benchmark runner for the codec benchmarks in this directory.
+ * They run on a plain JVM, outside of the Android build.
+ *
+ * <p>
+ * Each operation is warmed up, then timed one call at a time for the
+ * measurement period, which gives the throughput and latency percentiles.
+ * A separate untimed pass measures the bytes allocated per call, using
+ * HotSpot's per-thread allocation counter when it is available.
+ */
+class Benchmark {
+	interface Op {
+		void run() throws Exception;
+	}
+
+	// Latency samples kept per operation; later calls are timed but not recorded.
+	private static final int MAX_SAMPLES = 1 << 20;
+
+	private final long warmupNanos;
+	private final long measureNanos;
+	private final String filter;
+	private final long[] samples = new long[MAX_SAMPLES];
+
+	/**
+	 * Parses <code>[-w warmupMs] [-m measureMs] [filter]</code>.
+	 */
+	Benchmark(String[] args) {
+		long warmup = 1000;
+		long measure = 3000;
+		String filter = null;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-w") && i + 1 < args.length) {
+				warmup = Long.parseLong(args[++i]);
+			} else
+			if (args[i].equals("-m") && i + 1 < args.length) {
+				measure = Long.parseLong(args[++i]);
+			} else {
+				filter = args[i];
+			}
+		}
+		this.warmupNanos = warmup * 1000000L;
+		this.measureNanos = measure * 1000000L;
+		this.filter = filter;
+		System.out.println(String.format("%-40s %12s %9s %9s %9s %9s %12s",
+				"benchmark", "ops/s", "p50 us", "p90 us", "p99 us", "p99.9 us", "bytes/op"));
+	}
+
+	/**
+	 * Runs one operation and prints a line of results, unless it doesn't
+	 * match the filter.
+	 */
+	void run(String name, Op op) throws Exception {
+		if (filter != null && name.indexOf(filter) < 0) {
+			return;
+		}
+
+		long end = System.nanoTime() + warmupNanos;
+		while (System.nanoTime() < end) {
+			op.run();
+		}
+
+		int recorded = 0;
+		long ops = 0;
+		long start = System.nanoTime();
+		end = start + measureNanos;
+		long now = start;
+		while (now < end) {
+			op.run();
+			long after = System.nanoTime();
+			if (recorded < MAX_SAMPLES) {
+				samples[recorded++] = after - now;
+			}
+			now = after;
+			ops++;
+		}
+		double opsPerSecond = ops * 1e9 / (now - start);
+		Arrays.sort(samples, 0, recorded);
+
+		String allocated = "n/a";
+		long before = allocatedBytes();
+		if (before >= 0) {
+			long count = Math.min(ops, 10000);
+			for (long i = 0; i < count; i++) {
+				op.run();
+			}
+			allocated = Long.toString((allocatedBytes() - before) / count);
+		}
+
+		System.out.println(String.format("%-40s %12.0f %9.2f %9.2f %9.2f %9.2f %12s",
+				name, opsPerSecond,
+				percentile(recorded, 0.50), percentile(recorded, 0.90),
+				percentile(recorded, 0.99), percentile(recorded, 0.999),
+				allocated));
+	}
+
+	private double percentile(int recorded, double p) {
+		if (recorded == 0) {
+			return 0;
+		}
+		int index = (int) Math.min(recorded - 1, Math.ceil(p * recorded) - 1);
+		return samples[Math.max(index, 0)] / 1000.0;
+	}
+
+	/**
+	 * @return bytes allocated by this thread so far, or -1 if the JVM can't tell us
+	 */
+	private static long allocatedBytes() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) threads;
+			if (hotspot.isThreadAllocatedMemorySupported() && hotspot.isThreadAllocatedMemoryEnabled()) {
+				return hotspot.getThreadAllocatedBytes(Thread.currentThread().getId());
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,204 @@
+package org.xmlrpc.android;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stress test for one XMLRPCClient shared by many threads.  Every thread
+ * makes calls with parameters of its own to a path of a
+ * {@link LoopbackServer} that echoes them back, and checks each result
+ * against the call it made, so a response handed to the wrong call, or
+ * requests mixed up on their way out, are caught.  It runs through each
+ * transport on the class path, making calls one at a time, asynchronously
+ * and, through the transports that can, pipelined; Http2Transport calls go
+ * to an {@link Http2LoopbackServer}.  It exits with status 1 if any call
+ * went wrong.
+ *
+ * <p>
+ * XMLRPCClient needs the Apache classes and an android.util.Log that doesn't
+ * throw, as on a device:
+ *
+ * <pre>
+ * javac -d /tmp/bench -cp kxml2-2.3.0.jar:classes -sourcepath src bench/org/xmlrpc/android/*.java
+ * java -cp kxml2-2.3.0.jar:/tmp/bench:classes:httpclient.jar:... org.xmlrpc.android.ClientStress [-t threads] [-n calls]
+ * </pre>
+ */
+public class ClientStress {
+	// Asynchronous calls a thread has in flight at once.
+	private static final int IN_FLIGHT = 8;
+
+	private final XMLRPCClient client;
+	private final int threads;
+	private final int calls;
+	private final AtomicInteger wrong = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+
+	ClientStress(XMLRPCClient client, int threads, int calls) {
+		this.client = client;
+		this.threads = threads;
+		this.calls = calls;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int threads = 16;
+		int calls = 1000;
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			if (args[i].equals("-t")) {
+				threads = Integer.parseInt(args[i + 1]);
+			} else
+			if (args[i].equals("-n")) {
+				calls = Integer.parseInt(args[i + 1]);
+			}
+		}
+		LoopbackServer server = new LoopbackServer();
+		server.echo("/echo");
+		Http2LoopbackServer h2Server = new Http2LoopbackServer();
+		h2Server.echo("/echo");
+
+		boolean ok = true;
+		String[] names = { "apache", "urlconnection", "socket", "nio", "h2" };
+		for (String name : names) {
+			XMLRPCTransport transport = TransportBenchmark.transport(name);
+			if (transport == null) {
+				System.out.println(name + ": not on the class path, skipped");
+				continue;
+			}
+			int port = name.equals("h2") ? h2Server.getPort() : server.getPort();
+			XMLRPCClient client = new XMLRPCClient("http://127.0.0.1:" + port + "/echo");
+			client.setTransport(transport);
+			ClientStress stress = new ClientStress(client, threads, calls);
+			ok &= stress.run(name + "/call", false);
+			ok &= stress.run(name + "/async", true);
+			if (transport instanceof XMLRPCTransport.Pipelining) {
+				client.setPipelining(true);
+				ok &= stress.run(name + "/pipelined", true);
+			}
+		}
+		System.exit(ok ? 0 : 1);
+	}
+
+	/**
+	 * Has every thread make its calls and prints how many went wrong.
+	 *
+	 * @return true if every call got its own parameters back
+	 */
+	boolean run(String name, final boolean async) throws InterruptedException {
+		wrong.set(0);
+		failed.set(0);
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Thread> workers = new ArrayList<Thread>(threads);
+		for (int t = 0; t < threads; t++) {
+			final int thread = t;
+			Thread worker = new Thread("stress-" + t) {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					if (async) {
+						callAsync(thread);
+					} else {
+						call(thread);
+					}
+				}
+			};
+			worker.start();
+			workers.add(worker);
+		}
+		long begin = System.nanoTime();
+		start.countDown();
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		long ms = (System.nanoTime() - begin) / 1000000;
+		boolean ok = wrong.get() == 0 && failed.get() == 0;
+		System.out.println(String.format("%-24s %3d threads x %5d calls %6d ms  wrong %d  failed %d  %s",
+				name, threads, calls, ms, wrong.get(), failed.get(), ok ? "ok" : "FAILED"));
+		return ok;
+	}
+
+	private void call(int thread) {
+		for (int i = 0; i < calls; i++) {
+			Map<String, Object> params = params(thread, i);
+			try {
+				check(params, client.call("echo", params));
+			} catch (XMLRPCException e) {
+				fail(e);
+			}
+		}
+	}
+
+	private void callAsync(int thread) {
+		for (int i = 0; i < calls; i += IN_FLIGHT) {
+			int n = Math.min(IN_FLIGHT, calls - i);
+			List<Map<String, Object>> sent = new ArrayList<Map<String, Object>>(n);
+			List<XMLRPCFuture> futures = new ArrayList<XMLRPCFuture>(n);
+			for (int j = 0; j < n; j++) {
+				Map<String, Object> params = params(thread, i + j);
+				sent.add(params);
+				futures.add(client.callAsync("echo", params));
+			}
+			for (int j = 0; j < n; j++) {
+				try {
+					check(sent.get(j), futures.get(j).getResult());
+				} catch (XMLRPCException e) {
+					fail(e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return parameters no other call has, of a length that varies from
+	 *         call to call and with text that isn't all ASCII
+	 */
+	static Map<String, Object> params(int thread, int call) {
+		Map<String, Object> params = new LinkedHashMap<String, Object>();
+		params.put("thread", thread);
+		params.put("call", call);
+		StringBuilder name = new StringBuilder("t").append(thread).append('-').append(call);
+		for (int i = call % 40; i > 0; i--) {
+			name.append(i % 3 == 0 ? "\u00fc\u20ac" : "<&>");
+		}
+		params.put("name", name.toString());
+		params.put("values", new Object[] { call, thread + 0.5, call % 2 == 0 });
+		return params;
+	}
+
+	private void check(Map<String, Object> sent, Object result) {
+		if (!(result instanceof Map)) {
+			mismatch(sent, result);
+			return;
+		}
+		Map<?, ?> got = (Map<?, ?>) result;
+		if (got.size() != sent.size()) {
+			mismatch(sent, result);
+			return;
+		}
+		for (Map.Entry<String, Object> entry : sent.entrySet()) {
+			if (!Arrays.deepEquals(new Object[] { entry.getValue() }, new Object[] { got.get(entry.getKey()) })) {
+				mismatch(sent, result);
+				return;
+			}
+		}
+	}
+
+	private void mismatch(Map<String, Object> sent, Object result) {
+		if (wrong.getAndIncrement() == 0) {
+			System.out.println("  sent " + sent.get("name") + ", got " + result);
+		}
+	}
+
+	private void fail(XMLRPCException e) {
+		if (failed.getAndIncrement() == 0) {
+			System.out.println("  " + e);
+		}
+	}
+}
@@ -0,0 +1,277 @@
+package org.xmlrpc.android;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * HTTP/2 counterpart of {@link LoopbackServer}: speaks h2c with prior
+ * knowledge on the loopback interface and answers every POST to a path
+ * with the same canned response, for benchmarking and trying out
+ * {@link Http2Transport} without a real clicker server.  A path can be made
+ * to answer late, to see that a slow call doesn't hold up the others on
+ * the connection, and a path can echo each call's parameters back, as
+ * {@link LoopbackServer} can.  It ignores flow control on what it sends,
+ * which the client's windows are big enough for.
+ */
+class Http2LoopbackServer {
+	private final ServerSocket socket;
+	private final Map<String, byte[]> bodies = new HashMap<String, byte[]>();
+	private final Map<String, Integer> delays = new HashMap<String, Integer>();
+	private final Set<String> echoes = new HashSet<String>();
+	private final Timer timer = new Timer("h2-loopback-delay", true);
+	private volatile int connections;
+
+	Http2LoopbackServer() throws IOException {
+		socket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		Thread acceptor = new Thread("h2-loopback-accept") {
+			@Override
+			public void run() {
+				accept();
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	int getPort() {
+		return socket.getLocalPort();
+	}
+
+	/**
+	 * @return number of connections accepted so far
+	 */
+	int getConnections() {
+		return connections;
+	}
+
+	/**
+	 * Answers POSTs to the path with a body.
+	 *
+	 * @param delay milliseconds to wait before answering
+	 */
+	synchronized void respond(String path, String body, int delay) {
+		bodies.put(path, body.getBytes());
+		delays.put(path, delay);
+	}
+
+	/**
+	 * Answers POSTs to the path with the call's parameters.
+	 */
+	synchronized void echo(String path) {
+		echoes.add(path);
+	}
+
+	private void accept() {
+		while (true) {
+			final Socket client;
+			try {
+				client = socket.accept();
+			} catch (IOException e) {
+				return;
+			}
+			connections++;
+			Thread handler = new Thread("h2-loopback-" + client.getPort()) {
+				@Override
+				public void run() {
+					try {
+						serve(client);
+					} catch (IOException e) {
+						// the client went away
+					} finally {
+						try {
+							client.close();
+						} catch (IOException e) {
+							// nothing more to do with it
+						}
+					}
+				}
+			};
+			handler.setDaemon(true);
+			handler.start();
+		}
+	}
+
+	private void serve(Socket client) throws IOException {
+		client.setTcpNoDelay(true);
+		InputStream in = new BufferedInputStream(client.getInputStream());
+		final OutputStream out = new BufferedOutputStream(client.getOutputStream(), 32 * 1024);
+		byte[] preface = new byte[Http2Codec.PREFACE.length];
+		Http2Codec.readFully(in, preface, 0, preface.length);
+		if (!new String(preface, "ISO-8859-1").equals(new String(Http2Codec.PREFACE, "ISO-8859-1"))) {
+			out.write("HTTP/1.1 505 HTTP Version Not Supported\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes());
+			out.flush();
+			return;
+		}
+		synchronized (out) {
+			Http2Codec.writeSettings(out, Http2Codec.SETTINGS_MAX_CONCURRENT_STREAMS, 100);
+			out.flush();
+		}
+
+		Http2Codec.Frame frame = new Http2Codec.Frame();
+		Http2Codec.HeaderDecoder decoder = new Http2Codec.HeaderDecoder();
+		Map<Integer, String> paths = new HashMap<Integer, String>();
+		// request bodies of the streams whose calls are echoed
+		Map<Integer, ByteArrayOutputStream> calls = new HashMap<Integer, ByteArrayOutputStream>();
+		List<String> headers = new ArrayList<String>();
+		ByteArrayOutputStream block = new ByteArrayOutputStream();
+		int blockStream = 0;
+		boolean blockEndsStream = false;
+		while (Http2Codec.readFrame(in, frame, Http2Codec.DEFAULT_MAX_FRAME_SIZE)) {
+			switch (frame.type) {
+			case Http2Codec.HEADERS:
+			case Http2Codec.CONTINUATION:
+				if (frame.type == Http2Codec.HEADERS) {
+					int off = frame.hasFlag(Http2Codec.FLAG_PADDED) ? 1 : 0;
+					int end = frame.length - (off == 1 ? frame.payload[0] & 0xff : 0);
+					if (frame.hasFlag(Http2Codec.FLAG_PRIORITY)) {
+						off += 5;
+					}
+					block.reset();
+					block.write(frame.payload, off, end - off);
+					blockStream = frame.stream;
+					blockEndsStream = frame.hasFlag(Http2Codec.FLAG_END_STREAM);
+				} else {
+					block.write(frame.payload, 0, frame.length);
+				}
+				if (frame.hasFlag(Http2Codec.FLAG_END_HEADERS)) {
+					headers.clear();
+					byte[] bytes = block.toByteArray();
+					decoder.decode(bytes, 0, bytes.length, headers);
+					for (int i = 0; i < headers.size(); i += 2) {
+						if (headers.get(i).equals(":path")) {
+							paths.put(blockStream, headers.get(i + 1));
+							synchronized (this) {
+								if (echoes.contains(headers.get(i + 1))) {
+									calls.put(blockStream, new ByteArrayOutputStream(1024));
+								}
+							}
+						}
+					}
+					if (blockEndsStream) {
+						answer(out, blockStream, paths.remove(blockStream), calls.remove(blockStream));
+					}
+				}
+				break;
+			case Http2Codec.DATA:
+				ByteArrayOutputStream call = calls.get(frame.stream);
+				if (call != null) {
+					int off = frame.hasFlag(Http2Codec.FLAG_PADDED) ? 1 : 0;
+					int end = frame.length - (off == 1 ? frame.payload[0] & 0xff : 0);
+					call.write(frame.payload, off, end - off);
+				}
+				// give the window straight back, since the body is dropped
+				// or copied
+				if (frame.length > 0) {
+					synchronized (out) {
+						Http2Codec.writeWindowUpdate(out, 0, frame.length);
+						if (!frame.hasFlag(Http2Codec.FLAG_END_STREAM)) {
+							Http2Codec.writeWindowUpdate(out, frame.stream, frame.length);
+						}
+						out.flush();
+					}
+				}
+				if (frame.hasFlag(Http2Codec.FLAG_END_STREAM)) {
+					answer(out, frame.stream, paths.remove(frame.stream), calls.remove(frame.stream));
+				}
+				break;
+			case Http2Codec.SETTINGS:
+				if (!frame.hasFlag(Http2Codec.FLAG_ACK)) {
+					synchronized (out) {
+						Http2Codec.writeFrameHeader(out, 0, Http2Codec.SETTINGS, Http2Codec.FLAG_ACK, 0);
+						out.flush();
+					}
+				}
+				break;
+			case Http2Codec.PING:
+				if (!frame.hasFlag(Http2Codec.FLAG_ACK)) {
+					synchronized (out) {
+						Http2Codec.writeFrameHeader(out, 8, Http2Codec.PING, Http2Codec.FLAG_ACK, 0);
+						out.write(frame.payload, 0, 8);
+						out.flush();
+					}
+				}
+				break;
+			case Http2Codec.GOAWAY:
+				return;
+			default:
+				// window updates, resets and priorities change nothing here
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Sends the response for a path, now or after the path's delay.
+	 *
+	 * @param call the request body if it is echoed, otherwise null
+	 */
+	private void answer(final OutputStream out, final int stream, String path, ByteArrayOutputStream call) throws IOException {
+		final byte[] body;
+		int delay;
+		if (call != null) {
+			body = LoopbackServer.echoResponse(call.toString("UTF-8"));
+			delay = 0;
+		} else {
+			synchronized (this) {
+				body = path != null ? bodies.get(path) : null;
+				delay = body != null ? delays.get(path) : 0;
+			}
+		}
+		if (delay == 0) {
+			write(out, stream, body);
+			return;
+		}
+		timer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				try {
+					write(out, stream, body);
+				} catch (IOException e) {
+					// the client went away
+				}
+			}
+		}, delay);
+	}
+
+	private static void write(OutputStream out, int stream, byte[] body) throws IOException {
+		ByteArrayOutputStream block = new ByteArrayOutputStream(64);
+		synchronized (out) {
+			if (body == null) {
+				Http2Codec.writeIndexed(block, 13); // :status 404
+				Http2Codec.writeFrameHeader(out, block.size(), Http2Codec.HEADERS,
+						Http2Codec.FLAG_END_HEADERS | Http2Codec.FLAG_END_STREAM, stream);
+				block.writeTo(out);
+			} else {
+				Http2Codec.writeIndexed(block, 8); // :status 200
+				Http2Codec.writeHeader(block, "content-type", "text/xml");
+				Http2Codec.writeHeader(block, "content-length", Integer.toString(body.length));
+				Http2Codec.writeFrameHeader(out, block.size(), Http2Codec.HEADERS, Http2Codec.FLAG_END_HEADERS, stream);
+				block.writeTo(out);
+				int off = 0;
+				do {
+					int len = Math.min(Http2Codec.DEFAULT_MAX_FRAME_SIZE, body.length - off);
+					boolean last = off + len == body.length;
+					Http2Codec.writeFrameHeader(out, len, Http2Codec.DATA, last ? Http2Codec.FLAG_END_STREAM : 0, stream);
+					out.write(body, off, len);
+					off += len;
+				} while (off < body.length);
+			}
+			out.flush();
+		}
+	}
+}
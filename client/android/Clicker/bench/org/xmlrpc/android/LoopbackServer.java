@@ -0,0 +1,221 @@
+package org.xmlrpc.android;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keep-alive HTTP/1.1 server on the loopback interface that answers every
+ * POST to a path with the same canned response, for benchmarking the
+ * transports without a real clicker server.  It does as little as it can,
+ * so the numbers are mostly the client's.  A path can also echo each call's
+ * parameters back as its result, for checking that responses reach the
+ * calls they belong to.
+ */
+class LoopbackServer {
+	private final ServerSocket socket;
+	private final Map<String, byte[]> bodies = new HashMap<String, byte[]>();
+	private final Map<String, Integer> chunkSizes = new HashMap<String, Integer>();
+	private final Set<String> echoes = new HashSet<String>();
+
+	LoopbackServer() throws IOException {
+		socket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		Thread acceptor = new Thread("loopback-accept") {
+			@Override
+			public void run() {
+				accept();
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	int getPort() {
+		return socket.getLocalPort();
+	}
+
+	/**
+	 * Answers POSTs to the path with a body.
+	 *
+	 * @param chunkSize size of the chunks to send it in, or 0 to send it
+	 *        with a Content-Length
+	 */
+	synchronized void respond(String path, String body, int chunkSize) {
+		bodies.put(path, body.getBytes());
+		chunkSizes.put(path, chunkSize);
+	}
+
+	/**
+	 * Answers POSTs to the path with the call's parameters, so a call with
+	 * one parameter gets it back as its result.
+	 */
+	synchronized void echo(String path) {
+		echoes.add(path);
+	}
+
+	private void accept() {
+		while (true) {
+			final Socket client;
+			try {
+				client = socket.accept();
+			} catch (IOException e) {
+				return;
+			}
+			Thread handler = new Thread("loopback-" + client.getPort()) {
+				@Override
+				public void run() {
+					try {
+						serve(client);
+					} catch (IOException e) {
+						// the client went away
+					} finally {
+						try {
+							client.close();
+						} catch (IOException e) {
+							// nothing more to do with it
+						}
+					}
+				}
+			};
+			handler.setDaemon(true);
+			handler.start();
+		}
+	}
+
+	private void serve(Socket client) throws IOException {
+		client.setTcpNoDelay(true);
+		InputStream in = new BufferedInputStream(client.getInputStream());
+		OutputStream out = new BufferedOutputStream(client.getOutputStream());
+		while (true) {
+			String request = line(in);
+			if (request == null) {
+				return;
+			}
+			long length = 0;
+			boolean chunked = false;
+			String header;
+			while ((header = line(in)) != null && header.length() > 0) {
+				String lower = header.toLowerCase();
+				if (lower.startsWith("content-length:")) {
+					length = Long.parseLong(lower.substring(15).trim());
+				} else
+				if (lower.startsWith("transfer-encoding:") && lower.contains("chunked")) {
+					chunked = true;
+				}
+			}
+			String path = request.split(" ")[1];
+			boolean echo;
+			synchronized (this) {
+				echo = echoes.contains(path);
+			}
+			// the request body is only kept if it is echoed
+			ByteArrayOutputStream call = echo ? new ByteArrayOutputStream(1024) : null;
+			if (chunked) {
+				long chunk;
+				while ((chunk = Long.parseLong(line(in).trim(), 16)) > 0) {
+					skip(in, chunk, call);
+					line(in);
+				}
+				line(in);
+			} else {
+				skip(in, length, call);
+			}
+
+			byte[] body;
+			int chunkSize;
+			if (echo) {
+				body = echoResponse(call.toString("UTF-8"));
+				chunkSize = 0;
+			} else {
+				synchronized (this) {
+					body = bodies.get(path);
+					chunkSize = body != null ? chunkSizes.get(path) : 0;
+				}
+			}
+			if (body == null) {
+				out.write("HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\n\r\n".getBytes());
+			} else
+			if (chunkSize == 0) {
+				out.write(("HTTP/1.1 200 OK\r\nContent-Type: text/xml\r\nContent-Length: " + body.length + "\r\n\r\n").getBytes());
+				out.write(body);
+			} else {
+				out.write("HTTP/1.1 200 OK\r\nContent-Type: text/xml\r\nTransfer-Encoding: chunked\r\n\r\n".getBytes());
+				for (int off = 0; off < body.length; off += chunkSize) {
+					int len = Math.min(chunkSize, body.length - off);
+					out.write((Integer.toHexString(len) + "\r\n").getBytes());
+					out.write(body, off, len);
+					out.write("\r\n".getBytes());
+				}
+				out.write("0\r\n\r\n".getBytes());
+			}
+			out.flush();
+		}
+	}
+
+	/**
+	 * @return a line without its line end, or null at the end of the connection
+	 */
+	private static String line(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+		int c;
+		while ((c = in.read()) != '\n') {
+			if (c == -1) {
+				return null;
+			}
+			if (c != '\r') {
+				line.write(c);
+			}
+		}
+		return line.toString("ISO-8859-1");
+	}
+
+	/**
+	 * @return a response whose result is the call's parameters
+	 */
+	static byte[] echoResponse(String call) throws IOException {
+		int start = call.indexOf("<params>");
+		int end = call.lastIndexOf("</params>");
+		if (start < 0 || end < start) {
+			throw new IOException("Cannot echo a call without parameters");
+		}
+		return ("<?xml version='1.0'?>\n<methodResponse>" + call.substring(start, end + 9) + "</methodResponse>\n").getBytes("UTF-8");
+	}
+
+	/**
+	 * Skips n bytes, copying them to a stream if there is one.
+	 */
+	private static void skip(InputStream in, long n, OutputStream copy) throws IOException {
+		if (copy != null) {
+			byte[] buffer = new byte[4096];
+			while (n > 0) {
+				int read = in.read(buffer, 0, (int) Math.min(buffer.length, n));
+				if (read == -1) {
+					throw new IOException("Connection closed in the middle of a request");
+				}
+				copy.write(buffer, 0, read);
+				n -= read;
+			}
+			return;
+		}
+		while (n > 0) {
+			long skipped = in.skip(n);
+			if (skipped <= 0) {
+				if (in.read() == -1) {
+					throw new IOException("Connection closed in the middle of a request");
+				}
+				skipped = 1;
+			}
+			n -= skipped;
+		}
+	}
+}
@@ -0,0 +1,294 @@
+package org.xmlrpc.android;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserFactory;
+import org.xmlpull.v1.XmlSerializer;
+
+/**
+ * Benchmarks XMLRPCSerializer.serialize() and deserialize(), the
+ * RequestWriter and ResponseTokenizer fast paths, and reading bound classes,
+ * on payloads like the ones clickerd sends.  Android's Xml.newSerializer() isn't available on a plain
+ * JVM, so any XmlPull implementation on the class path is used instead,
+ * such as kXML 2:
+ *
+ * <pre>
+ * javac -d /tmp/bench -cp kxml2-2.3.0.jar -sourcepath src bench/org/xmlrpc/android/*.java
+ * java -cp kxml2-2.3.0.jar:/tmp/bench org.xmlrpc.android.SerializerBenchmark [-w warmupMs] [-m measureMs] [filter]
+ * </pre>
+ */
+public class SerializerBenchmark {
+	private final XmlSerializer serializer;
+	private final XmlSerializer writer = new RequestWriter();
+	private final XmlPullParser parser;
+	private final ByteArrayOutputStream out = new ByteArrayOutputStream(32 * 1024);
+
+	SerializerBenchmark() throws Exception {
+		XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
+		serializer = factory.newSerializer();
+		parser = factory.newPullParser();
+	}
+
+	public static void main(String[] args) throws Exception {
+		Benchmark benchmark = new Benchmark(args);
+		SerializerBenchmark codec = new SerializerBenchmark();
+		Map<String, Object> payloads = payloads();
+		for (Map.Entry<String, Object> payload : payloads.entrySet()) {
+			codec.run(benchmark, payload.getKey(), payload.getValue());
+		}
+		codec.runFault(benchmark);
+	}
+
+	/**
+	 * @return the payloads to benchmark, by name
+	 */
+	static Map<String, Object> payloads() {
+		Map<String, Object> payloads = new LinkedHashMap<String, Object>();
+
+		// device_list
+		payloads.put("device_list", new Object[] { "projector", "oppo", "receiver", "tv", "xbox", "lights" });
+
+		// device_list_buttons for a device with a full remote
+		Object[] buttons = new Object[60];
+		for (int i = 0; i < buttons.length; i++) {
+			buttons[i] = "button_" + i;
+		}
+		payloads.put("device_list_buttons", buttons);
+
+		// nested structs, like a device description with its status
+		Map<String, Object> input = new HashMap<String, Object>();
+		input.put("name", "hdmi1");
+		input.put("active", Boolean.TRUE);
+		input.put("resolution", new Object[] { 1920, 1080 });
+		Map<String, Object> status = new HashMap<String, Object>();
+		status.put("power", "on");
+		status.put("volume", 42);
+		status.put("input", input);
+		status.put("lamp_hours", 1234L);
+		Map<String, Object> device = new HashMap<String, Object>();
+		device.put("name", "projector");
+		device.put("description", "Living room projector");
+		device.put("buttons", new Object[] { "on", "off", "up", "down", "left", "right", "select", "menu" });
+		device.put("status", status);
+		device.put("brightness", 0.75);
+		device.put("updated", new Date(1356998400000L));
+		payloads.put("nested_struct", device);
+
+		// a status poll, as a class with @XMLRPCMember fields
+		payloads.put("status", new Status());
+
+		// statuses of a room full of devices
+		Status[] statuses = new Status[8];
+		for (int i = 0; i < statuses.length; i++) {
+			statuses[i] = new Status();
+		}
+		payloads.put("bound_structs", statuses);
+
+		// a device's volume history
+		int[] volumes = new int[256];
+		for (int i = 0; i < volumes.length; i++) {
+			volumes[i] = 20 + i % 40;
+		}
+		payloads.put("volume_history", volumes);
+
+		// base64 blob
+		byte[] blob = new byte[16 * 1024];
+		new Random(42).nextBytes(blob);
+		payloads.put("base64_16k", blob);
+
+		return payloads;
+	}
+
+	/**
+	 * A fault response, as Python's xmlrpclib writes it when a method is
+	 * missing.
+	 */
+	static final String FAULT = "<?xml version='1.0'?>\n"
+			+ "<methodResponse>\n"
+			+ "<fault>\n"
+			+ "<value><struct>\n"
+			+ "<member>\n"
+			+ "<name>faultCode</name>\n"
+			+ "<value><int>1</int></value>\n"
+			+ "</member>\n"
+			+ "<member>\n"
+			+ "<name>faultString</name>\n"
+			+ "<value><string>&lt;type 'exceptions.Exception'&gt;:method \"device_info\" is not supported</string></value>\n"
+			+ "</member>\n"
+			+ "</struct></value>\n"
+			+ "</fault>\n"
+			+ "</methodResponse>\n";
+
+	/**
+	 * A device's status the way an application would bind it.
+	 */
+	static class Status {
+		@XMLRPCMember
+		String power = "on";
+		@XMLRPCMember
+		int volume = 42;
+		@XMLRPCMember("lamp_hours")
+		long lampHours = 1234;
+		@XMLRPCMember
+		double brightness = 0.75;
+	}
+
+	void run(Benchmark benchmark, String name, final Object value) throws Exception {
+		benchmark.run("serialize/" + name, new Benchmark.Op() {
+			public void run() throws Exception {
+				serialize(value);
+			}
+		});
+
+		benchmark.run("write/" + name, new Benchmark.Op() {
+			public void run() throws Exception {
+				write(value);
+			}
+		});
+
+		serialize(value);
+		final byte[] document = out.toByteArray();
+		benchmark.run("deserialize/" + name, new Benchmark.Op() {
+			public void run() throws Exception {
+				deserialize(document);
+			}
+		});
+		benchmark.run("tokenize/" + name, new Benchmark.Op() {
+			public void run() throws Exception {
+				tokenize(document);
+			}
+		});
+		if (value instanceof Status || value instanceof Status[] || value instanceof int[]) {
+			final XMLRPCBinding<?> binding = XMLRPCBindings.forClass(value.getClass());
+			benchmark.run("bind/" + name, new Benchmark.Op() {
+				public void run() throws Exception {
+					bind(document, binding);
+				}
+			});
+		}
+		if (value instanceof int[]) {
+			benchmark.run("primitive/" + name, new Benchmark.Op() {
+				public void run() throws Exception {
+					bind(document, XMLRPCBindings.PRIMITIVE_ARRAYS);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Reads a whole fault response the two ways XMLRPCClient can.  The
+	 * client never writes one, so there's nothing to serialize.
+	 */
+	void runFault(Benchmark benchmark) throws Exception {
+		final byte[] document = FAULT.getBytes("UTF-8");
+		benchmark.run("deserialize/fault", new Benchmark.Op() {
+			public void run() throws Exception {
+				deserializeResponse(document);
+			}
+		});
+		benchmark.run("tokenize/fault", new Benchmark.Op() {
+			public void run() throws Exception {
+				tokenizeResponse(document);
+			}
+		});
+	}
+
+	/**
+	 * Writes a value as a &lt;value&gt; element into the output buffer.
+	 */
+	void serialize(Object value) throws Exception {
+		out.reset();
+		serializer.setOutput(out, "UTF-8");
+		serializer.startTag(null, XMLRPCSerializer.TAG_VALUE);
+		XMLRPCSerializer.serialize(serializer, value);
+		serializer.endTag(null, XMLRPCSerializer.TAG_VALUE);
+		serializer.flush();
+	}
+
+	/**
+	 * Writes a value like {@link #serialize(Object)}, but through the
+	 * RequestWriter the client uses for requests.
+	 */
+	void write(Object value) throws Exception {
+		out.reset();
+		writer.setOutput(out, "UTF-8");
+		writer.startTag(null, XMLRPCSerializer.TAG_VALUE);
+		XMLRPCSerializer.serialize(writer, value);
+		writer.endTag(null, XMLRPCSerializer.TAG_VALUE);
+		writer.flush();
+	}
+
+	Object deserialize(byte[] document) throws Exception {
+		parser.setInput(new ByteArrayInputStream(document), "UTF-8");
+		parser.nextTag();
+		return XMLRPCSerializer.deserialize(parser);
+	}
+
+	/**
+	 * Reads a value straight into the class it's bound to.
+	 */
+	Object bind(byte[] document, XMLRPCDecoder<?> binding) throws Exception {
+		parser.setInput(new ByteArrayInputStream(document), "UTF-8");
+		parser.nextTag();
+		return binding.read(parser);
+	}
+
+	/**
+	 * Decodes a value like {@link #deserialize(byte[])}, but through the
+	 * fast path the client uses for UTF-8 responses, falling back to the
+	 * pull parser the same way.
+	 */
+	Object tokenize(byte[] document) throws Exception {
+		try {
+			return new ResponseTokenizer(document, 0, document.length).readValue();
+		} catch (ResponseTokenizer.Unsupported e) {
+			return deserialize(document);
+		}
+	}
+
+	/**
+	 * Reads a methodResponse the way XMLRPCClient does with the pull
+	 * parser, down to the XMLRPCFault it throws.
+	 *
+	 * @return the return value, or the fault
+	 */
+	Object deserializeResponse(byte[] document) throws Exception {
+		parser.setInput(new ByteArrayInputStream(document), "UTF-8");
+		parser.nextTag();
+		parser.require(XmlPullParser.START_TAG, null, "methodResponse");
+		parser.nextTag();
+		if (parser.getName().equals("fault")) {
+			parser.nextTag();
+			return toFault(XMLRPCSerializer.deserialize(parser));
+		}
+		parser.nextTag();
+		parser.nextTag();
+		return XMLRPCSerializer.deserialize(parser);
+	}
+
+	/**
+	 * Reads a methodResponse like {@link #deserializeResponse(byte[])},
+	 * through the tokenizer and falling back to the pull parser.
+	 */
+	Object tokenizeResponse(byte[] document) throws Exception {
+		ResponseTokenizer tokenizer = new ResponseTokenizer(document, 0, document.length);
+		try {
+			Object obj = tokenizer.readResponse();
+			return tokenizer.isFault() ? toFault(obj) : obj;
+		} catch (ResponseTokenizer.Unsupported e) {
+			return deserializeResponse(document);
+		}
+	}
+
+	private static XMLRPCFault toFault(Object fault) {
+		Map<?, ?> map = (Map<?, ?>) fault;
+		return new XMLRPCFault((String) map.get("faultString"), (Integer) map.get("faultCode"));
+	}
+}
@@ -0,0 +1,337 @@
+package org.xmlrpc.android;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserFactory;
+import org.xmlpull.v1.XmlSerializer;
+
+/**
+ * Checks that ResponseTokenizer reads responses the same as the pull
+ * parser: every response it doesn't turn down has to give the same value
+ * as XMLRPCSerializer.deserialize(), and the same typed result for each
+ * binding the client converts generic values to, or the same fault.
+ * Exits with status 1 if any differ.
+ *
+ * <pre>
+ * javac -d /tmp/bench -cp kxml2-2.3.0.jar -sourcepath src bench/org/xmlrpc/android/*.java
+ * java -cp kxml2-2.3.0.jar:/tmp/bench org.xmlrpc.android.TokenizerCheck
+ * </pre>
+ */
+public class TokenizerCheck {
+	// Values, as the contents of a <value> element.
+	private static final String[] VALUES = {
+		// entities, including in member names, and ones the tokenizer
+		// leaves to the pull parser
+		"<string>a &lt;b&gt; &amp; &quot;c&quot; &apos;d&apos;</string>",
+		"<string>&lt;type 'exceptions.Exception'&gt;:method \"x\" is not supported</string>",
+		"<string>&#60;num&#x3e;</string>",
+		"<string>&lt</string>",
+		"<string>\u00fc&gt;\u20ac \ud83d\udd0c</string>",
+		"<string></string>",
+		"<struct><member><name>a&amp;b</name><value><string>x&lt;</string></value></member></struct>",
+		// CDATA
+		"<string><![CDATA[a <b> & c]]></string>",
+		"<string>a<![CDATA[<]]>b</string>",
+		// <value> with no type, which is a string
+		"plain",
+		"",
+		"  spaced &amp; \n",
+		"<![CDATA[x]]>",
+		// whitespace around the type
+		"\n<string>x</string>\n",
+		"\n<int>1</int>\n",
+		// integers
+		"<int>5</int>",
+		"<i4>-7</i4>",
+		"<int>2147483647</int>",
+		"<int>2147483648</int>",
+		"<int>&#49;</int>",
+		"<i8>123456789012</i8>",
+		"<i8>-9223372036854775808</i8>",
+		"<boolean>1</boolean>",
+		"<boolean>0</boolean>",
+		// doubles, with and without exponents
+		"<double>1.5</double>",
+		"<double>-0.0</double>",
+		"<double>0.1</double>",
+		"<double>3.141592653589793</double>",
+		"<double>123456789012345</double>",
+		"<double>1234567890123456789</double>",
+		"<double>1e10</double>",
+		"<double>1.5E-7</double>",
+		"<double>-2.5e+300</double>",
+		"<double>1.7976931348623157E308</double>",
+		"<double>4.9E-324</double>",
+		"<double>.5</double>",
+		"<double>5.</double>",
+		"<double>1.0000000000000002</double>",
+		"<double>0.30000000000000004</double>",
+		// dateTime
+		"<dateTime.iso8601>20130101T00:00:00</dateTime.iso8601>",
+		"<dateTime.iso8601>19991231T23:59:59</dateTime.iso8601>",
+		"<dateTime.iso8601>2013-01-01T00:00:00</dateTime.iso8601>",
+		// base64, padded, unpadded, empty and with line breaks
+		"<base64>AAEC</base64>",
+		"<base64>AAE=</base64>",
+		"<base64>AA==</base64>",
+		"<base64></base64>",
+		"<base64>AAECAwQF\nBgcICQoL\n</base64>",
+		// arrays and structs, nested
+		"<array><data></data></array>",
+		"<array><data><value><string>a&amp;b</string></value><value>c</value></data></array>",
+		"<array><data><value><int>1</int></value><value><i4>2</i4></value></data></array>",
+		"<array><data><value><double>1.5</double></value><value><double>2e3</double></value></data></array>",
+		"<array><data><value><boolean>0</boolean></value></data></array>",
+		"<array><data><value><string>a</string></value><value><int>2</int></value></data></array>",
+		"<array><data><value><array><data><value><int>1</int></value></data></array></value>"
+				+ "<value><struct><member><name>k</name><value><array><data></data></array></value></member></struct></value>"
+				+ "</data></array>",
+		"<struct></struct>",
+		"<struct>\n<member>\n<name>power</name>\n<value><string>on</string></value>\n</member>\n"
+				+ "<member>\n<name>input</name>\n<value><struct><member><name>name</name><value>hdmi1</value></member>"
+				+ "<member><name>when</name><value><dateTime.iso8601>20130101T00:00:00</dateTime.iso8601></value></member>"
+				+ "<member><name>icon</name><value><base64>AAEC</base64></value></member></struct></value>\n</member>\n"
+				+ "<member>\n<name>levels</name>\n<value><array><data><value><double>0.75</double></value>"
+				+ "<value><double>1E-3</double></value></data></array></value>\n</member>\n</struct>",
+		"<struct><member><name>a</name><value><int>1</int></value></member>"
+				+ "<member><name>a</name><value><int>2</int></value></member></struct>",
+	};
+
+	// Whole fault responses.
+	private static final String[] FAULTS = {
+		SerializerBenchmark.FAULT,
+		"<?xml version='1.0'?>\n<methodResponse>\n<fault>\n<value><struct>\n"
+				+ "<member><name>faultString</name><value>no type &amp; entities</value></member>\n"
+				+ "<member><name>faultCode</name><value><i4>-32601</i4></value></member>\n"
+				+ "</struct></value>\n</fault>\n</methodResponse>\n",
+		"<?xml version='1.0'?>\n<methodResponse>\n<fault>\n<value><struct>\n"
+				+ "<member><name>faultCode</name><value><int>2</int></value></member>\n"
+				+ "<member><name>faultString</name><value><string><![CDATA[<boom>]]></string></value></member>\n"
+				+ "</struct></value>\n</fault>\n</methodResponse>\n",
+	};
+
+	// Bindings the client converts the tokenizer's generic values to.
+	private static final XMLRPCDecoder<?>[] BINDINGS = {
+		XMLRPCBindings.VOID, XMLRPCBindings.STRING, XMLRPCBindings.INT, XMLRPCBindings.LONG, XMLRPCBindings.DOUBLE,
+		XMLRPCBindings.BOOLEAN, XMLRPCBindings.STRING_ARRAY, XMLRPCBindings.INT_ARRAY, XMLRPCBindings.DOUBLE_ARRAY,
+		XMLRPCBindings.BOOLEAN_ARRAY, XMLRPCBindings.forClass(Object[].class), XMLRPCBindings.forClass(Date.class),
+		XMLRPCBindings.forClass(byte[].class), XMLRPCBindings.forClass(Map.class)
+	};
+
+	private final XmlPullParserFactory factory;
+	private int tokenized;
+	private int turnedDown;
+	private int mismatches;
+
+	TokenizerCheck() throws Exception {
+		factory = XmlPullParserFactory.newInstance();
+	}
+
+	public static void main(String[] args) throws Exception {
+		TokenizerCheck check = new TokenizerCheck();
+		List<byte[]> responses = new ArrayList<byte[]>();
+		for (String value : VALUES) {
+			responses.add(check.response(value));
+		}
+		// and what the client's own serializer writes
+		for (Object payload : SerializerBenchmark.payloads().values()) {
+			responses.add(check.response(check.serialize(payload)));
+		}
+		for (byte[] response : responses) {
+			check.checkValue(response);
+		}
+		for (String fault : FAULTS) {
+			check.checkFault(fault.getBytes("UTF-8"));
+		}
+		System.out.println(responses.size() + " responses, " + FAULTS.length + " faults: " + check.tokenized
+				+ " tokenized, " + check.turnedDown + " left to the pull parser, " + check.mismatches + " mismatches");
+		if (check.mismatches > 0) {
+			System.exit(1);
+		}
+	}
+
+	private byte[] response(String value) throws Exception {
+		return ("<?xml version='1.0'?>\n<methodResponse>\n<params>\n<param>\n<value>" + value
+				+ "</value>\n</param>\n</params>\n</methodResponse>\n").getBytes("UTF-8");
+	}
+
+	private String serialize(Object value) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		XmlSerializer serializer = factory.newSerializer();
+		serializer.setOutput(out, "UTF-8");
+		XMLRPCSerializer.serialize(serializer, value);
+		serializer.flush();
+		return out.toString("UTF-8");
+	}
+
+	/**
+	 * Reads a response with the tokenizer and compares it with the pull
+	 * parser, generically and for each binding.
+	 */
+	private void checkValue(byte[] response) throws Exception {
+		String name = new String(response, "UTF-8");
+		Object tokens;
+		try {
+			ResponseTokenizer tokenizer = new ResponseTokenizer(response, 0, response.length);
+			tokens = tokenizer.readResponse();
+			if (tokenizer.isFault()) {
+				mismatch(name, "a fault", "a value");
+				return;
+			}
+		} catch (ResponseTokenizer.Unsupported e) {
+			turnedDown++;
+			return;
+		}
+		tokenized++;
+		compare(name, "deserialize", tokens, read(response, null));
+		for (XMLRPCDecoder<?> binding : BINDINGS) {
+			Object typed;
+			try {
+				typed = XMLRPCBindings.fromGeneric(binding, tokens);
+			} catch (ResponseTokenizer.Unsupported e) {
+				// the client reads it again with the pull parser
+				continue;
+			} catch (Exception e) {
+				typed = e;
+			}
+			compare(name, binding.toString(), typed, read(response, binding));
+		}
+	}
+
+	private void checkFault(byte[] response) throws Exception {
+		String name = new String(response, "UTF-8");
+		Object tokens;
+		try {
+			ResponseTokenizer tokenizer = new ResponseTokenizer(response, 0, response.length);
+			tokens = tokenizer.readResponse();
+			if (!tokenizer.isFault()) {
+				mismatch(name, "a value", "a fault");
+				return;
+			}
+		} catch (ResponseTokenizer.Unsupported e) {
+			turnedDown++;
+			return;
+		}
+		tokenized++;
+		XmlPullParser parser = factory.newPullParser();
+		parser.setInput(new ByteArrayInputStream(response), "UTF-8");
+		parser.nextTag();
+		parser.nextTag();
+		parser.require(XmlPullParser.START_TAG, null, "fault");
+		parser.nextTag();
+		compare(name, "fault", toFault(tokens), toFault(XMLRPCSerializer.deserialize(parser)));
+	}
+
+	/**
+	 * @return the response's value read with the pull parser, generically
+	 *         if binding is null, or the exception reading it threw
+	 */
+	private Object read(byte[] response, XMLRPCDecoder<?> binding) throws Exception {
+		XmlPullParser parser = factory.newPullParser();
+		parser.setInput(new ByteArrayInputStream(response), "UTF-8");
+		// methodResponse, params, param, value
+		for (int i = 0; i < 4; i++) {
+			parser.nextTag();
+		}
+		try {
+			return binding == null ? XMLRPCSerializer.deserialize(parser) : binding.read(parser);
+		} catch (Exception e) {
+			return e;
+		}
+	}
+
+	private void compare(String name, String how, Object tokens, Object parsed) {
+		if (parsed instanceof Exception || tokens instanceof Exception) {
+			// the client's call fails either way
+			if (!(parsed instanceof Exception && tokens instanceof Exception)) {
+				mismatch(name + " as " + how, show(tokens), show(parsed));
+			}
+		} else
+		if (!same(tokens, parsed)) {
+			mismatch(name + " as " + how, show(tokens), show(parsed));
+		}
+	}
+
+	private void mismatch(String what, String tokens, String parsed) {
+		mismatches++;
+		System.out.println("MISMATCH " + what + "\n  tokenizer:   " + tokens + "\n  pull parser: " + parsed);
+	}
+
+	private static XMLRPCFault toFault(Object fault) {
+		Map<?, ?> map = (Map<?, ?>) fault;
+		return new XMLRPCFault((String) map.get("faultString"), (Integer) map.get("faultCode"));
+	}
+
+	/**
+	 * Compares values down through arrays and maps, and doubles bit for bit.
+	 */
+	static boolean same(Object a, Object b) {
+		if (a == b) {
+			return true;
+		}
+		if (a == null || b == null || a.getClass() != b.getClass()) {
+			return false;
+		}
+		if (a instanceof Object[]) {
+			Object[] x = (Object[]) a;
+			Object[] y = (Object[]) b;
+			if (x.length != y.length) {
+				return false;
+			}
+			for (int i = 0; i < x.length; i++) {
+				if (!same(x[i], y[i])) {
+					return false;
+				}
+			}
+			return true;
+		} else
+		if (a instanceof Map) {
+			Map<?, ?> x = (Map<?, ?>) a;
+			Map<?, ?> y = (Map<?, ?>) b;
+			if (x.size() != y.size()) {
+				return false;
+			}
+			for (Map.Entry<?, ?> entry : x.entrySet()) {
+				if (!y.containsKey(entry.getKey()) || !same(entry.getValue(), y.get(entry.getKey()))) {
+					return false;
+				}
+			}
+			return true;
+		} else
+		if (a instanceof XMLRPCFault) {
+			XMLRPCFault x = (XMLRPCFault) a;
+			XMLRPCFault y = (XMLRPCFault) b;
+			return x.getFaultCode() == y.getFaultCode() && x.getFaultString().equals(y.getFaultString());
+		} else
+		if (a instanceof byte[]) {
+			return Arrays.equals((byte[]) a, (byte[]) b);
+		} else
+		if (a instanceof int[]) {
+			return Arrays.equals((int[]) a, (int[]) b);
+		} else
+		if (a instanceof double[]) {
+			return Arrays.equals((double[]) a, (double[]) b);
+		} else
+		if (a instanceof boolean[]) {
+			return Arrays.equals((boolean[]) a, (boolean[]) b);
+		}
+		// Double.equals() compares bits, so -0.0 and 0.0 differ
+		return a.equals(b);
+	}
+
+	private static String show(Object value) {
+		if (value instanceof XMLRPCFault) {
+			XMLRPCFault fault = (XMLRPCFault) value;
+			return "fault " + fault.getFaultCode() + " " + fault.getFaultString();
+		}
+		String type = value == null ? "" : value.getClass().getSimpleName() + " ";
+		return type + Arrays.deepToString(new Object[] { value });
+	}
+}
@@ -0,0 +1,239 @@
+package org.xmlrpc.android;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Benchmarks a button press, from sending the call to decoding the result,
+ * through each transport against a {@link LoopbackServer}.  The latency is
+ * what a tap costs on top of the network.  A burst of presses is also
+ * benchmarked made one after the other and, through the transports that can,
+ * pipelined, and so are presses made at the same time from several threads,
+ * as when several screens poll the same server.  Http2Transport is
+ * benchmarked against an {@link Http2LoopbackServer}.
+ *
+ * <p>
+ * NioTransport needs nothing but the JDK.  The other transports are
+ * benchmarked if they are on the class path, which for ApacheTransport
+ * includes Apache HttpClient:
+ *
+ * <pre>
+ * javac -d /tmp/bench -cp kxml2-2.3.0.jar -sourcepath src bench/org/xmlrpc/android/*.java
+ * java -cp kxml2-2.3.0.jar:/tmp/bench[:classes:httpclient.jar:...] org.xmlrpc.android.TransportBenchmark [-w warmupMs] [-m measureMs] [filter]
+ * </pre>
+ */
+public class TransportBenchmark {
+	private static final String PRESS_CALL = "<?xml version='1.0' encoding='UTF-8' ?><methodCall>"
+			+ "<methodName>device_press_button</methodName><params>"
+			+ "<param><value><string>projector</string></value></param>"
+			+ "<param><value><string>power_on</string></value></param>"
+			+ "</params></methodCall>";
+
+	private static final String PRESS_RESPONSE = "<?xml version='1.0'?>\n<methodResponse>\n<params>\n<param>\n"
+			+ "<value><boolean>1</boolean></value>\n</param>\n</params>\n</methodResponse>\n";
+
+	// Presses in a burst, as when a button is held down.
+	private static final int BURST = 8;
+	// Calls made at the same time.
+	private static final int CONCURRENT = 8;
+
+	public static void main(String[] args) throws Exception {
+		Benchmark benchmark = new Benchmark(args);
+		LoopbackServer server = new LoopbackServer();
+		server.respond("/press", PRESS_RESPONSE, 0);
+		String buttons = buttonsResponse();
+		server.respond("/buttons", buttons, 0);
+		server.respond("/buttons_chunked", buttons, 512);
+		Http2LoopbackServer h2Server = new Http2LoopbackServer();
+		h2Server.respond("/press", PRESS_RESPONSE, 0);
+		h2Server.respond("/buttons", buttons, 0);
+		final ExecutorService threads = Executors.newFixedThreadPool(CONCURRENT);
+
+		Map<String, String> headers = new LinkedHashMap<String, String>();
+		headers.put("Content-Type", "text/xml");
+		headers.put("charset", "UTF-8");
+		headers.put("User-Agent", "clicker-android/1.0");
+		Request press = new Request(PRESS_CALL.getBytes("UTF-8"));
+
+		String[] names = { "apache", "urlconnection", "socket", "nio", "h2" };
+		for (String name : names) {
+			XMLRPCTransport transport = transport(name);
+			if (transport == null) {
+				System.out.println(name + ": not on the class path, skipped");
+				continue;
+			}
+			boolean h2 = name.equals("h2");
+			int port = h2 ? h2Server.getPort() : server.getPort();
+			// HTTP/2 has no chunked responses
+			String[] paths = h2 ? new String[] { "/press", "/buttons" } : new String[] { "/press", "/buttons", "/buttons_chunked" };
+			for (String path : paths) {
+				final XMLRPCTransport t = transport;
+				final URI uri = new URI("http://127.0.0.1:" + port + path);
+				final Map<String, String> h = headers;
+				final Request r = press;
+				benchmark.run("transport/" + name + path, new Benchmark.Op() {
+					public void run() throws Exception {
+						call(t, uri, h, r);
+					}
+				});
+			}
+
+			final XMLRPCTransport t = transport;
+			final URI uri = new URI("http://127.0.0.1:" + port + "/press");
+			final Map<String, String> h = headers;
+			final List<Request> burst = new ArrayList<Request>();
+			for (int i = 0; i < BURST; i++) {
+				burst.add(press);
+			}
+			benchmark.run("transport/" + name + "/burst", new Benchmark.Op() {
+				public void run() throws Exception {
+					for (Request r : burst) {
+						call(t, uri, h, r);
+					}
+				}
+			});
+			if (transport instanceof XMLRPCTransport.Pipelining) {
+				benchmark.run("transport/" + name + "/burst_pipelined", new Benchmark.Op() {
+					public void run() throws Exception {
+						callPipelined((XMLRPCTransport.Pipelining) t, uri, h, burst);
+					}
+				});
+			}
+			final Callable<Object> call = new Callable<Object>() {
+				public Object call() throws Exception {
+					return TransportBenchmark.call(t, uri, h, burst.get(0));
+				}
+			};
+			benchmark.run("transport/" + name + "/concurrent", new Benchmark.Op() {
+				public void run() throws Exception {
+					List<Future<Object>> calls = new ArrayList<Future<Object>>(CONCURRENT);
+					for (int i = 0; i < CONCURRENT; i++) {
+						calls.add(threads.submit(call));
+					}
+					for (Future<Object> result : calls) {
+						result.get();
+					}
+				}
+			});
+		}
+		threads.shutdown();
+	}
+
+	/**
+	 * Makes a call the way XMLRPCClient does for untyped results.
+	 */
+	static Object call(XMLRPCTransport transport, URI uri, Map<String, String> headers, Request request) throws Exception {
+		XMLRPCTransport.Response response = transport.post(uri, headers, request);
+		try {
+			if (response.getStatusCode() != 200) {
+				throw new IOException("HTTP status code: " + response.getStatusCode());
+			}
+			ResponseSniffer sniffer = new ResponseSniffer(response.getBody());
+			ResponseTokenizer tokenizer = ResponseTokenizer.read(sniffer.getStream(), response.getContentLength());
+			return tokenizer.readResponse();
+		} finally {
+			response.close();
+		}
+	}
+
+	/**
+	 * Makes the calls in one pipeline the way XMLRPCClient does.
+	 */
+	static void callPipelined(XMLRPCTransport.Pipelining transport, URI uri, Map<String, String> headers, List<Request> requests) throws Exception {
+		XMLRPCTransport.Pipeline pipeline = transport.pipeline(uri, headers, requests);
+		try {
+			for (int i = 0; i < requests.size(); i++) {
+				XMLRPCTransport.Response response = pipeline.next();
+				if (response == null) {
+					throw new IOException("Server closed the pipeline");
+				}
+				try {
+					ResponseSniffer sniffer = new ResponseSniffer(response.getBody());
+					ResponseTokenizer.read(sniffer.getStream(), response.getContentLength()).readResponse();
+				} finally {
+					response.close();
+				}
+			}
+		} finally {
+			pipeline.close();
+		}
+	}
+
+	/**
+	 * @return the transport, or null if it isn't on the class path
+	 */
+	static XMLRPCTransport transport(String name) throws Exception {
+		if (name.equals("nio")) {
+			return new NioTransport();
+		}
+		// the others are looked up by name, so this compiles without them
+		try {
+			if (name.equals("apache")) {
+				// the pooled client XMLRPCClient uses, which threads can share
+				Class<?> httpClient = Class.forName("org.apache.http.client.HttpClient");
+				Class<?> credentials = Class.forName("org.apache.http.auth.Credentials");
+				Object none = Class.forName("org.apache.http.auth.UsernamePasswordCredentials")
+						.getConstructor(String.class, String.class).newInstance("", "");
+				Object client = Class.forName("org.xmlrpc.android.ConnectionClient").getMethod("getClient", URI.class, credentials)
+						.invoke(null, new URI("http://127.0.0.1/"), none);
+				return (XMLRPCTransport) Class.forName("org.xmlrpc.android.ApacheTransport")
+						.getConstructor(httpClient).newInstance(client);
+			} else
+			if (name.equals("urlconnection")) {
+				return (XMLRPCTransport) Class.forName("org.xmlrpc.android.URLConnectionTransport").newInstance();
+			} else
+			if (name.equals("socket")) {
+				return (XMLRPCTransport) Class.forName("org.xmlrpc.android.SocketTransport").newInstance();
+			} else
+			if (name.equals("h2")) {
+				return (XMLRPCTransport) Class.forName("org.xmlrpc.android.Http2Transport").newInstance();
+			}
+		} catch (ClassNotFoundException e) {
+			// not on the class path
+		} catch (NoClassDefFoundError e) {
+			// on the class path, but something it needs isn't
+		}
+		return null;
+	}
+
+	/**
+	 * @return device_list_buttons for a device with a full remote, as
+	 *         clickerd sends it
+	 */
+	static String buttonsResponse() {
+		StringBuilder response = new StringBuilder("<?xml version='1.0'?>\n<methodResponse>\n<params>\n<param>\n<value><array><data>\n");
+		for (int i = 0; i < 60; i++) {
+			response.append("<value><string>button_").append(i).append("</string></value>\n");
+		}
+		return response.append("</data></array></value>\n</param>\n</params>\n</methodResponse>\n").toString();
+	}
+
+	/**
+	 * A call that has already been serialized.
+	 */
+	static class Request implements XMLRPCTransport.Request {
+		private final byte[] body;
+
+		Request(byte[] body) {
+			this.body = body;
+		}
+
+		public long getContentLength() {
+			return body.length;
+		}
+
+		public void writeTo(OutputStream out) throws IOException {
+			out.write(body);
+			out.flush();
+		}
+	}
+}
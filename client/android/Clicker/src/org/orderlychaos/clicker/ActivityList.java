@@ -3,6 +3,9 @@ package org.orderlychaos.clicker;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.xmlrpc.android.XMLRPCBatch;
+import org.xmlrpc.android.XMLRPCBindings;
+import org.xmlrpc.android.XMLRPCCallback;
 import org.xmlrpc.android.XMLRPCClient;
 import org.xmlrpc.android.XMLRPCException;
 
@@ -12,6 +15,7 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.SharedPreferences;
 import android.os.AsyncTask;
+import android.os.Handler;
 
 public class ActivityList extends AsyncTask<Void, Void, String> {
 	private List<String> activities;
@@ -29,7 +33,7 @@ public class ActivityList extends AsyncTask<Void, Void, String> {
 	
     @Override
     protected String doInBackground(Void... params) {
-    	Object[] activity_list = {};
+    	String[] activity_list = {};
     	String error = null;
     	
     	// Load our settings.
@@ -38,16 +42,31 @@ public class ActivityList extends AsyncTask<Void, Void, String> {
         
     	// Connect to the server.
     	XMLRPCClient SERVER = new XMLRPCClient(server_url);
+    	ClickerService service = SERVER.getService(ClickerService.class);
     	
     	// Get the activity information from the server.
     	try {
-      		activity_list = (Object[]) SERVER.call("activity_list");
-      		current_activity = SERVER.call("activity_current").toString();
+      		activity_list = service.activityList();
+      		current_activity = service.activityCurrent();
         } catch (XMLRPCException e) {
         	// Get the error message we should return.
         	error = DeviceListActivity.parseXMLRPCError(e, context);
        	}
     	
+    	// Get the descriptions for all of the activities in one request.
+    	XMLRPCBatch batch = new XMLRPCBatch();
+    	for (int i = 0; i < activity_list.length; i++) {
+    		batch.add(XMLRPCBindings.STRING, "activity_info", activity_list[i]);
+    	}
+    	Object[] results = {};
+    	try {
+    		results = SERVER.callBatch(batch);
+    	} catch (XMLRPCException e) {
+    		// Get the error message we should return.
+    		error = DeviceListActivity.parseXMLRPCError(e, context);
+    		activity_list = new String[0];
+    	}
+    	
     	// Build the list of activities from the server's response.  We flush out any old items first.
     	activities.clear();
     	for (int i = 0; i< activity_list.length; i++) {
@@ -55,8 +74,8 @@ public class ActivityList extends AsyncTask<Void, Void, String> {
     			// We create two lists in the same order.  We do this instead of using a Map
     			// since we need an array of the descriptions to display in the chooser dialog
     			// in our postExecute method.
-    			activities.add(activity_list[i].toString());
-    			descriptions.add(SERVER.call("activity_info", activity_list[i].toString()).toString());
+    			activities.add(activity_list[i]);
+    			descriptions.add((String) XMLRPCBatch.getResult(results, i));
     		} catch (XMLRPCException e) {
     			// Get the error message we should return.
             	error = DeviceListActivity.parseXMLRPCError(e, context);
@@ -101,8 +120,8 @@ public class ActivityList extends AsyncTask<Void, Void, String> {
     		builder.setSingleChoiceItems(descriptions.toArray(new CharSequence[0]),
     				activities.indexOf(current_activity), new DialogInterface.OnClickListener() {
     		    public void onClick(DialogInterface dialog, int item) {
-    		    	// Send the start activity command in a separate thread.
-    		    	new StartActivityTask().execute(activities.get(item));
+    		    	// Send the start activity command asynchronously.
+    		    	startActivity(activities.get(item));
     		    	
     		    	// Dismiss the activity selection dialog.
     		    	dialog.dismiss();
@@ -114,43 +133,43 @@ public class ActivityList extends AsyncTask<Void, Void, String> {
     	
     }
     
-    // Helper task to send start command asynchronously.  This also handles
-    // raising an error dialog if we have trouble talking to the server.
-    private class StartActivityTask extends AsyncTask<String, Void, String> {
-        protected String doInBackground(String... activity) {
-        	String error = null;
-        	
-        	// Load our settings.
-        	SharedPreferences settings = context.getSharedPreferences("ClickerSettings", Context.MODE_PRIVATE);
-	        String server_url = settings.getString("server_url", "");
-	        
-	        // Send the command to start the activity.
-			XMLRPCClient server = new XMLRPCClient(server_url);
-			try {
-				server.call("activity_start", activity[0]);
-			} catch (XMLRPCException e) {
-				// Get the error message we should return.
-	        	error = DeviceListActivity.parseXMLRPCError(e, context);
-	        }
-			
-			return error;
-        }
-        
-        protected void onPostExecute(String error) {
-        	if (error != null) {
-        		// Pop up an error dialog.
-    			AlertDialog.Builder builder = new AlertDialog.Builder(context);
-    			builder.setMessage(error)
-    				.setCancelable(false)
-    				.setPositiveButton("OK", new DialogInterface.OnClickListener() {
-    					public void onClick(DialogInterface dialog, int id) {
-    						dialog.dismiss();
-    					}
-    				});
-    			AlertDialog alert = builder.create();
-    			alert.show();
-        	}
-        }
+    // Helper to send the start command asynchronously, on the client's
+    // executor.  This also handles raising an error dialog if we have
+    // trouble talking to the server.
+    private void startActivity(String activity) {
+    	// Load our settings.
+    	SharedPreferences settings = context.getSharedPreferences("ClickerSettings", Context.MODE_PRIVATE);
+    	String server_url = settings.getString("server_url", "");
+    	
+    	// The callback runs on a background thread, so errors are
+    	// posted back to this one, the UI thread.
+    	final Handler handler = new Handler();
+    	
+    	// Send the command to start the activity.
+    	XMLRPCClient server = new XMLRPCClient(server_url);
+    	server.getService(ClickerService.class).activityStartAsync(activity).addCallback(new XMLRPCCallback() {
+    		public void onResult(Object result) {
+    			// Nothing to show.
+    		}
+    		
+    		public void onFailure(final XMLRPCException e) {
+    			handler.post(new Runnable() {
+    				public void run() {
+    					// Pop up an error dialog.
+    					AlertDialog.Builder builder = new AlertDialog.Builder(context);
+    					builder.setMessage(DeviceListActivity.parseXMLRPCError(e, context))
+    						.setCancelable(false)
+    						.setPositiveButton("OK", new DialogInterface.OnClickListener() {
+    							public void onClick(DialogInterface dialog, int id) {
+    								dialog.dismiss();
+    							}
+    						});
+    					AlertDialog alert = builder.create();
+    					alert.show();
+    				}
+    			});
+    		}
+    	});
     }
 
 }
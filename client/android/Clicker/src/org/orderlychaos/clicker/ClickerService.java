@@ -0,0 +1,43 @@
+package org.orderlychaos.clicker;
+
+import org.xmlrpc.android.XMLRPCException;
+import org.xmlrpc.android.XMLRPCFuture;
+import org.xmlrpc.android.XMLRPCMethod;
+
+// The clickerd RPC API.  Get one with XMLRPCClient.getService().
+public interface ClickerService {
+	String[] deviceList() throws XMLRPCException;
+	
+	String deviceInfo(String device) throws XMLRPCException;
+	
+	String[] deviceListButtons(String device) throws XMLRPCException;
+	
+	String[] deviceListStatusCmds(String device) throws XMLRPCException;
+	
+	void devicePressButton(String device, String button) throws XMLRPCException;
+	
+	// Sends the press on the client's executor, see XMLRPCClient.setExecutor().
+	@XMLRPCMethod("device_press_button")
+	XMLRPCFuture devicePressButtonAsync(String device, String button);
+	
+	String deviceGetStatus(String device, String cmd) throws XMLRPCException;
+	
+	@XMLRPCMethod("device_get_status")
+	XMLRPCFuture deviceGetStatusAsync(String device, String cmd);
+	
+	String[] activityList() throws XMLRPCException;
+	
+	String activityInfo(String activity) throws XMLRPCException;
+	
+	void activityStart(String activity) throws XMLRPCException;
+	
+	@XMLRPCMethod("activity_start")
+	XMLRPCFuture activityStartAsync(String activity);
+	
+	String activityCurrent() throws XMLRPCException;
+	
+	void powerOff() throws XMLRPCException;
+	
+	@XMLRPCMethod("power_off")
+	XMLRPCFuture powerOffAsync();
+}
@@ -1,9 +1,14 @@
 package org.orderlychaos.clicker;
 
 import java.util.ArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
+import org.xmlrpc.android.XMLRPCBatch;
+import org.xmlrpc.android.XMLRPCBindings;
 import org.xmlrpc.android.XMLRPCClient;
 import org.xmlrpc.android.XMLRPCException;
+import org.xmlrpc.android.XMLRPCFuture;
 
 import android.content.Context;
 import android.content.SharedPreferences;
@@ -20,8 +25,18 @@ public class Device {
 	private ArrayList<String> inputs;
 	private ArrayList<String> status_cmds;
 	private String server_url;
+	private XMLRPCClient server;
+	private ClickerService service;
+	
+	private static Executor press_executor = Executors.newSingleThreadExecutor();
 	
 	public Device(String name, Context context) throws XMLRPCException {
+		this(name, context, null, 0);
+	}
+	
+	// Builds the device from the results of a batch that addInfoCalls() queued
+	// this device's calls in.  If no results are passed, we fetch them ourselves.
+	Device(String name, Context context, Object[] results, int index) throws XMLRPCException {
 		this.name = name;
 		
 		// Load our settings.  We stash the URL so we don't have
@@ -29,19 +44,30 @@ public class Device {
         SharedPreferences settings = context.getSharedPreferences("ClickerSettings", Context.MODE_PRIVATE);
         server_url = settings.getString("server_url", "");
         
-        // Connect to the server.
-		XMLRPCClient server = new XMLRPCClient(server_url);
+        // Connect to the server.  The client is safe to share between
+        // threads, so we hang on to it for all of our calls.  Calls made
+        // asynchronously are sent on their own thread, see pressButtonAsync().
+        server = new XMLRPCClient(server_url);
+        server.setExecutor(press_executor);
+        service = server.getService(ClickerService.class);
+        
+        if (results == null) {
+        	// Get everything we need in one request.
+        	XMLRPCBatch batch = new XMLRPCBatch();
+        	index = addInfoCalls(batch, name);
+        	results = server.callBatch(batch);
+        }
 
 		// Get the device description.
-  		this.description = ((Object) server.call("device_info", name)).toString();
+  		this.description = (String) XMLRPCBatch.getResult(results, index);
       	
   		// TODO - split out numpad and volume buttons.
   		// Get the list of buttons and inputs for this device.
   		this.buttons = new ArrayList<String>();
   		this.inputs = new ArrayList<String>();
-  		Object[] button_objs = (Object[]) server.call("device_list_buttons", name);
-  		for (int i = 0; i < button_objs.length; i++) {
-  			String button = button_objs[i].toString();
+  		String[] button_names = (String[]) XMLRPCBatch.getResult(results, index + 1);
+  		for (int i = 0; i < button_names.length; i++) {
+  			String button = button_names[i];
   			if (button.startsWith("input_") && (button.length() > 6)) {
   				inputs.add(button.substring(6));
   			} else {
@@ -97,13 +123,23 @@ public class Device {
   		
   		// Get the list of status commands for this device.
   		status_cmds = new ArrayList<String>();
-  		Object[] status_objs = (Object[]) server.call("device_list_status_cmds", name);
-  		for (int i = 0; i < status_objs.length; i++) {
-  			status_cmds.add(status_objs[i].toString());
+  		String[] status_names = (String[]) XMLRPCBatch.getResult(results, index + 2);
+  		for (int i = 0; i < status_names.length; i++) {
+  			status_cmds.add(status_names[i]);
   		}
 
 	}
 	
+	// Queues the calls needed to build a device in a batch, returning
+	// the index of the first call's result.  The results are decoded
+	// as the same types ClickerService returns.
+	static int addInfoCalls(XMLRPCBatch batch, String name) {
+		int index = batch.add(XMLRPCBindings.STRING, "device_info", name);
+		batch.add(XMLRPCBindings.STRING_ARRAY, "device_list_buttons", name);
+		batch.add(XMLRPCBindings.STRING_ARRAY, "device_list_status_cmds", name);
+		return index;
+	}
+	
 	public String getDescription() {
 		return this.description;
 	}
@@ -121,18 +157,33 @@ public class Device {
 	}
 	
 	public void pressButton(String button) throws XMLRPCException {
-		XMLRPCClient server = new XMLRPCClient(server_url);
-		server.call("device_press_button", this.name, button);
+		service.devicePressButton(this.name, button);
+	}
+	
+	// Sends a button press on a background thread, returning right away.
+	// Presses and status queries share one thread, so they are sent in
+	// the order they were made, and a query made after a press sees what
+	// the press did.
+	public XMLRPCFuture pressButtonAsync(String button) {
+		return service.devicePressButtonAsync(this.name, button);
 	}
 	
 	public void selectInput(String input) throws XMLRPCException {
-		XMLRPCClient server = new XMLRPCClient(server_url);
-		server.call("device_press_button", this.name, "input_" + input);
+		service.devicePressButton(this.name, "input_" + input);
+	}
+	
+	public XMLRPCFuture selectInputAsync(String input) {
+		return service.devicePressButtonAsync(this.name, "input_" + input);
 	}
 	
 	public String getStatus(String command) throws XMLRPCException {
-		XMLRPCClient server = new XMLRPCClient(server_url);
-		return ((Object) server.call("device_get_status", this.name, command)).toString();
+		return service.deviceGetStatus(this.name, command);
+	}
+	
+	// Queries a status on the same thread as the presses, see
+	// pressButtonAsync().  The result is a String.
+	public XMLRPCFuture getStatusAsync(String command) {
+		return service.deviceGetStatusAsync(this.name, command);
 	}
 	
 	@Override
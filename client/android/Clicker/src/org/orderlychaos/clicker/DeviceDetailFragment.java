@@ -2,11 +2,12 @@ package org.orderlychaos.clicker;
 
 
 
+import org.xmlrpc.android.XMLRPCCallback;
 import org.xmlrpc.android.XMLRPCException;
 
+import android.app.Activity;
 import android.app.AlertDialog;
 import android.content.DialogInterface;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.v4.app.ListFragment;
 import android.view.LayoutInflater;
@@ -76,7 +77,7 @@ public class DeviceDetailFragment extends ListFragment  implements OnItemSelecte
     		// Set the initial switch state to match the status
     		// returned by the server.
     		if (mItem.device.getStatusCmds().contains("power")) {
-    			new PowerStatusTask(power_switch).execute();
+    			mItem.device.getStatusAsync("power").addCallback(new PowerStatusCallback(power_switch));
     		}
     	}
     	
@@ -98,10 +99,10 @@ public class DeviceDetailFragment extends ListFragment  implements OnItemSelecte
     		
     		// Set the currently selected input to match
     		// the status returned by the server.  This
-    		// task will handle registering the spinner
+    		// callback will handle registering the spinner
     		// callbacks for us.
     		if (mItem.device.getStatusCmds().contains("input")) {
-    			new InputStatusTask(input_spinner, this).execute();
+    			mItem.device.getStatusAsync("input").addCallback(new InputStatusCallback(input_spinner, this));
     		}
        	}
     	
@@ -139,7 +140,7 @@ public class DeviceDetailFragment extends ListFragment  implements OnItemSelecte
     public void onListItemClick(ListView l, View v, int position, long id) {
     	if (mItem != null) {
     		// Send the button press in a separate thread.
-    		new PressButtonTask().execute(l.getItemAtPosition(position).toString());
+    		pressButton(l.getItemAtPosition(position).toString());
     	}
     }
     
@@ -151,14 +152,19 @@ public class DeviceDetailFragment extends ListFragment  implements OnItemSelecte
     			// If the device has inputs and an input status command, set the input spinner
         		// selection as a post-task of turning the device on.
         		if (mItem.device.has_inputs && mItem.device.getStatusCmds().contains("input")) {
-            		Spinner input_spinner = (Spinner) getActivity().
+            		final Spinner input_spinner = (Spinner) getActivity().
             				findViewById(R.id.device_input_spinner);
-            		new PressButtonTask((AsyncTask<String, ?, ?>) new InputStatusTask(input_spinner, this)).execute("on");
+            		pressButton("on", new Runnable() {
+            			public void run() {
+            				mItem.device.getStatusAsync("input").addCallback(
+            						new InputStatusCallback(input_spinner, DeviceDetailFragment.this));
+            			}
+            		});
         		} else {
-        			new PressButtonTask().execute("on");
+        			pressButton("on");
         		}
     		} else {
-    			new PressButtonTask().execute("off");
+    			pressButton("off");
     		}
     	}
     }
@@ -167,7 +173,7 @@ public class DeviceDetailFragment extends ListFragment  implements OnItemSelecte
     public void onItemSelected(AdapterView<?> parent, View view, int pos, long id) {
     	// Input spinner had item selected.
     	if (parent.getId() == R.id.device_input_spinner) {
-    		new InputSelectTask().execute(parent.getItemAtPosition(pos).toString());
+    		selectInput(parent.getItemAtPosition(pos).toString());
     	}
     }
 
@@ -181,21 +187,21 @@ public class DeviceDetailFragment extends ListFragment  implements OnItemSelecte
     	if (mItem.device.is_media_player) {
     		// Send the proper command asynchronously.
     		if (button == MediaPlayerView.PLAY) {
-    			new PressButtonTask().execute("play");
+    			pressButton("play");
     		} else if (button == MediaPlayerView.PAUSE) {
-    			new PressButtonTask().execute("pause");
+    			pressButton("pause");
     		} else if (button == MediaPlayerView.STOP) {
-    			new PressButtonTask().execute("stop");
+    			pressButton("stop");
     		} else if (button == MediaPlayerView.REV) {
-    			new PressButtonTask().execute("rev");
+    			pressButton("rev");
     		} else if (button == MediaPlayerView.FWD) {
-    			new PressButtonTask().execute("fwd");
+    			pressButton("fwd");
     		} else if (button == MediaPlayerView.PREV) {
-    			new PressButtonTask().execute("prev");
+    			pressButton("prev");
     		} else if (button == MediaPlayerView.NEXT) {
-    			new PressButtonTask().execute("next");
+    			pressButton("next");
     		} else if (button == MediaPlayerView.REC) {
-    			new PressButtonTask().execute("rec");
+    			pressButton("rec");
     		}
     	}
     }
@@ -205,15 +211,15 @@ public class DeviceDetailFragment extends ListFragment  implements OnItemSelecte
     	if (mItem.device.has_navigation) {
     		// Send the proper command asynchronously.
     		if (button == NavigationView.UP) {
-    			new PressButtonTask().execute("up");
+    			pressButton("up");
     		} else if (button == NavigationView.DOWN) {
-    			new PressButtonTask().execute("down");
+    			pressButton("down");
     		} else if (button == NavigationView.LEFT) {
-    			new PressButtonTask().execute("left");
+    			pressButton("left");
     		} else if (button == NavigationView.RIGHT) {
-    			new PressButtonTask().execute("right");
+    			pressButton("right");
     		} else if (button == NavigationView.SELECT) {
-    			new PressButtonTask().execute("select");
+    			pressButton("select");
     		}
     	}
     }
@@ -251,159 +257,151 @@ public class DeviceDetailFragment extends ListFragment  implements OnItemSelecte
 		navigation_view.setVisibility(View.GONE);
     }
     
-    // Helper to send the button press asynchronously.  This handles
-    // raising an error dialog if we have trouble talking to the server.
-    private class PressButtonTask extends AsyncTask<String, Void, String> {
-    	private AsyncTask<String, ?, ?> post_task;
+    // Helper to send a button press asynchronously.  Presses are sent
+    // without creating a task for each one.  This handles raising an
+    // error dialog if we have trouble talking to the server.
+    private void pressButton(String button) {
+    	pressButton(button, null);
+    }
+    
+    // As above, running post_task on the UI thread once the press is
+    // done, whether or not it worked.
+    private void pressButton(String button, Runnable post_task) {
+    	mItem.device.pressButtonAsync(button).addCallback(new PressCallback(post_task));
+    }
+    
+    // Helper to select an input asynchronously.  The input selection
+    // command is not sent if the input is already selected.
+    private void selectInput(final String input) {
+    	mItem.device.getStatusAsync("input").addCallback(new StatusCallback() {
+    		protected void onStatus(String result) {
+    			if (!input.equals(result)) {
+    				mItem.device.selectInputAsync(input).addCallback(new PressCallback(null));
+    			}
+    		}
+    	});
+    }
+    
+    // Callback for a press, which runs post_task on the UI thread once
+    // the press is done, whether or not it worked.  This handles raising
+    // an error dialog if we have trouble talking to the server.
+    private class PressCallback implements XMLRPCCallback {
+    	private Runnable post_task;
     	
-    	// Basic constructor.
-    	public PressButtonTask() {
-    		this.post_task = null;
+    	public PressCallback(Runnable post_task) {
+    		this.post_task = post_task;
     	}
     	
-    	// Constructor that allows another task to be executed at
-    	// the end of our onPostExecute() callback.
-    	public PressButtonTask(AsyncTask<String, ?, ?> post_task) {
-    		this.post_task = post_task;
+    	public void onResult(Object result) {
+    		// The button was pressed, run the post task if there is one.
+    		if (post_task != null) {
+    			final Activity activity = getActivity();
+    			if (activity != null) {
+    				activity.runOnUiThread(post_task);
+    			}
+    		}
     	}
     	
-        protected String doInBackground(String... button) {
-        	String error = null;
-        	
-        	try {
-				mItem.device.pressButton(button[0]);
-			} catch (XMLRPCException e) {
-				// Get the error message we should return.
-	        	error = DeviceListActivity.parseXMLRPCError(e, getActivity());
-	        }
-			
-			return error;
-        }
-        
-        protected void onPostExecute(String error) {
-        	if (error != null) {
-        		// Pop up an error dialog.
-    			AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
-    			builder.setMessage(error)
-    				.setCancelable(false)
-    				.setPositiveButton("OK", new DialogInterface.OnClickListener() {
-    					public void onClick(DialogInterface dialog, int id) {
-    						dialog.dismiss();
+    	public void onFailure(final XMLRPCException e) {
+    		// The callback runs on a background thread, so we need
+    		// to raise the dialog from the UI thread.  Skip it if
+    		// the fragment has gone away in the meantime.
+    		final Activity activity = getActivity();
+    		if (activity != null) {
+    			activity.runOnUiThread(new Runnable() {
+    				public void run() {
+    					showError(DeviceListActivity.parseXMLRPCError(e, activity));
+    					if (post_task != null) {
+    						post_task.run();
     					}
-    				});
-    			AlertDialog alert = builder.create();
-    			alert.show();
-        	}
-        	
-        	// Run our post task if one was specified.
-        	if (post_task != null) {
-        		post_task.execute();
-        	}
-        }
+    				}
+    			});
+    		}
+    	}
     }
     
-    // Helper to send power status command asynchronously.  This handles
-    // raising an error dialog if we have trouble talking to the server.
-    // The switch state is set accordingly.
-    private class PowerStatusTask extends PressButtonTask {
-    	private Switch power_switch;
-    	private String result;
+    // Helper to pop up an error dialog.
+    private void showError(String error) {
+    	AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
+    	builder.setMessage(error)
+    		.setCancelable(false)
+    		.setPositiveButton("OK", new DialogInterface.OnClickListener() {
+    			public void onClick(DialogInterface dialog, int id) {
+    				dialog.dismiss();
+    			}
+    		});
+    	AlertDialog alert = builder.create();
+    	alert.show();
+    }
+    
+    // Base for the status callbacks below, which hands the status to
+    // onStatus() on the UI thread.  This handles raising an error dialog
+    // if we have trouble talking to the server.  Nothing is done if the
+    // fragment has gone away in the meantime.
+    private abstract class StatusCallback implements XMLRPCCallback {
+    	public void onResult(final Object result) {
+    		Activity activity = getActivity();
+    		if (activity != null) {
+    			activity.runOnUiThread(new Runnable() {
+    				public void run() {
+    					onStatus((String) result);
+    				}
+    			});
+    		}
+    	}
     	
-    	public PowerStatusTask(Switch power_switch) {
-    		super();
-    		this.power_switch = power_switch;
-    		result = null;
+    	public void onFailure(final XMLRPCException e) {
+    		final Activity activity = getActivity();
+    		if (activity != null) {
+    			activity.runOnUiThread(new Runnable() {
+    				public void run() {
+    					showError(DeviceListActivity.parseXMLRPCError(e, activity));
+    				}
+    			});
+    		}
     	}
     	
-    	protected String doInBackground(String... params) {
-        	String error = null;
-        	
-        	try {
-				result = mItem.device.getStatus("power");
-			} catch (XMLRPCException e) {
-				// Get the error message we should return.
-	        	error = DeviceListActivity.parseXMLRPCError(e, getActivity());
-	        }
-			
-			return error;
+    	protected abstract void onStatus(String result);
+    }
+    
+    // Sets the power switch state to match the power status.
+    private class PowerStatusCallback extends StatusCallback {
+    	private Switch power_switch;
+    	
+    	public PowerStatusCallback(Switch power_switch) {
+    		this.power_switch = power_switch;
     	}
     	
-    	protected void onPostExecute(String error) {
-    		super.onPostExecute(error);
-        	if (error == null) {
-        		// Set the switch state based on the status result.
-        		if ((result != null) && (result.equals("on"))) {
-    				power_switch.setChecked(true);
-    			} else {
-    				power_switch.setChecked(false);
-    			}
-        	}
+    	protected void onStatus(String result) {
+    		// Set the switch state based on the status result.
+    		if ((result != null) && (result.equals("on"))) {
+    			power_switch.setChecked(true);
+    		} else {
+    			power_switch.setChecked(false);
+    		}
     	}
     }
     
-    // Helper to send input status command asynchronously.  This handles
-    // raising an error dialog if we have trouble talking to the server.
-    // The spinner selection is set accordingly.
-    private class InputStatusTask extends PressButtonTask {
+    // Sets the spinner selection to match the input status.
+    private class InputStatusCallback extends StatusCallback {
     	private Spinner input_spinner;
-    	private String result;
     	DeviceDetailFragment fragment;
     	
-    	public InputStatusTask(Spinner input_spinner, DeviceDetailFragment fragment) {
-    		super();
+    	public InputStatusCallback(Spinner input_spinner, DeviceDetailFragment fragment) {
     		this.input_spinner = input_spinner;
     		this.fragment = fragment;
-    		result = null;
     	}
     	
-    	protected String doInBackground(String... params) {
-        	String error = null;
-        	
-        	try {
-				result = mItem.device.getStatus("input");
-			} catch (XMLRPCException e) {
-				// Get the error message we should return.
-	        	error = DeviceListActivity.parseXMLRPCError(e, getActivity());
-	        }
-			
-			return error;
-    	}
-    	
-    	protected void onPostExecute(String error) {
-    		super.onPostExecute(error);
-        	if (error == null) {
-        		// Clear the spinner callbacks.
-        		input_spinner.setOnItemSelectedListener(null);
-        		
-        		// Set the spinner selection based on the input status result.
-        		input_spinner.setSelection(input_adapter.getPosition(result));
-        		
-        		// Set the spinner callbacks.  We do this here to prevent
-        		// the above setSelection() call from triggering the callback.
-        		input_spinner.setOnItemSelectedListener(fragment);
-        		
-        	}
-    	}
-    }
-    
-    // Helper to select an input asynchronously.  This handles
-    // raising an error dialog if we have trouble talking to the server.
-    // The input selection command is not set if the input is already
-    //selected.
-    private class InputSelectTask extends PressButtonTask {
-    	protected String doInBackground(String... input) {
-        	String error = null;
-        	
-        	try {
-				if (!mItem.device.getStatus("input").equals(input[0])) {
-					mItem.device.selectInput(input[0]);
-				}
-			} catch (XMLRPCException e) {
-				// Get the error message we should return.
-	        	error = DeviceListActivity.parseXMLRPCError(e, getActivity());
-	        }
-			
-			return error;
+    	protected void onStatus(String result) {
+    		// Clear the spinner callbacks.
+    		input_spinner.setOnItemSelectedListener(null);
+    		
+    		// Set the spinner selection based on the input status result.
+    		input_spinner.setSelection(input_adapter.getPosition(result));
+    		
+    		// Set the spinner callbacks.  We do this here to prevent
+    		// the above setSelection() call from triggering the callback.
+    		input_spinner.setOnItemSelectedListener(fragment);
     	}
     }
 }
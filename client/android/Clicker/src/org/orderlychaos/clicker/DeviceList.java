@@ -5,6 +5,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import org.xmlrpc.android.XMLRPCBatch;
 import org.xmlrpc.android.XMLRPCClient;
 import org.xmlrpc.android.XMLRPCException;
 
@@ -56,7 +57,7 @@ public class DeviceList extends AsyncTask<Void, Void, String> {
 
     @Override
     protected String doInBackground(Void... params) {
-    	Object[] devices = {};
+    	String[] devices = {};
     	String error = null;
     	
     	// Load our settings.
@@ -70,21 +71,37 @@ public class DeviceList extends AsyncTask<Void, Void, String> {
         
     	// Connect to the server.
     	XMLRPCClient SERVER = new XMLRPCClient(server_url);
+    	ClickerService service = SERVER.getService(ClickerService.class);
     	
     	// Get the list of devices from the server.
     	try {
-      		devices = (Object[]) SERVER.call("device_list");
+      		devices = service.deviceList();
         } catch (XMLRPCException e) {
         	// Get the error message we should return.
         	error = DeviceListActivity.parseXMLRPCError(e, context);
        	}
     	
+    	// Get the details for all of the devices in one request.
+    	XMLRPCBatch batch = new XMLRPCBatch();
+    	int[] indexes = new int[devices.length];
+    	for (int i = 0; i < devices.length; i++) {
+    		indexes[i] = Device.addInfoCalls(batch, devices[i]);
+    	}
+    	Object[] results = {};
+    	try {
+    		results = SERVER.callBatch(batch);
+    	} catch (XMLRPCException e) {
+    		// Get the error message we should return.
+    		error = DeviceListActivity.parseXMLRPCError(e, context);
+    		devices = new String[0];
+    	}
+    	
     	// Build the pending list of devices from the server's
     	// response.  We flush out any old items first.
     	pendingDevices.clear();
     	for (int i = 0; i< devices.length; i++) {
     		try {
-    			Device device = new Device(devices[i].toString(), context);
+    			Device device = new Device(devices[i], context, results, indexes[i]);
     			pendingDevices.add(new DeviceItem(device.name, device));
     		} catch (XMLRPCException e) {
     			// Get the error message we should return.
@@ -1,5 +1,6 @@
 package org.orderlychaos.clicker;
 
+import org.xmlrpc.android.XMLRPCCallback;
 import org.xmlrpc.android.XMLRPCClient;
 import org.xmlrpc.android.XMLRPCException;
 
@@ -8,7 +9,6 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.v4.app.FragmentActivity;
 import android.view.LayoutInflater;
@@ -136,7 +136,7 @@ public class DeviceListActivity extends FragmentActivity
         			.setPositiveButton("OK", new DialogInterface.OnClickListener() {
         				public void onClick(DialogInterface dialog, int id) {
         					// Send power off command in another thread.
-        					new PowerOffTask().execute();
+        					powerOff();
         					
         					// Dismiss the power off confirmation dialog.
         					dialog.dismiss();
@@ -180,6 +180,7 @@ public class DeviceListActivity extends FragmentActivity
     	if (error.startsWith("HTTP status code: 404")) {
     		error = context.getString(R.string.msg_incorrect_server);
     	} else if ((error.startsWith("org.apache.http.conn.HttpHostConnectException")) ||
+    			(error.startsWith("java.net.ConnectException")) ||
     			(error.startsWith("java.net.UnknownHostException"))) {
     		error = context.getString(R.string.msg_connect_error);
     	} else {
@@ -190,42 +191,40 @@ public class DeviceListActivity extends FragmentActivity
     	return error;
     }
     
-    // Helper to send the power off command asynchronously.  This handles
-    // raising an error dialog if we have trouble talking to the server.
-    private class PowerOffTask extends AsyncTask<Void, Void, String> {
-        protected String doInBackground(Void... params) {
-        	String error = null;
-        	
-        	// Look up our settings.
-        	SharedPreferences settings = context.getSharedPreferences("ClickerSettings", Context.MODE_PRIVATE);
-	        String server_url = settings.getString("server_url", "");
-	        
-	        // Send the power off command to the server.
-			XMLRPCClient server = new XMLRPCClient(server_url);
-			try {
-				server.call("power_off");
-			} catch (XMLRPCException e) {
-				// Get the error message we should return.
-	        	error = DeviceListActivity.parseXMLRPCError(e, context);
-	        }
-			
-			return error;
-        }
-        
-        protected void onPostExecute(String error) {
-        	if (error != null) {
-        		// Pop up an error dialog.
-    			AlertDialog.Builder builder = new AlertDialog.Builder(context);
-    			builder.setMessage(error)
-    				.setCancelable(false)
-    				.setPositiveButton("OK", new DialogInterface.OnClickListener() {
-    					public void onClick(DialogInterface dialog, int id) {
-    						dialog.dismiss();
-    					}
-    				});
-    			AlertDialog alert = builder.create();
-    			alert.show();
-        	}
-        }
+    // Helper to send the power off command asynchronously, on the
+    // client's executor.  This handles raising an error dialog if we
+    // have trouble talking to the server.
+    private void powerOff() {
+    	// Look up our settings.
+    	SharedPreferences settings = context.getSharedPreferences("ClickerSettings", Context.MODE_PRIVATE);
+    	String server_url = settings.getString("server_url", "");
+    	
+    	// Send the power off command to the server.
+    	XMLRPCClient server = new XMLRPCClient(server_url);
+    	server.getService(ClickerService.class).powerOffAsync().addCallback(new XMLRPCCallback() {
+    		public void onResult(Object result) {
+    			// Nothing to show.
+    		}
+    		
+    		public void onFailure(final XMLRPCException e) {
+    			// The callback runs on a background thread, so we need
+    			// to raise the dialog from the UI thread.
+    			runOnUiThread(new Runnable() {
+    				public void run() {
+    					// Pop up an error dialog.
+    					AlertDialog.Builder builder = new AlertDialog.Builder(context);
+    					builder.setMessage(DeviceListActivity.parseXMLRPCError(e, context))
+    						.setCancelable(false)
+    						.setPositiveButton("OK", new DialogInterface.OnClickListener() {
+    							public void onClick(DialogInterface dialog, int id) {
+    								dialog.dismiss();
+    							}
+    						});
+    					AlertDialog alert = builder.create();
+    					alert.show();
+    				}
+    			});
+    		}
+    	});
     }
 }
@@ -0,0 +1,88 @@
+package org.orderlychaos.util;
+
+import java.io.IOException;
+
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * How a TLS handshake went: full, or resumed from a session cached by
+ * {@link TrustAllSSLSocketFactory#getContext()}, and how long it took.  The
+ * last handshake made on a thread is kept until it is taken, so a call can
+ * report the handshake its connection needed.
+ */
+public final class TlsHandshake {
+    private static final ThreadLocal<TlsHandshake> last = new ThreadLocal<TlsHandshake>();
+
+    private final boolean resumed;
+    private final long micros;
+    private final String protocol;
+
+    private TlsHandshake(boolean resumed, long micros, String protocol) {
+        this.resumed = resumed;
+        this.micros = micros;
+        this.protocol = protocol;
+    }
+
+    /**
+     * Makes the handshake, asking for a session ticket where the platform's
+     * sockets need to be asked.
+     *
+     * @return the handshake, which is also kept for {@link #take()}
+     */
+    public static TlsHandshake perform(SSLSocket ssl) throws IOException {
+        try {
+            // Android's sockets leave tickets off unless told otherwise
+            ssl.getClass().getMethod("setUseSessionTickets", boolean.class).invoke(ssl, true);
+        } catch (Exception e) {
+            // on by default here
+        }
+        long started = System.currentTimeMillis();
+        long start = System.nanoTime();
+        ssl.startHandshake();
+        long micros = (System.nanoTime() - start) / 1000;
+        SSLSession session = ssl.getSession();
+        // a resumed session keeps the time of the handshake that made it
+        TlsHandshake handshake = new TlsHandshake(session.getCreationTime() < started, micros, session.getProtocol());
+        last.set(handshake);
+        return handshake;
+    }
+
+    /**
+     * @return the last handshake made on this thread since the last time
+     *         this was called, or null if there wasn't one
+     */
+    public static TlsHandshake take() {
+        TlsHandshake handshake = last.get();
+        if (handshake != null) {
+            last.remove();
+        }
+        return handshake;
+    }
+
+    /**
+     * @return true if the session was resumed, false for a full handshake
+     */
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    /**
+     * @return how long the handshake took, in microseconds
+     */
+    public long getMicros() {
+        return micros;
+    }
+
+    /**
+     * @return protocol the handshake settled on, such as TLSv1.2
+     */
+    public String getProtocol() {
+        return protocol;
+    }
+
+    @Override
+    public String toString() {
+        return (resumed ? "resumed " : "full ") + protocol + " handshake in " + micros / 1000 + "." + micros / 100 % 10 + "ms";
+    }
+}
@@ -3,9 +3,12 @@ package org.orderlychaos.util;
 import org.apache.http.conn.scheme.SocketFactory;
 import org.apache.http.conn.ssl.AllowAllHostnameVerifier;
 import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.security.KeyManagementException;
 import java.security.KeyStoreException;
@@ -13,21 +16,74 @@ import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
 
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
 import javax.net.ssl.TrustManager;
 
 public class TrustAllSSLSocketFactory extends SSLSocketFactory { 
+    // Sessions kept for resuming, a few per server the app talks to.
+    private static final int SESSION_CACHE_SIZE = 64;
+    private static final int SESSION_TIMEOUT = 24 * 60 * 60;
+
+    private static SSLContext context;
+
     private javax.net.ssl.SSLSocketFactory factory; 
 
     public TrustAllSSLSocketFactory() throws KeyManagementException, NoSuchAlgorithmException, KeyStoreException, UnrecoverableKeyException { 
         super(null); 
             try { 
-                SSLContext sslcontext = SSLContext.getInstance("TLS"); 
-                sslcontext.init(null, new TrustManager[] { new TrustAllManager() }, null);
-                factory = sslcontext.getSocketFactory();
+                factory = getContext().getSocketFactory();
                 setHostnameVerifier(new AllowAllHostnameVerifier());             
             } catch(Exception ex) { } 
     } 
     
+    /**
+     * @return a TLS context that accepts any server certificate
+     */
+    public static SSLContext createContext() throws NoSuchAlgorithmException, KeyManagementException { 
+        SSLContext sslcontext = SSLContext.getInstance("TLS"); 
+        sslcontext.init(null, new TrustManager[] { new TrustAllManager() }, null);
+        return sslcontext;
+    } 
+
+    /**
+     * @return the process-wide context from {@link #createContext()}, whose
+     *         session cache lets later connections to a server resume a
+     *         session instead of making a full handshake
+     */
+    public static synchronized SSLContext getContext() throws NoSuchAlgorithmException, KeyManagementException { 
+        if (context == null) {
+            SSLContext sslcontext = createContext();
+            SSLSessionContext sessions = sslcontext.getClientSessionContext();
+            sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+            sessions.setSessionTimeout(SESSION_TIMEOUT);
+            context = sslcontext;
+        }
+        return context;
+    } 
+
+    /**
+     * Connects and makes the handshake here rather than leaving it to the
+     * hostname check, which trusts every host anyway, so it is timed and
+     * can be reported through {@link TlsHandshake#take()}.
+     */
+    @Override
+    public Socket connectSocket(Socket sock, String host, int port, InetAddress localAddress, int localPort, HttpParams params) throws IOException { 
+        SSLSocket sslsock = (SSLSocket) (sock != null ? sock : createSocket());
+        if (localAddress != null || localPort > 0) {
+            sslsock.bind(new InetSocketAddress(localAddress, localPort < 0 ? 0 : localPort));
+        }
+        sslsock.connect(new InetSocketAddress(host, port), HttpConnectionParams.getConnectionTimeout(params));
+        sslsock.setSoTimeout(HttpConnectionParams.getSoTimeout(params));
+        try {
+            TlsHandshake.perform(sslsock);
+        } catch (IOException e) {
+            sslsock.close();
+            throw e;
+        }
+        return sslsock;
+    } 
+
     public static SocketFactory getDefault() throws KeyManagementException, NoSuchAlgorithmException, KeyStoreException, UnrecoverableKeyException { return new TrustAllSSLSocketFactory(); } 
     public Socket createSocket() throws IOException { return factory.createSocket(); } 
     public Socket createSocket(Socket socket, String s, int i, boolean flag) throws IOException { return factory.createSocket(socket, s, i, flag); } 
@@ -0,0 +1,109 @@
+package org.xmlrpc.android;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.Map;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.params.CoreConnectionPNames;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+
+/**
+ * Transport that goes through Apache HttpClient, by default the pooled
+ * {@link ConnectionClient} shared by every client talking to a server.
+ */
+public class ApacheTransport implements XMLRPCTransport {
+	private final HttpClient client;
+
+	/**
+	 * @param client client to send requests with
+	 */
+	public ApacheTransport(HttpClient client) {
+		this.client = client;
+	}
+
+	public Response post(URI uri, Map<String, String> headers, final Request request) throws IOException {
+		HttpPost post = new HttpPost(uri);
+		for (Map.Entry<String, String> header : headers.entrySet()) {
+			post.addHeader(header.getKey(), header.getValue());
+		}
+		HttpParams params = post.getParams();
+		HttpProtocolParams.setUseExpectContinue(params, false);
+
+		//set timeout to 40 seconds, the shared client is already set up with the same timeouts
+		params.setParameter(CoreConnectionPNames.CONNECTION_TIMEOUT, Transports.TIMEOUT);
+		params.setParameter(CoreConnectionPNames.SO_TIMEOUT, Transports.TIMEOUT);
+
+		post.setEntity(new RequestEntity(request));
+		final HttpResponse response = client.execute(post);
+		return new Response() {
+			public int getStatusCode() {
+				return response.getStatusLine().getStatusCode();
+			}
+
+			public String getReasonPhrase() {
+				return response.getStatusLine().getReasonPhrase();
+			}
+
+			public long getContentLength() {
+				HttpEntity entity = response.getEntity();
+				return entity != null ? entity.getContentLength() : -1;
+			}
+
+			public InputStream getBody() throws IOException {
+				return response.getEntity().getContent();
+			}
+
+			public void close() throws IOException {
+				// hands the pooled connection back once the body is used up
+				HttpEntity entity = response.getEntity();
+				if (entity != null) {
+					entity.consumeContent();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Sends a request body as is, chunked if its length isn't known.
+	 */
+	private static class RequestEntity extends AbstractHttpEntity {
+		private final Request request;
+
+		RequestEntity(Request request) {
+			this.request = request;
+			setChunked(request.getContentLength() < 0);
+		}
+
+		public boolean isRepeatable() {
+			return request.getContentLength() >= 0;
+		}
+
+		public long getContentLength() {
+			return request.getContentLength();
+		}
+
+		public InputStream getContent() throws IOException {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			writeTo(out);
+			return new ByteArrayInputStream(out.toByteArray());
+		}
+
+		public void writeTo(OutputStream out) throws IOException {
+			request.writeTo(out);
+		}
+
+		public boolean isStreaming() {
+			return false;
+		}
+	}
+}
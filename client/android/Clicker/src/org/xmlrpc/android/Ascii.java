@@ -0,0 +1,20 @@
+package org.xmlrpc.android;
+
+/**
+ * Tags and headers that are written or matched as raw bytes.
+ */
+final class Ascii {
+	private Ascii() {
+	}
+
+	/**
+	 * @return the chars of ASCII text, one byte each
+	 */
+	static byte[] bytes(CharSequence s) {
+		byte[] bytes = new byte[s.length()];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) s.charAt(i);
+		}
+		return bytes;
+	}
+}
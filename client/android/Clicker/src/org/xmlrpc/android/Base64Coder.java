@@ -1,5 +1,12 @@
 package org.xmlrpc.android;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+
 /**
  * A Base64 Encoder/Decoder.
  * 
@@ -23,10 +30,20 @@ package org.xmlrpc.android;
  * &nbsp; Method decode(String) renamed to decodeString(String).<br>
  * &nbsp; New method encode(byte[],int) added.<br>
  * &nbsp; New method decode(String) added.<br>
+ * 
+ * <p>
+ * The encoder and decoder work on whole groups of three bytes and four
+ * characters at a time, and can go directly between byte arrays, char
+ * arrays and NIO buffers.  The decoder skips whitespace, so line broken
+ * base64 from other XML-RPC implementations can be decoded as is.
  */
 
 class Base64Coder {
 
+	// Groups of three bytes handled at a time when going through a
+	// buffer that isn't backed by an array, or through a stream.
+	private static final int CHUNK = 1024;
+
 	// Mapping table from 6-bit nibbles to Base64 characters.
 	private static char[] map1 = new char[64];
 	static {
@@ -44,6 +61,14 @@ class Base64Coder {
 		map1[i++] = '/';
 	}
 
+	// Same as map1, as ASCII bytes.
+	private static byte[] map1Bytes = new byte[64];
+	static {
+		for (int i = 0; i < 64; i++) {
+			map1Bytes[i] = (byte) map1[i];
+		}
+	}
+
 	// Mapping table from Base64 characters to 6-bit nibbles.
 	private static byte[] map2 = new byte[128];
 	static {
@@ -90,29 +115,157 @@ class Base64Coder {
 	 * @return A character array with the Base64 encoded data.
 	 */
 	static char[] encode(byte[] in, int iLen) {
-		int oDataLen = (iLen * 4 + 2) / 3; // output length without padding
-		int oLen = ((iLen + 2) / 3) * 4; // output length including padding
-		char[] out = new char[oLen];
-		int ip = 0;
-		int op = 0;
-		while (ip < iLen) {
-			int i0 = in[ip++] & 0xff;
-			int i1 = ip < iLen ? in[ip++] & 0xff : 0;
-			int i2 = ip < iLen ? in[ip++] & 0xff : 0;
-			int o0 = i0 >>> 2;
-			int o1 = ((i0 & 3) << 4) | (i1 >>> 4);
-			int o2 = ((i1 & 0xf) << 2) | (i2 >>> 6);
-			int o3 = i2 & 0x3F;
-			out[op++] = map1[o0];
-			out[op++] = map1[o1];
-			out[op] = op < oDataLen ? map1[o2] : '=';
-			op++;
-			out[op] = op < oDataLen ? map1[o3] : '=';
-			op++;
-		}
+		char[] out = new char[encodedLength(iLen)];
+		encode(in, 0, iLen, out, 0);
 		return out;
 	}
 
+	/**
+	 * @param iLen
+	 *            number of bytes to encode.
+	 * @return Number of characters they encode to, including padding.
+	 */
+	static int encodedLength(int iLen) {
+		return ((iLen + 2) / 3) * 4;
+	}
+
+	/**
+	 * Encodes part of a byte array into part of a character array, padding
+	 * the end.
+	 * 
+	 * @param in
+	 *            an array containing the data bytes to be encoded.
+	 * @param iOff
+	 *            offset of the first byte to encode.
+	 * @param iLen
+	 *            number of bytes to encode.
+	 * @param out
+	 *            array to write the characters to, with room for
+	 *            {@link #encodedLength(int)} characters.
+	 * @param oOff
+	 *            offset to write the first character at.
+	 * @return Number of characters written.
+	 */
+	static int encode(byte[] in, int iOff, int iLen, char[] out, int oOff) {
+		char[] map = map1;
+		int ip = iOff;
+		int op = oOff;
+		int end = iOff + iLen - iLen % 3;
+		while (ip < end) {
+			int bits = (in[ip] & 0xff) << 16 | (in[ip + 1] & 0xff) << 8 | (in[ip + 2] & 0xff);
+			ip += 3;
+			out[op] = map[bits >>> 18];
+			out[op + 1] = map[(bits >>> 12) & 0x3f];
+			out[op + 2] = map[(bits >>> 6) & 0x3f];
+			out[op + 3] = map[bits & 0x3f];
+			op += 4;
+		}
+		int remaining = iOff + iLen - ip;
+		if (remaining > 0) {
+			int bits = (in[ip] & 0xff) << 16 | (remaining > 1 ? (in[ip + 1] & 0xff) << 8 : 0);
+			out[op] = map[bits >>> 18];
+			out[op + 1] = map[(bits >>> 12) & 0x3f];
+			out[op + 2] = remaining > 1 ? map[(bits >>> 6) & 0x3f] : '=';
+			out[op + 3] = '=';
+			op += 4;
+		}
+		return op - oOff;
+	}
+
+	/**
+	 * Encodes part of a byte array into ASCII Base64 bytes, padding the end.
+	 * 
+	 * @see #encode(byte[], int, int, char[], int)
+	 */
+	static int encode(byte[] in, int iOff, int iLen, byte[] out, int oOff) {
+		byte[] map = map1Bytes;
+		int ip = iOff;
+		int op = oOff;
+		int end = iOff + iLen - iLen % 3;
+		while (ip < end) {
+			int bits = (in[ip] & 0xff) << 16 | (in[ip + 1] & 0xff) << 8 | (in[ip + 2] & 0xff);
+			ip += 3;
+			out[op] = map[bits >>> 18];
+			out[op + 1] = map[(bits >>> 12) & 0x3f];
+			out[op + 2] = map[(bits >>> 6) & 0x3f];
+			out[op + 3] = map[bits & 0x3f];
+			op += 4;
+		}
+		int remaining = iOff + iLen - ip;
+		if (remaining > 0) {
+			int bits = (in[ip] & 0xff) << 16 | (remaining > 1 ? (in[ip + 1] & 0xff) << 8 : 0);
+			out[op] = map[bits >>> 18];
+			out[op + 1] = map[(bits >>> 12) & 0x3f];
+			out[op + 2] = remaining > 1 ? map[(bits >>> 6) & 0x3f] : (byte) '=';
+			out[op + 3] = '=';
+			op += 4;
+		}
+		return op - oOff;
+	}
+
+	/**
+	 * Encodes the remaining bytes of a buffer, padding the end.  Both
+	 * buffers' positions are advanced.
+	 * 
+	 * @throws BufferOverflowException
+	 *             if <code>out</code> doesn't have room for the encoded data.
+	 */
+	static void encode(ByteBuffer in, CharBuffer out) {
+		int iLen = in.remaining();
+		int oLen = encodedLength(iLen);
+		if (out.remaining() < oLen) {
+			throw new BufferOverflowException();
+		}
+		if (in.hasArray() && out.hasArray()) {
+			encode(in.array(), in.arrayOffset() + in.position(), iLen, out.array(), out.arrayOffset() + out.position());
+			in.position(in.limit());
+			out.position(out.position() + oLen);
+		} else {
+			char[] chunk = new char[Math.min(oLen, CHUNK * 4)];
+			byte[] bytes = in.hasArray() ? null : new byte[chunk.length / 4 * 3];
+			while (in.hasRemaining()) {
+				int n = Math.min(in.remaining(), chunk.length / 4 * 3);
+				int written;
+				if (bytes == null) {
+					written = encode(in.array(), in.arrayOffset() + in.position(), n, chunk, 0);
+					in.position(in.position() + n);
+				} else {
+					in.get(bytes, 0, n);
+					written = encode(bytes, 0, n, chunk, 0);
+				}
+				out.put(chunk, 0, written);
+			}
+		}
+	}
+
+	/**
+	 * Encodes the remaining bytes of a buffer into ASCII Base64 bytes,
+	 * padding the end.  Both buffers' positions are advanced.
+	 * 
+	 * @throws BufferOverflowException
+	 *             if <code>out</code> doesn't have room for the encoded data.
+	 */
+	static void encode(ByteBuffer in, ByteBuffer out) {
+		int iLen = in.remaining();
+		int oLen = encodedLength(iLen);
+		if (out.remaining() < oLen) {
+			throw new BufferOverflowException();
+		}
+		if (in.hasArray() && out.hasArray()) {
+			encode(in.array(), in.arrayOffset() + in.position(), iLen, out.array(), out.arrayOffset() + out.position());
+			in.position(in.limit());
+			out.position(out.position() + oLen);
+		} else {
+			byte[] chunk = new byte[Math.min(oLen, CHUNK * 4)];
+			byte[] bytes = new byte[chunk.length / 4 * 3];
+			while (in.hasRemaining()) {
+				int n = Math.min(in.remaining(), bytes.length);
+				in.get(bytes, 0, n);
+				out.put(chunk, 0, encode(bytes, 0, n, chunk, 0));
+			}
+		}
+	}
+
 	/**
 	 * Decodes a string from Base64 format.
 	 * 
@@ -140,8 +293,8 @@ class Base64Coder {
 	}
 
 	/**
-	 * Decodes a byte array from Base64 format. No blanks or line breaks are
-	 * allowed within the Base64 encoded data.
+	 * Decodes a byte array from Base64 format. Whitespace within the Base64
+	 * encoded data is skipped.
 	 * 
 	 * @param in
 	 *            a character array containing the Base64 encoded data.
@@ -150,47 +303,402 @@ class Base64Coder {
 	 *             if the input is not valid Base64 encoded data.
 	 */
 	static byte[] decode(char[] in) {
-		int iLen = in.length;
-		if (iLen % 4 != 0) {
-			throw new IllegalArgumentException(
-					"Length of Base64 encoded input string is not a multiple of 4.");
+		return decode(in, 0, in.length);
+	}
+
+	/**
+	 * Decodes part of a character array from Base64 format. Whitespace
+	 * within the Base64 encoded data is skipped.
+	 * 
+	 * @return An array containing the decoded data bytes.
+	 * @throws IllegalArgumentException
+	 *             if the input is not valid Base64 encoded data.
+	 */
+	static byte[] decode(char[] in, int iOff, int iLen) {
+		// exact unless there's whitespace in the data
+		byte[] out = new byte[decodedLength(iLen - padding(in, iOff, iLen))];
+		int oLen = decode(in, iOff, iLen, out, 0);
+		return oLen == out.length ? out : Arrays.copyOf(out, oLen);
+	}
+
+	/**
+	 * @param iLen
+	 *            number of Base64 characters, not counting padding.
+	 * @return Most bytes they can decode to.
+	 */
+	static int decodedLength(int iLen) {
+		return iLen / 4 * 3 + Math.max(iLen % 4 - 1, 0);
+	}
+
+	/**
+	 * Decodes part of a character array into part of a byte array.
+	 * Whitespace within the Base64 encoded data is skipped.
+	 * 
+	 * @param out
+	 *            array to write the bytes to, with room for
+	 *            {@link #decodedLength(int)} bytes.
+	 * @return Number of bytes written.
+	 * @throws IllegalArgumentException
+	 *             if the input is not valid Base64 encoded data.
+	 */
+	static int decode(char[] in, int iOff, int iLen, byte[] out, int oOff) {
+		byte[] map = map2;
+		int ip = iOff;
+		int end = iOff + iLen;
+		int op = oOff;
+		int bits = 0;
+		int count = 0;
+		while (ip < end) {
+			if (count == 0 && ip + 4 <= end) {
+				// fast path, a whole group of four plain characters
+				int c0 = in[ip];
+				int c1 = in[ip + 1];
+				int c2 = in[ip + 2];
+				int c3 = in[ip + 3];
+				if ((c0 | c1 | c2 | c3) < 128) {
+					int group = map[c0] << 18 | map[c1] << 12 | map[c2] << 6 | map[c3];
+					if (group >= 0) {
+						out[op] = (byte) (group >> 16);
+						out[op + 1] = (byte) (group >> 8);
+						out[op + 2] = (byte) group;
+						op += 3;
+						ip += 4;
+						continue;
+					}
+				}
+			}
+
+			// slow path, one character at a time
+			char c = in[ip++];
+			if (c == '=') {
+				checkPadding(in, ip, end);
+				break;
+			}
+			if (isWhitespace(c)) {
+				continue;
+			}
+			int value = c < 128 ? map[c] : -1;
+			if (value < 0) {
+				throw new IllegalArgumentException(
+						"Illegal character in Base64 encoded data.");
+			}
+			bits = bits << 6 | value;
+			if (++count == 4) {
+				out[op] = (byte) (bits >> 16);
+				out[op + 1] = (byte) (bits >> 8);
+				out[op + 2] = (byte) bits;
+				op += 3;
+				bits = 0;
+				count = 0;
+			}
 		}
-		while (iLen > 0 && in[iLen - 1] == '=') {
-			iLen--;
-		}
-		int oLen = (iLen * 3) / 4;
-		byte[] out = new byte[oLen];
-		int ip = 0;
-		int op = 0;
-		while (ip < iLen) {
-			int i0 = in[ip++];
-			int i1 = in[ip++];
-			int i2 = ip < iLen ? in[ip++] : 'A';
-			int i3 = ip < iLen ? in[ip++] : 'A';
-			if (i0 > 127 || i1 > 127 || i2 > 127 || i3 > 127) {
+		return op - oOff + finish(bits, count, out, op);
+	}
+
+	/**
+	 * Decodes part of an array of ASCII Base64 bytes into part of a byte
+	 * array.
+	 * 
+	 * @see #decode(char[], int, int, byte[], int)
+	 */
+	static int decode(byte[] in, int iOff, int iLen, byte[] out, int oOff) {
+		byte[] map = map2;
+		int ip = iOff;
+		int end = iOff + iLen;
+		int op = oOff;
+		int bits = 0;
+		int count = 0;
+		while (ip < end) {
+			if (count == 0 && ip + 4 <= end) {
+				int c0 = in[ip];
+				int c1 = in[ip + 1];
+				int c2 = in[ip + 2];
+				int c3 = in[ip + 3];
+				// bytes over 127 are negative
+				if ((c0 | c1 | c2 | c3) >= 0) {
+					int group = map[c0] << 18 | map[c1] << 12 | map[c2] << 6 | map[c3];
+					if (group >= 0) {
+						out[op] = (byte) (group >> 16);
+						out[op + 1] = (byte) (group >> 8);
+						out[op + 2] = (byte) group;
+						op += 3;
+						ip += 4;
+						continue;
+					}
+				}
+			}
+
+			int c = in[ip++];
+			if (c == '=') {
+				for (; ip < end; ip++) {
+					if (in[ip] != '=' && !isWhitespace((char) in[ip])) {
+						throw new IllegalArgumentException(
+								"Illegal character in Base64 encoded data.");
+					}
+				}
+				break;
+			}
+			if (isWhitespace((char) c)) {
+				continue;
+			}
+			int value = c >= 0 ? map[c] : -1;
+			if (value < 0) {
 				throw new IllegalArgumentException(
 						"Illegal character in Base64 encoded data.");
 			}
-			int b0 = map2[i0];
-			int b1 = map2[i1];
-			int b2 = map2[i2];
-			int b3 = map2[i3];
-			if (b0 < 0 || b1 < 0 || b2 < 0 || b3 < 0) {
+			bits = bits << 6 | value;
+			if (++count == 4) {
+				out[op] = (byte) (bits >> 16);
+				out[op + 1] = (byte) (bits >> 8);
+				out[op + 2] = (byte) bits;
+				op += 3;
+				bits = 0;
+				count = 0;
+			}
+		}
+		return op - oOff + finish(bits, count, out, op);
+	}
+
+	/**
+	 * Decodes the remaining characters of a buffer.  Both buffers'
+	 * positions are advanced.
+	 * 
+	 * @throws BufferOverflowException
+	 *             if <code>out</code> doesn't have room for the decoded data.
+	 * @throws IllegalArgumentException
+	 *             if the input is not valid Base64 encoded data.
+	 */
+	static void decode(CharBuffer in, ByteBuffer out) {
+		char[] chars;
+		int iOff;
+		int iLen = in.remaining();
+		if (in.hasArray()) {
+			chars = in.array();
+			iOff = in.arrayOffset() + in.position();
+		} else {
+			chars = new char[iLen];
+			in.duplicate().get(chars);
+			iOff = 0;
+		}
+		int oLen = decodedLength(iLen - padding(chars, iOff, iLen));
+		if (out.hasArray() && out.remaining() >= oLen) {
+			int n = decode(chars, iOff, iLen, out.array(), out.arrayOffset() + out.position());
+			out.position(out.position() + n);
+		} else {
+			byte[] bytes = new byte[oLen];
+			out.put(bytes, 0, decode(chars, iOff, iLen, bytes, 0));
+		}
+		in.position(in.limit());
+	}
+
+	/**
+	 * Decodes the remaining ASCII Base64 bytes of a buffer.  Both buffers'
+	 * positions are advanced.
+	 * 
+	 * @throws BufferOverflowException
+	 *             if <code>out</code> doesn't have room for the decoded data.
+	 * @throws IllegalArgumentException
+	 *             if the input is not valid Base64 encoded data.
+	 */
+	static void decode(ByteBuffer in, ByteBuffer out) {
+		byte[] chars;
+		int iOff;
+		int iLen = in.remaining();
+		if (in.hasArray()) {
+			chars = in.array();
+			iOff = in.arrayOffset() + in.position();
+		} else {
+			chars = new byte[iLen];
+			in.duplicate().get(chars);
+			iOff = 0;
+		}
+		int oLen = decodedLength(iLen - padding(chars, iOff, iLen));
+		if (out.hasArray() && out.remaining() >= oLen) {
+			int n = decode(chars, iOff, iLen, out.array(), out.arrayOffset() + out.position());
+			out.position(out.position() + n);
+		} else {
+			byte[] bytes = new byte[oLen];
+			out.put(bytes, 0, decode(chars, iOff, iLen, bytes, 0));
+		}
+		in.position(in.limit());
+	}
+
+	/**
+	 * Writes out the bytes of a final group of two or three characters,
+	 * for data that was cut short by padding or had none.
+	 * 
+	 * @return Number of bytes written.
+	 */
+	private static int finish(int bits, int count, byte[] out, int op) {
+		switch (count) {
+		case 0:
+			return 0;
+		case 2:
+			out[op] = (byte) (bits >> 4);
+			return 1;
+		case 3:
+			out[op] = (byte) (bits >> 10);
+			out[op + 1] = (byte) (bits >> 2);
+			return 2;
+		default:
+			throw new IllegalArgumentException(
+					"Length of Base64 encoded input string is not a multiple of 4.");
+		}
+	}
+
+	/**
+	 * @return Number of padding characters at the end of the data.
+	 */
+	private static int padding(char[] in, int iOff, int iLen) {
+		int padding = 0;
+		while (padding < 2 && padding < iLen && in[iOff + iLen - 1 - padding] == '=') {
+			padding++;
+		}
+		return padding;
+	}
+
+	private static int padding(byte[] in, int iOff, int iLen) {
+		int padding = 0;
+		while (padding < 2 && padding < iLen && in[iOff + iLen - 1 - padding] == '=') {
+			padding++;
+		}
+		return padding;
+	}
+
+	// Only more padding and whitespace may follow the first '='.
+	private static void checkPadding(char[] in, int ip, int end) {
+		for (; ip < end; ip++) {
+			if (in[ip] != '=' && !isWhitespace(in[ip])) {
 				throw new IllegalArgumentException(
 						"Illegal character in Base64 encoded data.");
 			}
-			int o0 = (b0 << 2) | (b1 >>> 4);
-			int o1 = ((b1 & 0xf) << 4) | (b2 >>> 2);
-			int o2 = ((b2 & 3) << 6) | b3;
-			out[op++] = (byte) o0;
-			if (op < oLen) {
-				out[op++] = (byte) o1;
+		}
+	}
+
+	private static boolean isWhitespace(char c) {
+		return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+	}
+
+	/**
+	 * Decodes Base64 data that arrives in pieces, such as the text events
+	 * of an XML element, writing the bytes to a stream through a fixed
+	 * size buffer.  Groups of four characters may be split across pieces.
+	 * Whitespace is skipped.
+	 */
+	static class Decoder {
+		private final OutputStream out;
+		private final byte[] buffer = new byte[CHUNK * 3];
+		private int buffered;
+		private int bits;
+		private int count;
+		private boolean padded;
+		private long total;
+
+		Decoder(OutputStream out) {
+			this.out = out;
+		}
+
+		/**
+		 * Decodes the next piece of the data.
+		 * 
+		 * @throws IllegalArgumentException
+		 *             if the input is not valid Base64 encoded data.
+		 */
+		void decode(char[] in, int iOff, int iLen) throws IOException {
+			byte[] map = map2;
+			byte[] buf = buffer;
+			int ip = iOff;
+			int end = iOff + iLen;
+			int op = buffered;
+			int bits = this.bits;
+			int count = this.count;
+			while (ip < end) {
+				if (op > buf.length - 3) {
+					out.write(buf, 0, op);
+					total += op;
+					op = 0;
+				}
+				if (padded) {
+					checkPadding(in, ip, end);
+					break;
+				}
+				if (count == 0 && ip + 4 <= end) {
+					int c0 = in[ip];
+					int c1 = in[ip + 1];
+					int c2 = in[ip + 2];
+					int c3 = in[ip + 3];
+					if ((c0 | c1 | c2 | c3) < 128) {
+						int group = map[c0] << 18 | map[c1] << 12 | map[c2] << 6 | map[c3];
+						if (group >= 0) {
+							buf[op] = (byte) (group >> 16);
+							buf[op + 1] = (byte) (group >> 8);
+							buf[op + 2] = (byte) group;
+							op += 3;
+							ip += 4;
+							continue;
+						}
+					}
+				}
+
+				char c = in[ip++];
+				if (c == '=') {
+					op += Base64Coder.finish(bits, count, buf, op);
+					bits = 0;
+					count = 0;
+					padded = true;
+					continue;
+				}
+				if (isWhitespace(c)) {
+					continue;
+				}
+				int value = c < 128 ? map[c] : -1;
+				if (value < 0) {
+					throw new IllegalArgumentException(
+							"Illegal character in Base64 encoded data.");
+				}
+				bits = bits << 6 | value;
+				if (++count == 4) {
+					buf[op] = (byte) (bits >> 16);
+					buf[op + 1] = (byte) (bits >> 8);
+					buf[op + 2] = (byte) bits;
+					op += 3;
+					bits = 0;
+					count = 0;
+				}
 			}
-			if (op < oLen) {
-				out[op++] = (byte) o2;
+			this.buffered = op;
+			this.bits = bits;
+			this.count = count;
+		}
+
+		/**
+		 * Decodes whatever is left of the data and writes out the buffer.
+		 * The stream is flushed but not closed.
+		 * 
+		 * @throws IllegalArgumentException
+		 *             if the data ended part way through a group.
+		 */
+		void finish() throws IOException {
+			if (buffered > buffer.length - 3) {
+				out.write(buffer, 0, buffered);
+				total += buffered;
+				buffered = 0;
 			}
+			int op = buffered + Base64Coder.finish(bits, count, buffer, buffered);
+			bits = 0;
+			count = 0;
+			out.write(buffer, 0, op);
+			total += op;
+			buffered = 0;
+			out.flush();
+		}
+
+		/**
+		 * @return Number of bytes written to the stream so far.
+		 */
+		long getCount() {
+			return total;
 		}
-		return out;
 	}
 
 	// Dummy constructor.
@@ -1,20 +1,54 @@
 package org.xmlrpc.android;
 
+import org.apache.http.HttpResponse;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.Credentials;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
 import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
 import org.orderlychaos.util.TrustAllSSLSocketFactory;
 
+import java.net.URI;
 import java.security.KeyManagementException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 
 public class ConnectionClient extends DefaultHttpClient { 
+    // Pool limits for the shared clients.  The clicker server is a single
+    // host, so the per-route limit is what really matters.
+    private static final int MAX_TOTAL_CONNECTIONS = 8;
+    private static final int MAX_CONNECTIONS_PER_ROUTE = 4;
+
+    // Connections are kept alive for this long if the server doesn't tell
+    // us otherwise, and are evicted after sitting idle for this long.
+    private static final long KEEP_ALIVE_DEFAULT = 30000;
+    private static final long IDLE_TIMEOUT = 30000;
+    private static final long EVICTION_INTERVAL = 5000;
+
+    // Process-wide registry of pooled clients, keyed by server URL.
+    private static final ConcurrentMap<String, ConnectionClient> clients =
+            new ConcurrentHashMap<String, ConnectionClient>();
+    private static Thread evictionThread;
+
+    private Credentials credentials;
+
     public ConnectionClient(Credentials cred) { 
         super(); 
         setCredentials(cred); 
@@ -27,13 +61,147 @@ public class ConnectionClient extends DefaultHttpClient {
         setCredentials(cred); 
     } 
 
+    private ConnectionClient(ClientConnectionManager manager, HttpParams params, Credentials cred) {
+        super(manager, params);
+        setCredentials(cred); 
+        setKeepAliveStrategy(new DefaultConnectionKeepAliveStrategy() {
+            @Override
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                long duration = super.getKeepAliveDuration(response, context);
+                return duration > 0 ? duration : KEEP_ALIVE_DEFAULT;
+            }
+        });
+    } 
+
+    /**
+     * Returns the shared, pooled client for the given server.  All callers
+     * talking to the same server URL share one connection pool, so requests
+     * reuse kept-alive connections instead of connecting every time.  A
+     * user's client is replaced once their password changes, and the old
+     * one's connections are closed.
+     *
+     * @param uri server URI
+     * @param cred credentials to use for the server
+     * @return pooled client for the server
+     */
+    public static ConnectionClient getClient(URI uri, Credentials cred) {
+        String key = cred.getUserPrincipal().getName() + "@" + uri.toString();
+        while (true) {
+            ConnectionClient client = clients.get(key);
+            if (client != null && samePassword(client.credentials, cred)) {
+                return client;
+            }
+            ConnectionClient created = createPooledClient(uri, cred);
+            boolean added = (client == null) ? clients.putIfAbsent(key, created) == null
+                    : clients.replace(key, client, created);
+            if (added) {
+                startEvictionThread();
+                if (client != null) {
+                    client.getConnectionManager().shutdown();
+                }
+                return created;
+            }
+            // another thread got there first
+            created.getConnectionManager().shutdown();
+        }
+    } 
+
+    private static boolean samePassword(Credentials a, Credentials b) {
+        String password = a.getPassword();
+        return (password == null) ? b.getPassword() == null : password.equals(b.getPassword());
+    } 
+
+    /**
+     * Closes all pooled connections and empties the client registry.
+     */
+    public static void shutdownAll() {
+        Iterator<ConnectionClient> iter = clients.values().iterator();
+        while (iter.hasNext()) {
+            ConnectionClient client = iter.next();
+            iter.remove();
+            client.getConnectionManager().shutdown();
+        }
+    } 
+
+    /**
+     * @return number of connections opened by the shared clients
+     */
+    public static long getConnectionsCreated() {
+        long count = 0;
+        for (ConnectionClient client : clients.values()) {
+            count += ((PooledConnectionManager) client.getConnectionManager()).getConnectionsCreated();
+        }
+        return count;
+    } 
+
+    /**
+     * @return number of requests the shared clients sent over a reused connection
+     */
+    public static long getConnectionsReused() {
+        long count = 0;
+        for (ConnectionClient client : clients.values()) {
+            count += ((PooledConnectionManager) client.getConnectionManager()).getConnectionsReused();
+        }
+        return count;
+    } 
+
+    private static ConnectionClient createPooledClient(URI uri, Credentials cred) {
+        HttpParams params = new BasicHttpParams();
+        HttpConnectionParams.setConnectionTimeout(params, Transports.TIMEOUT);
+        HttpConnectionParams.setSoTimeout(params, Transports.TIMEOUT);
+        HttpConnectionParams.setStaleCheckingEnabled(params, true);
+        ConnManagerParams.setMaxTotalConnections(params, MAX_TOTAL_CONNECTIONS);
+        ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(MAX_CONNECTIONS_PER_ROUTE));
+
+        SchemeRegistry schemes = new SchemeRegistry();
+        schemes.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        if ("https".equals(uri.getScheme())) {
+            int port = (uri.getPort() == -1) ? 443 : uri.getPort();
+            try {
+                schemes.register(new Scheme("https", new TrustAllSSLSocketFactory(), port));
+            } catch (Exception e) {
+                schemes.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+            }
+        } else {
+            schemes.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+        }
+
+        return new ConnectionClient(new PooledConnectionManager(params, schemes), params, cred);
+    } 
+
+    private static synchronized void startEvictionThread() {
+        if (evictionThread != null) {
+            return;
+        }
+        evictionThread = new Thread("ConnectionClient-eviction") {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Thread.sleep(EVICTION_INTERVAL);
+                        for (ConnectionClient client : clients.values()) {
+                            ClientConnectionManager manager = client.getConnectionManager();
+                            manager.closeExpiredConnections();
+                            manager.closeIdleConnections(IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // Shutting down.
+                }
+            }
+        };
+        evictionThread.setDaemon(true);
+        evictionThread.start();
+    } 
+
     private void registerTrustAllScheme(int port) throws KeyManagementException, NoSuchAlgorithmException, KeyStoreException, UnrecoverableKeyException { 
         TrustAllSSLSocketFactory tasslf = new TrustAllSSLSocketFactory(); 
         Scheme sch = new Scheme("https", tasslf, port); 
         getConnectionManager().getSchemeRegistry().register(sch);      
     } 
-      
+
     private void setCredentials(Credentials cred) { 
+        credentials = cred;
         BasicCredentialsProvider cP = new BasicCredentialsProvider(); 
         cP.setCredentials(AuthScope.ANY, cred); 
         setCredentialsProvider(cP); 
@@ -0,0 +1,614 @@
+package org.xmlrpc.android;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Just enough HTTP/2 for XML-RPC, for {@link Http2Transport}: frames, and
+ * HPACK header blocks.  Headers are sent as plain literals, which for the
+ * handful of headers in a call costs a few dozen bytes, and decoded however
+ * the other side packed them.
+ */
+final class Http2Codec {
+	static final byte[] PREFACE = { 'P', 'R', 'I', ' ', '*', ' ', 'H', 'T', 'T', 'P', '/', '2', '.', '0', '\r', '\n',
+			'\r', '\n', 'S', 'M', '\r', '\n', '\r', '\n' };
+	static final int FRAME_HEADER_LENGTH = 9;
+	static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+	static final int DEFAULT_WINDOW_SIZE = 65535;
+	static final int MAX_WINDOW_SIZE = 0x7fffffff;
+
+	// frame types
+	static final int DATA = 0x0;
+	static final int HEADERS = 0x1;
+	static final int PRIORITY = 0x2;
+	static final int RST_STREAM = 0x3;
+	static final int SETTINGS = 0x4;
+	static final int PUSH_PROMISE = 0x5;
+	static final int PING = 0x6;
+	static final int GOAWAY = 0x7;
+	static final int WINDOW_UPDATE = 0x8;
+	static final int CONTINUATION = 0x9;
+
+	// frame flags
+	static final int FLAG_END_STREAM = 0x1;
+	static final int FLAG_ACK = 0x1;
+	static final int FLAG_END_HEADERS = 0x4;
+	static final int FLAG_PADDED = 0x8;
+	static final int FLAG_PRIORITY = 0x20;
+
+	// settings
+	static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+	static final int SETTINGS_ENABLE_PUSH = 0x2;
+	static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+	static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+	static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+	// error codes
+	static final int NO_ERROR = 0x0;
+	static final int PROTOCOL_ERROR = 0x1;
+	static final int FLOW_CONTROL_ERROR = 0x3;
+	static final int FRAME_SIZE_ERROR = 0x6;
+	static final int REFUSED_STREAM = 0x7;
+	static final int CANCEL = 0x8;
+	static final int COMPRESSION_ERROR = 0x9;
+
+	private static final int CONTENT_LENGTH_INDEX = 28;
+	private static final int DEFAULT_HEADER_TABLE_SIZE = 4096;
+
+	// RFC 7541, appendix A
+	private static final String[] STATIC_TABLE = {
+			null,
+			":authority", "",
+			":method", "GET",
+			":method", "POST",
+			":path", "/",
+			":path", "/index.html",
+			":scheme", "http",
+			":scheme", "https",
+			":status", "200",
+			":status", "204",
+			":status", "206",
+			":status", "304",
+			":status", "400",
+			":status", "404",
+			":status", "500",
+			"accept-charset", "",
+			"accept-encoding", "gzip, deflate",
+			"accept-language", "",
+			"accept-ranges", "",
+			"accept", "",
+			"access-control-allow-origin", "",
+			"age", "",
+			"allow", "",
+			"authorization", "",
+			"cache-control", "",
+			"content-disposition", "",
+			"content-encoding", "",
+			"content-language", "",
+			"content-length", "",
+			"content-location", "",
+			"content-range", "",
+			"content-type", "",
+			"cookie", "",
+			"date", "",
+			"etag", "",
+			"expect", "",
+			"expires", "",
+			"from", "",
+			"host", "",
+			"if-match", "",
+			"if-modified-since", "",
+			"if-none-match", "",
+			"if-range", "",
+			"if-unmodified-since", "",
+			"last-modified", "",
+			"link", "",
+			"location", "",
+			"max-forwards", "",
+			"proxy-authenticate", "",
+			"proxy-authorization", "",
+			"range", "",
+			"referer", "",
+			"refresh", "",
+			"retry-after", "",
+			"server", "",
+			"set-cookie", "",
+			"strict-transport-security", "",
+			"transfer-encoding", "",
+			"user-agent", "",
+			"vary", "",
+			"via", "",
+			"www-authenticate", ""
+	};
+	private static final int STATIC_TABLE_LENGTH = STATIC_TABLE.length / 2; // entries 1 to 61
+	private static final Map<String, Integer> STATIC_NAMES = new HashMap<String, Integer>();
+
+	// RFC 7541, appendix B, codes right aligned
+	private static final int[] HUFFMAN_CODES = {
+			0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+			0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+			0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+			0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+			0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+			0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+			0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+			0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+			0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+			0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+			0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+			0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+			0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+			0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+			0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+			0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+			0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+			0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+			0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+			0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+			0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+			0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+			0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+			0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+			0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+			0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+			0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+			0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+			0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+			0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+			0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+			0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee
+	};
+	private static final byte[] HUFFMAN_LENGTHS = {
+			13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+			28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+			6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+			5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+			13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+			7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+			15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+			6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+			20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+			24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+			22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+			21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+			26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+			19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+			20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+			26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26
+	};
+	// Huffman codes as a binary tree: node n's children are at 2n and 2n + 1,
+	// holding the child's node number, or the symbol's complement at a leaf.
+	private static final int[] HUFFMAN_TREE;
+
+	static {
+		for (int i = STATIC_TABLE_LENGTH; i >= 1; i--) {
+			STATIC_NAMES.put(STATIC_TABLE[2 * i - 1], i);
+		}
+		int[] tree = new int[2 * 256];
+		int nodes = 1;
+		for (int symbol = 0; symbol < 256; symbol++) {
+			int node = 0;
+			for (int bit = HUFFMAN_LENGTHS[symbol] - 1; bit >= 0; bit--) {
+				int slot = 2 * node + (HUFFMAN_CODES[symbol] >>> bit & 1);
+				if (bit == 0) {
+					tree[slot] = ~symbol;
+				} else {
+					if (tree[slot] == 0) {
+						tree[slot] = nodes++;
+					}
+					node = tree[slot];
+				}
+			}
+		}
+		HUFFMAN_TREE = tree;
+	}
+
+	private Http2Codec() {
+	}
+
+	/**
+	 * A connection error, after which the connection can't be used.
+	 */
+	static class Http2Exception extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		final int errorCode;
+
+		Http2Exception(int errorCode, String message) {
+			super(message);
+			this.errorCode = errorCode;
+		}
+	}
+
+	/**
+	 * A frame read off a connection.  The payload buffer is reused from
+	 * frame to frame.
+	 */
+	static class Frame {
+		int length;
+		int type;
+		int flags;
+		int stream;
+		byte[] payload = new byte[DEFAULT_MAX_FRAME_SIZE];
+		private final byte[] header = new byte[FRAME_HEADER_LENGTH];
+
+		boolean hasFlag(int flag) {
+			return (flags & flag) != 0;
+		}
+
+		/**
+		 * @return big-endian int in the payload
+		 */
+		int getInt(int offset) {
+			return (payload[offset] & 0xff) << 24 | (payload[offset + 1] & 0xff) << 16
+					| (payload[offset + 2] & 0xff) << 8 | payload[offset + 3] & 0xff;
+		}
+	}
+
+	/**
+	 * Reads the next frame.  A timeout before the frame starts is thrown
+	 * as is, with nothing read, so the caller can wait some more.
+	 *
+	 * @param maxFrameSize largest payload the reader accepts
+	 * @return false at the end of the connection
+	 */
+	static boolean readFrame(InputStream in, Frame frame, int maxFrameSize) throws IOException {
+		int first = in.read();
+		if (first == -1) {
+			return false;
+		}
+		byte[] header = frame.header;
+		header[0] = (byte) first;
+		readFully(in, header, 1, FRAME_HEADER_LENGTH - 1);
+		frame.length = (header[0] & 0xff) << 16 | (header[1] & 0xff) << 8 | header[2] & 0xff;
+		frame.type = header[3] & 0xff;
+		frame.flags = header[4] & 0xff;
+		frame.stream = ((header[5] & 0x7f) << 24 | (header[6] & 0xff) << 16 | (header[7] & 0xff) << 8 | header[8] & 0xff);
+		if (frame.length > maxFrameSize) {
+			throw new Http2Exception(FRAME_SIZE_ERROR, "Frame of " + frame.length + " bytes is too big");
+		}
+		if (frame.payload.length < frame.length) {
+			frame.payload = new byte[frame.length];
+		}
+		readFully(in, frame.payload, 0, frame.length);
+		return true;
+	}
+
+	static void readFully(InputStream in, byte[] b, int off, int len) throws IOException {
+		try {
+			while (len > 0) {
+				int n = in.read(b, off, len);
+				if (n == -1) {
+					throw new IOException("Connection closed in the middle of a frame");
+				}
+				off += n;
+				len -= n;
+			}
+		} catch (SocketTimeoutException e) {
+			// a plain IOException, since some of the frame has been read
+			throw new IOException("Timed out in the middle of a frame");
+		}
+	}
+
+	static void writeFrameHeader(OutputStream out, int length, int type, int flags, int stream) throws IOException {
+		out.write(length >>> 16);
+		out.write(length >>> 8);
+		out.write(length);
+		out.write(type);
+		out.write(flags);
+		writeInt(out, stream);
+	}
+
+	static void writeInt(OutputStream out, int value) throws IOException {
+		out.write(value >>> 24);
+		out.write(value >>> 16);
+		out.write(value >>> 8);
+		out.write(value);
+	}
+
+	/**
+	 * Writes a SETTINGS frame.
+	 *
+	 * @param settings pairs of setting identifier and value
+	 */
+	static void writeSettings(OutputStream out, int... settings) throws IOException {
+		writeFrameHeader(out, settings.length / 2 * 6, SETTINGS, 0, 0);
+		for (int i = 0; i < settings.length; i += 2) {
+			out.write(settings[i] >>> 8);
+			out.write(settings[i]);
+			writeInt(out, settings[i + 1]);
+		}
+	}
+
+	static void writeWindowUpdate(OutputStream out, int stream, int increment) throws IOException {
+		writeFrameHeader(out, 4, WINDOW_UPDATE, 0, stream);
+		writeInt(out, increment);
+	}
+
+	static void writeRstStream(OutputStream out, int stream, int errorCode) throws IOException {
+		writeFrameHeader(out, 4, RST_STREAM, 0, stream);
+		writeInt(out, errorCode);
+	}
+
+	static void writeGoAway(OutputStream out, int lastStream, int errorCode) throws IOException {
+		writeFrameHeader(out, 8, GOAWAY, 0, 0);
+		writeInt(out, lastStream);
+		writeInt(out, errorCode);
+	}
+
+	/**
+	 * Builds the part of a POST's header block that is the same for every
+	 * call through a client, everything but the content length.  Header
+	 * names are lower-cased, and the ones HTTP/2 does without are left out.
+	 */
+	static byte[] requestHeaderPrefix(URI uri, Map<String, String> headers) {
+		ByteArrayOutputStream block = new ByteArrayOutputStream(256);
+		writeIndexed(block, 3); // :method POST
+		writeIndexed(block, "https".equalsIgnoreCase(uri.getScheme()) ? 7 : 6);
+		String authority = uri.getHost();
+		if (uri.getPort() != -1) {
+			authority += ":" + uri.getPort();
+		}
+		writeHeader(block, ":authority", authority);
+		String path = uri.getRawPath();
+		if (path == null || path.length() == 0) {
+			path = "/";
+		}
+		if (uri.getRawQuery() != null) {
+			path += "?" + uri.getRawQuery();
+		}
+		writeHeader(block, ":path", path);
+		for (Map.Entry<String, String> header : headers.entrySet()) {
+			String name = header.getKey().toLowerCase(Locale.US);
+			if (!name.equals("host") && !name.equals("connection") && !name.equals("keep-alive")
+					&& !name.equals("proxy-connection") && !name.equals("transfer-encoding") && !name.equals("upgrade")) {
+				writeHeader(block, name, header.getValue());
+			}
+		}
+		return block.toByteArray();
+	}
+
+	/**
+	 * Adds the content length to a request's header block.
+	 */
+	static void writeContentLength(ByteArrayOutputStream block, long contentLength) {
+		writeInt(block, 0x00, 4, CONTENT_LENGTH_INDEX);
+		writeString(block, Long.toString(contentLength));
+	}
+
+	/**
+	 * Writes a header field from the static table.
+	 */
+	static void writeIndexed(ByteArrayOutputStream block, int index) {
+		writeInt(block, 0x80, 7, index);
+	}
+
+	/**
+	 * Writes a header field as a literal that isn't added to the other
+	 * side's table, naming it by index if the static table has the name.
+	 */
+	static void writeHeader(ByteArrayOutputStream block, String name, String value) {
+		Integer index = STATIC_NAMES.get(name);
+		if (index != null) {
+			writeInt(block, 0x00, 4, index);
+		} else {
+			block.write(0x00);
+			writeString(block, name);
+		}
+		writeString(block, value);
+	}
+
+	private static void writeString(ByteArrayOutputStream block, String s) {
+		writeInt(block, 0x00, 7, s.length());
+		for (int i = 0; i < s.length(); i++) {
+			block.write(s.charAt(i));
+		}
+	}
+
+	/**
+	 * Writes an HPACK integer.
+	 *
+	 * @param first bits of the first byte above the prefix
+	 * @param prefixBits bits of the first byte the integer starts in
+	 */
+	private static void writeInt(ByteArrayOutputStream block, int first, int prefixBits, int value) {
+		int max = (1 << prefixBits) - 1;
+		if (value < max) {
+			block.write(first | value);
+			return;
+		}
+		block.write(first | max);
+		value -= max;
+		while (value >= 0x80) {
+			block.write(value & 0x7f | 0x80);
+			value >>>= 7;
+		}
+		block.write(value);
+	}
+
+	/**
+	 * Decodes the header blocks one side of a connection receives, keeping
+	 * the dynamic table they build up.
+	 */
+	static class HeaderDecoder {
+		// newest first, name and value after each other
+		private final List<String> table = new ArrayList<String>();
+		private int tableSize;
+		private int maxTableSize = DEFAULT_HEADER_TABLE_SIZE;
+		private byte[] block;
+		private int pos;
+		private int end;
+
+		/**
+		 * Decodes a header block.
+		 *
+		 * @param headers gets each header's name and value after each other
+		 */
+		void decode(byte[] block, int off, int len, List<String> headers) throws Http2Exception {
+			this.block = block;
+			pos = off;
+			end = off + len;
+			try {
+				while (pos < end) {
+					int first = block[pos] & 0xff;
+					if ((first & 0x80) != 0) {
+						int index = readInt(7);
+						if (index == 0) {
+							throw new Http2Exception(COMPRESSION_ERROR, "Header index 0");
+						}
+						headers.add(name(index));
+						headers.add(value(index));
+					} else
+					if ((first & 0x40) != 0) {
+						int index = readInt(6);
+						String name = index == 0 ? readString() : name(index);
+						String value = readString();
+						headers.add(name);
+						headers.add(value);
+						add(name, value);
+					} else
+					if ((first & 0x20) != 0) {
+						int size = readInt(5);
+						if (size > DEFAULT_HEADER_TABLE_SIZE) {
+							throw new Http2Exception(COMPRESSION_ERROR, "Header table size " + size + " is too big");
+						}
+						maxTableSize = size;
+						evict(0);
+					} else {
+						// not indexed, or never indexed
+						int index = readInt(4);
+						headers.add(index == 0 ? readString() : name(index));
+						headers.add(readString());
+					}
+				}
+			} finally {
+				this.block = null;
+			}
+		}
+
+		private String name(int index) throws Http2Exception {
+			return entry(index, 0);
+		}
+
+		private String value(int index) throws Http2Exception {
+			return entry(index, 1);
+		}
+
+		private String entry(int index, int field) throws Http2Exception {
+			if (index <= STATIC_TABLE_LENGTH) {
+				return STATIC_TABLE[2 * index - 1 + field];
+			}
+			int dynamic = index - STATIC_TABLE_LENGTH - 1;
+			if (2 * dynamic >= table.size()) {
+				throw new Http2Exception(COMPRESSION_ERROR, "Header index " + index + " is out of the table");
+			}
+			return table.get(2 * dynamic + field);
+		}
+
+		private void add(String name, String value) {
+			int size = 32 + name.length() + value.length();
+			evict(size);
+			if (size <= maxTableSize) {
+				table.add(0, value);
+				table.add(0, name);
+				tableSize += size;
+			}
+		}
+
+		/**
+		 * Drops the oldest entries until there is room for more.
+		 */
+		private void evict(int room) {
+			while (!table.isEmpty() && tableSize + room > maxTableSize) {
+				String value = table.remove(table.size() - 1);
+				String name = table.remove(table.size() - 1);
+				tableSize -= 32 + name.length() + value.length();
+			}
+		}
+
+		private int readInt(int prefixBits) throws Http2Exception {
+			int max = (1 << prefixBits) - 1;
+			int value = block[pos++] & max;
+			if (value < max) {
+				return value;
+			}
+			for (int shift = 0; shift < 28; shift += 7) {
+				if (pos == end) {
+					throw new Http2Exception(COMPRESSION_ERROR, "Header block ends in an integer");
+				}
+				int b = block[pos++];
+				value += (b & 0x7f) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new Http2Exception(COMPRESSION_ERROR, "Integer in header block is too big");
+		}
+
+		private String readString() throws Http2Exception {
+			if (pos == end) {
+				throw new Http2Exception(COMPRESSION_ERROR, "Header block ends before a string");
+			}
+			boolean huffman = (block[pos] & 0x80) != 0;
+			int length = readInt(7);
+			if (length > end - pos) {
+				throw new Http2Exception(COMPRESSION_ERROR, "Header block ends in a string");
+			}
+			String s = huffman ? huffmanDecode(block, pos, length) : latin1(block, pos, length);
+			pos += length;
+			return s;
+		}
+	}
+
+	private static String latin1(byte[] b, int off, int len) {
+		char[] chars = new char[len];
+		for (int i = 0; i < len; i++) {
+			chars[i] = (char) (b[off + i] & 0xff);
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * Decodes a Huffman coded string, whose last byte is padded with the
+	 * start of the end-of-string code.
+	 */
+	static String huffmanDecode(byte[] b, int off, int len) throws Http2Exception {
+		StringBuilder s = new StringBuilder(len * 8 / 5);
+		int node = 0;
+		int depth = 0;
+		int ones = 0;
+		for (int i = off; i < off + len; i++) {
+			int bits = b[i] & 0xff;
+			for (int bit = 7; bit >= 0; bit--) {
+				int next = HUFFMAN_TREE[2 * node + (bits >>> bit & 1)];
+				ones = (bits >>> bit & 1) == 1 ? ones + 1 : 0;
+				if (next < 0) {
+					s.append((char) ~next);
+					node = 0;
+					depth = 0;
+					ones = 0;
+				} else
+				if (next == 0) {
+					// only the end-of-string code goes this way
+					throw new Http2Exception(COMPRESSION_ERROR, "Bad Huffman code in header block");
+				} else {
+					node = next;
+					depth++;
+				}
+			}
+		}
+		if (depth > 7 || ones != depth) {
+			throw new Http2Exception(COMPRESSION_ERROR, "Bad padding after Huffman code in header block");
+		}
+		return s.toString();
+	}
+}
@@ -0,0 +1,1149 @@
+package org.xmlrpc.android;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+
+import org.orderlychaos.util.TlsHandshake;
+
+/**
+ * Transport that speaks HTTP/2, so calls made at the same time, like status
+ * polls and button presses from several screens, go out as independent
+ * streams on a single connection per server.  A slow call doesn't hold up
+ * the ones behind it, and no call waits for, or opens, a connection of its
+ * own.  A call with a small body goes out as one write.
+ *
+ * <p>
+ * http servers have to speak HTTP/2 from the first byte (h2c with prior
+ * knowledge), which suits a server on the local network.  https servers are
+ * offered h2 during the TLS handshake, on platforms that support ALPN.  A
+ * server that answers in HTTP/1.x instead is remembered, and its calls go
+ * through a {@link SocketTransport}.  Like the default transport, https
+ * servers are trusted whatever their certificate.  Requests can be
+ * pipelined, which here just means they are sent as streams back to back.
+ */
+public class Http2Transport implements XMLRPCTransport, XMLRPCTransport.Pipelining {
+	private static final int IDLE_TIMEOUT = 30000;
+	private static final int BUFFER_SIZE = 32 * 1024;
+	// How far the server may get ahead of us, per response and altogether.
+	private static final int STREAM_WINDOW = 1024 * 1024;
+	private static final int CONNECTION_WINDOW = 16 * 1024 * 1024;
+	// Stream ids are never reused, so a connection is retired well before
+	// it runs out of them.
+	private static final int LAST_STREAM_ID = 0x7fff0000;
+
+	private final Map<String, Connection> connections = new HashMap<String, Connection>();
+	// servers that answered in HTTP/1.x
+	private final Set<String> http1Servers = Collections.synchronizedSet(new HashSet<String>());
+	private final SocketTransport http1 = new SocketTransport();
+	private volatile HeaderPrefix headerPrefix;
+
+	public Response post(URI uri, Map<String, String> headers, Request request) throws IOException {
+		String server = IdleConnections.server(uri);
+		byte[] prefix = headerPrefix(uri, headers);
+		for (int attempt = 0;; attempt++) {
+			Connection connection = http1Servers.contains(server) ? null : connection(uri, server);
+			if (connection == null) {
+				return http1.post(uri, headers, request);
+			}
+			Stream stream = null;
+			try {
+				stream = connection.newStream(true);
+				connection.send(stream, prefix, request, true);
+				stream.awaitHead();
+				return stream;
+			} catch (HttpCodec.NoResponseException e) {
+				// GOAWAY or REFUSED_STREAM said the server never started
+				// on it
+				if (stream != null) {
+					stream.close();
+				}
+				if (attempt > 0 || request.getContentLength() < 0) {
+					throw e;
+				}
+			} catch (IOException e) {
+				if (stream != null) {
+					stream.close();
+				}
+				throw e;
+			}
+		}
+	}
+
+	public Pipeline pipeline(URI uri, Map<String, String> headers, List<? extends Request> requests) throws IOException {
+		for (Request request : requests) {
+			if (request.getContentLength() < 0) {
+				throw new IllegalArgumentException("Pipelined requests need a known length");
+			}
+		}
+		String server = IdleConnections.server(uri);
+		byte[] prefix = headerPrefix(uri, headers);
+		for (int attempt = 0;; attempt++) {
+			Connection connection = http1Servers.contains(server) ? null : connection(uri, server);
+			if (connection == null) {
+				return http1.pipeline(uri, headers, requests);
+			}
+			try {
+				return new StreamPipeline(connection, prefix, requests);
+			} catch (HttpCodec.NoResponseException e) {
+				if (attempt > 0) {
+					throw e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Closes the connections that have no calls in progress.
+	 */
+	public void closeIdleConnections() {
+		List<Connection> idle = new ArrayList<Connection>();
+		synchronized (connections) {
+			idle.addAll(connections.values());
+		}
+		for (Connection connection : idle) {
+			connection.closeIfIdle();
+		}
+		http1.closeIdleConnections();
+	}
+
+	/**
+	 * @return request header block without the content length, built again
+	 *         only when the client's headers have changed
+	 */
+	private byte[] headerPrefix(URI uri, Map<String, String> headers) {
+		HeaderPrefix prefix = headerPrefix;
+		if (prefix == null || prefix.uri != uri || prefix.headers != headers) {
+			prefix = new HeaderPrefix(uri, headers, Http2Codec.requestHeaderPrefix(uri, headers));
+			headerPrefix = prefix;
+		}
+		return prefix.bytes;
+	}
+
+	/**
+	 * @return the server's connection, opened if it has none that can take
+	 *         more streams, or null if the server doesn't speak HTTP/2
+	 */
+	private Connection connection(URI uri, String server) throws IOException {
+		synchronized (connections) {
+			Connection connection = connections.get(server);
+			if (connection != null && connection.isUsable()) {
+				return connection;
+			}
+		}
+		// opened without holding the lock, so calls to other servers don't wait
+		Connection opened = open(uri, server);
+		if (opened == null) {
+			http1Servers.add(server);
+			return null;
+		}
+		Connection connection;
+		synchronized (connections) {
+			connection = connections.get(server);
+			if (connection == null || !connection.isUsable()) {
+				connections.put(server, opened);
+				connection = opened;
+			}
+		}
+		if (connection != opened) {
+			// another call got there first
+			opened.closeIfIdle();
+			return connection;
+		}
+		opened.start();
+		return opened;
+	}
+
+	private void forget(Connection connection) {
+		synchronized (connections) {
+			if (connections.get(connection.server) == connection) {
+				connections.remove(connection.server);
+			}
+		}
+	}
+
+	/**
+	 * @return a connection that has exchanged settings with the server, or
+	 *         null if the server answered in HTTP/1.x
+	 */
+	private Connection open(URI uri, String server) throws IOException {
+		Socket socket = new Socket();
+		try {
+			socket.setTcpNoDelay(true);
+			socket.setSoTimeout(Transports.TIMEOUT);
+			socket.connect(new InetSocketAddress(uri.getHost(), HttpCodec.port(uri)), Transports.TIMEOUT);
+			if ("https".equalsIgnoreCase(uri.getScheme())) {
+				SSLSocket ssl = (SSLSocket) Transports.sslSocketFactory().createSocket(socket, uri.getHost(), HttpCodec.port(uri), true);
+				socket = ssl;
+				offerH2(ssl);
+				TlsHandshake.perform(ssl);
+				if (!"h2".equals(negotiatedProtocol(ssl))) {
+					socket.close();
+					return null;
+				}
+			}
+			Connection connection = new Connection(server, socket);
+			if (!connection.handshake()) {
+				socket.close();
+				return null;
+			}
+			return connection;
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Offers h2 through ALPN, looked up by name since it is only public from
+	 * Android 10 on, and was a hidden method of the platform's sockets from
+	 * Android 5.
+	 */
+	private static void offerH2(SSLSocket ssl) {
+		try {
+			SSLParameters parameters = ssl.getSSLParameters();
+			SSLParameters.class.getMethod("setApplicationProtocols", String[].class)
+					.invoke(parameters, (Object) new String[] { "h2", "http/1.1" });
+			ssl.setSSLParameters(parameters);
+			return;
+		} catch (Exception e) {
+			// not public here
+		}
+		try {
+			byte[] protocols = { 2, 'h', '2', 8, 'h', 't', 't', 'p', '/', '1', '.', '1' };
+			ssl.getClass().getMethod("setAlpnProtocols", byte[].class).invoke(ssl, (Object) protocols);
+		} catch (Exception e) {
+			// no ALPN at all, so the server will pick HTTP/1.1
+		}
+	}
+
+	/**
+	 * @return the protocol the server picked through ALPN, or null
+	 */
+	private static String negotiatedProtocol(SSLSocket ssl) {
+		try {
+			return (String) SSLSocket.class.getMethod("getApplicationProtocol").invoke(ssl);
+		} catch (Exception e) {
+			// not public here
+		}
+		try {
+			byte[] protocol = (byte[]) ssl.getClass().getMethod("getAlpnSelectedProtocol").invoke(ssl);
+			return protocol != null ? new String(protocol, "US-ASCII") : null;
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * A request header block without its content length, for one client's
+	 * URI and headers.
+	 */
+	private static class HeaderPrefix {
+		final URI uri;
+		final Map<String, String> headers;
+		final byte[] bytes;
+
+		HeaderPrefix(URI uri, Map<String, String> headers, byte[] bytes) {
+			this.uri = uri;
+			this.headers = headers;
+			this.bytes = bytes;
+		}
+	}
+
+	/**
+	 * A connection to a server and the streams open on it.  A reader thread
+	 * reads every frame the server sends and hands it to its stream.  Frames
+	 * are written by whichever thread has something to send, holding the
+	 * output stream's lock; the rest of the connection's state is guarded
+	 * by the connection itself.
+	 */
+	private final class Connection implements Runnable {
+		final String server;
+		final Socket socket;
+		final InputStream in;
+		final OutputStream out;
+		private final Map<Integer, Stream> streams = new HashMap<Integer, Stream>();
+		// streams started but not sent yet, which count against the limit
+		private int opening;
+		private int nextStreamId = 1;
+		private int sendWindow = Http2Codec.DEFAULT_WINDOW_SIZE;
+		private int initialStreamWindow = Http2Codec.DEFAULT_WINDOW_SIZE;
+		private int maxFrameSize = Http2Codec.DEFAULT_MAX_FRAME_SIZE;
+		private int maxStreams = Integer.MAX_VALUE;
+		// streams after this one won't be answered
+		private int lastStreamId = Integer.MAX_VALUE;
+		private boolean goingAway;
+		private IOException failure;
+		private long idleSince = System.currentTimeMillis();
+
+		// only used by the reader thread
+		private final Http2Codec.Frame frame = new Http2Codec.Frame();
+		private final Http2Codec.HeaderDecoder decoder = new Http2Codec.HeaderDecoder();
+		private final List<String> headers = new ArrayList<String>();
+		private int receivedUnacked;
+
+		Connection(String server, Socket socket) throws IOException {
+			this.server = server;
+			this.socket = socket;
+			in = new BufferedInputStream(socket.getInputStream(), Http2Codec.DEFAULT_MAX_FRAME_SIZE);
+			out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+		}
+
+		/**
+		 * Sends the connection preface and our settings, and reads the
+		 * server's settings.
+		 *
+		 * @return false if the server answered in HTTP/1.x
+		 */
+		boolean handshake() throws IOException {
+			try {
+				out.write(Http2Codec.PREFACE);
+				Http2Codec.writeSettings(out, Http2Codec.SETTINGS_ENABLE_PUSH, 0,
+						Http2Codec.SETTINGS_INITIAL_WINDOW_SIZE, STREAM_WINDOW);
+				Http2Codec.writeWindowUpdate(out, 0, CONNECTION_WINDOW - Http2Codec.DEFAULT_WINDOW_SIZE);
+				out.flush();
+			} catch (IOException e) {
+				throw new HttpCodec.NoResponseException("Cannot send connection preface: " + e);
+			}
+			// an HTTP/1.x server answers with a status line, or an error page
+			// without one, where the server's settings should be
+			in.mark(Http2Codec.FRAME_HEADER_LENGTH);
+			byte[] start = new byte[Http2Codec.FRAME_HEADER_LENGTH];
+			try {
+				Http2Codec.readFully(in, start, 0, start.length);
+			} catch (IOException e) {
+				throw new HttpCodec.NoResponseException("Connection closed before the server's settings: " + e);
+			}
+			if (start[3] != Http2Codec.SETTINGS || start[4] != 0 || start[5] != 0 || start[6] != 0 || start[7] != 0 || start[8] != 0) {
+				return false;
+			}
+			in.reset();
+			Http2Codec.readFrame(in, frame, Http2Codec.DEFAULT_MAX_FRAME_SIZE);
+			readSettings();
+			socket.setSoTimeout(IDLE_TIMEOUT);
+			return true;
+		}
+
+		void start() {
+			Thread reader = new Thread(this, "Http2Transport " + server);
+			reader.setDaemon(true);
+			reader.start();
+		}
+
+		synchronized boolean isUsable() {
+			return !goingAway && failure == null;
+		}
+
+		private boolean isIdle() {
+			return streams.isEmpty() && opening == 0;
+		}
+
+		/**
+		 * Starts a stream, waiting until the server allows another one.
+		 *
+		 * @param wait false to return null rather than wait
+		 * @throws HttpCodec.NoResponseException if the connection can't
+		 *         take more streams
+		 */
+		Stream newStream(boolean wait) throws IOException {
+			Stream stream;
+			synchronized (this) {
+				long deadline = System.currentTimeMillis() + Transports.TIMEOUT;
+				while (streams.size() + opening >= maxStreams && !goingAway && failure == null) {
+					if (!wait) {
+						return null;
+					}
+					waitUntil(deadline);
+				}
+				if (goingAway || failure != null) {
+					throw new HttpCodec.NoResponseException("Connection is closing");
+				}
+				// ids have to go out in order, so the stream gets its id
+				// once it is being sent
+				stream = new Stream(this, 0, initialStreamWindow);
+				opening++;
+			}
+			return stream;
+		}
+
+		/**
+		 * Sends a request on a stream.  A body that fits in the flow control
+		 * windows and a frame goes out together with the headers.
+		 */
+		void send(Stream stream, byte[] prefix, Request request, boolean flush) throws IOException {
+			long length = request.getContentLength();
+			ByteArrayOutputStream block = new ByteArrayOutputStream(prefix.length + 16);
+			block.write(prefix, 0, prefix.length);
+			if (length >= 0) {
+				Http2Codec.writeContentLength(block, length);
+			}
+			boolean whole = false;
+			try {
+				synchronized (out) {
+					int frameSize;
+					synchronized (this) {
+						if (goingAway || failure != null) {
+							throw new HttpCodec.NoResponseException("Connection is closing");
+						}
+						stream.id = nextStreamId;
+						nextStreamId += 2;
+						if (nextStreamId >= LAST_STREAM_ID) {
+							goingAway = true;
+						}
+						opening--;
+						streams.put(stream.id, stream);
+						frameSize = maxFrameSize;
+						if (length >= 0 && length <= frameSize && length <= sendWindow && length <= stream.sendWindow) {
+							sendWindow -= length;
+							stream.sendWindow -= length;
+							whole = true;
+						}
+					}
+					writeHeaders(stream.id, block.toByteArray(), frameSize, length == 0);
+					if (whole && length > 0) {
+						Http2Codec.writeFrameHeader(out, (int) length, Http2Codec.DATA, Http2Codec.FLAG_END_STREAM, stream.id);
+						request.writeTo(new HttpCodec.HeldFlushOutputStream(out));
+					}
+					if (flush || !whole) {
+						out.flush();
+					}
+				}
+			} catch (HttpCodec.NoResponseException e) {
+				throw e;
+			} catch (IOException e) {
+				// some of the stream may have reached the server, so it
+				// fails like the others rather than going again
+				fail(e);
+				throw new HttpCodec.ConnectionLostException("Cannot send request: " + e);
+			}
+			if (!whole) {
+				StreamOutputStream body = new StreamOutputStream(stream);
+				request.writeTo(body);
+				body.finish();
+			}
+		}
+
+		private void writeHeaders(int id, byte[] block, int frameSize, boolean endStream) throws IOException {
+			int type = Http2Codec.HEADERS;
+			int flags = endStream ? Http2Codec.FLAG_END_STREAM : 0;
+			int off = 0;
+			do {
+				int length = Math.min(frameSize, block.length - off);
+				boolean last = off + length == block.length;
+				Http2Codec.writeFrameHeader(out, length, type, flags | (last ? Http2Codec.FLAG_END_HEADERS : 0), id);
+				out.write(block, off, length);
+				off += length;
+				type = Http2Codec.CONTINUATION;
+				flags = 0;
+			} while (off < block.length);
+		}
+
+		/**
+		 * Sends part of a body, as the flow control windows allow.
+		 */
+		void sendData(Stream stream, byte[] b, int off, int len, boolean endStream) throws IOException {
+			do {
+				int n;
+				synchronized (this) {
+					long deadline = System.currentTimeMillis() + Transports.TIMEOUT;
+					while (len > 0 && (sendWindow <= 0 || stream.sendWindow <= 0)) {
+						if (stream.failure != null || stream.ended) {
+							break;
+						}
+						waitUntil(deadline);
+					}
+					if (stream.failure != null) {
+						throw stream.failure;
+					}
+					if (stream.ended) {
+						// the server has answered without waiting for the rest
+						return;
+					}
+					n = len == 0 ? 0 : Math.min(len, Math.min(maxFrameSize, Math.min(sendWindow, stream.sendWindow)));
+					sendWindow -= n;
+					stream.sendWindow -= n;
+				}
+				boolean last = endStream && n == len;
+				try {
+					synchronized (out) {
+						Http2Codec.writeFrameHeader(out, n, Http2Codec.DATA, last ? Http2Codec.FLAG_END_STREAM : 0, stream.id);
+						out.write(b, off, n);
+						if (last) {
+							out.flush();
+						}
+					}
+				} catch (IOException e) {
+					fail(e);
+					throw e;
+				}
+				off += n;
+				len -= n;
+			} while (len > 0);
+		}
+
+		/**
+		 * Writes a frame from the reader thread, or when a stream is let go.
+		 */
+		void writeControl(int type, int stream, int value) {
+			try {
+				synchronized (out) {
+					if (type == Http2Codec.WINDOW_UPDATE) {
+						Http2Codec.writeWindowUpdate(out, stream, value);
+					} else {
+						Http2Codec.writeRstStream(out, stream, value);
+					}
+					out.flush();
+				}
+			} catch (IOException e) {
+				fail(e);
+			}
+		}
+
+		/**
+		 * Drops a stream the caller is done with.
+		 */
+		void release(Stream stream) {
+			boolean close;
+			synchronized (this) {
+				if (stream.id == 0) {
+					opening--;
+				} else
+				if (streams.remove(stream.id) == null) {
+					return;
+				}
+				if (isIdle()) {
+					idleSince = System.currentTimeMillis();
+				}
+				close = goingAway && isIdle();
+				notifyAll();
+			}
+			if (close) {
+				closeIfIdle();
+			}
+		}
+
+		/**
+		 * Waits on the connection until notified or the deadline passes.
+		 */
+		void waitUntil(long deadline) throws IOException {
+			long left = deadline - System.currentTimeMillis();
+			if (left <= 0) {
+				throw new SocketTimeoutException("Timed out waiting for the server");
+			}
+			try {
+				wait(left);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted");
+			}
+		}
+
+		/**
+		 * Closes the connection, politely, if no calls are using it.
+		 */
+		void closeIfIdle() {
+			synchronized (this) {
+				goingAway = true;
+				if (!isIdle()) {
+					return;
+				}
+			}
+			forget(this);
+			try {
+				synchronized (out) {
+					Http2Codec.writeGoAway(out, 0, Http2Codec.NO_ERROR);
+					out.flush();
+				}
+			} catch (IOException e) {
+				// closing it anyway
+			}
+			close();
+		}
+
+		void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// nothing more to do with it
+			}
+		}
+
+		/**
+		 * Fails every stream still waiting on the connection and closes it.
+		 * Their requests have gone out, so unless GOAWAY or RST_STREAM
+		 * already said the server never started on them, they aren't sent
+		 * again.
+		 */
+		void fail(IOException e) {
+			synchronized (this) {
+				if (failure != null) {
+					return;
+				}
+				failure = e;
+				for (Stream stream : streams.values()) {
+					stream.fail(stream.statusCode == 0
+							? new HttpCodec.ConnectionLostException("Connection closed before the response: " + e)
+							: new IOException("Connection closed in the middle of the response: " + e));
+				}
+				notifyAll();
+			}
+			forget(this);
+			close();
+		}
+
+		public void run() {
+			try {
+				while (true) {
+					try {
+						if (!Http2Codec.readFrame(in, frame, Http2Codec.DEFAULT_MAX_FRAME_SIZE)) {
+							throw new IOException("Server closed the connection");
+						}
+					} catch (SocketTimeoutException e) {
+						synchronized (this) {
+							if (!isIdle() || System.currentTimeMillis() - idleSince < IDLE_TIMEOUT) {
+								continue;
+							}
+						}
+						closeIfIdle();
+						return;
+					}
+					readFrame();
+				}
+			} catch (Http2Codec.Http2Exception e) {
+				try {
+					synchronized (out) {
+						Http2Codec.writeGoAway(out, 0, e.errorCode);
+						out.flush();
+					}
+				} catch (IOException ignored) {
+					// closing it anyway
+				}
+				fail(e);
+			} catch (IOException e) {
+				fail(e);
+			}
+		}
+
+		private void readFrame() throws IOException {
+			Stream stream;
+			synchronized (this) {
+				stream = frame.stream != 0 ? streams.get(frame.stream) : null;
+			}
+			switch (frame.type) {
+			case Http2Codec.DATA:
+				readData(stream);
+				break;
+			case Http2Codec.HEADERS:
+				readHeaders(stream);
+				break;
+			case Http2Codec.RST_STREAM:
+				if (stream != null) {
+					int errorCode = frame.getInt(0);
+					synchronized (this) {
+						if (!stream.ended) {
+							stream.fail(errorCode == Http2Codec.REFUSED_STREAM
+									? new HttpCodec.NoResponseException("Server refused the stream")
+									: new IOException("Server reset the stream, error code " + errorCode));
+						}
+						notifyAll();
+					}
+				}
+				break;
+			case Http2Codec.SETTINGS:
+				if (!frame.hasFlag(Http2Codec.FLAG_ACK)) {
+					readSettings();
+				}
+				break;
+			case Http2Codec.PING:
+				if (!frame.hasFlag(Http2Codec.FLAG_ACK)) {
+					synchronized (out) {
+						Http2Codec.writeFrameHeader(out, 8, Http2Codec.PING, Http2Codec.FLAG_ACK, 0);
+						out.write(frame.payload, 0, 8);
+						out.flush();
+					}
+				}
+				break;
+			case Http2Codec.GOAWAY:
+				readGoAway();
+				break;
+			case Http2Codec.WINDOW_UPDATE:
+				int increment = frame.getInt(0) & 0x7fffffff;
+				synchronized (this) {
+					if (frame.stream == 0) {
+						sendWindow = add(sendWindow, increment);
+					} else
+					if (stream != null) {
+						stream.sendWindow = add(stream.sendWindow, increment);
+					}
+					notifyAll();
+				}
+				break;
+			case Http2Codec.PUSH_PROMISE:
+				throw new Http2Codec.Http2Exception(Http2Codec.PROTOCOL_ERROR, "Server pushed although we said not to");
+			case Http2Codec.CONTINUATION:
+				throw new Http2Codec.Http2Exception(Http2Codec.PROTOCOL_ERROR, "CONTINUATION without HEADERS");
+			default:
+				// PRIORITY, and frame types we don't know, are ignored
+				break;
+			}
+		}
+
+		private void readData(Stream stream) throws IOException {
+			int off = 0;
+			int length = frame.length;
+			if (frame.hasFlag(Http2Codec.FLAG_PADDED)) {
+				off = 1;
+				length -= 1 + (frame.payload[0] & 0xff);
+				if (length < 0) {
+					throw new Http2Codec.Http2Exception(Http2Codec.PROTOCOL_ERROR, "DATA padding too long");
+				}
+			}
+			// the connection's window is given back as soon as the data is in,
+			// each stream's only once it has been read
+			receivedUnacked += frame.length;
+			if (receivedUnacked >= CONNECTION_WINDOW / 2) {
+				writeControl(Http2Codec.WINDOW_UPDATE, 0, receivedUnacked);
+				receivedUnacked = 0;
+			}
+			if (stream == null) {
+				return;
+			}
+			synchronized (this) {
+				if (stream.failure == null && !stream.ended) {
+					stream.append(frame.payload, off, length);
+					stream.ended = frame.hasFlag(Http2Codec.FLAG_END_STREAM);
+					notifyAll();
+				}
+			}
+		}
+
+		private void readHeaders(Stream stream) throws IOException {
+			int off = 0;
+			int end = frame.length;
+			if (frame.hasFlag(Http2Codec.FLAG_PADDED)) {
+				off = 1;
+				end -= frame.payload[0] & 0xff;
+			}
+			if (frame.hasFlag(Http2Codec.FLAG_PRIORITY)) {
+				off += 5;
+			}
+			if (end < off) {
+				throw new Http2Codec.Http2Exception(Http2Codec.PROTOCOL_ERROR, "HEADERS padding too long");
+			}
+			boolean endStream = frame.hasFlag(Http2Codec.FLAG_END_STREAM);
+			int id = frame.stream;
+			headers.clear();
+			if (frame.hasFlag(Http2Codec.FLAG_END_HEADERS)) {
+				decoder.decode(frame.payload, off, end - off, headers);
+			} else {
+				ByteArrayOutputStream block = new ByteArrayOutputStream();
+				block.write(frame.payload, off, end - off);
+				do {
+					if (!Http2Codec.readFrame(in, frame, Http2Codec.DEFAULT_MAX_FRAME_SIZE)) {
+						throw new IOException("Server closed the connection in the middle of a header block");
+					}
+					if (frame.type != Http2Codec.CONTINUATION || frame.stream != id) {
+						throw new Http2Codec.Http2Exception(Http2Codec.PROTOCOL_ERROR, "Header block interrupted");
+					}
+					block.write(frame.payload, 0, frame.length);
+				} while (!frame.hasFlag(Http2Codec.FLAG_END_HEADERS));
+				byte[] bytes = block.toByteArray();
+				decoder.decode(bytes, 0, bytes.length, headers);
+			}
+			if (stream == null) {
+				return;
+			}
+			int statusCode = 0;
+			long contentLength = -1;
+			for (int i = 0; i < headers.size(); i += 2) {
+				String name = headers.get(i);
+				String value = headers.get(i + 1);
+				try {
+					if (name.equals(":status")) {
+						statusCode = Integer.parseInt(value);
+					} else
+					if (name.equals("content-length")) {
+						contentLength = Long.parseLong(value);
+					}
+				} catch (NumberFormatException e) {
+					throw new Http2Codec.Http2Exception(Http2Codec.PROTOCOL_ERROR, "Bad " + name + ": " + value);
+				}
+			}
+			synchronized (this) {
+				if (stream.statusCode == 0 && statusCode >= 200) {
+					stream.statusCode = statusCode;
+					stream.contentLength = contentLength;
+				}
+				// 1xx responses go by, and trailers only matter for ending the stream
+				if (endStream && stream.statusCode != 0) {
+					stream.ended = true;
+				}
+				notifyAll();
+			}
+		}
+
+		private void readSettings() throws IOException {
+			synchronized (this) {
+				for (int i = 0; i + 6 <= frame.length; i += 6) {
+					int id = (frame.payload[i] & 0xff) << 8 | frame.payload[i + 1] & 0xff;
+					int value = frame.getInt(i + 2);
+					if (id == Http2Codec.SETTINGS_INITIAL_WINDOW_SIZE) {
+						if (value < 0) {
+							throw new Http2Codec.Http2Exception(Http2Codec.FLOW_CONTROL_ERROR, "Initial window size too big");
+						}
+						for (Stream stream : streams.values()) {
+							stream.sendWindow += value - initialStreamWindow;
+						}
+						initialStreamWindow = value;
+					} else
+					if (id == Http2Codec.SETTINGS_MAX_FRAME_SIZE) {
+						maxFrameSize = value;
+					} else
+					if (id == Http2Codec.SETTINGS_MAX_CONCURRENT_STREAMS) {
+						maxStreams = value < 0 ? Integer.MAX_VALUE : value;
+					}
+				}
+				notifyAll();
+			}
+			synchronized (out) {
+				Http2Codec.writeFrameHeader(out, 0, Http2Codec.SETTINGS, Http2Codec.FLAG_ACK, 0);
+				out.flush();
+			}
+		}
+
+		private void readGoAway() {
+			boolean close;
+			synchronized (this) {
+				goingAway = true;
+				lastStreamId = frame.getInt(0) & 0x7fffffff;
+				for (Stream stream : streams.values()) {
+					if (stream.id > lastStreamId) {
+						stream.fail(new HttpCodec.NoResponseException("Server is going away"));
+					}
+				}
+				close = isIdle();
+				notifyAll();
+			}
+			forget(this);
+			if (close) {
+				close();
+			}
+		}
+
+		private int add(int window, int increment) throws Http2Codec.Http2Exception {
+			if ((long) window + increment > Http2Codec.MAX_WINDOW_SIZE) {
+				throw new Http2Codec.Http2Exception(Http2Codec.FLOW_CONTROL_ERROR, "Window too big");
+			}
+			return window + increment;
+		}
+	}
+
+	/**
+	 * A call's stream, which is also its response.  Its state is guarded
+	 * by the connection.
+	 */
+	private static class Stream implements Response {
+		final Connection connection;
+		int id;
+		int sendWindow;
+		int statusCode;
+		long contentLength = -1;
+		// the server has sent all of the response
+		boolean ended;
+		IOException failure;
+		private byte[] data = new byte[0];
+		private int start;
+		private int end;
+		private int unacked;
+		private boolean closed;
+		private final InputStream body = new StreamInputStream(this);
+
+		Stream(Connection connection, int id, int sendWindow) {
+			this.connection = connection;
+			this.id = id;
+			this.sendWindow = sendWindow;
+		}
+
+		/**
+		 * Waits for the status and headers.
+		 */
+		void awaitHead() throws IOException {
+			synchronized (connection) {
+				long deadline = System.currentTimeMillis() + Transports.TIMEOUT;
+				while (statusCode == 0 && failure == null) {
+					connection.waitUntil(deadline);
+				}
+				if (statusCode == 0) {
+					throw failure;
+				}
+			}
+		}
+
+		void fail(IOException e) {
+			if (failure == null) {
+				failure = e;
+			}
+		}
+
+		void append(byte[] b, int off, int len) {
+			if (end + len > data.length) {
+				int buffered = end - start;
+				byte[] grown = buffered + len > data.length ? new byte[Math.max(2 * data.length, buffered + len)] : data;
+				System.arraycopy(data, start, grown, 0, buffered);
+				data = grown;
+				start = 0;
+				end = buffered;
+			}
+			System.arraycopy(b, off, data, end, len);
+			end += len;
+		}
+
+		/**
+		 * Reads buffered body bytes, waiting for some if there are none.
+		 *
+		 * @return bytes read, or -1 at the end of the body
+		 */
+		int read(byte[] b, int off, int len) throws IOException {
+			int n;
+			int increment = 0;
+			synchronized (connection) {
+				long deadline = System.currentTimeMillis() + Transports.TIMEOUT;
+				while (start == end && !ended && failure == null) {
+					connection.waitUntil(deadline);
+				}
+				if (start == end) {
+					if (failure != null) {
+						throw failure;
+					}
+					return -1;
+				}
+				n = Math.min(len, end - start);
+				System.arraycopy(data, start, b, off, n);
+				start += n;
+				unacked += n;
+				if (unacked >= STREAM_WINDOW / 2 && !ended) {
+					increment = unacked;
+					unacked = 0;
+				}
+			}
+			if (increment > 0) {
+				connection.writeControl(Http2Codec.WINDOW_UPDATE, id, increment);
+			}
+			return n;
+		}
+
+		int available() {
+			synchronized (connection) {
+				return end - start;
+			}
+		}
+
+		public int getStatusCode() {
+			return statusCode;
+		}
+
+		public String getReasonPhrase() {
+			// HTTP/2 has none
+			return "";
+		}
+
+		public long getContentLength() {
+			return contentLength;
+		}
+
+		public InputStream getBody() {
+			return body;
+		}
+
+		public void close() {
+			boolean cancel;
+			synchronized (connection) {
+				if (closed) {
+					return;
+				}
+				closed = true;
+				cancel = id != 0 && !ended && failure == null;
+				ended = true;
+				data = null;
+				start = end = 0;
+			}
+			if (cancel) {
+				connection.writeControl(Http2Codec.RST_STREAM, id, Http2Codec.CANCEL);
+			}
+			connection.release(this);
+		}
+	}
+
+	/**
+	 * A response body as it comes in.
+	 */
+	private static class StreamInputStream extends InputStream {
+		private final Stream stream;
+
+		StreamInputStream(Stream stream) {
+			this.stream = stream;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			return stream.read(b, off, len);
+		}
+
+		@Override
+		public int available() {
+			return stream.available();
+		}
+	}
+
+	/**
+	 * A request body that doesn't go out with the headers, sent in frames
+	 * as big as the server takes, as it is written.
+	 */
+	private static class StreamOutputStream extends OutputStream {
+		private final Stream stream;
+		private final byte[] buffer = new byte[Http2Codec.DEFAULT_MAX_FRAME_SIZE];
+		private int count;
+
+		StreamOutputStream(Stream stream) {
+			this.stream = stream;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (count == buffer.length) {
+				send(false);
+			}
+			buffer[count++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (count == buffer.length) {
+					send(false);
+				}
+				int n = Math.min(len, buffer.length - count);
+				System.arraycopy(b, off, buffer, count, n);
+				count += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		/**
+		 * Sends what is left, ending the stream.
+		 */
+		void finish() throws IOException {
+			send(true);
+		}
+
+		private void send(boolean endStream) throws IOException {
+			stream.connection.sendData(stream, buffer, 0, count, endStream);
+			count = 0;
+		}
+	}
+
+	/**
+	 * Requests sent as streams back to back, opened up front as far as the
+	 * server allows and the rest as the earlier responses are read.
+	 */
+	private static class StreamPipeline implements Pipeline {
+		private final Connection connection;
+		private final byte[] prefix;
+		private final List<? extends Request> requests;
+		private final Stream[] streams;
+		private int next;
+
+		StreamPipeline(Connection connection, byte[] prefix, List<? extends Request> requests) throws IOException {
+			this.connection = connection;
+			this.prefix = prefix;
+			this.requests = requests;
+			streams = new Stream[requests.size()];
+			try {
+				for (int i = 0; i < streams.length; i++) {
+					Stream stream = connection.newStream(false);
+					if (stream == null) {
+						break;
+					}
+					streams[i] = stream;
+					connection.send(stream, prefix, requests.get(i), false);
+				}
+				synchronized (connection.out) {
+					connection.out.flush();
+				}
+			} catch (IOException e) {
+				close();
+				throw e;
+			}
+		}
+
+		public Response next() throws IOException {
+			if (next == streams.length) {
+				throw new IllegalStateException("Every request has been answered");
+			}
+			int i = next++;
+			try {
+				if (streams[i] == null) {
+					streams[i] = connection.newStream(true);
+					connection.send(streams[i], prefix, requests.get(i), true);
+				}
+				streams[i].awaitHead();
+				return streams[i];
+			} catch (HttpCodec.NoResponseException e) {
+				if (streams[i] != null) {
+					streams[i].close();
+				}
+				// this one and the rest can be sent again if the server
+				// hasn't started on any of them
+				for (int j = i + 1; j < streams.length; j++) {
+					if (streams[j] != null) {
+						try {
+							streams[j].awaitHead();
+							throw new IOException("Server answered later requests but not this one: " + e.getMessage());
+						} catch (HttpCodec.NoResponseException later) {
+							// not answered either
+						}
+					}
+				}
+				next = i;
+				close();
+				return null;
+			}
+		}
+
+		public void close() {
+			for (int i = next; i < streams.length; i++) {
+				if (streams[i] != null) {
+					streams[i].close();
+				}
+			}
+			next = streams.length;
+		}
+	}
+}
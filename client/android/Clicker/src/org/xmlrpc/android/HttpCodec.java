@@ -0,0 +1,633 @@
+package org.xmlrpc.android;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Just enough HTTP/1.1 for XML-RPC, for the transports that talk to
+ * sockets themselves: a POST request head, and a response's status line,
+ * headers and body framing, either Content-Length, chunked or up to the
+ * end of the connection.
+ */
+final class HttpCodec {
+	private static final int MAX_LINE = 8192;
+	private static final byte[] CRLF = { '\r', '\n' };
+	private static final byte[] LAST_CHUNK = { '0', '\r', '\n', '\r', '\n' };
+
+	private HttpCodec() {
+	}
+
+	/**
+	 * The server can't have acted on the request: it never reached the
+	 * server, which on a kept-alive connection usually means the server
+	 * had already closed it, or the server said it won't handle it.  The
+	 * request is safe to send again.
+	 */
+	static class NoResponseException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		NoResponseException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * The connection ended after the request went out, before its response
+	 * started.  The server may have acted on the request, so it isn't sent
+	 * again.
+	 */
+	static class ConnectionLostException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		ConnectionLostException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * A response's status line and the headers that matter for framing.
+	 */
+	static class ResponseHead {
+		int statusCode;
+		String reasonPhrase;
+		long contentLength = -1;
+		boolean chunked;
+		// the server closes the connection after this response
+		boolean close;
+	}
+
+	/**
+	 * @return default port for the URI's scheme if it doesn't give one
+	 */
+	static int port(URI uri) {
+		if (uri.getPort() != -1) {
+			return uri.getPort();
+		}
+		return "https".equalsIgnoreCase(uri.getScheme()) ? 443 : 80;
+	}
+
+	/**
+	 * Builds the request line and headers of a POST, in ISO-8859-1.
+	 *
+	 * @param contentLength body length, or -1 for a chunked body
+	 */
+	static byte[] requestHead(URI uri, Map<String, String> headers, long contentLength) {
+		StringBuilder head = buildHeadPrefix(uri, headers);
+		if (contentLength >= 0) {
+			head.append("Content-Length: ").append(contentLength).append("\r\n\r\n");
+		} else {
+			head.append("Transfer-Encoding: chunked\r\n\r\n");
+		}
+		return Ascii.bytes(head);
+	}
+
+	/**
+	 * Builds the part of a POST's head that is the same for every call
+	 * through a client, everything but the body framing.
+	 *
+	 * @return the request line and headers, ending with a line end
+	 */
+	static byte[] requestHeadPrefix(URI uri, Map<String, String> headers) {
+		return Ascii.bytes(buildHeadPrefix(uri, headers));
+	}
+
+	private static StringBuilder buildHeadPrefix(URI uri, Map<String, String> headers) {
+		StringBuilder head = new StringBuilder(256);
+		String path = uri.getRawPath();
+		head.append("POST ").append(path == null || path.length() == 0 ? "/" : path);
+		if (uri.getRawQuery() != null) {
+			head.append('?').append(uri.getRawQuery());
+		}
+		head.append(" HTTP/1.1\r\nHost: ").append(uri.getHost());
+		if (uri.getPort() != -1) {
+			head.append(':').append(uri.getPort());
+		}
+		head.append("\r\n");
+		for (Map.Entry<String, String> header : headers.entrySet()) {
+			head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+		}
+		return head;
+	}
+
+	/**
+	 * Reads a response's status line and headers, skipping any 100 Continue
+	 * responses ahead of it.
+	 *
+	 * @throws ConnectionLostException if the connection ends, or is reset,
+	 *         before the response starts
+	 */
+	static ResponseHead readHead(InputStream in) throws IOException {
+		while (true) {
+			int first;
+			try {
+				first = in.read();
+			} catch (SocketTimeoutException e) {
+				// the server may still be working on it, so it's not safe to retry
+				throw e;
+			} catch (IOException e) {
+				throw new ConnectionLostException("Connection closed before the response: " + e);
+			}
+			if (first == -1) {
+				throw new ConnectionLostException("Connection closed before the response");
+			}
+			String status = (char) first + readLine(in);
+			if (!status.startsWith("HTTP/1.")) {
+				throw new IOException("Bad status line: " + status);
+			}
+			ResponseHead head = new ResponseHead();
+			int space = status.indexOf(' ');
+			int reason = status.indexOf(' ', space + 1);
+			try {
+				head.statusCode = Integer.parseInt(status.substring(space + 1, reason > 0 ? reason : status.length()));
+			} catch (RuntimeException e) {
+				throw new IOException("Bad status line: " + status);
+			}
+			head.reasonPhrase = reason > 0 ? status.substring(reason + 1) : "";
+			head.close = status.startsWith("HTTP/1.0");
+
+			String line;
+			while ((line = readLine(in)).length() > 0) {
+				int colon = line.indexOf(':');
+				if (colon <= 0) {
+					continue;
+				}
+				String name = line.substring(0, colon).trim();
+				String value = line.substring(colon + 1).trim();
+				if (name.equalsIgnoreCase("Content-Length")) {
+					try {
+						head.contentLength = Long.parseLong(value);
+					} catch (NumberFormatException e) {
+						throw new IOException("Bad Content-Length: " + value);
+					}
+				} else
+				if (name.equalsIgnoreCase("Transfer-Encoding")) {
+					head.chunked = value.toLowerCase(Locale.US).contains("chunked");
+				} else
+				if (name.equalsIgnoreCase("Connection")) {
+					if (value.equalsIgnoreCase("close")) {
+						head.close = true;
+					} else
+					if (value.equalsIgnoreCase("keep-alive")) {
+						head.close = false;
+					}
+				}
+			}
+			if (head.statusCode >= 100 && head.statusCode < 200) {
+				continue;
+			}
+			if (head.chunked) {
+				head.contentLength = -1;
+			} else
+			if (head.contentLength < 0 && head.statusCode != 204 && head.statusCode != 304) {
+				// the body runs to the end of the connection
+				head.close = true;
+			}
+			return head;
+		}
+	}
+
+	/**
+	 * @return stream for the body of a response whose head has just been read
+	 */
+	static BodyInputStream body(ResponseHead head, InputStream in) {
+		if (head.chunked) {
+			return new ChunkedInputStream(in);
+		}
+		if (head.contentLength < 0 && (head.statusCode == 204 || head.statusCode == 304)) {
+			return new FixedLengthInputStream(in, 0);
+		}
+		return new FixedLengthInputStream(in, head.contentLength);
+	}
+
+	/**
+	 * A response read off a connection.  Closing it skips the rest of the
+	 * body and tells the transport whether the connection can be used again.
+	 */
+	abstract static class BodyResponse implements XMLRPCTransport.Response {
+		protected final ResponseHead head;
+		private final BodyInputStream body;
+		private boolean closed;
+
+		BodyResponse(ResponseHead head, InputStream in) {
+			this.head = head;
+			this.body = body(head, in);
+		}
+
+		public int getStatusCode() {
+			return head.statusCode;
+		}
+
+		public String getReasonPhrase() {
+			return head.reasonPhrase;
+		}
+
+		public long getContentLength() {
+			return head.contentLength;
+		}
+
+		public InputStream getBody() {
+			return body;
+		}
+
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			boolean complete = false;
+			try {
+				body.skipRest();
+				complete = body.isComplete();
+			} finally {
+				released(complete);
+			}
+		}
+
+		/**
+		 * Called once the response is closed.
+		 *
+		 * @param complete whether the body was read to its end, so the
+		 *        connection is ready for the next response
+		 */
+		abstract void released(boolean complete);
+	}
+
+	/**
+	 * Reads the responses to pipelined requests off a connection, one after
+	 * the other.
+	 */
+	abstract static class ResponsePipeline implements XMLRPCTransport.Pipeline {
+		private final InputStream in;
+		private ResponseHead first;
+		private int unanswered;
+		// the last response said the connection ends after it
+		private boolean ending;
+		// the last response wasn't read to its end
+		private boolean broken;
+
+		/**
+		 * @param first head of the first response, which the transport has
+		 *        already read to be sure the connection is alive
+		 */
+		ResponsePipeline(InputStream in, ResponseHead first, int requests) {
+			this.in = in;
+			this.first = first;
+			unanswered = requests;
+		}
+
+		public XMLRPCTransport.Response next() throws IOException {
+			if (unanswered == 0) {
+				throw new IllegalStateException("Every request has been answered");
+			}
+			if (ending) {
+				return null;
+			}
+			if (broken) {
+				throw new IOException("The last response wasn't read to its end");
+			}
+			ResponseHead head = first;
+			first = null;
+			if (head == null) {
+				// the server may have acted on the request, so a lost
+				// connection fails it rather than letting it go again
+				head = readHead(in);
+			}
+			unanswered--;
+			ending = head.close;
+			broken = true;
+			return new BodyResponse(head, in) {
+				@Override
+				void released(boolean complete) {
+					broken = !complete;
+				}
+			};
+		}
+
+		public void close() {
+			released(unanswered == 0 && !ending && !broken);
+		}
+
+		/**
+		 * Called once the pipeline is closed.
+		 *
+		 * @param reusable whether the connection can be used again
+		 */
+		abstract void released(boolean reusable);
+	}
+
+	/**
+	 * Reads a line, without its line end.
+	 */
+	static String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder(64);
+		int c;
+		while ((c = in.read()) != '\n') {
+			if (c == -1) {
+				throw new IOException("Connection closed in the middle of the response head");
+			}
+			if (line.length() == MAX_LINE) {
+				throw new IOException("Response header line too long");
+			}
+			line.append((char) c);
+		}
+		int len = line.length();
+		if (len > 0 && line.charAt(len - 1) == '\r') {
+			line.setLength(len - 1);
+		}
+		return line.toString();
+	}
+
+	/**
+	 * Response body, which knows whether it has been read to its end.
+	 */
+	abstract static class BodyInputStream extends InputStream {
+		protected final InputStream in;
+
+		BodyInputStream(InputStream in) {
+			this.in = in;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+
+		/**
+		 * @return true once the whole body has been read
+		 */
+		abstract boolean isComplete();
+
+		/**
+		 * Reads what's left of the body.
+		 */
+		void skipRest() throws IOException {
+			byte[] skip = new byte[4096];
+			while (read(skip, 0, skip.length) != -1) {
+				// skipping
+			}
+		}
+
+		/**
+		 * Leaves the connection open; closing a body only stops reading it.
+		 */
+		@Override
+		public void close() {
+		}
+	}
+
+	/**
+	 * Body with a Content-Length, or running to the end of the connection
+	 * if its length is -1.  It can be marked and reset if the connection's
+	 * stream can.
+	 */
+	static class FixedLengthInputStream extends BodyInputStream {
+		private long remaining;
+		private boolean ended;
+		private long markRemaining;
+		private boolean markEnded;
+
+		FixedLengthInputStream(InputStream in, long length) {
+			super(in);
+			remaining = length;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining == 0 || ended) {
+				return -1;
+			}
+			if (remaining > 0 && len > remaining) {
+				len = (int) remaining;
+			}
+			int read = in.read(b, off, len);
+			if (read == -1) {
+				if (remaining > 0) {
+					throw new IOException("Connection closed with " + remaining + " bytes of the response left");
+				}
+				ended = true;
+				return -1;
+			}
+			if (remaining > 0) {
+				remaining -= read;
+			}
+			return read;
+		}
+
+		@Override
+		public int available() throws IOException {
+			int available = in.available();
+			return remaining >= 0 ? (int) Math.min(available, remaining) : available;
+		}
+
+		@Override
+		boolean isComplete() {
+			return remaining == 0 || ended;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return in.markSupported();
+		}
+
+		@Override
+		public void mark(int readlimit) {
+			in.mark(readlimit);
+			markRemaining = remaining;
+			markEnded = ended;
+		}
+
+		@Override
+		public void reset() throws IOException {
+			in.reset();
+			remaining = markRemaining;
+			ended = markEnded;
+		}
+	}
+
+	/**
+	 * Chunked body.  Trailers after the last chunk are skipped.
+	 */
+	static class ChunkedInputStream extends BodyInputStream {
+		// bytes left in the current chunk, -1 before the first chunk
+		private long chunk = -1;
+		private boolean ended;
+
+		ChunkedInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (ended) {
+				return -1;
+			}
+			if (chunk <= 0) {
+				if (chunk == 0) {
+					readLine(in); // CRLF after the chunk's data
+				}
+				String size = readLine(in);
+				int ext = size.indexOf(';');
+				try {
+					chunk = Long.parseLong((ext >= 0 ? size.substring(0, ext) : size).trim(), 16);
+				} catch (NumberFormatException e) {
+					throw new IOException("Bad chunk size: " + size);
+				}
+				if (chunk == 0) {
+					while (readLine(in).length() > 0) {
+						// trailer
+					}
+					ended = true;
+					return -1;
+				}
+			}
+			int read = in.read(b, off, (int) Math.min(len, chunk));
+			if (read == -1) {
+				throw new IOException("Connection closed in the middle of a chunk");
+			}
+			chunk -= read;
+			return read;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return chunk > 0 ? (int) Math.min(in.available(), chunk) : 0;
+		}
+
+		@Override
+		boolean isComplete() {
+			return ended;
+		}
+	}
+
+	/**
+	 * Passes writes on but holds back flushes, so several requests can go
+	 * out together with a single flush at the end.
+	 */
+	static class HeldFlushOutputStream extends FilterOutputStream {
+		HeldFlushOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	/**
+	 * A connection's output stream, keeping track of what it took since
+	 * the requests being sent started, so a failure to send them can be
+	 * told apart from a failure to write them, such as an upload that
+	 * can't be read, and so they are only sent again if none of them
+	 * reached the server.
+	 */
+	static class SentOutputStream extends FilterOutputStream {
+		private long sent;
+		private boolean failed;
+
+		SentOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			try {
+				out.write(b, off, len);
+			} catch (IOException e) {
+				failed = true;
+				throw e;
+			}
+			sent += len;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			try {
+				out.flush();
+			} catch (IOException e) {
+				failed = true;
+				throw e;
+			}
+		}
+
+		/**
+		 * Starts over for the next requests.
+		 */
+		void reset() {
+			sent = 0;
+			failed = false;
+		}
+
+		/**
+		 * @return what to throw for an error sending the requests: a
+		 *         NoResponseException if the connection failed before
+		 *         taking any of them, otherwise the error itself
+		 */
+		IOException failure(IOException e) {
+			if (failed && sent == 0) {
+				return new NoResponseException("Cannot send request: " + e);
+			}
+			return e;
+		}
+	}
+
+	/**
+	 * Writes a body in chunks, one for each write.  finish() writes the
+	 * last, empty chunk; closing doesn't close the connection.
+	 */
+	static class ChunkedOutputStream extends FilterOutputStream {
+		ChunkedOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				// an empty chunk would end the body
+				return;
+			}
+			String size = Integer.toHexString(len);
+			for (int i = 0; i < size.length(); i++) {
+				out.write(size.charAt(i));
+			}
+			out.write(CRLF);
+			out.write(b, off, len);
+			out.write(CRLF);
+		}
+
+		void finish() throws IOException {
+			out.write(LAST_CHUNK);
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package org.xmlrpc.android;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Kept-alive connections waiting to be reused, a few per server, for the
+ * transports that manage their own connections.  Connections that have sat
+ * idle too long are closed rather than handed out again.
+ */
+final class IdleConnections<C extends IdleConnections.Connection> {
+	private static final long IDLE_TIMEOUT = 30000;
+	private static final int MAX_IDLE_PER_SERVER = 4;
+
+	/**
+	 * A connection that can wait in the pool.
+	 */
+	abstract static class Connection {
+		long idleSince;
+
+		/**
+		 * @return false if the connection is known to be closed
+		 */
+		abstract boolean isOpen();
+
+		/**
+		 * Closes the connection, ignoring any error.
+		 */
+		abstract void close();
+	}
+
+	// Idle connections by server, most recently used last.
+	private final Map<String, LinkedList<C>> idle = new HashMap<String, LinkedList<C>>();
+
+	/**
+	 * @return key that connections to the URI's server are pooled under
+	 */
+	static String server(URI uri) {
+		return uri.getScheme() + "://" + uri.getHost() + ":" + HttpCodec.port(uri);
+	}
+
+	/**
+	 * @return the most recently used idle connection to the server, or null
+	 */
+	C take(String server) {
+		long now = System.currentTimeMillis();
+		synchronized (idle) {
+			LinkedList<C> connections = idle.get(server);
+			while (connections != null && !connections.isEmpty()) {
+				C connection = connections.removeLast();
+				if (now - connection.idleSince < IDLE_TIMEOUT && connection.isOpen()) {
+					return connection;
+				}
+				connection.close();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Puts a connection back, closing the oldest one if the server already
+	 * has enough waiting.
+	 */
+	void release(String server, C connection) {
+		connection.idleSince = System.currentTimeMillis();
+		synchronized (idle) {
+			LinkedList<C> connections = idle.get(server);
+			if (connections == null) {
+				connections = new LinkedList<C>();
+				idle.put(server, connections);
+			}
+			connections.addLast(connection);
+			if (connections.size() > MAX_IDLE_PER_SERVER) {
+				connections.removeFirst().close();
+			}
+			// drop the ones that have been idle too long while we're here
+			for (Iterator<C> iter = connections.iterator(); iter.hasNext();) {
+				C old = iter.next();
+				if (connection.idleSince - old.idleSince >= IDLE_TIMEOUT) {
+					iter.remove();
+					old.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Closes every idle connection.
+	 */
+	void closeAll() {
+		synchronized (idle) {
+			for (LinkedList<C> connections : idle.values()) {
+				for (C connection : connections) {
+					connection.close();
+				}
+			}
+			idle.clear();
+		}
+	}
+}
@@ -0,0 +1,575 @@
+package org.xmlrpc.android;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Transport for servers on the local network that talks HTTP/1.1 over a
+ * non-blocking SocketChannel, for the lowest latency per call.  The request
+ * head is built once per set of headers, and goes out together with the
+ * body in a single write from a pooled direct buffer.  Responses are read
+ * into another direct buffer, and the status line, headers and framing are
+ * parsed straight out of it, so the body reaches the parser with nothing
+ * buffering it in between.
+ *
+ * <p>
+ * Connections are kept alive and reused like in {@link SocketTransport},
+ * and requests can be pipelined.  Only plain http is supported; use
+ * SocketTransport for https servers.
+ */
+public class NioTransport implements XMLRPCTransport, XMLRPCTransport.Pipelining {
+	private static final int BUFFER_SIZE = 16 * 1024;
+	// Two buffers are in use per call in progress.
+	private static final int MAX_POOLED_BUFFERS = 8;
+	private static final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+
+	private static final byte[] CONTENT_LENGTH = Ascii.bytes("Content-Length: ");
+	private static final byte[] TRANSFER_ENCODING_CHUNKED = Ascii.bytes("Transfer-Encoding: chunked\r\n\r\n");
+	private static final byte[] HEAD_END = Ascii.bytes("\r\n\r\n");
+
+	private final IdleConnections<Connection> idle = new IdleConnections<Connection>();
+	private volatile HeadPrefix headPrefix;
+
+	public Response post(URI uri, Map<String, String> headers, Request request) throws IOException {
+		checkScheme(uri);
+		String server = IdleConnections.server(uri);
+		byte[] prefix = headPrefix(uri, headers);
+		Connection connection = takeIdle(server);
+		if (connection != null) {
+			try {
+				return exchange(server, connection, prefix, request);
+			} catch (HttpCodec.NoResponseException e) {
+				// the server closed it just after it was checked
+				connection.close();
+				if (request.getContentLength() < 0) {
+					throw e;
+				}
+			} catch (IOException e) {
+				connection.close();
+				throw e;
+			}
+		}
+		connection = open(uri);
+		try {
+			connection.acquireBuffers();
+			return exchange(server, connection, prefix, request);
+		} catch (IOException e) {
+			connection.close();
+			throw e;
+		}
+	}
+
+	public Pipeline pipeline(URI uri, Map<String, String> headers, List<? extends Request> requests) throws IOException {
+		checkScheme(uri);
+		for (Request request : requests) {
+			if (request.getContentLength() < 0) {
+				throw new IllegalArgumentException("Pipelined requests need a known length");
+			}
+		}
+		String server = IdleConnections.server(uri);
+		byte[] prefix = headPrefix(uri, headers);
+		Connection connection = takeIdle(server);
+		if (connection != null) {
+			try {
+				send(connection, prefix, requests);
+				return pipeline(server, connection, requests.size());
+			} catch (HttpCodec.NoResponseException e) {
+				// the server closed it just after it was checked
+				connection.close();
+			} catch (IOException e) {
+				connection.close();
+				throw e;
+			}
+		}
+		connection = open(uri);
+		try {
+			connection.acquireBuffers();
+			send(connection, prefix, requests);
+			return pipeline(server, connection, requests.size());
+		} catch (IOException e) {
+			connection.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Closes the connections that are waiting to be reused.
+	 */
+	public void closeIdleConnections() {
+		idle.closeAll();
+	}
+
+	private static void checkScheme(URI uri) throws IOException {
+		if (!"http".equalsIgnoreCase(uri.getScheme())) {
+			throw new IOException("NioTransport only supports http, not " + uri.getScheme());
+		}
+	}
+
+	/**
+	 * @return an idle connection to the server, with its buffers, or null
+	 */
+	private Connection takeIdle(String server) {
+		Connection connection = idle.take(server);
+		if (connection != null) {
+			connection.acquireBuffers();
+			// a non-blocking read tells us for free whether the server closed it
+			if (connection.isStale()) {
+				connection.close();
+				connection = null;
+			}
+		}
+		return connection;
+	}
+
+	/**
+	 * @return request line and headers, built again only when the client's
+	 *         headers have changed
+	 */
+	private byte[] headPrefix(URI uri, Map<String, String> headers) {
+		HeadPrefix prefix = headPrefix;
+		if (prefix == null || prefix.uri != uri || prefix.headers != headers) {
+			prefix = new HeadPrefix(uri, headers, HttpCodec.requestHeadPrefix(uri, headers));
+			headPrefix = prefix;
+		}
+		return prefix.bytes;
+	}
+
+	private Response exchange(final String server, final Connection connection, byte[] prefix, Request request) throws IOException {
+		connection.output.reset();
+		try {
+			write(connection.output, prefix, request);
+		} catch (IOException e) {
+			throw connection.output.failure(e);
+		}
+		return new HttpCodec.BodyResponse(HttpCodec.readHead(connection.input), connection.input) {
+			@Override
+			void released(boolean complete) {
+				release(server, connection, complete && !head.close);
+			}
+		};
+	}
+
+	private Pipeline pipeline(final String server, final Connection connection, int requests) throws IOException {
+		return new HttpCodec.ResponsePipeline(connection.input, HttpCodec.readHead(connection.input), requests) {
+			@Override
+			void released(boolean reusable) {
+				release(server, connection, reusable);
+			}
+		};
+	}
+
+	/**
+	 * Writes requests back to back, flushing them all at once.
+	 */
+	private static void send(Connection connection, byte[] prefix, List<? extends Request> requests) throws IOException {
+		connection.output.reset();
+		try {
+			OutputStream out = new HttpCodec.HeldFlushOutputStream(connection.output);
+			for (Request request : requests) {
+				write(out, prefix, request);
+			}
+			connection.output.flush();
+		} catch (IOException e) {
+			throw connection.output.failure(e);
+		}
+	}
+
+	/**
+	 * Writes a request, head and body; the body's flush sends it, so small
+	 * requests go out in a single write.
+	 */
+	private static void write(OutputStream out, byte[] prefix, Request request) throws IOException {
+		out.write(prefix);
+		long length = request.getContentLength();
+		if (length < 0) {
+			out.write(TRANSFER_ENCODING_CHUNKED);
+			HttpCodec.ChunkedOutputStream chunked = new HttpCodec.ChunkedOutputStream(out);
+			request.writeTo(chunked);
+			chunked.finish();
+		} else {
+			out.write(CONTENT_LENGTH);
+			String digits = Long.toString(length);
+			for (int i = 0; i < digits.length(); i++) {
+				out.write(digits.charAt(i));
+			}
+			out.write(HEAD_END);
+			request.writeTo(out);
+		}
+	}
+
+	/**
+	 * Pools a connection once its responses have been read, or closes it.
+	 */
+	private void release(String server, Connection connection, boolean reusable) {
+		// anything after the last response is more than the server should have sent
+		if (reusable && connection.in != null && !connection.in.hasRemaining()) {
+			connection.releaseBuffers();
+			idle.release(server, connection);
+		} else {
+			connection.close();
+		}
+	}
+
+	private Connection open(URI uri) throws IOException {
+		SocketChannel channel = SocketChannel.open();
+		Connection connection = null;
+		try {
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			connection = new Connection(channel);
+			if (!channel.connect(new InetSocketAddress(uri.getHost(), HttpCodec.port(uri)))) {
+				connection.waitFor(SelectionKey.OP_CONNECT);
+				channel.finishConnect();
+			}
+			return connection;
+		} catch (IOException e) {
+			if (connection != null) {
+				connection.close();
+			} else {
+				channel.close();
+			}
+			throw e;
+		}
+	}
+
+	private static ByteBuffer takeBuffer() {
+		ByteBuffer buffer = buffers.poll();
+		if (buffer == null) {
+			buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		}
+		buffer.clear();
+		return buffer;
+	}
+
+	private static void giveBack(ByteBuffer buffer) {
+		// size() walks the queue, but it never gets long
+		if (buffers.size() < MAX_POOLED_BUFFERS) {
+			buffers.offer(buffer);
+		}
+	}
+
+
+	/**
+	 * A request head prefix and what it was built from.
+	 */
+	private static class HeadPrefix {
+		final URI uri;
+		final Map<String, String> headers;
+		final byte[] bytes;
+
+		HeadPrefix(URI uri, Map<String, String> headers, byte[] bytes) {
+			this.uri = uri;
+			this.headers = headers;
+			this.bytes = bytes;
+		}
+	}
+
+	/**
+	 * A channel with the selector used to wait on it.  It only holds
+	 * buffers while a call is using it.
+	 */
+	private static class Connection extends IdleConnections.Connection {
+		final SocketChannel channel;
+		final Selector selector;
+		final SelectionKey key;
+		final ChannelInputStream input = new ChannelInputStream(this);
+		final ChannelOutputStream output = new ChannelOutputStream(this);
+		ByteBuffer in;
+		ByteBuffer out;
+
+		Connection(SocketChannel channel) throws IOException {
+			this.channel = channel;
+			selector = Selector.open();
+			try {
+				key = channel.register(selector, 0);
+			} catch (IOException e) {
+				selector.close();
+				throw e;
+			}
+		}
+
+		void acquireBuffers() {
+			if (in == null) {
+				in = takeBuffer();
+				// nothing read yet
+				in.limit(0);
+				out = takeBuffer();
+				input.mark = -1;
+			}
+		}
+
+		void releaseBuffers() {
+			if (in != null) {
+				giveBack(in);
+				giveBack(out);
+				in = null;
+				out = null;
+			}
+		}
+
+		/**
+		 * Waits until the channel is ready for the operations.
+		 */
+		void waitFor(int ops) throws IOException {
+			key.interestOps(ops);
+			int ready = selector.select(Transports.TIMEOUT);
+			selector.selectedKeys().clear();
+			if (ready == 0) {
+				throw new SocketTimeoutException(ops == SelectionKey.OP_CONNECT ? "connect timed out" : "Read timed out");
+			}
+		}
+
+		/**
+		 * Checks whether the server has closed the connection, or sent
+		 * something nobody asked for.
+		 */
+		boolean isStale() {
+			try {
+				in.clear();
+				int read = channel.read(in);
+				in.flip();
+				return read != 0;
+			} catch (IOException e) {
+				return true;
+			}
+		}
+
+		boolean isOpen() {
+			return channel.isOpen();
+		}
+
+		void close() {
+			try {
+				selector.close();
+			} catch (IOException e) {
+				// closing the channel is what matters
+			}
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// nothing more to do with it
+			}
+			releaseBuffers();
+		}
+	}
+
+	/**
+	 * Reads a connection through its input buffer.  Marked bytes are kept
+	 * in the buffer up to the mark's limit, or for as long as they fit, so
+	 * it can be marked and reset without another buffer on top.
+	 */
+	private static class ChannelInputStream extends InputStream {
+		private final Connection connection;
+		int mark = -1;
+		private int markLimit;
+
+		ChannelInputStream(Connection connection) {
+			this.connection = connection;
+		}
+
+		@Override
+		public int read() throws IOException {
+			ByteBuffer in = buffer();
+			if (!in.hasRemaining() && !fill(in)) {
+				return -1;
+			}
+			return in.get() & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			ByteBuffer in = buffer();
+			if (len == 0) {
+				return 0;
+			}
+			if (!in.hasRemaining() && !fill(in)) {
+				return -1;
+			}
+			len = Math.min(len, in.remaining());
+			in.get(b, off, len);
+			return len;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			ByteBuffer in = buffer();
+			if (n <= 0 || (!in.hasRemaining() && !fill(in))) {
+				return 0;
+			}
+			int skipped = (int) Math.min(n, in.remaining());
+			in.position(in.position() + skipped);
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return buffer().remaining();
+		}
+
+		@Override
+		public boolean markSupported() {
+			return true;
+		}
+
+		@Override
+		public void mark(int readlimit) {
+			mark = connection.in.position();
+			markLimit = readlimit;
+		}
+
+		@Override
+		public void reset() throws IOException {
+			if (mark < 0) {
+				throw new IOException("Resetting to invalid mark");
+			}
+			buffer().position(mark);
+		}
+
+		/**
+		 * Leaves the connection open; the response decides what happens
+		 * to it.
+		 */
+		@Override
+		public void close() {
+		}
+
+		private ByteBuffer buffer() throws IOException {
+			ByteBuffer in = connection.in;
+			if (in == null) {
+				throw new IOException("Response already closed");
+			}
+			return in;
+		}
+
+		/**
+		 * Reads more into the buffer once everything in it has been read,
+		 * keeping the marked bytes if there are any.
+		 *
+		 * @return false at the end of the connection
+		 */
+		private boolean fill(ByteBuffer in) throws IOException {
+			if (mark >= 0 && in.position() - mark > markLimit) {
+				mark = -1;
+			}
+			int keep = mark >= 0 ? mark : in.position();
+			if (keep == 0 && in.limit() == in.capacity()) {
+				// the marked bytes fill the whole buffer
+				mark = -1;
+				keep = in.position();
+			}
+			int resume = in.position() - keep;
+			in.position(keep);
+			in.compact();
+			if (mark >= 0) {
+				mark = 0;
+			}
+			int read;
+			try {
+				while ((read = connection.channel.read(in)) == 0) {
+					connection.waitFor(SelectionKey.OP_READ);
+				}
+			} finally {
+				in.flip();
+				in.position(resume);
+			}
+			return read != -1;
+		}
+	}
+
+	/**
+	 * Writes to a connection through its output buffer, which goes out
+	 * whenever it is full or flushed.  Like HttpCodec.SentOutputStream, it
+	 * keeps track of what the channel took since the requests being sent
+	 * started.
+	 */
+	private static class ChannelOutputStream extends OutputStream {
+		private final Connection connection;
+		private long sent;
+		private boolean failed;
+
+		ChannelOutputStream(Connection connection) {
+			this.connection = connection;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			ByteBuffer out = connection.out;
+			if (!out.hasRemaining()) {
+				send(out);
+			}
+			out.put((byte) b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			ByteBuffer out = connection.out;
+			while (len > 0) {
+				if (!out.hasRemaining()) {
+					send(out);
+				}
+				int n = Math.min(len, out.remaining());
+				out.put(b, off, n);
+				off += n;
+				len -= n;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			send(connection.out);
+		}
+
+		/**
+		 * Starts over for the next requests.
+		 */
+		void reset() {
+			sent = 0;
+			failed = false;
+		}
+
+		/**
+		 * @return what to throw for an error sending the requests: a
+		 *         NoResponseException if the channel failed before taking
+		 *         any of them, otherwise the error itself
+		 */
+		IOException failure(IOException e) {
+			if (failed && sent == 0) {
+				return new HttpCodec.NoResponseException("Cannot send request: " + e);
+			}
+			return e;
+		}
+
+		private void send(ByteBuffer out) throws IOException {
+			out.flip();
+			try {
+				while (out.hasRemaining()) {
+					int n;
+					try {
+						n = connection.channel.write(out);
+					} catch (IOException e) {
+						failed = true;
+						throw e;
+					}
+					sent += n;
+					if (n == 0) {
+						connection.waitFor(SelectionKey.OP_WRITE);
+					}
+				}
+			} finally {
+				out.clear();
+			}
+		}
+	}
+}
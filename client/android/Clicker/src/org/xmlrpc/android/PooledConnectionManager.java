@@ -0,0 +1,63 @@
+package org.xmlrpc.android;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.HttpParams;
+
+/**
+ * Thread-safe pooled connection manager that keeps track of how many
+ * connections had to be opened versus how many were handed out from the
+ * pool while still open from a previous request.
+ */
+class PooledConnectionManager extends ThreadSafeClientConnManager {
+	private final AtomicLong created = new AtomicLong();
+	private final AtomicLong reused = new AtomicLong();
+
+	PooledConnectionManager(HttpParams params, SchemeRegistry schemes) {
+		super(params, schemes);
+	}
+
+	@Override
+	public ClientConnectionRequest requestConnection(HttpRoute route, Object state) {
+		final ClientConnectionRequest request = super.requestConnection(route, state);
+		return new ClientConnectionRequest() {
+			public ManagedClientConnection getConnection(long timeout, TimeUnit tunit)
+					throws InterruptedException, ConnectionPoolTimeoutException {
+				ManagedClientConnection conn = request.getConnection(timeout, tunit);
+				// A pooled connection that is still open will be used as is,
+				// anything else gets opened by the client before the request.
+				if (conn.isOpen()) {
+					reused.incrementAndGet();
+				} else {
+					created.incrementAndGet();
+				}
+				return conn;
+			}
+
+			public void abortRequest() {
+				request.abortRequest();
+			}
+		};
+	}
+
+	/**
+	 * @return number of connections that had to be opened
+	 */
+	long getConnectionsCreated() {
+		return created.get();
+	}
+
+	/**
+	 * @return number of requests that were sent over a kept-alive connection
+	 */
+	long getConnectionsReused() {
+		return reused.get();
+	}
+}
@@ -0,0 +1,292 @@
+package org.xmlrpc.android;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.xmlpull.v1.XmlSerializer;
+
+/**
+ * XmlSerializer that writes XML-RPC requests as UTF-8 bytes.  The tags
+ * XML-RPC uses are encoded once up front and copied into the output as
+ * they are, and only text is escaped, with plain ASCII copied straight
+ * through.  There is no namespace bookkeeping and no Writer in between;
+ * bytes go into a buffer that is passed on to the stream whenever it fills
+ * up, and is kept for the next request while the writer sits in
+ * {@link XmlPool}.
+ *
+ * <p>
+ * Only what XML-RPC needs is supported: elements without namespaces or
+ * attributes, and text.  The output parses to the same document as the
+ * platform serializer's.
+ */
+class RequestWriter implements XmlSerializer {
+	private static final int BUFFER_SIZE = 8192;
+	// Bigger scratch space than this isn't kept for the next request.
+	private static final int MAX_IDLE_CHARS = 16 * 1024;
+	// Most bytes a char can turn into, for &#NN; and three byte UTF-8.
+	private static final int MAX_BYTES_PER_CHAR = 5;
+
+	private static final byte[] PROLOG = Ascii.bytes("<?xml version='1.0' encoding='UTF-8' ?>");
+
+	private static final String[] TAGS = {
+		"methodCall", "methodName", "params", "param",
+		XMLRPCSerializer.TAG_VALUE, XMLRPCSerializer.TAG_DATA,
+		XMLRPCSerializer.TAG_MEMBER, XMLRPCSerializer.TAG_NAME,
+		XMLRPCSerializer.TYPE_ARRAY, XMLRPCSerializer.TYPE_STRUCT,
+		XMLRPCSerializer.TYPE_I4, XMLRPCSerializer.TYPE_INT, XMLRPCSerializer.TYPE_I8,
+		XMLRPCSerializer.TYPE_DOUBLE, XMLRPCSerializer.TYPE_BOOLEAN, XMLRPCSerializer.TYPE_STRING,
+		XMLRPCSerializer.TYPE_DATE_TIME_ISO8601, XMLRPCSerializer.TYPE_BASE64
+	};
+	private static final Map<String, byte[]> startTags = new HashMap<String, byte[]>();
+	private static final Map<String, byte[]> endTags = new HashMap<String, byte[]>();
+	static {
+		for (String tag : TAGS) {
+			startTags.put(tag, Ascii.bytes("<" + tag + ">"));
+			endTags.put(tag, Ascii.bytes("</" + tag + ">"));
+		}
+	}
+
+	// What ASCII chars are replaced with in text, or null to copy them as
+	// they are.  Control chars are written as char references like the
+	// platform serializer does, apart from tab and the line ends.
+	private static final byte[][] ESCAPES = new byte[128][];
+	static {
+		for (char c = 0; c < ' '; c++) {
+			if (c != '\t' && c != '\n' && c != '\r') {
+				ESCAPES[c] = Ascii.bytes("&#" + (int) c + ";");
+			}
+		}
+		ESCAPES['&'] = Ascii.bytes("&amp;");
+		ESCAPES['<'] = Ascii.bytes("&lt;");
+		ESCAPES['>'] = Ascii.bytes("&gt;");
+	}
+
+	private final byte[] buf = new byte[BUFFER_SIZE];
+	private int count;
+	private char[] chars = new char[256];
+	private OutputStream out;
+	private int depth;
+
+	public void setOutput(OutputStream os, String encoding) throws IOException {
+		if (encoding != null && !encoding.equalsIgnoreCase("UTF-8")) {
+			throw new IllegalArgumentException("Only UTF-8 is supported, not " + encoding);
+		}
+		out = os;
+		count = 0;
+		depth = 0;
+	}
+
+	/**
+	 * Only a null Writer is accepted, which lets go of the current stream.
+	 */
+	public void setOutput(Writer writer) throws IOException {
+		if (writer != null) {
+			throw new UnsupportedOperationException("Requests are only written to streams");
+		}
+		out = null;
+		count = 0;
+		depth = 0;
+		if (chars.length > MAX_IDLE_CHARS) {
+			chars = new char[256];
+		}
+	}
+
+	public void startDocument(String encoding, Boolean standalone) throws IOException {
+		write(PROLOG);
+	}
+
+	public void endDocument() throws IOException {
+		flush();
+	}
+
+	public XmlSerializer startTag(String namespace, String name) throws IOException {
+		checkNamespace(namespace);
+		byte[] tag = startTags.get(name);
+		write(tag != null ? tag : utf8("<" + name + ">"));
+		depth++;
+		return this;
+	}
+
+	public XmlSerializer endTag(String namespace, String name) throws IOException {
+		checkNamespace(namespace);
+		byte[] tag = endTags.get(name);
+		write(tag != null ? tag : utf8("</" + name + ">"));
+		depth--;
+		return this;
+	}
+
+	public XmlSerializer text(String text) throws IOException {
+		int len = text.length();
+		if (chars.length < len) {
+			chars = new char[Math.max(len, chars.length * 2)];
+		}
+		text.getChars(0, len, chars, 0);
+		writeEscaped(chars, 0, len);
+		return this;
+	}
+
+	public XmlSerializer text(char[] text, int start, int len) throws IOException {
+		writeEscaped(text, start, len);
+		return this;
+	}
+
+	public void flush() throws IOException {
+		flushBuffer();
+		out.flush();
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * Tag names aren't kept track of, so this is always null.
+	 */
+	public String getName() {
+		return null;
+	}
+
+	public String getNamespace() {
+		return null;
+	}
+
+	public String getPrefix(String namespace, boolean generatePrefix) {
+		return null;
+	}
+
+	public boolean getFeature(String name) {
+		return false;
+	}
+
+	public Object getProperty(String name) {
+		return null;
+	}
+
+	public void setFeature(String name, boolean state) {
+		throw new UnsupportedOperationException(name);
+	}
+
+	public void setProperty(String name, Object value) {
+		throw new UnsupportedOperationException(name);
+	}
+
+	public void setPrefix(String prefix, String namespace) {
+		throw new UnsupportedOperationException("Namespaces are not supported");
+	}
+
+	public XmlSerializer attribute(String namespace, String name, String value) {
+		throw new UnsupportedOperationException("Attributes are not supported");
+	}
+
+	public void cdsect(String text) {
+		throw new UnsupportedOperationException("CDATA is not supported");
+	}
+
+	public void entityRef(String text) {
+		throw new UnsupportedOperationException("Entity references are not supported");
+	}
+
+	public void processingInstruction(String text) {
+		throw new UnsupportedOperationException("Processing instructions are not supported");
+	}
+
+	public void comment(String text) {
+		throw new UnsupportedOperationException("Comments are not supported");
+	}
+
+	public void docdecl(String text) {
+		throw new UnsupportedOperationException("Document type declarations are not supported");
+	}
+
+	public void ignorableWhitespace(String text) throws IOException {
+		text(text);
+	}
+
+	/**
+	 * Escapes text into the buffer a stretch at a time, leaving room for
+	 * the worst case of every char in the stretch.
+	 */
+	private void writeEscaped(char[] text, int off, int len) throws IOException {
+		int end = off + len;
+		while (off < end) {
+			int room = (buf.length - count) / MAX_BYTES_PER_CHAR;
+			if (room == 0) {
+				flushBuffer();
+				continue;
+			}
+			byte[] buf = this.buf;
+			int pos = count;
+			int stop = Math.min(end, off + room);
+			while (off < stop) {
+				char c = text[off++];
+				if (c < 0x80) {
+					byte[] escape = ESCAPES[c];
+					if (escape == null) {
+						buf[pos++] = (byte) c;
+					} else {
+						System.arraycopy(escape, 0, buf, pos, escape.length);
+						pos += escape.length;
+					}
+				} else
+				if (c < 0x800) {
+					buf[pos++] = (byte) (0xc0 | c >> 6);
+					buf[pos++] = (byte) (0x80 | c & 0x3f);
+				} else
+				if (c < Character.MIN_SURROGATE || c > Character.MAX_SURROGATE) {
+					buf[pos++] = (byte) (0xe0 | c >> 12);
+					buf[pos++] = (byte) (0x80 | c >> 6 & 0x3f);
+					buf[pos++] = (byte) (0x80 | c & 0x3f);
+				} else
+				if (Character.isHighSurrogate(c) && off < end && Character.isLowSurrogate(text[off])) {
+					// four bytes for two chars, which fits in what's left for them
+					int cp = Character.toCodePoint(c, text[off++]);
+					buf[pos++] = (byte) (0xf0 | cp >> 18);
+					buf[pos++] = (byte) (0x80 | cp >> 12 & 0x3f);
+					buf[pos++] = (byte) (0x80 | cp >> 6 & 0x3f);
+					buf[pos++] = (byte) (0x80 | cp & 0x3f);
+				} else {
+					// a lone surrogate, which the charset encoder would replace too
+					buf[pos++] = '?';
+				}
+			}
+			count = pos;
+		}
+	}
+
+	private void write(byte[] bytes) throws IOException {
+		if (buf.length - count < bytes.length) {
+			flushBuffer();
+			if (bytes.length > buf.length) {
+				out.write(bytes);
+				return;
+			}
+		}
+		System.arraycopy(bytes, 0, buf, count, bytes.length);
+		count += bytes.length;
+	}
+
+	private void flushBuffer() throws IOException {
+		if (count > 0) {
+			out.write(buf, 0, count);
+			count = 0;
+		}
+	}
+
+	private static void checkNamespace(String namespace) {
+		if (namespace != null && namespace.length() > 0) {
+			throw new UnsupportedOperationException("Namespaces are not supported");
+		}
+	}
+
+	private static byte[] utf8(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package org.xmlrpc.android;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Front end for response bodies.  Some servers send a byte order mark,
+ * whitespace or other junk ahead of the XML prolog, which the pull parser
+ * chokes on.  The start of the body is peeked once through a buffered
+ * stream, everything before the prolog is skipped, and the charset is
+ * taken from the byte order mark or the encoding declaration.  Bodies
+ * that can already be marked and reset are peeked at as they are.
+ */
+class ResponseSniffer {
+	// How far into the body we look for the prolog.
+	private static final int WINDOW = 5000;
+	private static final int BUFFER_SIZE = 8192;
+	private static final String DEFAULT_ENCODING = "UTF-8";
+
+	private static final byte[] PROLOG = { '<', '?', 'x', 'm', 'l' };
+	private static final byte[] PROLOG_END = { '?', '>' };
+
+	private final InputStream stream;
+	private String encoding = DEFAULT_ENCODING;
+
+	ResponseSniffer(InputStream in) throws IOException {
+		stream = in.markSupported() ? in : new BufferedInputStream(in, BUFFER_SIZE);
+		stream.mark(WINDOW);
+
+		// peek at the start of the body, stopping early once the whole prolog is in
+		byte[] window = new byte[WINDOW];
+		int len = 0;
+		int prolog = -1;
+		while (len < WINDOW) {
+			int read = stream.read(window, len, WINDOW - len);
+			if (read == -1) {
+				break;
+			}
+			len += read;
+			prolog = indexOf(window, 0, len, PROLOG);
+			if (prolog >= 0 && indexOf(window, prolog, len, PROLOG_END) >= 0) {
+				break;
+			}
+		}
+		stream.reset();
+
+		int start = 0;
+		if (len >= 2 && (window[0] & 0xff) == 0xfe && (window[1] & 0xff) == 0xff) {
+			// UTF-16 big endian, the parser can take it from here
+			encoding = "UTF-16BE";
+			start = 2;
+		} else
+		if (len >= 2 && (window[0] & 0xff) == 0xff && (window[1] & 0xff) == 0xfe) {
+			encoding = "UTF-16LE";
+			start = 2;
+		} else
+		if (prolog >= 0) {
+			start = prolog;
+			String declared = declaredEncoding(window, prolog, len);
+			if (declared != null) {
+				encoding = declared;
+			}
+		} else {
+			// no prolog, so start at the first tag after any BOM or junk
+			int tag = indexOf(window, 0, len, new byte[] { '<' });
+			if (tag >= 0) {
+				start = tag;
+			}
+		}
+
+		long skipped = 0;
+		while (skipped < start) {
+			skipped += stream.skip(start - skipped);
+		}
+	}
+
+	/**
+	 * @return the response body, positioned at the start of the XML
+	 */
+	InputStream getStream() {
+		return stream;
+	}
+
+	/**
+	 * @return charset to parse the response with
+	 */
+	String getEncoding() {
+		return encoding;
+	}
+
+	/**
+	 * Pulls the encoding pseudo-attribute out of the XML declaration, if
+	 * there is one and it names a charset we support.
+	 */
+	private static String declaredEncoding(byte[] window, int prolog, int len) {
+		int end = indexOf(window, prolog, len, PROLOG_END);
+		if (end < 0) {
+			return null;
+		}
+		String declaration = new String(window, prolog, end - prolog);
+		int attr = declaration.indexOf("encoding");
+		if (attr < 0) {
+			return null;
+		}
+		int eq = declaration.indexOf('=', attr);
+		if (eq < 0) {
+			return null;
+		}
+		int quote = eq + 1;
+		while (quote < declaration.length() && declaration.charAt(quote) == ' ') {
+			quote++;
+		}
+		if (quote >= declaration.length()) {
+			return null;
+		}
+		int close = declaration.indexOf(declaration.charAt(quote), quote + 1);
+		if (close < 0) {
+			return null;
+		}
+		String name = declaration.substring(quote + 1, close);
+		try {
+			return Charset.isSupported(name) ? name : null;
+		} catch (IllegalArgumentException e) {
+			// not even a legal charset name
+			return null;
+		}
+	}
+
+	private static int indexOf(byte[] data, int from, int len, byte[] pattern) {
+		for (int i = from; i <= len - pattern.length; i++) {
+			int j = 0;
+			while (j < pattern.length && data[i + j] == pattern[j]) {
+				j++;
+			}
+			if (j == pattern.length) {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
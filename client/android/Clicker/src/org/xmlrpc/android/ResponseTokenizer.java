@@ -0,0 +1,596 @@
+package org.xmlrpc.android;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fast path for decoding UTF-8 responses without a pull parser.  XML-RPC
+ * only has a handful of tags, so they are recognised on the raw bytes by
+ * their length and first byte, and scalars are decoded where they lie in
+ * the buffer, along with the five predefined entities in text.  The
+ * tokenizer gives up on anything out of the ordinary, such as character
+ * references, CDATA, comments or attributes, and the response is then
+ * parsed from the start by the pull parser, so the values returned are
+ * always the same as {@link XMLRPCSerializer#deserialize}'s.
+ */
+class ResponseTokenizer {
+	// Bigger responses go on to the pull parser, so the whole body isn't
+	// held in memory as well as the value decoded from it.
+	static final int MAX_LENGTH = 256 * 1024;
+	private static final int BUFFER_SIZE = 8192;
+
+	// tag tokens; an end tag's token is its start tag's plus END
+	private static final int METHOD_RESPONSE = 1;
+	private static final int PARAMS = 2;
+	private static final int PARAM = 3;
+	private static final int FAULT = 4;
+	private static final int VALUE = 5;
+	private static final int STRUCT = 6;
+	private static final int MEMBER = 7;
+	private static final int NAME = 8;
+	private static final int ARRAY = 9;
+	private static final int DATA = 10;
+	private static final int INT = 11;
+	private static final int I4 = 12;
+	private static final int I8 = 13;
+	private static final int DOUBLE = 14;
+	private static final int BOOLEAN = 15;
+	private static final int STRING = 16;
+	private static final int DATE_TIME = 17;
+	private static final int BASE64 = 18;
+	private static final int END = 32;
+
+	private static final byte[][] NAMES = new byte[BASE64 + 1][];
+	static {
+		NAMES[METHOD_RESPONSE] = Ascii.bytes("methodResponse");
+		NAMES[PARAMS] = Ascii.bytes("params");
+		NAMES[PARAM] = Ascii.bytes("param");
+		NAMES[FAULT] = Ascii.bytes("fault");
+		NAMES[VALUE] = Ascii.bytes(XMLRPCSerializer.TAG_VALUE);
+		NAMES[STRUCT] = Ascii.bytes(XMLRPCSerializer.TYPE_STRUCT);
+		NAMES[MEMBER] = Ascii.bytes(XMLRPCSerializer.TAG_MEMBER);
+		NAMES[NAME] = Ascii.bytes(XMLRPCSerializer.TAG_NAME);
+		NAMES[ARRAY] = Ascii.bytes(XMLRPCSerializer.TYPE_ARRAY);
+		NAMES[DATA] = Ascii.bytes(XMLRPCSerializer.TAG_DATA);
+		NAMES[INT] = Ascii.bytes(XMLRPCSerializer.TYPE_INT);
+		NAMES[I4] = Ascii.bytes(XMLRPCSerializer.TYPE_I4);
+		NAMES[I8] = Ascii.bytes(XMLRPCSerializer.TYPE_I8);
+		NAMES[DOUBLE] = Ascii.bytes(XMLRPCSerializer.TYPE_DOUBLE);
+		NAMES[BOOLEAN] = Ascii.bytes(XMLRPCSerializer.TYPE_BOOLEAN);
+		NAMES[STRING] = Ascii.bytes(XMLRPCSerializer.TYPE_STRING);
+		NAMES[DATE_TIME] = Ascii.bytes(XMLRPCSerializer.TYPE_DATE_TIME_ISO8601);
+		NAMES[BASE64] = Ascii.bytes(XMLRPCSerializer.TYPE_BASE64);
+	}
+
+	private static final byte[] PROLOG = Ascii.bytes("<?xml");
+
+	// the predefined entities, and the characters they stand for
+	private static final byte[][] ENTITIES = {
+		Ascii.bytes("lt"), Ascii.bytes("gt"), Ascii.bytes("amp"), Ascii.bytes("quot"), Ascii.bytes("apos")
+	};
+	private static final char[] ENTITY_CHARS = { '<', '>', '&', '"', '\'' };
+
+	/**
+	 * Thrown when the tokenizer meets something it doesn't handle.  It is
+	 * only used to unwind back to the caller, so a single instance without
+	 * a stack trace is shared.
+	 */
+	static class Unsupported extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public synchronized Throwable fillInStackTrace() {
+			return this;
+		}
+	}
+
+	static final Unsupported UNSUPPORTED = new Unsupported();
+
+	private final byte[] buf;
+	private final int start;
+	private final int end;
+	private int pos;
+	// the rest of the body, if it didn't fit in MAX_LENGTH
+	private InputStream rest;
+	private char[] chars = new char[64];
+	private boolean fault;
+
+	ResponseTokenizer(byte[] buf, int off, int len) {
+		this.buf = buf;
+		this.start = off;
+		this.end = off + len;
+		this.pos = off;
+	}
+
+	/**
+	 * @return true if responses in this charset can be tokenized
+	 */
+	static boolean handles(String encoding) {
+		return "UTF-8".equalsIgnoreCase(encoding);
+	}
+
+	/**
+	 * Reads a response body into memory, up to {@link #MAX_LENGTH} bytes.
+	 *
+	 * @param contentLength length of the body, or -1 if not known
+	 */
+	static ResponseTokenizer read(InputStream in, long contentLength) throws IOException {
+		// one spare byte, so reading the end of the body doesn't grow the buffer
+		int size = contentLength >= 0 && contentLength < MAX_LENGTH ? (int) contentLength + 1 : BUFFER_SIZE;
+		byte[] buf = new byte[size];
+		int len = 0;
+		while (true) {
+			if (len == buf.length) {
+				if (len >= MAX_LENGTH) {
+					ResponseTokenizer tokenizer = new ResponseTokenizer(buf, 0, len);
+					tokenizer.rest = in;
+					return tokenizer;
+				}
+				buf = Arrays.copyOf(buf, Math.min(len * 2, MAX_LENGTH));
+			}
+			int read = in.read(buf, len, buf.length - len);
+			if (read == -1) {
+				return new ResponseTokenizer(buf, 0, len);
+			}
+			len += read;
+		}
+	}
+
+	/**
+	 * @return the whole body from the start, for the pull parser to fall
+	 *         back on
+	 */
+	InputStream getStream() {
+		InputStream buffered = new ByteArrayInputStream(buf, start, end - start);
+		return rest != null ? new SequenceInputStream(buffered, rest) : buffered;
+	}
+
+	/**
+	 * Reads a methodResponse's return value or fault.  Like the pull parser
+	 * path, anything after the value is ignored.
+	 *
+	 * @see #isFault()
+	 */
+	Object readResponse() throws Unsupported {
+		if (rest != null) {
+			throw UNSUPPORTED;
+		}
+		skipProlog();
+		require(METHOD_RESPONSE);
+		int tag = next();
+		if (tag == PARAMS) {
+			require(PARAM);
+		} else
+		if (tag == FAULT) {
+			fault = true;
+		} else {
+			throw UNSUPPORTED;
+		}
+		require(VALUE);
+		return value();
+	}
+
+	/**
+	 * @return true if {@link #readResponse()} read a fault's struct
+	 */
+	boolean isFault() {
+		return fault;
+	}
+
+	/**
+	 * Reads a &lt;value&gt; element, like {@link XMLRPCSerializer#deserialize}.
+	 */
+	Object readValue() throws Unsupported {
+		require(VALUE);
+		return value();
+	}
+
+	private void skipProlog() throws Unsupported {
+		if (end - pos < PROLOG.length + 1) {
+			return;
+		}
+		for (int i = 0; i < PROLOG.length; i++) {
+			if (buf[pos + i] != PROLOG[i]) {
+				return;
+			}
+		}
+		if (!isWhitespace(buf[pos + PROLOG.length])) {
+			// some other processing instruction
+			throw UNSUPPORTED;
+		}
+		for (int i = pos + PROLOG.length; i < end - 1; i++) {
+			if (buf[i] == '?' && buf[i + 1] == '>') {
+				pos = i + 2;
+				return;
+			}
+		}
+		throw UNSUPPORTED;
+	}
+
+	/**
+	 * Reads a value's contents and its end tag, starting after &lt;value&gt;.
+	 */
+	private Object value() throws Unsupported {
+		int type = next();
+		Object obj;
+		if (type == ARRAY) {
+			obj = array();
+		} else
+		if (type == STRUCT) {
+			obj = struct();
+		} else {
+			int to = textEnd(type == STRING || type == DATE_TIME);
+			switch (type) {
+			case INT:
+			case I4:
+				long value = parseLong(pos, to);
+				if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+					throw UNSUPPORTED;
+				}
+				obj = Integer.valueOf((int) value);
+				break;
+			case I8:
+				obj = Long.valueOf(parseLong(pos, to));
+				break;
+			case DOUBLE:
+				obj = Double.valueOf(parseDouble(pos, to));
+				break;
+			case BOOLEAN:
+				obj = to - pos == 1 && buf[pos] == '1' ? Boolean.TRUE : Boolean.FALSE;
+				break;
+			case STRING:
+				obj = string(pos, to);
+				break;
+			case DATE_TIME:
+				int length = decode(pos, to);
+				obj = ScalarCodec.get().parseDateTime(chars, 0, length);
+				if (!(obj instanceof Date)) {
+					// left as a string, which a String binding mustn't
+					// take for a <string>
+					throw UNSUPPORTED;
+				}
+				break;
+			case BASE64:
+				obj = base64(pos, to);
+				break;
+			default:
+				throw UNSUPPORTED;
+			}
+			pos = to;
+			require(type + END);
+		}
+		require(VALUE + END);
+		return obj;
+	}
+
+	private Object[] array() throws Unsupported {
+		require(DATA);
+		List<Object> list = new ArrayList<Object>();
+		int tag;
+		while ((tag = next()) == VALUE) {
+			list.add(value());
+		}
+		if (tag != DATA + END) {
+			throw UNSUPPORTED;
+		}
+		require(ARRAY + END);
+		return list.toArray();
+	}
+
+	private Map<String, Object> struct() throws Unsupported {
+		Map<String, Object> map = new StructMap();
+		int tag;
+		while ((tag = next()) == MEMBER) {
+			String memberName = null;
+			Object memberValue = null;
+			while (true) {
+				tag = next();
+				if (tag == NAME) {
+					int to = textEnd(true);
+					int length = decode(pos, to);
+					memberName = StructMap.name(chars, 0, length);
+					pos = to;
+					require(NAME + END);
+				} else
+				if (tag == VALUE) {
+					memberValue = value();
+				} else {
+					break;
+				}
+			}
+			if (tag != MEMBER + END) {
+				throw UNSUPPORTED;
+			}
+			if (memberName != null && memberValue != null) {
+				map = StructMap.put(map, memberName, memberValue);
+			}
+		}
+		if (tag != STRUCT + END) {
+			throw UNSUPPORTED;
+		}
+		return map;
+	}
+
+	private void require(int token) throws Unsupported {
+		if (next() != token) {
+			throw UNSUPPORTED;
+		}
+	}
+
+	/**
+	 * Reads the next tag, skipping whitespace ahead of it.
+	 *
+	 * @return the tag's token
+	 */
+	private int next() throws Unsupported {
+		byte[] buf = this.buf;
+		int i = pos;
+		while (i < end && isWhitespace(buf[i])) {
+			i++;
+		}
+		if (i == end || buf[i] != '<') {
+			throw UNSUPPORTED;
+		}
+		i++;
+		int token = 0;
+		if (i < end && buf[i] == '/') {
+			token = END;
+			i++;
+		}
+		int nameStart = i;
+		while (i < end && buf[i] != '>') {
+			i++;
+		}
+		if (i == end) {
+			throw UNSUPPORTED;
+		}
+		token += tag(nameStart, i - nameStart);
+		pos = i + 1;
+		return token;
+	}
+
+	/**
+	 * Works out which tag a name could be from its length and first byte,
+	 * then checks the rest of it.  Names with attributes, namespace
+	 * prefixes or a closing slash don't match anything.
+	 */
+	private int tag(int from, int len) throws Unsupported {
+		byte first = len > 0 ? buf[from] : 0;
+		int token;
+		switch (len) {
+		case 2:
+			token = buf[from + 1] == '4' ? I4 : I8;
+			break;
+		case 3:
+			token = INT;
+			break;
+		case 4:
+			token = first == 'n' ? NAME : DATA;
+			break;
+		case 5:
+			token = first == 'v' ? VALUE : first == 'p' ? PARAM : first == 'a' ? ARRAY : FAULT;
+			break;
+		case 6:
+			if (first == 'p') {
+				token = PARAMS;
+			} else
+			if (first == 'm') {
+				token = MEMBER;
+			} else
+			if (first == 'd') {
+				token = DOUBLE;
+			} else
+			if (first == 'b') {
+				token = BASE64;
+			} else {
+				// struct and string only differ from their fourth letter on
+				token = buf[from + 3] == 'u' ? STRUCT : STRING;
+			}
+			break;
+		case 7:
+			token = BOOLEAN;
+			break;
+		case 14:
+			token = METHOD_RESPONSE;
+			break;
+		case 16:
+			token = DATE_TIME;
+			break;
+		default:
+			throw UNSUPPORTED;
+		}
+		byte[] name = NAMES[token];
+		for (int i = 0; i < len; i++) {
+			if (buf[from + i] != name[i]) {
+				throw UNSUPPORTED;
+			}
+		}
+		return token;
+	}
+
+	/**
+	 * Finds the end of the text at the current position.  The pull parser
+	 * drops control characters, folds \r\n into \n and rejects ]]&gt; in
+	 * text, so the tokenizer leaves all of those to it.  Numbers, booleans
+	 * and base64 are read from the raw bytes, so those with entities in
+	 * them are left to it too.
+	 *
+	 * @param entities true if the text is going through {@link #decode}
+	 * @return index of the '&lt;' after the text
+	 */
+	private int textEnd(boolean entities) throws Unsupported {
+		byte[] buf = this.buf;
+		for (int i = pos; i < end; i++) {
+			byte b = buf[i];
+			if (b == '<') {
+				return i;
+			}
+			if (b >= 0 && b < ' ') {
+				if (b != '\t' && b != '\n') {
+					throw UNSUPPORTED;
+				}
+			} else
+			if (b == '&' && !entities || b == ']' && i + 2 < end && buf[i + 1] == ']' && buf[i + 2] == '>') {
+				throw UNSUPPORTED;
+			}
+		}
+		throw UNSUPPORTED;
+	}
+
+	private String string(int from, int to) throws Unsupported {
+		// decode() first, since it may replace chars
+		int length = decode(from, to);
+		return new String(chars, 0, length);
+	}
+
+	/**
+	 * Decodes UTF-8 text into the chars buffer, expanding the predefined
+	 * entities.  Malformed sequences and other references are left to the
+	 * pull parser.
+	 *
+	 * @return number of chars decoded
+	 */
+	private int decode(int from, int to) throws Unsupported {
+		if (chars.length < to - from) {
+			chars = new char[Math.max(to - from, chars.length * 2)];
+		}
+		byte[] buf = this.buf;
+		char[] chars = this.chars;
+		int n = 0;
+		int i = from;
+		while (i < to) {
+			int b = buf[i];
+			if (b >= 0 && b != '&') {
+				chars[n++] = (char) b;
+				i++;
+			} else
+			if (b == '&') {
+				int e = entity(i + 1, to);
+				chars[n++] = ENTITY_CHARS[e];
+				i += ENTITIES[e].length + 2;
+			} else
+			if ((b & 0xe0) == 0xc0) {
+				int c = (b & 0x1f) << 6 | continuation(i + 1, to);
+				if (c < 0x80) {
+					throw UNSUPPORTED;
+				}
+				chars[n++] = (char) c;
+				i += 2;
+			} else
+			if ((b & 0xf0) == 0xe0) {
+				int c = (b & 0x0f) << 12 | continuation(i + 1, to) << 6 | continuation(i + 2, to);
+				if (c < 0x800 || c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+					throw UNSUPPORTED;
+				}
+				chars[n++] = (char) c;
+				i += 3;
+			} else
+			if ((b & 0xf8) == 0xf0) {
+				int c = (b & 0x07) << 18 | continuation(i + 1, to) << 12 | continuation(i + 2, to) << 6
+						| continuation(i + 3, to);
+				if (c < Character.MIN_SUPPLEMENTARY_CODE_POINT || c > Character.MAX_CODE_POINT) {
+					throw UNSUPPORTED;
+				}
+				n += Character.toChars(c, chars, n);
+				i += 4;
+			} else {
+				throw UNSUPPORTED;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Works out which predefined entity starts just after an '&amp;'.
+	 *
+	 * @return the entity's index in ENTITIES
+	 */
+	private int entity(int from, int to) throws Unsupported {
+		for (int e = 0; e < ENTITIES.length; e++) {
+			byte[] name = ENTITIES[e];
+			int semicolon = from + name.length;
+			if (semicolon < to && buf[semicolon] == ';') {
+				int i = 0;
+				while (i < name.length && buf[from + i] == name[i]) {
+					i++;
+				}
+				if (i == name.length) {
+					return e;
+				}
+			}
+		}
+		throw UNSUPPORTED;
+	}
+
+	private int continuation(int i, int to) throws Unsupported {
+		if (i >= to || (buf[i] & 0xc0) != 0x80) {
+			throw UNSUPPORTED;
+		}
+		return buf[i] & 0x3f;
+	}
+
+	/**
+	 * Parses an optional minus sign and up to 18 digits, which can't
+	 * overflow a long.  Anything else is left to the pull parser path and
+	 * Long.parseLong(), which also decides what to do about a plus sign.
+	 */
+	private long parseLong(int from, int to) throws Unsupported {
+		int i = from;
+		boolean negative = i < to && buf[i] == '-';
+		if (negative) {
+			i++;
+		}
+		if (i == to || to - i > 18) {
+			throw UNSUPPORTED;
+		}
+		long value = 0;
+		for (; i < to; i++) {
+			int digit = buf[i] - '0';
+			if (digit < 0 || digit > 9) {
+				throw UNSUPPORTED;
+			}
+			value = value * 10 + digit;
+		}
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Parses a double with ScalarCodec, like the pull parser path does, so
+	 * both round the same way.
+	 */
+	private double parseDouble(int from, int to) throws Unsupported {
+		int length = decode(from, to);
+		try {
+			return ScalarCodec.parseDouble(chars, 0, length);
+		} catch (NumberFormatException e) {
+			throw UNSUPPORTED;
+		}
+	}
+
+	private byte[] base64(int from, int to) throws Unsupported {
+		int len = to - from;
+		while (len > 0 && buf[from + len - 1] == '=') {
+			len--;
+		}
+		byte[] bytes = new byte[Base64Coder.decodedLength(len)];
+		int decoded;
+		try {
+			decoded = Base64Coder.decode(buf, from, to - from, bytes, 0);
+		} catch (IllegalArgumentException e) {
+			throw UNSUPPORTED;
+		}
+		// line breaks in the data make the guess too long
+		return decoded == bytes.length ? bytes : Arrays.copyOf(bytes, decoded);
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+	}
+}
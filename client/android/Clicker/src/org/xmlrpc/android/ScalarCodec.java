@@ -0,0 +1,477 @@
+package org.xmlrpc.android;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.SimpleTimeZone;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlSerializer;
+
+/**
+ * Reads int, i8, double, boolean and dateTime.iso8601 values straight from
+ * the parser's text buffer, and writes them from a scratch buffer, without
+ * making a String for each one.  Plain values are handled here; anything
+ * else, like a plus sign, an exponent or an out of range date, goes to the
+ * JDK's parsers and formatters, so the results are always the same as
+ * theirs.  Codecs keep scratch space, so each thread has its own.
+ *
+ * <p>
+ * Arrays of ints, doubles and booleans are collected in scratch arrays
+ * that are kept for the next array, so only the result is allocated.
+ */
+final class ScalarCodec {
+	private static final ThreadLocal<ScalarCodec> codecs = new ThreadLocal<ScalarCodec>() {
+		@Override
+		protected ScalarCodec initialValue() {
+			return new ScalarCodec();
+		}
+	};
+
+	private static final long MILLIS_PER_DAY = 24 * 60 * 60 * 1000L;
+	// Dates handled here, 1600-01-01 up to 10000-01-01, where the proleptic
+	// Gregorian calendar matches GregorianCalendar and years have four digits.
+	private static final long MIN_DATE = -11676096000000L;
+	private static final long MAX_DATE = 253402300800000L;
+	private static final int DATE_LENGTH = "yyyyMMddTHH:mm:ss".length();
+
+	// Bigger scratch arrays than this aren't kept for the next array.
+	private static final int MAX_IDLE_ELEMENTS = 4096;
+
+	// Powers of ten that a double holds exactly.
+	private static final double[] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+
+	private final int[] holder = new int[2];
+	// long's longest is 20 chars, and a date is 17
+	private final char[] chars = new char[24];
+	private final char[] empty = new char[0];
+	private boolean onText;
+	private int[] ints = new int[16];
+	private double[] doubles = new double[16];
+	private boolean[] booleans = new boolean[16];
+	// for whatever the fast paths don't handle
+	private SimpleDateFormat dateFormat;
+
+	private ScalarCodec() {
+	}
+
+	/**
+	 * @return the calling thread's codec
+	 */
+	static ScalarCodec get() {
+		return codecs.get();
+	}
+
+	/**
+	 * Reads an int, starting on its type tag and ending on the matching end tag.
+	 */
+	int readInt(XmlPullParser parser) throws XmlPullParserException, IOException {
+		char[] text = startText(parser);
+		int value = parseInt(text, holder[0], holder[1]);
+		endText(parser);
+		return value;
+	}
+
+	long readLong(XmlPullParser parser) throws XmlPullParserException, IOException {
+		char[] text = startText(parser);
+		long value = parseLong(text, holder[0], holder[1]);
+		endText(parser);
+		return value;
+	}
+
+	double readDouble(XmlPullParser parser) throws XmlPullParserException, IOException {
+		char[] text = startText(parser);
+		double value = parseDouble(text, holder[0], holder[1]);
+		endText(parser);
+		return value;
+	}
+
+	boolean readBoolean(XmlPullParser parser) throws XmlPullParserException, IOException {
+		char[] text = startText(parser);
+		boolean value = holder[1] == 1 && text[holder[0]] == '1';
+		endText(parser);
+		return value;
+	}
+
+	/**
+	 * @return the date, or the text itself if it isn't one
+	 */
+	Object readDateTime(XmlPullParser parser) throws XmlPullParserException, IOException {
+		char[] text = startText(parser);
+		Object value = parseDateTime(text, holder[0], holder[1]);
+		endText(parser);
+		return value;
+	}
+
+	/**
+	 * @return the int scratch array, with room for at least this many
+	 *         values and the ones already in it kept
+	 */
+	int[] ints(int capacity) {
+		if (ints.length < capacity) {
+			ints = Arrays.copyOf(ints, Math.max(capacity, ints.length * 2));
+		}
+		return ints;
+	}
+
+	double[] doubles(int capacity) {
+		if (doubles.length < capacity) {
+			doubles = Arrays.copyOf(doubles, Math.max(capacity, doubles.length * 2));
+		}
+		return doubles;
+	}
+
+	boolean[] booleans(int capacity) {
+		if (booleans.length < capacity) {
+			booleans = Arrays.copyOf(booleans, Math.max(capacity, booleans.length * 2));
+		}
+		return booleans;
+	}
+
+	/**
+	 * @return a copy of the first values in the int scratch array
+	 */
+	int[] copyInts(int count) {
+		int[] values = Arrays.copyOf(ints, count);
+		if (ints.length > MAX_IDLE_ELEMENTS) {
+			ints = new int[16];
+		}
+		return values;
+	}
+
+	double[] copyDoubles(int count) {
+		double[] values = Arrays.copyOf(doubles, count);
+		if (doubles.length > MAX_IDLE_ELEMENTS) {
+			doubles = new double[16];
+		}
+		return values;
+	}
+
+	boolean[] copyBooleans(int count) {
+		boolean[] values = Arrays.copyOf(booleans, count);
+		if (booleans.length > MAX_IDLE_ELEMENTS) {
+			booleans = new boolean[16];
+		}
+		return values;
+	}
+
+	/**
+	 * Reads a struct member's name, starting on its name tag and ending on
+	 * the matching end tag.
+	 *
+	 * @see StructMap#name(char[], int, int)
+	 */
+	String readName(XmlPullParser parser) throws XmlPullParserException, IOException {
+		char[] text = startText(parser);
+		String name = StructMap.name(text, holder[0], holder[1]);
+		endText(parser);
+		return name;
+	}
+
+	void writeInt(XmlSerializer serializer, String type, int value) throws IOException {
+		serializer.startTag(null, type).text(chars, 0, format(value, chars)).endTag(null, type);
+	}
+
+	void writeLong(XmlSerializer serializer, String type, long value) throws IOException {
+		serializer.startTag(null, type).text(chars, 0, format(value, chars)).endTag(null, type);
+	}
+
+	/**
+	 * Whole numbers that Double.toString() writes as digits and ".0" are
+	 * written from the scratch buffer; anything else goes through
+	 * Double.toString().
+	 */
+	void writeDouble(XmlSerializer serializer, String type, double value) throws IOException {
+		serializer.startTag(null, type);
+		if (value == (long) value && Math.abs(value) < 1e7 && (value != 0 || 1 / value > 0)) {
+			int len = format((long) value, chars);
+			chars[len++] = '.';
+			chars[len++] = '0';
+			serializer.text(chars, 0, len);
+		} else {
+			serializer.text(Double.toString(value));
+		}
+		serializer.endTag(null, type);
+	}
+
+	void writeDateTime(XmlSerializer serializer, String type, Date date) throws IOException {
+		serializer.startTag(null, type);
+		long millis = date.getTime();
+		if (millis >= MIN_DATE && millis < MAX_DATE) {
+			serializer.text(chars, 0, formatDateTime(millis, chars));
+		} else {
+			serializer.text(dateFormat().format(date));
+		}
+		serializer.endTag(null, type);
+	}
+
+	/**
+	 * Parses ISO-8601 text like 20130101T12:30:00, in UTC.
+	 *
+	 * @return the date, or the text itself if it isn't one
+	 */
+	Object parseDateTime(char[] text, int off, int len) {
+		if (len == DATE_LENGTH && text[off + 8] == 'T' && text[off + 11] == ':' && text[off + 14] == ':') {
+			int year = digits(text, off, 4);
+			int month = digits(text, off + 4, 2);
+			int day = digits(text, off + 6, 2);
+			int hour = digits(text, off + 9, 2);
+			int minute = digits(text, off + 12, 2);
+			int second = digits(text, off + 15, 2);
+			if (year >= 1600 && month >= 1 && month <= 12 && day >= 1 && day <= daysInMonth(year, month)
+					&& hour >= 0 && hour < 24 && minute >= 0 && minute < 60 && second >= 0 && second < 60) {
+				long days = daysFromCivil(year, month, day);
+				return new Date(days * MILLIS_PER_DAY + ((hour * 60 + minute) * 60 + second) * 1000L);
+			}
+		}
+		// SimpleDateFormat is lenient, so let it have a go
+		String value = new String(text, off, len);
+		try {
+			return dateFormat().parseObject(value);
+		} catch (ParseException e) {
+			return value;
+		}
+	}
+
+	/**
+	 * Parses an int the same way as Integer.parseInt().
+	 */
+	static int parseInt(char[] text, int off, int len) {
+		// up to nine digits can't overflow
+		if (len > 0 && len <= 10) {
+			int i = off;
+			int end = off + len;
+			boolean negative = text[i] == '-';
+			if (negative) {
+				i++;
+			}
+			if (i < end && end - i <= 9) {
+				int value = 0;
+				for (; i < end; i++) {
+					int digit = text[i] - '0';
+					if (digit < 0 || digit > 9) {
+						break;
+					}
+					value = value * 10 + digit;
+				}
+				if (i == end) {
+					return negative ? -value : value;
+				}
+			}
+		}
+		return Integer.parseInt(new String(text, off, len));
+	}
+
+	/**
+	 * Parses a long the same way as Long.parseLong().
+	 */
+	static long parseLong(char[] text, int off, int len) {
+		// up to eighteen digits can't overflow
+		if (len > 0 && len <= 19) {
+			int i = off;
+			int end = off + len;
+			boolean negative = text[i] == '-';
+			if (negative) {
+				i++;
+			}
+			if (i < end && end - i <= 18) {
+				long value = 0;
+				for (; i < end; i++) {
+					int digit = text[i] - '0';
+					if (digit < 0 || digit > 9) {
+						break;
+					}
+					value = value * 10 + digit;
+				}
+				if (i == end) {
+					return negative ? -value : value;
+				}
+			}
+		}
+		return Long.parseLong(new String(text, off, len));
+	}
+
+	/**
+	 * Parses a double the same way as Double.parseDouble().  Plain decimals
+	 * with up to 15 digits are divided by an exact power of ten, which
+	 * rounds the same way.
+	 */
+	static double parseDouble(char[] text, int off, int len) {
+		int i = off;
+		int end = off + len;
+		boolean negative = i < end && text[i] == '-';
+		if (negative) {
+			i++;
+		}
+		long mantissa = 0;
+		int digits = 0;
+		int fraction = -1;
+		for (; i < end; i++) {
+			char c = text[i];
+			if (c >= '0' && c <= '9') {
+				mantissa = mantissa * 10 + c - '0';
+				digits++;
+				if (fraction >= 0) {
+					fraction++;
+				}
+			} else
+			if (c == '.' && fraction < 0) {
+				fraction = 0;
+			} else {
+				break;
+			}
+		}
+		if (i == end && digits > 0 && digits <= 15 && fraction < POWERS_OF_TEN.length) {
+			double value = fraction > 0 ? mantissa / POWERS_OF_TEN[fraction] : mantissa;
+			return negative ? -value : value;
+		}
+		return Double.parseDouble(new String(text, off, len));
+	}
+
+	/**
+	 * Moves to a scalar's text.
+	 *
+	 * @return the parser's text buffer, with the text at holder[0] for
+	 *         holder[1] chars, which is only valid until the parser moves on
+	 */
+	private char[] startText(XmlPullParser parser) throws XmlPullParserException, IOException {
+		int event = parser.next();
+		if (event == XmlPullParser.TEXT) {
+			onText = true;
+			return parser.getTextCharacters(holder);
+		} else
+		if (event == XmlPullParser.END_TAG) {
+			onText = false;
+			holder[0] = 0;
+			holder[1] = 0;
+			return empty;
+		}
+		throw new XmlPullParserException("parser must be on START_TAG or TEXT to read text", parser, null);
+	}
+
+	/**
+	 * Moves from a scalar's text to its end tag.
+	 */
+	private void endText(XmlPullParser parser) throws XmlPullParserException, IOException {
+		if (onText && parser.next() != XmlPullParser.END_TAG) {
+			throw new XmlPullParserException("event TEXT it must be immediately followed by END_TAG", parser, null);
+		}
+	}
+
+	private SimpleDateFormat dateFormat() {
+		if (dateFormat == null) {
+			dateFormat = new SimpleDateFormat("yyyyMMdd'T'HH:mm:ss");
+			dateFormat.setCalendar(Calendar.getInstance(new SimpleTimeZone(0, "GMT")));
+		}
+		return dateFormat;
+	}
+
+	/**
+	 * Writes a number's digits, the same as Long.toString().
+	 *
+	 * @return number of chars written
+	 */
+	private static int format(long value, char[] out) {
+		if (value == Long.MIN_VALUE) {
+			String min = Long.toString(value);
+			min.getChars(0, min.length(), out, 0);
+			return min.length();
+		}
+		int len = 0;
+		if (value < 0) {
+			out[len++] = '-';
+			value = -value;
+		}
+		int digits = 1;
+		for (long v = value; v >= 10; v /= 10) {
+			digits++;
+		}
+		len += digits;
+		for (int i = len - 1; i >= len - digits; i--) {
+			out[i] = (char) ('0' + value % 10);
+			value /= 10;
+		}
+		return len;
+	}
+
+	/**
+	 * Writes a date in the same format as parseDateTime() reads.
+	 */
+	private static int formatDateTime(long millis, char[] out) {
+		// floor division, so times before 1970 land on the right day
+		long days = millis / MILLIS_PER_DAY;
+		long rem = millis % MILLIS_PER_DAY;
+		if (rem < 0) {
+			days--;
+			rem += MILLIS_PER_DAY;
+		}
+		int seconds = (int) (rem / 1000);
+
+		// civil from days, see http://howardhinnant.github.io/date_algorithms.html
+		long z = days + 719468;
+		long era = z / 146097;
+		int doe = (int) (z - era * 146097);
+		int yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+		int doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+		int mp = (5 * doy + 2) / 153;
+		int day = doy - (153 * mp + 2) / 5 + 1;
+		int month = mp < 10 ? mp + 3 : mp - 9;
+		int year = (int) (yoe + era * 400) + (month <= 2 ? 1 : 0);
+
+		put(out, 0, year, 4);
+		put(out, 4, month, 2);
+		put(out, 6, day, 2);
+		out[8] = 'T';
+		put(out, 9, seconds / 3600, 2);
+		out[11] = ':';
+		put(out, 12, seconds / 60 % 60, 2);
+		out[14] = ':';
+		put(out, 15, seconds % 60, 2);
+		return DATE_LENGTH;
+	}
+
+	private static long daysFromCivil(int year, int month, int day) {
+		int y = month <= 2 ? year - 1 : year;
+		int era = y / 400;
+		int yoe = y - era * 400;
+		int doy = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+		int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+		return era * 146097L + doe - 719468;
+	}
+
+	private static int daysInMonth(int year, int month) {
+		if (month == 2) {
+			return year % 4 == 0 && (year % 100 != 0 || year % 400 == 0) ? 29 : 28;
+		}
+		return month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31;
+	}
+
+	/**
+	 * @return the value of a run of digits, or -1 if there's anything else
+	 */
+	private static int digits(char[] text, int off, int len) {
+		int value = 0;
+		for (int i = off; i < off + len; i++) {
+			int digit = text[i] - '0';
+			if (digit < 0 || digit > 9) {
+				return -1;
+			}
+			value = value * 10 + digit;
+		}
+		return value;
+	}
+
+	private static void put(char[] out, int off, int value, int len) {
+		for (int i = off + len - 1; i >= off; i--) {
+			out[i] = (char) ('0' + value % 10);
+			value /= 10;
+		}
+	}
+}
@@ -0,0 +1,31 @@
+package org.xmlrpc.android;
+
+/**
+ * An {@link XMLRPCVisitor} that ignores every event and never stops
+ * parsing.  Subclasses only need to override the events they care about.
+ */
+public class SimpleXMLRPCVisitor implements XMLRPCVisitor {
+	public boolean startStruct() {
+		return true;
+	}
+
+	public boolean member(String name) {
+		return true;
+	}
+
+	public boolean endStruct() {
+		return true;
+	}
+
+	public boolean startArray() {
+		return true;
+	}
+
+	public boolean endArray() {
+		return true;
+	}
+
+	public boolean value(Object value) {
+		return true;
+	}
+}
@@ -0,0 +1,244 @@
+package org.xmlrpc.android;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+
+import javax.net.ssl.SSLSocket;
+
+import org.orderlychaos.util.TlsHandshake;
+
+/**
+ * Transport that speaks just enough HTTP/1.1 over a plain socket to make
+ * calls, with none of a full HTTP client's layers in between.  Connections
+ * are kept alive and reused, a few per server.  A kept-alive connection
+ * is checked before a request goes out on it, in case the server has
+ * closed it in the meantime.  A request is only sent again on a new
+ * connection if none of it reached the old one, since the server may
+ * have acted on anything it got.  Requests can be pipelined.
+ * Like the default transport, https servers are trusted whatever their
+ * certificate.
+ */
+public class SocketTransport implements XMLRPCTransport, XMLRPCTransport.Pipelining {
+	private static final int BUFFER_SIZE = 8192;
+
+	private final IdleConnections<Connection> idle = new IdleConnections<Connection>();
+
+	public Response post(URI uri, Map<String, String> headers, Request request) throws IOException {
+		String server = IdleConnections.server(uri);
+		byte[] head = HttpCodec.requestHead(uri, headers, request.getContentLength());
+		Connection connection = takeIdle(server);
+		if (connection != null) {
+			try {
+				return exchange(server, connection, head, request);
+			} catch (HttpCodec.NoResponseException e) {
+				// the server closed it just after it was checked
+				connection.close();
+				if (request.getContentLength() < 0) {
+					throw e;
+				}
+			} catch (IOException e) {
+				connection.close();
+				throw e;
+			}
+		}
+		connection = open(uri);
+		try {
+			return exchange(server, connection, head, request);
+		} catch (IOException e) {
+			connection.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Closes the connections that are waiting to be reused.
+	 */
+	public void closeIdleConnections() {
+		idle.closeAll();
+	}
+
+	public Pipeline pipeline(URI uri, Map<String, String> headers, List<? extends Request> requests) throws IOException {
+		String server = IdleConnections.server(uri);
+		byte[][] heads = new byte[requests.size()][];
+		for (int i = 0; i < heads.length; i++) {
+			long length = requests.get(i).getContentLength();
+			if (length < 0) {
+				throw new IllegalArgumentException("Pipelined requests need a known length");
+			}
+			heads[i] = HttpCodec.requestHead(uri, headers, length);
+		}
+		Connection connection = takeIdle(server);
+		if (connection != null) {
+			try {
+				send(connection, heads, requests);
+				return pipeline(server, connection, heads.length);
+			} catch (HttpCodec.NoResponseException e) {
+				// the server closed it just after it was checked
+				connection.close();
+			} catch (IOException e) {
+				connection.close();
+				throw e;
+			}
+		}
+		connection = open(uri);
+		try {
+			send(connection, heads, requests);
+			return pipeline(server, connection, heads.length);
+		} catch (IOException e) {
+			connection.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return an idle connection to the server that is still open, or null
+	 */
+	private Connection takeIdle(String server) {
+		Connection connection = idle.take(server);
+		if (connection != null && connection.isStale()) {
+			connection.close();
+			connection = null;
+		}
+		return connection;
+	}
+
+	private Response exchange(final String server, final Connection connection, byte[] head, Request request) throws IOException {
+		connection.sent.reset();
+		try {
+			connection.out.write(head);
+			if (request.getContentLength() < 0) {
+				HttpCodec.ChunkedOutputStream chunked = new HttpCodec.ChunkedOutputStream(connection.out);
+				request.writeTo(chunked);
+				chunked.finish();
+			} else {
+				request.writeTo(connection.out);
+			}
+			connection.out.flush();
+		} catch (IOException e) {
+			throw connection.sent.failure(e);
+		}
+		return new HttpCodec.BodyResponse(HttpCodec.readHead(connection.in), connection.in) {
+			@Override
+			void released(boolean complete) {
+				if (complete && !head.close) {
+					idle.release(server, connection);
+				} else {
+					connection.close();
+				}
+			}
+		};
+	}
+
+	private Pipeline pipeline(final String server, final Connection connection, int requests) throws IOException {
+		return new HttpCodec.ResponsePipeline(connection.in, HttpCodec.readHead(connection.in), requests) {
+			@Override
+			void released(boolean reusable) {
+				if (reusable) {
+					idle.release(server, connection);
+				} else {
+					connection.close();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Writes requests back to back, flushing them all at once.
+	 */
+	private void send(Connection connection, byte[][] heads, List<? extends Request> requests) throws IOException {
+		connection.sent.reset();
+		try {
+			OutputStream out = new HttpCodec.HeldFlushOutputStream(connection.out);
+			for (int i = 0; i < heads.length; i++) {
+				out.write(heads[i]);
+				requests.get(i).writeTo(out);
+			}
+			connection.out.flush();
+		} catch (IOException e) {
+			throw connection.sent.failure(e);
+		}
+	}
+
+	private Connection open(URI uri) throws IOException {
+		Socket socket = new Socket();
+		try {
+			socket.setTcpNoDelay(true);
+			socket.setSoTimeout(Transports.TIMEOUT);
+			socket.connect(new InetSocketAddress(uri.getHost(), HttpCodec.port(uri)), Transports.TIMEOUT);
+			if ("https".equalsIgnoreCase(uri.getScheme())) {
+				SSLSocket ssl = (SSLSocket) Transports.sslSocketFactory().createSocket(socket, uri.getHost(), HttpCodec.port(uri), true);
+				TlsHandshake.perform(ssl);
+				socket = ssl;
+			}
+			return new Connection(socket);
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * A socket with its buffered streams, which are kept for as long as the
+	 * connection is, since the input buffer may already hold the start of
+	 * the next response.
+	 */
+	private static class Connection extends IdleConnections.Connection {
+		final Socket socket;
+		final InputStream in;
+		final HttpCodec.SentOutputStream sent;
+		final OutputStream out;
+
+		Connection(Socket socket) throws IOException {
+			this.socket = socket;
+			in = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+			sent = new HttpCodec.SentOutputStream(socket.getOutputStream());
+			out = new BufferedOutputStream(sent, BUFFER_SIZE);
+		}
+
+		/**
+		 * Checks whether the server has closed the connection, or sent
+		 * something nobody asked for, which costs up to a millisecond.
+		 */
+		boolean isStale() {
+			try {
+				if (in.available() > 0) {
+					return true;
+				}
+				socket.setSoTimeout(1);
+				try {
+					// either the end of the connection or a stray byte
+					in.read();
+					return true;
+				} finally {
+					socket.setSoTimeout(Transports.TIMEOUT);
+				}
+			} catch (SocketTimeoutException e) {
+				// nothing to read, as it should be
+				return false;
+			} catch (IOException e) {
+				return true;
+			}
+		}
+
+		boolean isOpen() {
+			return !socket.isClosed();
+		}
+
+		void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// nothing more to do with it
+			}
+		}
+	}
+}
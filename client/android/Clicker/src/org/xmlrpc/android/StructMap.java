@@ -0,0 +1,259 @@
+package org.xmlrpc.android;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Map for decoded structs, which for XML-RPC usually have only a few
+ * members.  Names and values are kept side by side in one array and looked
+ * up by scanning it, which for a handful of members is quicker than hashing
+ * and takes a fraction of a HashMap's memory.  Structs with more than
+ * {@link #MAX_MEMBERS} members are moved to a HashMap while they are
+ * decoded.
+ *
+ * <p>
+ * Like the HashMap, it can be changed.  A put() that would take it past
+ * MAX_MEMBERS members moves them to a HashMap of its own, which it then
+ * hands everything to.
+ *
+ * <p>
+ * Member names that come up all the time, like faultCode and faultString,
+ * are shared rather than decoded into a new String for every struct.
+ */
+final class StructMap extends AbstractMap<String, Object> {
+	static final int MAX_MEMBERS = 8;
+
+	private static final String[] KNOWN_NAMES = {
+		"faultCode", "faultString"
+	};
+
+	// name, value, name, value...
+	private Object[] members = new Object[8];
+	private int size;
+	// the members once there are too many for the array
+	private Map<String, Object> promoted;
+	private Set<Entry<String, Object>> entrySet;
+
+	/**
+	 * Adds a member to a struct being decoded, replacing an earlier member
+	 * with the same name like HashMap.put() would.
+	 *
+	 * @param map a new StructMap, or whatever the last put() returned
+	 * @return the map to add the next member to and to return at the end,
+	 *         which is a HashMap once there are too many members
+	 */
+	static Map<String, Object> put(Map<String, Object> map, String name, Object value) {
+		if (map instanceof StructMap) {
+			StructMap struct = (StructMap) map;
+			if (struct.set(name, value)) {
+				return struct;
+			}
+			map = new HashMap<String, Object>(struct);
+		}
+		map.put(name, value);
+		return map;
+	}
+
+	/**
+	 * @return the shared String for a known member name, or a new one
+	 */
+	static String name(char[] text, int off, int len) {
+		for (String name : KNOWN_NAMES) {
+			if (name.length() == len && matches(name, text, off)) {
+				return name;
+			}
+		}
+		return new String(text, off, len);
+	}
+
+	@Override
+	public int size() {
+		return promoted != null ? promoted.size() : size;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return promoted != null ? promoted.containsKey(key) : indexOf(key) >= 0;
+	}
+
+	@Override
+	public Object get(Object key) {
+		if (promoted != null) {
+			return promoted.get(key);
+		}
+		int i = indexOf(key);
+		return i >= 0 ? members[i + 1] : null;
+	}
+
+	@Override
+	public Object put(String key, Object value) {
+		if (promoted != null) {
+			return promoted.put(key, value);
+		}
+		int i = indexOf(key);
+		if (i >= 0) {
+			Object old = members[i + 1];
+			members[i + 1] = value;
+			return old;
+		}
+		if (!set(key, value)) {
+			promoted = new HashMap<String, Object>(this);
+			promoted.put(key, value);
+		}
+		return null;
+	}
+
+	@Override
+	public Object remove(Object key) {
+		if (promoted != null) {
+			return promoted.remove(key);
+		}
+		int i = indexOf(key);
+		if (i < 0) {
+			return null;
+		}
+		Object old = members[i + 1];
+		removeAt(i);
+		return old;
+	}
+
+	@Override
+	public void clear() {
+		promoted = null;
+		Arrays.fill(members, 0, size * 2, null);
+		size = 0;
+	}
+
+	@Override
+	public Set<Entry<String, Object>> entrySet() {
+		if (entrySet == null) {
+			entrySet = new AbstractSet<Entry<String, Object>>() {
+				@Override
+				public int size() {
+					return StructMap.this.size();
+				}
+
+				@Override
+				public Iterator<Entry<String, Object>> iterator() {
+					if (promoted != null) {
+						return promoted.entrySet().iterator();
+					}
+					return new Iterator<Entry<String, Object>>() {
+						private int next;
+						private int last = -1;
+
+						public boolean hasNext() {
+							return next < size * 2;
+						}
+
+						public Entry<String, Object> next() {
+							if (!hasNext()) {
+								throw new NoSuchElementException();
+							}
+							last = next;
+							next += 2;
+							return new Member(last);
+						}
+
+						public void remove() {
+							if (last < 0) {
+								throw new IllegalStateException();
+							}
+							removeAt(last);
+							next = last;
+							last = -1;
+						}
+					};
+				}
+			};
+		}
+		return entrySet;
+	}
+
+	/**
+	 * @return false if the struct is full
+	 */
+	private boolean set(String name, Object value) {
+		int i = indexOf(name);
+		if (i >= 0) {
+			members[i + 1] = value;
+			return true;
+		}
+		if (size == MAX_MEMBERS) {
+			return false;
+		}
+		if (size * 2 == members.length) {
+			Object[] grown = new Object[members.length * 2];
+			System.arraycopy(members, 0, grown, 0, members.length);
+			members = grown;
+		}
+		members[size * 2] = name;
+		members[size * 2 + 1] = value;
+		size++;
+		return true;
+	}
+
+	private void removeAt(int i) {
+		int end = size * 2;
+		System.arraycopy(members, i + 2, members, i, end - i - 2);
+		members[end - 2] = null;
+		members[end - 1] = null;
+		size--;
+	}
+
+	/**
+	 * @return index of the member's name in the array, or -1
+	 */
+	private int indexOf(Object key) {
+		Object[] members = this.members;
+		int end = size * 2;
+		// shared names match on identity, so try that first
+		for (int i = 0; i < end; i += 2) {
+			if (members[i] == key) {
+				return i;
+			}
+		}
+		if (key != null) {
+			for (int i = 0; i < end; i += 2) {
+				if (key.equals(members[i])) {
+					return i;
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Entry whose setValue() writes through to the array.
+	 */
+	private class Member extends SimpleEntry<String, Object> {
+		private static final long serialVersionUID = 1L;
+		private final int index;
+
+		Member(int index) {
+			super((String) members[index], members[index + 1]);
+			this.index = index;
+		}
+
+		@Override
+		public Object setValue(Object value) {
+			members[index + 1] = value;
+			return super.setValue(value);
+		}
+	}
+
+	private static boolean matches(String name, char[] text, int off) {
+		for (int i = 0; i < name.length(); i++) {
+			if (name.charAt(i) != text[off + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
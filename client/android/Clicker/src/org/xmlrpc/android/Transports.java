@@ -0,0 +1,41 @@
+package org.xmlrpc.android;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+
+import javax.net.ssl.SSLSocketFactory;
+
+import org.orderlychaos.util.TrustAllSSLSocketFactory;
+
+/**
+ * What the transports have in common: their timeout, and the socket
+ * factory for https servers.
+ */
+final class Transports {
+	// Connect and read timeout, in milliseconds.
+	static final int TIMEOUT = 40000;
+
+	private static volatile SSLSocketFactory sslSocketFactory;
+
+	private Transports() {
+	}
+
+	/**
+	 * Returns a socket factory for TrustAllSSLSocketFactory's process-wide
+	 * context, which trusts any server like the default transport does.
+	 * It is always the same factory, since HttpsURLConnection only reuses
+	 * connections that were made by the one it is given.
+	 */
+	static SSLSocketFactory sslSocketFactory() throws IOException {
+		SSLSocketFactory factory = sslSocketFactory;
+		if (factory == null) {
+			try {
+				factory = TrustAllSSLSocketFactory.getContext().getSocketFactory();
+			} catch (GeneralSecurityException e) {
+				throw new IOException("Cannot set up TLS", e);
+			}
+			sslSocketFactory = factory;
+		}
+		return factory;
+	}
+}
@@ -0,0 +1,105 @@
+package org.xmlrpc.android;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.util.Map;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSession;
+
+/**
+ * Transport that goes through the platform's HttpURLConnection, which
+ * keeps connections alive and pools them by itself.  Like the default
+ * transport, https servers are trusted whatever their certificate.
+ */
+public class URLConnectionTransport implements XMLRPCTransport {
+	private static final HostnameVerifier ANY_HOST = new HostnameVerifier() {
+		public boolean verify(String hostname, SSLSession session) {
+			return true;
+		}
+	};
+
+	public Response post(URI uri, Map<String, String> headers, Request request) throws IOException {
+		final HttpURLConnection connection = (HttpURLConnection) uri.toURL().openConnection();
+		if (connection instanceof HttpsURLConnection) {
+			HttpsURLConnection https = (HttpsURLConnection) connection;
+			https.setSSLSocketFactory(Transports.sslSocketFactory());
+			https.setHostnameVerifier(ANY_HOST);
+		}
+		connection.setConnectTimeout(Transports.TIMEOUT);
+		connection.setReadTimeout(Transports.TIMEOUT);
+		connection.setDoOutput(true);
+		connection.setUseCaches(false);
+		connection.setRequestMethod("POST");
+		for (Map.Entry<String, String> header : headers.entrySet()) {
+			connection.addRequestProperty(header.getKey(), header.getValue());
+		}
+		long length = request.getContentLength();
+		if (length >= 0 && length <= Integer.MAX_VALUE) {
+			connection.setFixedLengthStreamingMode((int) length);
+		} else {
+			connection.setChunkedStreamingMode(0);
+		}
+
+		try {
+			OutputStream out = connection.getOutputStream();
+			request.writeTo(out);
+			out.close();
+			connection.getResponseCode();
+		} catch (IOException e) {
+			connection.disconnect();
+			throw e;
+		}
+		return new Response() {
+			private InputStream body;
+
+			public int getStatusCode() {
+				try {
+					return connection.getResponseCode();
+				} catch (IOException e) {
+					// already read in post()
+					throw new IllegalStateException(e);
+				}
+			}
+
+			public String getReasonPhrase() {
+				try {
+					return connection.getResponseMessage();
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+
+			public long getContentLength() {
+				return connection.getContentLength();
+			}
+
+			public InputStream getBody() throws IOException {
+				if (body == null) {
+					body = getStatusCode() < HttpURLConnection.HTTP_BAD_REQUEST
+							? connection.getInputStream() : connection.getErrorStream();
+				}
+				return body;
+			}
+
+			public void close() throws IOException {
+				// reading to the end and closing lets the connection be pooled
+				InputStream in = getBody();
+				if (in != null) {
+					try {
+						byte[] skip = new byte[4096];
+						while (in.read(skip) != -1) {
+							// skipping
+						}
+					} finally {
+						in.close();
+					}
+				}
+			}
+		};
+	}
+}
@@ -0,0 +1,164 @@
+package org.xmlrpc.android;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+/**
+ * A list of calls to be sent to the server together as a single
+ * system.multicall request.
+ *
+ * <pre>
+ * XMLRPCBatch batch = new XMLRPCBatch();
+ * int info = batch.add("device_info", name);
+ * int buttons = batch.add("device_list_buttons", name);
+ * Object[] results = client.callBatch(batch);
+ * String description = XMLRPCBatch.getResult(results, info).toString();
+ * </pre>
+ *
+ * Calls added with a binding have their results decoded with it, so
+ * <code>batch.add(XMLRPCBindings.STRING_ARRAY, "device_list_buttons", name)</code>
+ * gives a String[] result.
+ */
+public class XMLRPCBatch {
+	static final String METHOD_MULTICALL = "system.multicall";
+
+	private static final String TAG_METHOD_NAME = "methodName";
+	private static final String TAG_PARAMS = "params";
+	private static final String TAG_FAULT_CODE = "faultCode";
+	private static final String TAG_FAULT_STRING = "faultString";
+
+	private List<String> methods = new ArrayList<String>();
+	private List<Object[]> params = new ArrayList<Object[]>();
+	private List<XMLRPCDecoder<?>> bindings = new ArrayList<XMLRPCDecoder<?>>();
+
+	/**
+	 * Adds a call to the batch.
+	 *
+	 * @param method name of method to call
+	 * @param params parameters to pass to method
+	 * @return index of this call's result in the array returned by
+	 *         {@link XMLRPCClient#callBatch(XMLRPCBatch)}
+	 */
+	public int add(String method, Object... params) {
+		return add(XMLRPCBindings.OBJECT, method, params);
+	}
+
+	/**
+	 * Adds a call to the batch, decoding its result with a binding.
+	 *
+	 * @param binding binding for the return value, see {@link XMLRPCBindings}
+	 * @param method name of method to call
+	 * @param params parameters to pass to method
+	 * @return index of this call's result in the array returned by
+	 *         {@link XMLRPCClient#callBatch(XMLRPCBatch)}
+	 */
+	public int add(XMLRPCDecoder<?> binding, String method, Object... params) {
+		this.methods.add(method);
+		this.params.add(params != null ? params : new Object[0]);
+		this.bindings.add(binding);
+		return methods.size() - 1;
+	}
+
+	/**
+	 * @return number of calls in the batch
+	 */
+	public int size() {
+		return methods.size();
+	}
+
+	String getMethod(int index) {
+		return methods.get(index);
+	}
+
+	Object[] getParams(int index) {
+		return params.get(index);
+	}
+
+	XMLRPCDecoder<?> getBinding(int index) {
+		return bindings.get(index);
+	}
+
+	/**
+	 * Builds the single parameter for a system.multicall request, an array
+	 * of {methodName, params} structs.
+	 */
+	Object[] toMulticallParams() {
+		Object[] calls = new Object[methods.size()];
+		for (int i = 0; i < calls.length; i++) {
+			Map<String, Object> call = new HashMap<String, Object>();
+			call.put(TAG_METHOD_NAME, methods.get(i));
+			call.put(TAG_PARAMS, params.get(i));
+			calls[i] = call;
+		}
+		return new Object[] { calls };
+	}
+
+	/**
+	 * Decoder for a system.multicall response.  Each result is either a one
+	 * element array holding the return value, which is decoded with the
+	 * call's binding, or a fault struct, which becomes an {@link XMLRPCFault}.
+	 */
+	XMLRPCDecoder<Object[]> resultsDecoder() {
+		return new XMLRPCDecoder<Object[]>() {
+			public Object[] read(XmlPullParser parser) throws XmlPullParserException, IOException {
+				List<Object> results = new ArrayList<Object>();
+				XMLRPCBindings.startArray(parser);
+				while (XMLRPCBindings.nextElement(parser)) {
+					int index = results.size();
+					parser.nextTag();
+					String type = parser.getName();
+					if (type.equals(XMLRPCSerializer.TYPE_ARRAY) && index < bindings.size()) {
+						parser.nextTag(); // TAG_DATA (<data>)
+						parser.require(XmlPullParser.START_TAG, null, XMLRPCSerializer.TAG_DATA);
+						parser.nextTag(); // TAG_VALUE (<value>)
+						results.add(bindings.get(index).read(parser));
+						parser.nextTag(); // TAG_DATA (</data>)
+						parser.require(XmlPullParser.END_TAG, null, XMLRPCSerializer.TAG_DATA);
+						parser.nextTag(); // TAG_ARRAY (</array>)
+						parser.require(XmlPullParser.END_TAG, null, XMLRPCSerializer.TYPE_ARRAY);
+					} else {
+						results.add(toFault(XMLRPCSerializer.deserializeType(parser, type)));
+					}
+					parser.nextTag(); // TAG_VALUE (</value>)
+					parser.require(XmlPullParser.END_TAG, null, XMLRPCSerializer.TAG_VALUE);
+				}
+				XMLRPCBindings.endArray(parser);
+				return results.toArray();
+			}
+		};
+	}
+
+	@SuppressWarnings("unchecked")
+	private static XMLRPCFault toFault(Object response) throws IOException {
+		if (response instanceof Map) {
+			Map<String, Object> map = (Map<String, Object>) response;
+			String faultString = (String) map.get(TAG_FAULT_STRING);
+			int faultCode = (Integer) map.get(TAG_FAULT_CODE);
+			return new XMLRPCFault(faultString, faultCode);
+		}
+		throw new IOException("Bad result " + response + " in system.multicall response");
+	}
+
+	/**
+	 * Returns the result of a call from a batch, throwing the call's fault
+	 * if it failed.
+	 *
+	 * @param results array returned by {@link XMLRPCClient#callBatch(XMLRPCBatch)}
+	 * @param index index returned by {@link #add(String, Object...)}
+	 * @return deserialized method return value
+	 * @throws XMLRPCFault if the call failed
+	 */
+	public static Object getResult(Object[] results, int index) throws XMLRPCFault {
+		Object result = results[index];
+		if (result instanceof XMLRPCFault) {
+			throw (XMLRPCFault) result;
+		}
+		return result;
+	}
+}
@@ -0,0 +1,9 @@
+package org.xmlrpc.android;
+
+/**
+ * Converts between XML-RPC values and one Java type, both ways.  Bindings
+ * for the usual types and for classes with {@link XMLRPCMember} fields come
+ * from {@link XMLRPCBindings#forClass(Class)}.
+ */
+public interface XMLRPCBinding<T> extends XMLRPCDecoder<T>, XMLRPCEncoder<T> {
+}
@@ -0,0 +1,716 @@
+package org.xmlrpc.android;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlSerializer;
+
+/**
+ * Bindings for the common Java types, and for classes whose fields are
+ * annotated with {@link XMLRPCMember}.
+ *
+ * <p>
+ * Struct bindings are worked out once per class, on first use, and cached.
+ * After that, struct members are decoded straight into the object's fields,
+ * and primitive fields are set without boxing.
+ */
+public final class XMLRPCBindings {
+	/**
+	 * The generic representation, same as {@link XMLRPCClient#call(String, Object[])}.
+	 */
+	public static final XMLRPCBinding<Object> OBJECT = new XMLRPCBinding<Object>() {
+		public Object read(XmlPullParser parser) throws XmlPullParserException, IOException {
+			return XMLRPCSerializer.deserialize(parser);
+		}
+
+		public void write(XmlSerializer serializer, Object value) throws IOException {
+			XMLRPCSerializer.serialize(serializer, value);
+		}
+	};
+
+	/**
+	 * The generic representation, except that arrays of nothing but ints,
+	 * doubles or booleans, at any depth, are read as int[], double[] or
+	 * boolean[] instead of boxing each element into an Object[].
+	 */
+	public static final XMLRPCBinding<Object> PRIMITIVE_ARRAYS = new XMLRPCBinding<Object>() {
+		public Object read(XmlPullParser parser) throws XmlPullParserException, IOException {
+			return XMLRPCSerializer.deserialize(parser, true);
+		}
+
+		public void write(XmlSerializer serializer, Object value) throws IOException {
+			XMLRPCSerializer.serialize(serializer, value);
+		}
+	};
+
+	/**
+	 * Skips the value, for calls whose return value isn't wanted.
+	 */
+	public static final XMLRPCDecoder<Void> VOID = new XMLRPCDecoder<Void>() {
+		public Void read(XmlPullParser parser) throws XmlPullParserException, IOException {
+			skipValue(parser);
+			return null;
+		}
+	};
+
+	public static final XMLRPCBinding<String> STRING = new XMLRPCBinding<String>() {
+		public String read(XmlPullParser parser) throws XmlPullParserException, IOException {
+			return readScalar(parser, XMLRPCSerializer.TYPE_STRING, null);
+		}
+
+		public void write(XmlSerializer serializer, String value) throws IOException {
+			writeScalar(serializer, XMLRPCSerializer.TYPE_STRING, value);
+		}
+	};
+
+	public static final XMLRPCBinding<Integer> INT = new XMLRPCBinding<Integer>() {
+		public Integer read(XmlPullParser parser) throws XmlPullParserException, IOException {
+			return readInt(parser);
+		}
+
+		public void write(XmlSerializer serializer, Integer value) throws IOException {
+			ScalarCodec.get().writeInt(serializer, XMLRPCSerializer.TYPE_I4, value.intValue());
+		}
+	};
+
+	public static final XMLRPCBinding<Long> LONG = new XMLRPCBinding<Long>() {
+		public Long read(XmlPullParser parser) throws XmlPullParserException, IOException {
+			return readLong(parser);
+		}
+
+		public void write(XmlSerializer serializer, Long value) throws IOException {
+			ScalarCodec.get().writeLong(serializer, XMLRPCSerializer.TYPE_I8, value.longValue());
+		}
+	};
+
+	public static final XMLRPCBinding<Double> DOUBLE = new XMLRPCBinding<Double>() {
+		public Double read(XmlPullParser parser) throws XmlPullParserException, IOException {
+			return readDouble(parser);
+		}
+
+		public void write(XmlSerializer serializer, Double value) throws IOException {
+			ScalarCodec.get().writeDouble(serializer, XMLRPCSerializer.TYPE_DOUBLE, value.doubleValue());
+		}
+	};
+
+	public static final XMLRPCBinding<Boolean> BOOLEAN = new XMLRPCBinding<Boolean>() {
+		public Boolean read(XmlPullParser parser) throws XmlPullParserException, IOException {
+			return readBoolean(parser) ? Boolean.TRUE : Boolean.FALSE;
+		}
+
+		public void write(XmlSerializer serializer, Boolean value) throws IOException {
+			writeScalar(serializer, XMLRPCSerializer.TYPE_BOOLEAN, value.booleanValue() ? "1" : "0");
+		}
+	};
+
+	public static final XMLRPCBinding<String[]> STRING_ARRAY = new XMLRPCBinding<String[]>() {
+		public String[] read(XmlPullParser parser) throws XmlPullParserException, IOException {
+			List<String> list = new ArrayList<String>();
+			startArray(parser);
+			while (nextElement(parser)) {
+				list.add(STRING.read(parser));
+			}
+			endArray(parser);
+			return list.toArray(new String[list.size()]);
+		}
+
+		public void write(XmlSerializer serializer, String[] value) throws IOException {
+			serializer.startTag(null, XMLRPCSerializer.TYPE_ARRAY).startTag(null, XMLRPCSerializer.TAG_DATA);
+			for (int i = 0; i < value.length; i++) {
+				serializer.startTag(null, XMLRPCSerializer.TAG_VALUE);
+				STRING.write(serializer, value[i]);
+				serializer.endTag(null, XMLRPCSerializer.TAG_VALUE);
+			}
+			serializer.endTag(null, XMLRPCSerializer.TAG_DATA).endTag(null, XMLRPCSerializer.TYPE_ARRAY);
+		}
+	};
+
+	public static final XMLRPCBinding<int[]> INT_ARRAY = new XMLRPCBinding<int[]>() {
+		public int[] read(XmlPullParser parser) throws XmlPullParserException, IOException {
+			// collected in the thread's scratch array, so only the result is allocated
+			ScalarCodec codec = ScalarCodec.get();
+			int count = 0;
+			startArray(parser);
+			while (nextElement(parser)) {
+				codec.ints(count + 1)[count++] = readInt(parser);
+			}
+			endArray(parser);
+			return codec.copyInts(count);
+		}
+
+		public void write(XmlSerializer serializer, int[] value) throws IOException {
+			XMLRPCSerializer.serialize(serializer, value);
+		}
+	};
+
+	public static final XMLRPCBinding<double[]> DOUBLE_ARRAY = new XMLRPCBinding<double[]>() {
+		public double[] read(XmlPullParser parser) throws XmlPullParserException, IOException {
+			ScalarCodec codec = ScalarCodec.get();
+			int count = 0;
+			startArray(parser);
+			while (nextElement(parser)) {
+				codec.doubles(count + 1)[count++] = readDouble(parser);
+			}
+			endArray(parser);
+			return codec.copyDoubles(count);
+		}
+
+		public void write(XmlSerializer serializer, double[] value) throws IOException {
+			XMLRPCSerializer.serialize(serializer, value);
+		}
+	};
+
+	public static final XMLRPCBinding<boolean[]> BOOLEAN_ARRAY = new XMLRPCBinding<boolean[]>() {
+		public boolean[] read(XmlPullParser parser) throws XmlPullParserException, IOException {
+			ScalarCodec codec = ScalarCodec.get();
+			int count = 0;
+			startArray(parser);
+			while (nextElement(parser)) {
+				codec.booleans(count + 1)[count++] = readBoolean(parser);
+			}
+			endArray(parser);
+			return codec.copyBooleans(count);
+		}
+
+		public void write(XmlSerializer serializer, boolean[] value) throws IOException {
+			XMLRPCSerializer.serialize(serializer, value);
+		}
+	};
+
+	/**
+	 * Returns a decoder that decodes a base64 value straight into a stream
+	 * while it is being parsed, instead of into a byte[].  Going the other
+	 * way, an InputStream parameter is sent as a base64 value read from the
+	 * stream as the request is written.
+	 *
+	 * <pre>
+	 * long size = client.call(XMLRPCBindings.base64(out), "device_get_capture", name);
+	 * </pre>
+	 *
+	 * @param out stream to write the decoded bytes to, which is flushed but not closed
+	 * @return decoder giving the number of bytes written
+	 */
+	public static XMLRPCDecoder<Long> base64(final OutputStream out) {
+		return new XMLRPCDecoder<Long>() {
+			public Long read(XmlPullParser parser) throws XmlPullParserException, IOException {
+				parser.require(XmlPullParser.START_TAG, null, XMLRPCSerializer.TAG_VALUE);
+				parser.nextTag();
+				long count = XMLRPCSerializer.readBase64(parser, out);
+				parser.nextTag(); // TAG_VALUE (</value>)
+				parser.require(XmlPullParser.END_TAG, null, XMLRPCSerializer.TAG_VALUE);
+				return count;
+			}
+		};
+	}
+
+	private static final ConcurrentMap<Class<?>, XMLRPCBinding<?>> bindings = new ConcurrentHashMap<Class<?>, XMLRPCBinding<?>>();
+	static {
+		bindings.put(Object.class, OBJECT);
+		bindings.put(String.class, STRING);
+		bindings.put(Integer.class, INT);
+		bindings.put(int.class, INT);
+		bindings.put(Long.class, LONG);
+		bindings.put(long.class, LONG);
+		bindings.put(Double.class, DOUBLE);
+		bindings.put(double.class, DOUBLE);
+		bindings.put(Boolean.class, BOOLEAN);
+		bindings.put(boolean.class, BOOLEAN);
+		bindings.put(String[].class, STRING_ARRAY);
+		bindings.put(int[].class, INT_ARRAY);
+		bindings.put(double[].class, DOUBLE_ARRAY);
+		bindings.put(boolean[].class, BOOLEAN_ARRAY);
+		bindings.put(Object[].class, new CastBinding<Object[]>(Object[].class));
+		bindings.put(Date.class, new CastBinding<Date>(Date.class));
+		bindings.put(byte[].class, new CastBinding<byte[]>(byte[].class));
+		bindings.put(Map.class, new CastBinding<Map<?, ?>>(Map.class));
+	}
+
+	/**
+	 * Returns the binding for a type.  Besides the built in types, this
+	 * works for arrays of supported types and for classes with
+	 * {@link XMLRPCMember} fields.
+	 *
+	 * @param type Java type to bind to
+	 * @return binding for the type
+	 * @throws IllegalArgumentException if the type can't be bound
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> XMLRPCBinding<T> forClass(Class<T> type) {
+		XMLRPCBinding<?> binding = bindings.get(type);
+		if (binding == null) {
+			if (type.isArray()) {
+				binding = new ArrayBinding(type.getComponentType());
+			} else {
+				binding = new StructBinding(type);
+			}
+			XMLRPCBinding<?> existing = bindings.putIfAbsent(type, binding);
+			if (existing != null) {
+				binding = existing;
+			}
+		}
+		return (XMLRPCBinding<T>) binding;
+	}
+
+	/**
+	 * Registers a binding for an application type.  Typed calls get it
+	 * from {@link #forClass(Class)}, and values of the type or its
+	 * subclasses use it when they are serialized, including inside arrays,
+	 * lists and maps.  Register bindings before making calls that use them.
+	 *
+	 * <pre>
+	 * XMLRPCBindings.register(Uri.class, new UriBinding());
+	 * </pre>
+	 *
+	 * @param type type to bind
+	 * @param binding binding to read and write it with
+	 */
+	public static <T> void register(Class<T> type, XMLRPCBinding<T> binding) {
+		bindings.put(type, binding);
+		XMLRPCSerializer.register(type, binding);
+	}
+
+	/**
+	 * @return true if the binding is a built in one that
+	 *         {@link #fromGeneric} can convert values for
+	 */
+	static boolean takesGeneric(XMLRPCDecoder<?> binding) {
+		return binding == OBJECT || binding == VOID || binding == STRING || binding == INT || binding == LONG
+				|| binding == DOUBLE || binding == BOOLEAN || binding == STRING_ARRAY || binding == INT_ARRAY
+				|| binding == DOUBLE_ARRAY || binding == BOOLEAN_ARRAY || binding instanceof CastBinding;
+	}
+
+	/**
+	 * Turns a value decoded into the generic representation, as the
+	 * response tokenizer does, into what a built in binding would have
+	 * read, so typed calls can take the tokenizer's fast path too.
+	 *
+	 * @throws ResponseTokenizer.Unsupported if the value isn't one the
+	 *         binding reads; the response is then read with the binding
+	 *         itself, which reports the mismatch
+	 */
+	static Object fromGeneric(XMLRPCDecoder<?> binding, Object value) throws ResponseTokenizer.Unsupported {
+		if (binding == OBJECT) {
+			return value;
+		} else
+		if (binding == VOID) {
+			return null;
+		} else
+		if (binding == STRING && value instanceof String
+				|| binding == INT && value instanceof Integer
+				// the generic Integer could have been an <int>, which LONG doesn't read
+				|| binding == LONG && value instanceof Long
+				|| binding == DOUBLE && value instanceof Double
+				|| binding == BOOLEAN && value instanceof Boolean) {
+			return value;
+		} else
+		if (binding instanceof CastBinding && ((CastBinding<?>) binding).type.isInstance(value)) {
+			return value;
+		} else
+		if (value instanceof Object[]) {
+			Object[] values = (Object[]) value;
+			if (binding == STRING_ARRAY && elementsAre(values, String.class)) {
+				String[] strings = new String[values.length];
+				System.arraycopy(values, 0, strings, 0, values.length);
+				return strings;
+			} else
+			if (binding == INT_ARRAY && elementsAre(values, Integer.class)) {
+				int[] ints = new int[values.length];
+				for (int i = 0; i < values.length; i++) {
+					ints[i] = (Integer) values[i];
+				}
+				return ints;
+			} else
+			if (binding == DOUBLE_ARRAY && elementsAre(values, Double.class)) {
+				double[] doubles = new double[values.length];
+				for (int i = 0; i < values.length; i++) {
+					doubles[i] = (Double) values[i];
+				}
+				return doubles;
+			} else
+			if (binding == BOOLEAN_ARRAY && elementsAre(values, Boolean.class)) {
+				boolean[] booleans = new boolean[values.length];
+				for (int i = 0; i < values.length; i++) {
+					booleans[i] = (Boolean) values[i];
+				}
+				return booleans;
+			}
+		}
+		throw ResponseTokenizer.UNSUPPORTED;
+	}
+
+	private static boolean elementsAre(Object[] values, Class<?> type) {
+		for (Object value : values) {
+			if (value == null || value.getClass() != type) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if the class has fields mapped to struct members
+	 */
+	static boolean isStruct(Class<?> type) {
+		for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+			for (Field field : c.getDeclaredFields()) {
+				if (field.isAnnotationPresent(XMLRPCMember.class)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Reads a scalar value's text, checking that it has one of the expected types.
+	 */
+	static String readScalar(XmlPullParser parser, String type, String altType) throws XmlPullParserException, IOException {
+		startScalar(parser, type, altType);
+		String text = parser.nextText();
+		endScalar(parser);
+		return text;
+	}
+
+	// The numbers and booleans are read from the parser's own buffer, so
+	// the only thing made for them is the box, if the caller wants one.
+
+	static int readInt(XmlPullParser parser) throws XmlPullParserException, IOException {
+		startScalar(parser, XMLRPCSerializer.TYPE_I4, XMLRPCSerializer.TYPE_INT);
+		int value = ScalarCodec.get().readInt(parser);
+		endScalar(parser);
+		return value;
+	}
+
+	static long readLong(XmlPullParser parser) throws XmlPullParserException, IOException {
+		startScalar(parser, XMLRPCSerializer.TYPE_I8, XMLRPCSerializer.TYPE_I4);
+		long value = ScalarCodec.get().readLong(parser);
+		endScalar(parser);
+		return value;
+	}
+
+	static double readDouble(XmlPullParser parser) throws XmlPullParserException, IOException {
+		startScalar(parser, XMLRPCSerializer.TYPE_DOUBLE, null);
+		double value = ScalarCodec.get().readDouble(parser);
+		endScalar(parser);
+		return value;
+	}
+
+	static boolean readBoolean(XmlPullParser parser) throws XmlPullParserException, IOException {
+		startScalar(parser, XMLRPCSerializer.TYPE_BOOLEAN, null);
+		boolean value = ScalarCodec.get().readBoolean(parser);
+		endScalar(parser);
+		return value;
+	}
+
+	/**
+	 * Moves from a scalar's &lt;value&gt; tag to its type tag, checking
+	 * that it has one of the expected types.
+	 */
+	private static void startScalar(XmlPullParser parser, String type, String altType) throws XmlPullParserException, IOException {
+		parser.require(XmlPullParser.START_TAG, null, XMLRPCSerializer.TAG_VALUE);
+		parser.nextTag();
+		String name = parser.getName();
+		if (!name.equals(type) && !name.equals(altType)) {
+			throw new IOException("Expected <" + type + "> but got <" + name + ">");
+		}
+	}
+
+	/**
+	 * Moves from a scalar's type end tag to its &lt;/value&gt;.
+	 */
+	private static void endScalar(XmlPullParser parser) throws XmlPullParserException, IOException {
+		parser.nextTag(); // TAG_VALUE (</value>)
+		parser.require(XmlPullParser.END_TAG, null, XMLRPCSerializer.TAG_VALUE);
+	}
+
+	static void writeScalar(XmlSerializer serializer, String type, String text) throws IOException {
+		serializer.startTag(null, type).text(text).endTag(null, type);
+	}
+
+	/**
+	 * Moves from an array's &lt;value&gt; tag into its &lt;data&gt;.
+	 */
+	static void startArray(XmlPullParser parser) throws XmlPullParserException, IOException {
+		parser.require(XmlPullParser.START_TAG, null, XMLRPCSerializer.TAG_VALUE);
+		parser.nextTag();
+		parser.require(XmlPullParser.START_TAG, null, XMLRPCSerializer.TYPE_ARRAY);
+		parser.nextTag();
+		parser.require(XmlPullParser.START_TAG, null, XMLRPCSerializer.TAG_DATA);
+	}
+
+	/**
+	 * Moves to the next array element.
+	 *
+	 * @return true if the parser is on the next element's &lt;value&gt;,
+	 *         false if it reached &lt;/data&gt;
+	 */
+	static boolean nextElement(XmlPullParser parser) throws XmlPullParserException, IOException {
+		parser.nextTag();
+		if (parser.getEventType() == XmlPullParser.START_TAG) {
+			parser.require(XmlPullParser.START_TAG, null, XMLRPCSerializer.TAG_VALUE);
+			return true;
+		}
+		parser.require(XmlPullParser.END_TAG, null, XMLRPCSerializer.TAG_DATA);
+		return false;
+	}
+
+	/**
+	 * Moves from an array's &lt;/data&gt; tag to its &lt;/value&gt;.
+	 */
+	static void endArray(XmlPullParser parser) throws XmlPullParserException, IOException {
+		parser.nextTag(); // TAG_ARRAY (</array>)
+		parser.require(XmlPullParser.END_TAG, null, XMLRPCSerializer.TYPE_ARRAY);
+		parser.nextTag(); // TAG_VALUE (</value>)
+		parser.require(XmlPullParser.END_TAG, null, XMLRPCSerializer.TAG_VALUE);
+	}
+
+	/**
+	 * Skips a whole value, starting on its &lt;value&gt; tag and ending on
+	 * the matching &lt;/value&gt; tag.
+	 */
+	static void skipValue(XmlPullParser parser) throws XmlPullParserException, IOException {
+		parser.require(XmlPullParser.START_TAG, null, XMLRPCSerializer.TAG_VALUE);
+		int depth = parser.getDepth();
+		while (parser.next() != XmlPullParser.END_TAG || parser.getDepth() != depth) {
+			if (parser.getEventType() == XmlPullParser.END_DOCUMENT) {
+				throw new IOException("Unexpected end of document");
+			}
+		}
+	}
+
+	/**
+	 * Goes through the generic representation and checks the result's type.
+	 */
+	private static class CastBinding<T> implements XMLRPCBinding<T> {
+		private final Class<?> type;
+
+		/**
+		 * @param type T's class, which for generic types like Map is the raw class
+		 */
+		CastBinding(Class<?> type) {
+			this.type = type;
+		}
+
+		@SuppressWarnings("unchecked")
+		public T read(XmlPullParser parser) throws XmlPullParserException, IOException {
+			Object value = XMLRPCSerializer.deserialize(parser);
+			if (!type.isInstance(value)) {
+				throw new IOException("Expected " + type.getSimpleName() + " but got " + value);
+			}
+			return (T) value;
+		}
+
+		public void write(XmlSerializer serializer, T value) throws IOException {
+			XMLRPCSerializer.serialize(serializer, value);
+		}
+	}
+
+	/**
+	 * Arrays of any bound, non-primitive type.
+	 */
+	private static class ArrayBinding implements XMLRPCBinding<Object> {
+		private final Class<?> componentType;
+		private final XMLRPCBinding<Object> component;
+
+		@SuppressWarnings("unchecked")
+		ArrayBinding(Class<?> componentType) {
+			if (componentType.isPrimitive()) {
+				throw new IllegalArgumentException("No XML-RPC binding for " + componentType + " arrays");
+			}
+			this.componentType = componentType;
+			this.component = (XMLRPCBinding<Object>) forClass(componentType);
+		}
+
+		public Object read(XmlPullParser parser) throws XmlPullParserException, IOException {
+			List<Object> list = new ArrayList<Object>();
+			startArray(parser);
+			while (nextElement(parser)) {
+				list.add(component.read(parser));
+			}
+			endArray(parser);
+			return list.toArray((Object[]) Array.newInstance(componentType, list.size()));
+		}
+
+		public void write(XmlSerializer serializer, Object value) throws IOException {
+			Object[] values = (Object[]) value;
+			serializer.startTag(null, XMLRPCSerializer.TYPE_ARRAY).startTag(null, XMLRPCSerializer.TAG_DATA);
+			for (int i = 0; i < values.length; i++) {
+				serializer.startTag(null, XMLRPCSerializer.TAG_VALUE);
+				component.write(serializer, values[i]);
+				serializer.endTag(null, XMLRPCSerializer.TAG_VALUE);
+			}
+			serializer.endTag(null, XMLRPCSerializer.TAG_DATA).endTag(null, XMLRPCSerializer.TYPE_ARRAY);
+		}
+	}
+
+	/**
+	 * Classes with {@link XMLRPCMember} fields.  Members missing from a
+	 * struct keep the field's default value, and unknown members are skipped.
+	 */
+	private static class StructBinding implements XMLRPCBinding<Object> {
+		private final Constructor<?> constructor;
+		private final Map<String, Member> members = new HashMap<String, Member>();
+		private final Member[] memberList;
+
+		StructBinding(Class<?> type) {
+			if (!isStruct(type)) {
+				throw new IllegalArgumentException("No XML-RPC binding for " + type);
+			}
+			try {
+				constructor = type.getDeclaredConstructor();
+				constructor.setAccessible(true);
+			} catch (NoSuchMethodException e) {
+				throw new IllegalArgumentException(type + " needs a no-argument constructor");
+			}
+			for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+				for (Field field : c.getDeclaredFields()) {
+					XMLRPCMember annotation = field.getAnnotation(XMLRPCMember.class);
+					if (annotation == null || Modifier.isStatic(field.getModifiers())) {
+						continue;
+					}
+					String name = annotation.value().length() > 0 ? annotation.value() : field.getName();
+					field.setAccessible(true);
+					members.put(name, new Member(name, field));
+				}
+			}
+			memberList = members.values().toArray(new Member[members.size()]);
+		}
+
+		public Object read(XmlPullParser parser) throws XmlPullParserException, IOException {
+			Object target;
+			try {
+				target = constructor.newInstance();
+			} catch (Exception e) {
+				throw new IOException("Cannot create " + constructor.getDeclaringClass() + ": " + e);
+			}
+
+			parser.require(XmlPullParser.START_TAG, null, XMLRPCSerializer.TAG_VALUE);
+			parser.nextTag();
+			parser.require(XmlPullParser.START_TAG, null, XMLRPCSerializer.TYPE_STRUCT);
+			parser.nextTag();
+			while (parser.getEventType() == XmlPullParser.START_TAG) {
+				parser.require(XmlPullParser.START_TAG, null, XMLRPCSerializer.TAG_MEMBER);
+				Member member = null;
+				while (true) {
+					parser.nextTag();
+					if (parser.getEventType() != XmlPullParser.START_TAG) {
+						break;
+					}
+					String name = parser.getName();
+					if (name.equals(XMLRPCSerializer.TAG_NAME)) {
+						member = members.get(parser.nextText());
+					} else
+					if (name.equals(XMLRPCSerializer.TAG_VALUE)) {
+						if (member != null) {
+							member.read(parser, target);
+						} else {
+							skipValue(parser);
+						}
+					} else {
+						throw new IOException("Unexpected <" + name + "> in struct member");
+					}
+				}
+				parser.require(XmlPullParser.END_TAG, null, XMLRPCSerializer.TAG_MEMBER);
+				parser.nextTag();
+			}
+			parser.require(XmlPullParser.END_TAG, null, XMLRPCSerializer.TYPE_STRUCT);
+			parser.nextTag(); // TAG_VALUE (</value>)
+			parser.require(XmlPullParser.END_TAG, null, XMLRPCSerializer.TAG_VALUE);
+			return target;
+		}
+
+		public void write(XmlSerializer serializer, Object value) throws IOException {
+			serializer.startTag(null, XMLRPCSerializer.TYPE_STRUCT);
+			for (Member member : memberList) {
+				member.write(serializer, value);
+			}
+			serializer.endTag(null, XMLRPCSerializer.TYPE_STRUCT);
+		}
+	}
+
+	/**
+	 * A struct member and the field it maps to.  Primitive fields are read
+	 * and written without boxing.  Other fields use the binding for their
+	 * type, which is looked up on first use so that structs can refer to
+	 * their own type.
+	 */
+	private static class Member {
+		private final String name;
+		private final Field field;
+		private final Class<?> type;
+		private volatile XMLRPCBinding<Object> binding;
+
+		Member(String name, Field field) {
+			this.name = name;
+			this.field = field;
+			this.type = field.getType();
+		}
+
+		void read(XmlPullParser parser, Object target) throws XmlPullParserException, IOException {
+			try {
+				if (type == int.class) {
+					field.setInt(target, readInt(parser));
+				} else
+				if (type == long.class) {
+					field.setLong(target, readLong(parser));
+				} else
+				if (type == double.class) {
+					field.setDouble(target, readDouble(parser));
+				} else
+				if (type == boolean.class) {
+					field.setBoolean(target, readBoolean(parser));
+				} else {
+					field.set(target, binding().read(parser));
+				}
+			} catch (IllegalAccessException e) {
+				throw new IOException("Cannot set " + field + ": " + e);
+			}
+		}
+
+		void write(XmlSerializer serializer, Object source) throws IOException {
+			Object value;
+			try {
+				value = field.get(source);
+			} catch (IllegalAccessException e) {
+				throw new IOException("Cannot get " + field + ": " + e);
+			}
+			if (value == null) {
+				// XML-RPC has no nil, so leave the member out
+				return;
+			}
+			serializer.startTag(null, XMLRPCSerializer.TAG_MEMBER);
+			serializer.startTag(null, XMLRPCSerializer.TAG_NAME).text(name).endTag(null, XMLRPCSerializer.TAG_NAME);
+			serializer.startTag(null, XMLRPCSerializer.TAG_VALUE);
+			binding().write(serializer, value);
+			serializer.endTag(null, XMLRPCSerializer.TAG_VALUE);
+			serializer.endTag(null, XMLRPCSerializer.TAG_MEMBER);
+		}
+
+		@SuppressWarnings("unchecked")
+		private XMLRPCBinding<Object> binding() {
+			XMLRPCBinding<Object> b = binding;
+			if (b == null) {
+				b = (XMLRPCBinding<Object>) forClass(type);
+				binding = b;
+			}
+			return b;
+		}
+	}
+
+	// Only static members.
+	private XMLRPCBindings() {
+	}
+}
@@ -0,0 +1,22 @@
+package org.xmlrpc.android;
+
+/**
+ * Receives the outcome of an asynchronous call.  Callbacks are run on the
+ * thread that completed the call, so UI code has to post back to its own
+ * thread before touching any views.
+ */
+public interface XMLRPCCallback {
+	/**
+	 * Called when the call returned successfully.
+	 * 
+	 * @param result deserialized method return value
+	 */
+	void onResult(Object result);
+
+	/**
+	 * Called when the call failed, was cancelled, or timed out.
+	 * 
+	 * @param e the failure, an {@link XMLRPCFault} if the server returned a fault
+	 */
+	void onFailure(XMLRPCException e);
+}
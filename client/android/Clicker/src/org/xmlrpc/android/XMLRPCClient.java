@@ -1,40 +1,32 @@
 package org.xmlrpc.android;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.SequenceInputStream;
-import java.io.StringWriter;
 import java.net.URI;
 import java.net.URL;
-import java.security.KeyManagementException;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
-import java.security.UnrecoverableKeyException;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.auth.UsernamePasswordCredentials;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.FileEntity;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.params.CoreConnectionPNames;
-import org.apache.http.params.HttpParams;
-import org.apache.http.params.HttpProtocolParams;
+import org.orderlychaos.util.TlsHandshake;
 // NGK - will need this to grab the version
 //import org.orderlychaos.clicker.Clicker;
 import org.xmlpull.v1.XmlPullParser;
-import org.xmlpull.v1.XmlPullParserFactory;
+import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlSerializer;
 
 import android.util.Log;
-import android.util.Xml;
 
 public class XMLRPCClient {
 	private static final String TAG_METHOD_CALL = "methodCall";
@@ -46,71 +38,61 @@ public class XMLRPCClient {
 	private static final String TAG_FAULT_CODE = "faultCode";
 	private static final String TAG_FAULT_STRING = "faultString";
 
-	private ConnectionClient client;
-	private HttpPost postMethod;
-	private XmlSerializer serializer;
-	private HttpParams httpParams;
+	// Calls bigger than this, all together, aren't worth pipelining; the
+	// server might stop reading them to send back responses we aren't
+	// reading yet.
+	private static final int MAX_PIPELINED_BYTES = 32 * 1024;
+
+	// Fault code for a method the server doesn't have, from the XML-RPC
+	// fault code interoperability spec.
+	private static final int METHOD_NOT_FOUND = -32601;
+
+	private volatile XMLRPCTransport transport;
+	private URI uri;
+	// replaced rather than changed, so calls in progress can go on using the old one
+	private volatile Map<String, String> headers;
+	private volatile boolean multicallSupported = true;
+	private volatile Executor executor;
+	private volatile boolean chunkedRequests = false;
+	private volatile boolean fastResponses = true;
+	private volatile boolean byteRequests = true;
+	private volatile boolean pipelining = false;
+	private final XMLRPCPipeline pipeline = new XMLRPCPipeline(this);
+
+	private static Executor defaultExecutor;
 
 	/**
-	 * XMLRPCClient constructor. Creates new instance based on server URI
+	 * XMLRPCClient constructor. Creates new instance based on server URI.
+	 * A single instance can be used to make calls from several threads at once.
 	 * @param XMLRPC server URI
 	 */
 	public XMLRPCClient(URI uri, String httpuser, String httppasswd) {
-		postMethod = new HttpPost(uri);
-		postMethod.addHeader("Content-Type", "text/xml");
+		this.uri = uri;
+		Map<String, String> headers = new LinkedHashMap<String, String>();
+		headers.put("Content-Type", "text/xml");
 		
-		postMethod.addHeader("charset", "UTF-8");
+		headers.put("charset", "UTF-8");
 		// NGK - get the version instead of hardcoding it
-		//postMethod.addHeader("User-Agent", "clicker-android/" + Clicker.versionName);
-		postMethod.addHeader("User-Agent", "clicker-android/1.0");
-		
-		httpParams = postMethod.getParams();
-		HttpProtocolParams.setUseExpectContinue(httpParams, false);
+		//headers.put("User-Agent", "clicker-android/" + Clicker.versionName);
+		headers.put("User-Agent", "clicker-android/1.0");
+		if (httpuser != null && httpuser.length() > 0) {
+			// sent up front, since only the Apache transport answers challenges
+			headers.put("Authorization", "Basic " + Base64Coder.encodeString(httpuser + ":" + httppasswd));
+		}
+		this.headers = Collections.unmodifiableMap(headers);
 		
 		//username & password not needed
 		UsernamePasswordCredentials creds = new UsernamePasswordCredentials(httpuser, httppasswd);
 		
-		//this gets connections working over https
-		if (uri.getScheme() != null){
-			if(uri.getScheme().equals("https")) { 
-				if(uri.getPort() == -1)
-					try {
-						client = new ConnectionClient(creds, 443);
-					} catch (KeyManagementException e) {
-						client = new ConnectionClient(creds); 
-					} catch (NoSuchAlgorithmException e) {
-						client = new ConnectionClient(creds); 
-					} catch (KeyStoreException e) {
-						client = new ConnectionClient(creds); 
-					} catch (UnrecoverableKeyException e) {
-						client = new ConnectionClient(creds); 
-					}
-					else
-						try {
-							client = new ConnectionClient(creds, uri.getPort());
-						} catch (KeyManagementException e) {
-							client = new ConnectionClient(creds); 
-						} catch (NoSuchAlgorithmException e) {
-							client = new ConnectionClient(creds); 
-						} catch (KeyStoreException e) {
-							client = new ConnectionClient(creds); 
-						} catch (UnrecoverableKeyException e) {
-							client = new ConnectionClient(creds); 
-						} 
-			} 
-			else {
-				client = new ConnectionClient(creds); 
-			}
-		}
-		else{
-			client = new ConnectionClient(creds);
-		}
-		
-		serializer = Xml.newSerializer();
+		//connections are pooled and shared by every client talking to this server;
+		//this also gets connections working over https
+		transport = new ApacheTransport(ConnectionClient.getClient(uri, creds));
 	}
 	
-	public void addQuickPostHeader(String type) {
-		postMethod.addHeader("WP-QUICK-POST", type);
+	public synchronized void addQuickPostHeader(String type) {
+		Map<String, String> headers = new LinkedHashMap<String, String>(this.headers);
+		headers.put("WP-QUICK-POST", type);
+		this.headers = Collections.unmodifiableMap(headers);
 	}
 
 	/**
@@ -310,9 +292,332 @@ public class XMLRPCClient {
 		return callXMLRPC(method, params, null);
 	}
 	
+	/**
+	 * Sets the executor asynchronous calls are run on.  By default they are
+	 * run on a pool of background threads shared by all clients.
+	 * 
+	 * @param executor executor to run calls on
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Sets the transport calls are sent with.  By default they go through
+	 * Apache HttpClient, with connections pooled and shared by every client
+	 * talking to the same server.
+	 * 
+	 * <pre>
+	 * client.setTransport(new SocketTransport());
+	 * </pre>
+	 * 
+	 * @param transport transport to send calls with
+	 */
+	public void setTransport(XMLRPCTransport transport) {
+		this.transport = transport;
+	}
+
+	/**
+	 * Sets whether asynchronous calls are pipelined.  Calls made with
+	 * {@link #callAsync(String, Object...)}, or through service methods
+	 * returning futures, are queued, and the ones queued while earlier calls
+	 * are on their way are sent back to back on one kept-alive connection.
+	 * A quick burst of calls then takes about one round trip instead of one
+	 * each.  Responses are matched to calls in order, and calls are sent in
+	 * the order they were made, from this client's executor.  Off by default.
+	 * 
+	 * <p>
+	 * The transport has to support pipelining, like {@link SocketTransport},
+	 * {@link NioTransport} and {@link Http2Transport} do; with any other
+	 * transport queued calls are sent one at a time.  Calls the server doesn't answer before it
+	 * closes the connection are sent again one at a time.
+	 * 
+	 * @param pipelining true to pipeline asynchronous calls
+	 */
+	public void setPipelining(boolean pipelining) {
+		this.pipelining = pipelining;
+	}
+
+	/**
+	 * Sets whether requests are sent with chunked transfer encoding.  Chunked
+	 * requests are serialized while they are being sent, without buffering the
+	 * body first, but the server has to support them.  Off by default.
+	 * 
+	 * @param chunked true to send chunked requests
+	 */
+	public void setChunkedRequests(boolean chunked) {
+		this.chunkedRequests = chunked;
+	}
+
+	/**
+	 * Sets whether requests are written as UTF-8 bytes by a writer that only
+	 * knows XML-RPC, instead of by the platform's XmlSerializer.  Tags are
+	 * encoded once up front and only text is escaped.  Both write the same
+	 * document.  On by default.
+	 * 
+	 * @param bytes true to use the request writer
+	 */
+	public void setByteRequests(boolean bytes) {
+		this.byteRequests = bytes;
+	}
+
+	/**
+	 * Sets whether UTF-8 responses to untyped calls, and to calls bound to
+	 * the built in types in {@link XMLRPCBindings}, are decoded straight
+	 * from their bytes instead of through the pull parser.  Responses the
+	 * fast path can't handle, such as ones with character references or
+	 * CDATA, still go to the pull parser, so the values returned are the
+	 * same either way.
+	 * On by default.
+	 * 
+	 * @param fast true to use the fast path where possible
+	 */
+	public void setFastResponses(boolean fast) {
+		this.fastResponses = fast;
+	}
+
+	/**
+	 * @return number of calls, across all clients, that reused an idle XML
+	 *         serializer or parser
+	 */
+	public static long getPoolHits() {
+		return XmlPool.getHits();
+	}
+
+	/**
+	 * @return number of calls, across all clients, that had to create a new
+	 *         XML serializer or parser
+	 */
+	public static long getPoolMisses() {
+		return XmlPool.getMisses();
+	}
+
+	/**
+	 * Asynchronous method call with optional parameters.  The call is run on
+	 * this client's executor, see {@link #setExecutor(Executor)}.
+	 * 
+	 * @param method name of method to call
+	 * @param params parameters to pass to method
+	 * @return future for the deserialized method return value
+	 */
+	public XMLRPCFuture callAsync(final String method, final Object... params) {
+		if (pipelining) {
+			return pipeline.submit(new XMLRPCPipeline.Call(method, params, null, XMLRPCBindings.OBJECT), getExecutor());
+		}
+		return submit(new Callable<Object>() {
+			public Object call() throws XMLRPCException {
+				return callXMLRPC(method, params, null);
+			}
+		});
+	}
+
+	/**
+	 * Returns an implementation of a service interface whose methods make
+	 * calls to this client's server.
+	 * 
+	 * <p>
+	 * Each interface method calls the XML-RPC method named by its
+	 * {@link XMLRPCMethod} annotation, or else its own name with camel case
+	 * turned into underscores, so deviceListButtons() calls
+	 * device_list_buttons.  Parameters and return values are encoded and
+	 * decoded with {@link XMLRPCBindings#forClass(Class)}.  Methods
+	 * returning {@link XMLRPCFuture} or Future&lt;T&gt; make the call
+	 * asynchronously, see {@link #callAsync(String, Object...)}; other
+	 * methods should declare XMLRPCException.
+	 * 
+	 * <pre>
+	 * interface ClickerService {
+	 *     String[] deviceListButtons(String device) throws XMLRPCException;
+	 *     String deviceGetStatus(String device, String cmd) throws XMLRPCException;
+	 * }
+	 * ClickerService service = client.getService(ClickerService.class);
+	 * </pre>
+	 * 
+	 * @param service interface to implement
+	 * @return proxy implementing the interface
+	 */
+	public <T> T getService(Class<T> service) {
+		return XMLRPCServiceProxy.newProxy(this, service);
+	}
+
+	/**
+	 * Call method with parameter and return value bindings worked out
+	 * beforehand.  Used by service proxies.
+	 */
+	<T> T invoke(String method, Object[] params, XMLRPCEncoder<?>[] encoders, XMLRPCDecoder<T> binding) throws XMLRPCException {
+		return callXMLRPC(method, params, encoders, null, binding);
+	}
+
+	/**
+	 * Asynchronous version of {@link #invoke(String, Object[], XMLRPCEncoder[], XMLRPCDecoder)}.
+	 */
+	XMLRPCFuture invokeAsync(final String method, final Object[] params, final XMLRPCEncoder<?>[] encoders, final XMLRPCDecoder<?> binding) {
+		if (pipelining) {
+			return pipeline.submit(new XMLRPCPipeline.Call(method, params, encoders, binding), getExecutor());
+		}
+		return submit(new Callable<Object>() {
+			public Object call() throws XMLRPCException {
+				return callXMLRPC(method, params, encoders, null, binding);
+			}
+		});
+	}
+
+	private XMLRPCFuture submit(Callable<Object> call) {
+		XMLRPCFuture future = new XMLRPCFuture(call);
+		getExecutor().execute(future);
+		return future;
+	}
+
+	private Executor getExecutor() {
+		Executor executor = this.executor;
+		if (executor == null) {
+			executor = getDefaultExecutor();
+		}
+		return executor;
+	}
+
+	private static synchronized Executor getDefaultExecutor() {
+		if (defaultExecutor == null) {
+			defaultExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "XMLRPCClient-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return defaultExecutor;
+	}
+
+	/**
+	 * Sends all calls in a batch as a single system.multicall request.  If the
+	 * server rejects system.multicall, the calls are made one at a time instead,
+	 * and from then on if it says it doesn't have the method.
+	 * 
+	 * @param batch calls to make
+	 * @return array holding, in the order the calls were added, either each
+	 *         call's deserialized return value or the {@link XMLRPCFault} it failed with
+	 * @throws XMLRPCException if the request itself failed
+	 */
+	public Object[] callBatch(XMLRPCBatch batch) throws XMLRPCException {
+		Object[] results = new Object[batch.size()];
+		if (batch.size() == 0) {
+			return results;
+		}
+
+		if (multicallSupported) {
+			try {
+				results = callXMLRPC(XMLRPCBatch.METHOD_MULTICALL, batch.toMulticallParams(), null, null, batch.resultsDecoder());
+			} catch (XMLRPCFault e) {
+				if (isMethodMissing(e)) {
+					// server doesn't do multicall, don't bother asking again
+					multicallSupported = false;
+				}
+				return callSequential(batch);
+			}
+			if (results.length != batch.size()) {
+				throw new XMLRPCException("Got " + results.length + " results for " + batch.size() + " calls in system.multicall response");
+			}
+			return results;
+		}
+		return callSequential(batch);
+	}
+
+	/**
+	 * @return true if the fault says the method doesn't exist, either with
+	 *         the standard -32601 code or, as Python's server does, in its text
+	 */
+	private static boolean isMethodMissing(XMLRPCFault fault) {
+		if (fault.getFaultCode() == METHOD_NOT_FOUND) {
+			return true;
+		}
+		String text = fault.getFaultString();
+		if (text == null) {
+			return false;
+		}
+		text = text.toLowerCase(Locale.US);
+		return text.contains("not supported") || text.contains("not found") || text.contains("no such method");
+	}
+
+	private Object[] callSequential(XMLRPCBatch batch) throws XMLRPCException {
+		Object[] results = new Object[batch.size()];
+		for (int i = 0; i < results.length; i++) {
+			try {
+				results[i] = callXMLRPC(batch.getMethod(i), batch.getParams(i), null, null, batch.getBinding(i));
+			} catch (XMLRPCFault e) {
+				results[i] = e;
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Call method with optional parameters, reporting how much of the
+	 * request has been sent.  File parameters are sent as base64 values,
+	 * encoded straight from the file while the request is being written.
+	 * 
+	 * @param method name of method to call
+	 * @param params parameters to pass to method
+	 * @param listener listener to report progress to
+	 * @return deserialized method return value
+	 * @throws XMLRPCException
+	 */
+	public Object callUploadFile(String method, Object[] params, XMLRPCProgressListener listener) throws XMLRPCException {
+		return callXMLRPC(method, params, listener);
+	}
+
+	/**
+	 * @deprecated requests are no longer staged in a temporary file, so
+	 *             tempFile is ignored; use
+	 *             {@link #callUploadFile(String, Object[], XMLRPCProgressListener)}
+	 */
+	@Deprecated
 	public Object callUploadFile(String method, Object[] params, File tempFile) throws XMLRPCException {
-		
-		return callXMLRPC(method, params, tempFile);
+		return callXMLRPC(method, params, null);
+	}
+
+	/**
+	 * Call method with optional parameters, streaming the return value to a
+	 * visitor as it is parsed instead of building it up in memory.  Faults
+	 * are still thrown as {@link XMLRPCFault}.
+	 * 
+	 * @param method name of method to call
+	 * @param params parameters to pass to method (may be null if method has no parameters)
+	 * @param visitor visitor to receive the return value
+	 * @throws XMLRPCException
+	 */
+	public void callStreaming(String method, Object[] params, final XMLRPCVisitor visitor) throws XMLRPCException {
+		callXMLRPC(method, params, null, null, new XMLRPCDecoder<Object>() {
+			public Object read(XmlPullParser parser) throws XmlPullParserException, IOException {
+				XMLRPCSerializer.visit(parser, visitor);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Call method with optional parameters, decoding the return value
+	 * straight into the binding's type instead of going through the generic
+	 * Object[] and Map representation.
+	 * 
+	 * <pre>
+	 * String[] buttons = client.call(XMLRPCBindings.STRING_ARRAY, "device_list_buttons", name);
+	 * </pre>
+	 * 
+	 * @param binding binding for the return value, see {@link XMLRPCBindings}
+	 * @param method name of method to call
+	 * @param params parameters to pass to method
+	 * @return decoded method return value
+	 * @throws XMLRPCException
+	 */
+	public <T> T call(XMLRPCDecoder<T> binding, String method, Object... params) throws XMLRPCException {
+		return callXMLRPC(method, params, null, null, binding);
+	}
+
+	private Object callXMLRPC(String method, Object[] params, XMLRPCProgressListener listener) throws XMLRPCException {
+		return callXMLRPC(method, params, null, listener, XMLRPCBindings.OBJECT);
 	}
 
 	/**
@@ -320,134 +625,102 @@ public class XMLRPCClient {
 	 * 
 	 * @param method name of method to call
 	 * @param params parameters to pass to method (may be null if method has no parameters)
-	 * @return deserialized method return value
+	 * @param encoders bindings to write each parameter with, or null to work them out from the values
+	 * @param listener listener to report upload progress to, or null
+	 * @param binding binding to decode the return value with
+	 * @return decoded method return value
 	 * @throws XMLRPCException
 	 */
 	@SuppressWarnings("unchecked")
-	private Object callXMLRPC(String method, Object[] params, File tempFile) throws XMLRPCException {
+	private <T> T callXMLRPC(String method, Object[] params, XMLRPCEncoder<?>[] encoders, XMLRPCProgressListener listener, XMLRPCDecoder<T> binding) throws XMLRPCException {
+		// the request, serializer and parser are all private to this call, so
+		// calls from several threads don't step on each other
+		XmlSerializer serializer = byteRequests ? XmlPool.acquireWriter() : XmlPool.acquireSerializer();
+		XMLRPCEntity requestEntity = null;
+		XMLRPCTransport.Response response = null;
 		try {
-			// prepare POST body
-			if (method.equals("wp.uploadFile")){
-				
-	            if (!tempFile.exists() && !tempFile.mkdirs()) {
-	            	throw new XMLRPCException("Path to file could not be created.");
-	            }
-	            
-				FileWriter fileWriter = new FileWriter(tempFile);
-				serializer.setOutput(fileWriter);
-				
-				serializer.startDocument(null, null);
-				serializer.startTag(null, TAG_METHOD_CALL);
-				// set method name
-				serializer.startTag(null, TAG_METHOD_NAME).text(method).endTag(null, TAG_METHOD_NAME);
-				if (params != null && params.length != 0) {
-					// set method params
-					serializer.startTag(null, TAG_PARAMS);
-					for (int i=0; i<params.length; i++) {
-						serializer.startTag(null, TAG_PARAM).startTag(null, XMLRPCSerializer.TAG_VALUE);
-						XMLRPCSerializer.serialize(serializer, params[i]);
-						serializer.endTag(null, XMLRPCSerializer.TAG_VALUE).endTag(null, TAG_PARAM);
-					}
-					serializer.endTag(null, TAG_PARAMS);
-				}
-				serializer.endTag(null, TAG_METHOD_CALL);
-				serializer.endDocument();
-				
-				fileWriter.flush();
-				fileWriter.close();
+			// prepare POST body; the call is serialized straight into the request, see XMLRPCEntity
+			requestEntity = new XMLRPCEntity(serializer, method, params, encoders, chunkedRequests, listener);
 
-				FileEntity fEntity = new FileEntity(tempFile,"text/xml; charset=\"UTF-8\"");
-	            fEntity.setContentType("text/xml");
-	            //fEntity.setChunked(true);
-	            postMethod.setEntity(fEntity);
-			}
-			else{
-				StringWriter bodyWriter = new StringWriter();
-				serializer.setOutput(bodyWriter);
-				
-				serializer.startDocument(null, null);
-				serializer.startTag(null, TAG_METHOD_CALL);
-				// set method name
-				serializer.startTag(null, TAG_METHOD_NAME).text(method).endTag(null, TAG_METHOD_NAME);
-				if (params != null && params.length != 0) {
-					// set method params
-					serializer.startTag(null, TAG_PARAMS);
-					for (int i=0; i<params.length; i++) {
-						serializer.startTag(null, TAG_PARAM).startTag(null, XMLRPCSerializer.TAG_VALUE);
-						if (method.equals("metaWeblog.editPost") || method.equals("metaWeblog.newPost")) {
-							XMLRPCSerializer.serialize(serializer, params[i]);
-						}
-						else {
-							XMLRPCSerializer.serialize(serializer, params[i]);
-
-						}
-						serializer.endTag(null, XMLRPCSerializer.TAG_VALUE).endTag(null, TAG_PARAM);
-					}
-					serializer.endTag(null, TAG_PARAMS);
-				}
-				serializer.endTag(null, TAG_METHOD_CALL);
-				serializer.endDocument();
-				
-				HttpEntity entity = new StringEntity(bodyWriter.toString());
-				//Log.i("Clicker", bodyWriter.toString());
-				postMethod.setEntity(entity);
+			// execute HTTP POST request, forgetting any handshake an earlier
+			// call on this thread left unreported
+			TlsHandshake.take();
+			response = transport.post(uri, headers, requestEntity);
+			logHandshake();
+			return readResponse(response, binding);
+		} catch (XMLRPCException e) {
+			// catch & propagate XMLRPCException/XMLRPCFault
+			releaseConnection(response);
+			throw e;
+		} catch (Exception e) {
+			// wrap any other Exception(s) around XMLRPCException
+			releaseConnection(response);
+			throw new XMLRPCException(e);
+		} finally {
+			if (requestEntity != null) {
+				requestEntity.release();
 			}
+			XmlPool.release(serializer);
+		}
+	}
 
-			//set timeout to 40 seconds, does it need to be set for both client and method?
-			client.getParams().setParameter(CoreConnectionPNames.CONNECTION_TIMEOUT, 40000);
-	        client.getParams().setParameter(CoreConnectionPNames.SO_TIMEOUT, 40000);
-			postMethod.getParams().setParameter(CoreConnectionPNames.CONNECTION_TIMEOUT, 40000);
-			postMethod.getParams().setParameter(CoreConnectionPNames.SO_TIMEOUT, 40000);
-			
-			// execute HTTP POST request
-			HttpResponse response = client.execute(postMethod);
-			
-			Log.i("Clicker", "response = " + response.getStatusLine());
+	/**
+	 * Logs the TLS handshake, full or resumed, that the transport made on
+	 * this thread to open a connection for the call just sent.  Calls that
+	 * went out on a connection that was already open didn't need one.
+	 */
+	private static void logHandshake() {
+		TlsHandshake handshake = TlsHandshake.take();
+		if (handshake != null) {
+			Log.i("Clicker", "tls = " + handshake);
+		}
+	}
+
+	/**
+	 * Reads a call's response and closes it.
+	 * 
+	 * @param response response to the call
+	 * @param binding binding to decode the return value with
+	 * @return decoded method return value
+	 * @throws XMLRPCFault if the server returned a fault
+	 */
+	@SuppressWarnings("unchecked")
+	private <T> T readResponse(XMLRPCTransport.Response response, XMLRPCDecoder<T> binding) throws Exception {
+		XmlPullParser pullParser = null;
+		try {
+			Log.i("Clicker", "response = " + response.getStatusCode() + " " + response.getReasonPhrase());
 			// check status code
-			int statusCode = response.getStatusLine().getStatusCode();
-			
-			deleteTempFile(method, tempFile);
+			int statusCode = response.getStatusCode();
 
 			if (statusCode != HttpStatus.SC_OK) {
-				throw new XMLRPCException("HTTP status code: " + statusCode + " was returned. " + response.getStatusLine().getReasonPhrase());
+				throw new XMLRPCException("HTTP status code: " + statusCode + " was returned. " + response.getReasonPhrase());
 			}
 
-			// setup pull parser
-			XmlPullParser pullParser = XmlPullParserFactory.newInstance().newPullParser();
-			HttpEntity entity = response.getEntity();
-			InputStream is = entity.getContent();
-			
-			int bomCheck = -1;
-			int stopper = 0;
-			while ((bomCheck = is.read()) != -1 && stopper <= 5000) {
-				stopper++;
-				String snippet = "";
-				//60 == '<' character
-				if (bomCheck == 60) {
-					for (int i = 0; i < 4; i++) {
-						byte[] chunk = new byte[1];
-						is.read(chunk);
-						snippet += new String(chunk, "UTF-8");
-					}
-					if (snippet.equals("?xml")) {
-						//it's all good, add xml tag back and start parsing
-						String start = "<" + snippet;
-						List<InputStream> streams = Arrays.asList(
-							    new ByteArrayInputStream(start.getBytes()),
-							    is);
-						is = new SequenceInputStream(Collections.enumeration(streams));
-						break;
-					} else {
-						//keep searching...
-						List<InputStream> streams = Arrays.asList(
-							    new ByteArrayInputStream(snippet.getBytes()),
-							    is);
-						is = new SequenceInputStream(Collections.enumeration(streams));
+			// skip anything ahead of the XML prolog and work out the charset
+			ResponseSniffer sniffer = new ResponseSniffer(response.getBody());
+			InputStream body = sniffer.getStream();
+			if (fastResponses && XMLRPCBindings.takesGeneric(binding) && ResponseTokenizer.handles(sniffer.getEncoding())) {
+				// untyped results and the built in types don't need the pull
+				// parser, unless the response has something in it the
+				// tokenizer leaves alone
+				ResponseTokenizer tokenizer = ResponseTokenizer.read(body, response.getContentLength());
+				try {
+					Object obj = tokenizer.readResponse();
+					if (tokenizer.isFault()) {
+						response.close();
+						throw toFault(obj);
 					}
+					obj = XMLRPCBindings.fromGeneric(binding, obj);
+					response.close();
+					return (T) obj;
+				} catch (ResponseTokenizer.Unsupported e) {
+					body = tokenizer.getStream();
 				}
 			}
-			
-			pullParser.setInput(is, "UTF-8");
+
+			// setup pull parser
+			pullParser = XmlPool.acquireParser();
+			pullParser.setInput(body, sniffer.getEncoding());
 			
 			// lets start pulling...
 			pullParser.nextTag();
@@ -462,9 +735,10 @@ public class XMLRPCClient {
 				pullParser.nextTag(); // TAG_VALUE (<value>)
 				// no parser.require() here since its called in XMLRPCSerializer.deserialize() below
 				
-				// deserialize result
-				Object obj = XMLRPCSerializer.deserialize(pullParser);
-				entity.consumeContent();
+				// decode result; if a streaming visitor stops early,
+				// close() skips the rest
+				T obj = binding.read(pullParser);
+				response.close();
 				return obj;
 			} else
 			if (tag.equals(TAG_FAULT)) {
@@ -473,32 +747,174 @@ public class XMLRPCClient {
 				// no parser.require() here since its called in XMLRPCSerializer.deserialize() below
 
 				// deserialize fault result
-				Map<String, Object> map = (Map<String, Object>) XMLRPCSerializer.deserialize(pullParser);
-				String faultString = (String) map.get(TAG_FAULT_STRING);
-				int faultCode = (Integer) map.get(TAG_FAULT_CODE);
-				entity.consumeContent();
-				throw new XMLRPCFault(faultString, faultCode);
+				Object fault = XMLRPCSerializer.deserialize(pullParser);
+				response.close();
+				throw toFault(fault);
 			} else {
-				entity.consumeContent();
+				response.close();
 				throw new XMLRPCException("Bad tag <" + tag + "> in XMLRPC response - neither <params> nor <fault>");
 			}
-		} catch (XMLRPCException e) {
-			// catch & propagate XMLRPCException/XMLRPCFault
-			deleteTempFile(method, tempFile);
-			throw e;
-		} catch (Exception e) {
-			// wrap any other Exception(s) around XMLRPCException
-			deleteTempFile(method, tempFile);
-			throw new XMLRPCException(e);
+		} finally {
+			if (pullParser != null) {
+				XmlPool.release(pullParser);
+			}
 		}
 	}
 
-	private void deleteTempFile(String method, File tempFile) {
-		if (tempFile != null) {
-			if ((method.equals("wp.uploadFile"))){ //get rid of the temp file
-				tempFile.delete();
+	/**
+	 * Sends queued calls back to back on one connection, if the transport
+	 * can, and completes their futures in order.  Calls the server said it
+	 * wouldn't answer are made again one at a time; calls that were lost
+	 * with the connection fail, since the server may have made them.  Used by XMLRPCPipeline.
+	 * 
+	 * @param calls calls to make
+	 */
+	@SuppressWarnings("unchecked")
+	void callPipelined(List<XMLRPCPipeline.Call> calls) {
+		XMLRPCTransport transport = this.transport;
+		int done = 0;
+		if (calls.size() > 1 && transport instanceof XMLRPCTransport.Pipelining) {
+			done = sendPipelined((XMLRPCTransport.Pipelining) transport, calls);
+		}
+		for (int i = done; i < calls.size(); i++) {
+			XMLRPCPipeline.Call call = calls.get(i);
+			try {
+				call.future.complete(callXMLRPC(call.method, call.params, call.encoders, null, (XMLRPCDecoder<Object>) call.binding));
+			} catch (XMLRPCException e) {
+				call.future.fail(e);
+			}
+		}
+	}
+
+	/**
+	 * Sends as many of the calls as are worth pipelining in one pipeline.
+	 * 
+	 * @return number of calls, from the first, whose futures were completed
+	 */
+	private int sendPipelined(XMLRPCTransport.Pipelining transport, List<XMLRPCPipeline.Call> calls) {
+		List<XmlSerializer> serializers = new ArrayList<XmlSerializer>(calls.size());
+		List<XMLRPCEntity> requests = new ArrayList<XMLRPCEntity>(calls.size());
+		XMLRPCTransport.Pipeline pipeline = null;
+		int done = 0;
+		try {
+			long length = 0;
+			for (XMLRPCPipeline.Call call : calls) {
+				XmlSerializer serializer = byteRequests ? XmlPool.acquireWriter() : XmlPool.acquireSerializer();
+				serializers.add(serializer);
+				XMLRPCEntity request;
+				try {
+					request = new XMLRPCEntity(serializer, call.method, call.params, call.encoders, false, null);
+				} catch (Exception e) {
+					// made on its own, it fails by itself
+					break;
+				}
+				// the first call goes in whatever its size; if it is too big
+				// on its own, there's nothing to pipeline it with
+				if (!requests.isEmpty() && length + request.getContentLength() > MAX_PIPELINED_BYTES) {
+					request.release();
+					break;
+				}
+				requests.add(request);
+				length += request.getContentLength();
+			}
+			if (requests.size() < 2) {
+				return 0;
+			}
+
+			TlsHandshake.take();
+			pipeline = transport.pipeline(uri, headers, requests);
+			logHandshake();
+			for (; done < requests.size(); done++) {
+				XMLRPCTransport.Response response = pipeline.next();
+				if (response == null) {
+					// the server said it closes the connection without
+					// reading the rest, so they go again
+					break;
+				}
+				XMLRPCPipeline.Call call = calls.get(done);
+				try {
+					call.future.complete(readResponse(response, call.binding));
+				} catch (XMLRPCException e) {
+					releaseConnection(response);
+					call.future.fail(e);
+				} catch (Exception e) {
+					releaseConnection(response);
+					call.future.fail(new XMLRPCException(e));
+				}
+			}
+		} catch (IOException e) {
+			// the calls still waiting for a response fail with the connection
+			for (; done < requests.size(); done++) {
+				calls.get(done).future.fail(new XMLRPCException(e));
+			}
+		} finally {
+			if (pipeline != null) {
+				pipeline.close();
+			}
+			for (XMLRPCEntity request : requests) {
+				request.release();
+			}
+			for (XmlSerializer serializer : serializers) {
+				XmlPool.release(serializer);
+			}
+		}
+		return done;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static XMLRPCFault toFault(Object fault) {
+		Map<String, Object> map = (Map<String, Object>) fault;
+		String faultString = (String) map.get(TAG_FAULT_STRING);
+		int faultCode = (Integer) map.get(TAG_FAULT_CODE);
+		return new XMLRPCFault(faultString, faultCode);
+	}
+
+	/**
+	 * Writes a complete methodCall document.
+	 * 
+	 * @param serializer serializer to write to, with its output already set
+	 * @param method name of method to call
+	 * @param params parameters to pass to method (may be null if method has no parameters)
+	 * @param encoders bindings to write each parameter with, or null to work them out from the values
+	 * @param sink where File parameters go, or null to write their contents as they are reached
+	 * @throws IOException
+	 */
+	@SuppressWarnings("unchecked")
+	static void serializeMethodCall(XmlSerializer serializer, String method, Object[] params, XMLRPCEncoder<?>[] encoders,
+			XMLRPCSerializer.FileSink sink) throws IOException {
+		serializer.startDocument(null, null);
+		serializer.startTag(null, TAG_METHOD_CALL);
+		// set method name
+		serializer.startTag(null, TAG_METHOD_NAME).text(method).endTag(null, TAG_METHOD_NAME);
+		if (params != null && params.length != 0) {
+			// set method params
+			serializer.startTag(null, TAG_PARAMS);
+			for (int i=0; i<params.length; i++) {
+				serializer.startTag(null, TAG_PARAM).startTag(null, XMLRPCSerializer.TAG_VALUE);
+				if (encoders != null && params[i] != null) {
+					((XMLRPCEncoder<Object>) encoders[i]).write(serializer, params[i]);
+				} else {
+					XMLRPCSerializer.serialize(serializer, params[i], sink);
+				}
+				serializer.endTag(null, XMLRPCSerializer.TAG_VALUE).endTag(null, TAG_PARAM);
+			}
+			serializer.endTag(null, TAG_PARAMS);
+		}
+		serializer.endTag(null, TAG_METHOD_CALL);
+		serializer.endDocument();
+	}
+
+	/**
+	 * Makes sure the pooled connection used for a response is handed back to
+	 * the pool, even if we bailed out before reading the whole response.
+	 */
+	private void releaseConnection(XMLRPCTransport.Response response) {
+		if (response != null) {
+			try {
+				response.close();
+			} catch (IOException e) {
+				// the connection is discarded instead of reused
 			}
 		}
-		
 	}
 }
@@ -0,0 +1,20 @@
+package org.xmlrpc.android;
+
+import java.io.IOException;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+/**
+ * Reads XML-RPC values into one Java type, without going through the
+ * generic Object/Object[]/Map representation.  Call results are read with
+ * one, see {@link XMLRPCClient#call(XMLRPCDecoder, String, Object...)};
+ * types that can also be written have an {@link XMLRPCBinding}.
+ */
+public interface XMLRPCDecoder<T> {
+	/**
+	 * Reads a value, starting on its &lt;value&gt; tag and ending on the
+	 * matching &lt;/value&gt; tag.
+	 */
+	T read(XmlPullParser parser) throws XmlPullParserException, IOException;
+}
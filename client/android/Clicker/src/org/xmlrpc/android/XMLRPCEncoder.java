@@ -0,0 +1,17 @@
+package org.xmlrpc.android;
+
+import java.io.IOException;
+
+import org.xmlpull.v1.XmlSerializer;
+
+/**
+ * Writes values of one Java type as XML-RPC values, for call parameters
+ * and values inside them.  Types that can also be read have an
+ * {@link XMLRPCBinding}.
+ */
+public interface XMLRPCEncoder<T> {
+	/**
+	 * Writes a value's type element, the part that goes inside &lt;value&gt;.
+	 */
+	void write(XmlSerializer serializer, T value) throws IOException;
+}
@@ -0,0 +1,227 @@
+package org.xmlrpc.android;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.xmlpull.v1.XmlSerializer;
+
+/**
+ * Request body that serializes a method call straight into the
+ * connection's output stream instead of building the body as a String first.
+ *
+ * <p>
+ * When chunked, the call is serialized while it is being sent.  Otherwise
+ * the call is serialized up front into a pooled, reusable buffer so the
+ * Content-Length is known, and the buffer is written out as is.  File
+ * parameters are left out of the buffer; their base64 encoded contents
+ * are read from disk and spliced in while the buffer is being sent, so
+ * uploads never need a temporary copy of the request.
+ */
+class XMLRPCEntity implements XMLRPCTransport.Request {
+	// Buffers bigger than this are left for the garbage collector instead of
+	// being kept around for the next call.
+	private static final int MAX_POOLED_BUFFER = 64 * 1024;
+	private static final Queue<Buffer> buffers = new ConcurrentLinkedQueue<Buffer>();
+
+	// File contents are encoded and sent this many bytes at a time.
+	private static final int FILE_CHUNK = 12 * 1024;
+
+	private final XmlSerializer serializer;
+	private final String method;
+	private final Object[] params;
+	private final XMLRPCEncoder<?>[] encoders;
+	private final XMLRPCProgressListener listener;
+	private Buffer buffer;
+	private long contentLength = -1;
+
+	// Files to splice into the buffer, where in the buffer they go and
+	// their lengths when the Content-Length was worked out.
+	private List<File> files;
+	private List<Integer> fileOffsets;
+	private List<Long> fileLengths;
+
+	XMLRPCEntity(XmlSerializer serializer, String method, Object[] params, XMLRPCEncoder<?>[] encoders,
+			boolean chunked, XMLRPCProgressListener listener) throws IOException {
+		this.serializer = serializer;
+		this.method = method;
+		this.params = params;
+		this.encoders = encoders;
+		this.listener = listener;
+		if (!chunked) {
+			buffer = buffers.poll();
+			if (buffer == null) {
+				buffer = new Buffer(1024);
+			}
+			serializer.setOutput(buffer, "UTF-8");
+			XMLRPCClient.serializeMethodCall(serializer, method, params, encoders, new XMLRPCSerializer.FileSink() {
+				public void file(XmlSerializer serializer, File file) throws IOException {
+					addFile(serializer, file);
+				}
+			});
+			contentLength = buffer.size();
+			if (files != null) {
+				for (long length : fileLengths) {
+					contentLength += Base64Coder.encodedLength((int) length);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return -1 when chunked, since a chunked call can't be sent again if
+	 *         it streams from an InputStream
+	 */
+	public long getContentLength() {
+		return contentLength;
+	}
+
+	public void writeTo(OutputStream outstream) throws IOException {
+		OutputStream out = outstream;
+		if (listener != null) {
+			out = new ProgressOutputStream(outstream, listener, contentLength);
+		}
+		if (buffer != null) {
+			int written = 0;
+			if (files != null) {
+				for (int i = 0; i < files.size(); i++) {
+					int offset = fileOffsets.get(i);
+					buffer.writeTo(out, written, offset - written);
+					writeFile(out, files.get(i), fileLengths.get(i));
+					written = offset;
+				}
+			}
+			buffer.writeTo(out, written, buffer.size() - written);
+		} else {
+			serializer.setOutput(out, "UTF-8");
+			XMLRPCClient.serializeMethodCall(serializer, method, params, encoders, null);
+		}
+		out.flush();
+	}
+
+	/**
+	 * Hands the request buffer back to the pool.  The entity can't be
+	 * written again afterwards.
+	 */
+	void release() {
+		if (buffer != null) {
+			if (buffer.size() <= MAX_POOLED_BUFFER) {
+				buffer.reset();
+				buffers.offer(buffer);
+			}
+			buffer = null;
+		}
+	}
+
+	/**
+	 * Writes an empty base64 value and remembers where the file's contents
+	 * go inside it.
+	 */
+	private void addFile(XmlSerializer serializer, File file) throws IOException {
+		long length = file.length();
+		if (!file.isFile() || length > Integer.MAX_VALUE / 4 * 3) {
+			throw new IOException("Cannot upload " + file);
+		}
+		if (files == null) {
+			files = new ArrayList<File>();
+			fileOffsets = new ArrayList<Integer>();
+			fileLengths = new ArrayList<Long>();
+		}
+		serializer.startTag(null, XMLRPCSerializer.TYPE_BASE64);
+		// finish the start tag and push it out, so we know where the contents go
+		serializer.text("");
+		serializer.flush();
+		files.add(file);
+		fileOffsets.add(buffer.size());
+		fileLengths.add(length);
+		serializer.endTag(null, XMLRPCSerializer.TYPE_BASE64);
+	}
+
+	/**
+	 * Base64 encodes a file into the request, straight from its channel.
+	 * Exactly length bytes are sent, since the Content-Length has already
+	 * been worked out from it; a file that has changed size since then
+	 * would leave the body out of step with its header, so it fails the
+	 * request instead.
+	 */
+	private static void writeFile(OutputStream out, File file, long length) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			ByteBuffer bytes = ByteBuffer.allocate(FILE_CHUNK);
+			byte[] chunk = new byte[Base64Coder.encodedLength(FILE_CHUNK)];
+			long left = length;
+			while (left > 0) {
+				bytes.clear();
+				bytes.limit((int) Math.min(left, FILE_CHUNK));
+				while (bytes.hasRemaining() && channel.read(bytes) != -1) {
+					// short reads just mean going round again
+				}
+				if (bytes.hasRemaining()) {
+					throw new IOException(file + " got shorter while being uploaded");
+				}
+				int len = bytes.position();
+				out.write(chunk, 0, Base64Coder.encode(bytes.array(), 0, len, chunk, 0));
+				left -= len;
+			}
+			bytes.clear();
+			if (channel.read(bytes) > 0) {
+				throw new IOException(file + " got longer while being uploaded");
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Request buffer that can write out part of its contents without
+	 * copying them.
+	 */
+	private static class Buffer extends ByteArrayOutputStream {
+		Buffer(int size) {
+			super(size);
+		}
+
+		void writeTo(OutputStream out, int off, int len) throws IOException {
+			out.write(buf, off, len);
+		}
+	}
+
+	/**
+	 * Counts the bytes going out and tells the listener about them.
+	 */
+	private static class ProgressOutputStream extends FilterOutputStream {
+		private final XMLRPCProgressListener listener;
+		private final long total;
+		private long sent;
+
+		ProgressOutputStream(OutputStream out, XMLRPCProgressListener listener, long total) {
+			super(out);
+			this.listener = listener;
+			this.total = total;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			sent++;
+			listener.onProgress(sent, total);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			sent += len;
+			listener.onProgress(sent, total);
+		}
+	}
+}
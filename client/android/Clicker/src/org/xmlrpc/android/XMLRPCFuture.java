@@ -0,0 +1,196 @@
+package org.xmlrpc.android;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pending result of an asynchronous call made with
+ * {@link XMLRPCClient#callAsync(String, Object...)}.
+ *
+ * <p>
+ * Besides the usual {@link java.util.concurrent.Future} methods, callbacks
+ * can be registered to be told about the result, and several futures can be
+ * joined into one with {@link #join(XMLRPCFuture...)}.
+ */
+public class XMLRPCFuture extends FutureTask<Object> {
+	// Stand-in for futures that are completed by hand rather than by running a call.
+	private static final Callable<Object> NO_CALL = new Callable<Object>() {
+		public Object call() throws Exception {
+			throw new IllegalStateException("Future is not runnable");
+		}
+	};
+
+	private final List<XMLRPCCallback> callbacks = new ArrayList<XMLRPCCallback>();
+
+	XMLRPCFuture(Callable<Object> call) {
+		super(call);
+	}
+
+	/**
+	 * Creates a future that is completed by hand, with
+	 * {@link #complete(Object)} or {@link #fail(XMLRPCException)}.
+	 */
+	XMLRPCFuture() {
+		super(NO_CALL);
+	}
+
+	void complete(Object result) {
+		set(result);
+	}
+
+	void fail(XMLRPCException e) {
+		setException(e);
+	}
+
+	/**
+	 * Registers a callback to be run once the call completes.  If the call
+	 * has already completed, the callback is run right away on this thread.
+	 *
+	 * @param callback callback to run
+	 * @return this future, so calls can be chained
+	 */
+	public XMLRPCFuture addCallback(XMLRPCCallback callback) {
+		synchronized (callbacks) {
+			if (!isDone()) {
+				callbacks.add(callback);
+				return this;
+			}
+		}
+		runCallback(callback);
+		return this;
+	}
+
+	/**
+	 * Waits for the call to complete.
+	 *
+	 * @return deserialized method return value
+	 * @throws XMLRPCException if the call failed or was cancelled
+	 */
+	public Object getResult() throws XMLRPCException {
+		try {
+			return get();
+		} catch (InterruptedException e) {
+			cancel(true);
+			throw new XMLRPCException(e);
+		} catch (CancellationException e) {
+			throw new XMLRPCException("Call was cancelled");
+		} catch (ExecutionException e) {
+			throw toXMLRPCException(e.getCause());
+		}
+	}
+
+	/**
+	 * Waits for the call to complete, cancelling it if it takes too long.
+	 *
+	 * @param timeout how long to wait
+	 * @param unit unit of the timeout
+	 * @return deserialized method return value
+	 * @throws XMLRPCException if the call failed, was cancelled or timed out
+	 */
+	public Object getResult(long timeout, TimeUnit unit) throws XMLRPCException {
+		try {
+			return get(timeout, unit);
+		} catch (TimeoutException e) {
+			cancel(true);
+			throw new XMLRPCException("Call timed out after " + unit.toMillis(timeout) + " ms");
+		} catch (InterruptedException e) {
+			cancel(true);
+			throw new XMLRPCException(e);
+		} catch (CancellationException e) {
+			throw new XMLRPCException("Call was cancelled");
+		} catch (ExecutionException e) {
+			throw toXMLRPCException(e.getCause());
+		}
+	}
+
+	/**
+	 * Joins several calls into one future.  The joined future completes with
+	 * an array of all results, in order, once every call has returned, or
+	 * fails as soon as any of them fails.  Cancelling the joined future
+	 * cancels all of the calls.
+	 *
+	 * @param futures calls to join
+	 * @return future for the array of results
+	 */
+	public static XMLRPCFuture join(final XMLRPCFuture... futures) {
+		final XMLRPCFuture joined = new XMLRPCFuture() {
+			@Override
+			protected void done() {
+				if (isCancelled()) {
+					for (XMLRPCFuture future : futures) {
+						future.cancel(true);
+					}
+				}
+				super.done();
+			}
+		};
+		final Object[] results = new Object[futures.length];
+		final AtomicInteger pending = new AtomicInteger(futures.length);
+		if (futures.length == 0) {
+			joined.set(results);
+		}
+		for (int i = 0; i < futures.length; i++) {
+			final int index = i;
+			futures[i].addCallback(new XMLRPCCallback() {
+				public void onResult(Object result) {
+					results[index] = result;
+					if (pending.decrementAndGet() == 0) {
+						joined.set(results);
+					}
+				}
+
+				public void onFailure(XMLRPCException e) {
+					joined.setException(e);
+				}
+			});
+		}
+		return joined;
+	}
+
+	@Override
+	protected void done() {
+		List<XMLRPCCallback> pending;
+		synchronized (callbacks) {
+			pending = new ArrayList<XMLRPCCallback>(callbacks);
+			callbacks.clear();
+		}
+		for (XMLRPCCallback callback : pending) {
+			runCallback(callback);
+		}
+	}
+
+	private void runCallback(XMLRPCCallback callback) {
+		Object result;
+		try {
+			result = get();
+		} catch (InterruptedException e) {
+			// can't happen, we're done
+			callback.onFailure(new XMLRPCException(e));
+			return;
+		} catch (CancellationException e) {
+			callback.onFailure(new XMLRPCException("Call was cancelled"));
+			return;
+		} catch (ExecutionException e) {
+			callback.onFailure(toXMLRPCException(e.getCause()));
+			return;
+		}
+		callback.onResult(result);
+	}
+
+	private static XMLRPCException toXMLRPCException(Throwable cause) {
+		if (cause instanceof XMLRPCException) {
+			return (XMLRPCException) cause;
+		} else
+		if (cause instanceof Exception) {
+			return new XMLRPCException((Exception) cause);
+		}
+		return new XMLRPCException(cause.toString());
+	}
+}
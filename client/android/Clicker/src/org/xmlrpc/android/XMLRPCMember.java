@@ -0,0 +1,27 @@
+package org.xmlrpc.android;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Maps a field to a struct member, so the class can be used as a struct
+ * type with {@link XMLRPCBindings#forClass(Class)}.  The class needs a
+ * no-argument constructor.
+ *
+ * <pre>
+ * public class DeviceStatus {
+ *     &#64;XMLRPCMember("name") String name;
+ *     &#64;XMLRPCMember("volume") int volume;
+ * }
+ * </pre>
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface XMLRPCMember {
+	/**
+	 * @return struct member name, defaults to the field name
+	 */
+	String value() default "";
+}
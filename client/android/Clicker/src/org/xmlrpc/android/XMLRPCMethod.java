@@ -0,0 +1,19 @@
+package org.xmlrpc.android;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Names the XML-RPC method a service interface method calls, see
+ * {@link XMLRPCClient#getService(Class)}.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface XMLRPCMethod {
+	/**
+	 * @return name of the XML-RPC method to call
+	 */
+	String value();
+}
@@ -0,0 +1,87 @@
+package org.xmlrpc.android;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Queue of asynchronous calls for a client that pipelines them, see
+ * {@link XMLRPCClient#setPipelining(boolean)}.  A single sender runs on the
+ * client's executor.  It takes every call queued so far and has the client
+ * send them as one pipeline, then comes back for the calls queued in the
+ * meantime, so calls go out in the order they were made.
+ */
+class XMLRPCPipeline implements Runnable {
+	// Most calls sent back to back in one pipeline.
+	private static final int MAX_CALLS = 8;
+
+	/**
+	 * A queued call and the future for its result.
+	 */
+	static class Call {
+		final String method;
+		final Object[] params;
+		final XMLRPCEncoder<?>[] encoders;
+		final XMLRPCDecoder<?> binding;
+		final XMLRPCFuture future = new XMLRPCFuture();
+
+		Call(String method, Object[] params, XMLRPCEncoder<?>[] encoders, XMLRPCDecoder<?> binding) {
+			this.method = method;
+			this.params = params;
+			this.encoders = encoders;
+			this.binding = binding;
+		}
+	}
+
+	private final XMLRPCClient client;
+	private final LinkedList<Call> queue = new LinkedList<Call>();
+	private boolean sending;
+
+	XMLRPCPipeline(XMLRPCClient client) {
+		this.client = client;
+	}
+
+	/**
+	 * Queues a call, starting the sender if it isn't running.
+	 */
+	XMLRPCFuture submit(Call call, Executor executor) {
+		boolean start;
+		synchronized (queue) {
+			queue.addLast(call);
+			start = !sending;
+			sending = true;
+		}
+		if (start) {
+			executor.execute(this);
+		}
+		return call.future;
+	}
+
+	public void run() {
+		while (true) {
+			List<Call> calls = new ArrayList<Call>(MAX_CALLS);
+			synchronized (queue) {
+				while (!queue.isEmpty() && calls.size() < MAX_CALLS) {
+					Call call = queue.removeFirst();
+					if (!call.future.isCancelled()) {
+						calls.add(call);
+					}
+				}
+				if (calls.isEmpty()) {
+					sending = false;
+					return;
+				}
+			}
+			try {
+				client.callPipelined(calls);
+			} catch (RuntimeException e) {
+				// keep going with the rest of the queue; calls already
+				// completed aren't affected
+				for (Call call : calls) {
+					call.future.fail(new XMLRPCException(e));
+				}
+			}
+		}
+	}
+}
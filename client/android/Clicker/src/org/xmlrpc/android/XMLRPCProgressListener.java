@@ -0,0 +1,17 @@
+package org.xmlrpc.android;
+
+/**
+ * Told how much of a request has been sent, see
+ * {@link XMLRPCClient#callUploadFile(String, Object[], XMLRPCProgressListener)}.
+ * It is called on the thread making the call.
+ */
+public interface XMLRPCProgressListener {
+	/**
+	 * Called each time another part of the request has been written.
+	 * 
+	 * @param sent number of bytes sent so far
+	 * @param total size of the request in bytes, or -1 if it isn't known
+	 *        because the request is chunked
+	 */
+	void onProgress(long sent, long total);
+}
@@ -4,20 +4,24 @@ import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlSerializer;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.StringReader;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.SimpleTimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 class XMLRPCSerializer {
 	static final String TAG_NAME = "name";
@@ -35,179 +39,716 @@ class XMLRPCSerializer {
 	static final String TYPE_BASE64 = "base64";
 	static final String TYPE_ARRAY = "array";
 	static final String TYPE_STRUCT = "struct";
-	
-	static SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMdd'T'HH:mm:ss");
-	static Calendar cal = Calendar.getInstance(new SimpleTimeZone(0, "GMT"));
 
-	@SuppressWarnings("unchecked")
+	// Base64 values are written and read this many bytes at a time, so
+	// binary data is never held as one big encoded string.
+	private static final int BASE64_CHUNK = 3 * 1024;
+
+	/**
+	 * Told about File values while serializing, so their contents can be
+	 * sent later instead of being written out right away.
+	 */
+	interface FileSink {
+		/**
+		 * Called in place of writing a file's base64 value.
+		 */
+		void file(XmlSerializer serializer, File file) throws IOException;
+	}
+
 	static void serialize(XmlSerializer serializer, Object object) throws IOException {
-		// check for scalar types:
-		if (object instanceof Integer || object instanceof Short || object instanceof Byte) {
-			serializer.startTag(null, TYPE_I4).text(object.toString()).endTag(null, TYPE_I4);
+		serialize(serializer, object, null);
+	}
+
+	/**
+	 * @param sink where File values go, or null to write their contents
+	 *        as they are reached
+	 */
+	static void serialize(XmlSerializer serializer, Object object, FileSink sink) throws IOException {
+		if (object == null) {
+			throw new IOException("Cannot serialize null");
+		}
+		encoderFor(object.getClass()).write(serializer, object, sink);
+	}
+
+	/**
+	 * Writes the values of one class.
+	 */
+	interface Encoder {
+		/**
+		 * Writes a value's type element, the part that goes inside &lt;value&gt;.
+		 */
+		void write(XmlSerializer serializer, Object value, FileSink sink) throws IOException;
+	}
+
+	// Encoders by class, worked out the first time a class is serialized, so
+	// values in a deeply nested struct are a map lookup each rather than a
+	// walk down the list of supported types.
+	private static final ConcurrentMap<Class<?>, Encoder> encoders = new ConcurrentHashMap<Class<?>, Encoder>();
+
+	// Bindings for application types, which take precedence over the built in encoders.
+	private static final ConcurrentMap<Class<?>, XMLRPCEncoder<?>> customBindings = new ConcurrentHashMap<Class<?>, XMLRPCEncoder<?>>();
+
+	// Counts registrations, so an encoder worked out before one isn't kept.
+	private static final AtomicInteger registrations = new AtomicInteger();
+
+	/**
+	 * Serializes values of a class, and of its subclasses, with a binding.
+	 * 
+	 * @see XMLRPCBindings#register(Class, XMLRPCBinding)
+	 */
+	static void register(Class<?> type, XMLRPCEncoder<?> binding) {
+		customBindings.put(type, binding);
+		registrations.incrementAndGet();
+		// classes already seen may be subclasses of this one
+		encoders.clear();
+	}
+
+	static Encoder encoderFor(Class<?> type) {
+		Encoder encoder = encoders.get(type);
+		while (encoder == null) {
+			int seen = registrations.get();
+			encoder = resolve(type);
+			Encoder existing = encoders.putIfAbsent(type, encoder);
+			if (existing != null) {
+				encoder = existing;
+			} else
+			if (registrations.get() != seen) {
+				// a binding registered while this one was worked out may
+				// have been missed, and the clear() that went with it may
+				// already be over, so work it out again
+				encoders.remove(type, encoder);
+				encoder = null;
+			}
+		}
+		return encoder;
+	}
+
+	/**
+	 * Works out how to write a class, checking the supported types in the
+	 * same order serialize() always has.
+	 */
+	private static Encoder resolve(Class<?> type) {
+		XMLRPCEncoder<?> custom = customBinding(type);
+		if (custom != null) {
+			return new BindingEncoder(custom);
 		} else
-		if (object instanceof Long) {
-			serializer.startTag(null, TYPE_I8).text(object.toString()).endTag(null, TYPE_I8);
+		if (type == Integer.class || type == Short.class || type == Byte.class) {
+			return I4;
 		} else
-		if (object instanceof Double || object instanceof Float) {
-			serializer.startTag(null, TYPE_DOUBLE).text(object.toString()).endTag(null, TYPE_DOUBLE);
+		if (type == Long.class) {
+			return I8;
 		} else
-		if (object instanceof Boolean) {
-			Boolean bool = (Boolean) object;
-			String boolStr = bool.booleanValue() ? "1" : "0";
-			serializer.startTag(null, TYPE_BOOLEAN).text(boolStr).endTag(null, TYPE_BOOLEAN);
+		if (type == Double.class || type == Float.class) {
+			return DOUBLE;
+		} else
+		if (type == Boolean.class) {
+			return BOOLEAN;
+		} else
+		if (type == String.class) {
+			return STRING;
+		} else
+		if (Date.class.isAssignableFrom(type)) {
+			return DATE;
+		} else
+		if (Calendar.class.isAssignableFrom(type)) {
+			return CALENDAR;
+		} else
+		if (type == byte[].class) {
+			return BASE64;
+		} else
+		if (type == int[].class) {
+			return INT_ARRAY;
+		} else
+		if (type == double[].class) {
+			return DOUBLE_ARRAY;
+		} else
+		if (type == boolean[].class) {
+			return BOOLEAN_ARRAY;
+		} else
+		if (InputStream.class.isAssignableFrom(type)) {
+			return STREAM;
+		} else
+		if (File.class.isAssignableFrom(type)) {
+			return FILE;
 		} else
-		if (object instanceof String) {
-			serializer.startTag(null, TYPE_STRING).text(object.toString()).endTag(null, TYPE_STRING);
-		} else
-		if (object instanceof Date || object instanceof Calendar) {
-			Date date = (Date) object;
-    		SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMdd'T'HH:mm:ss");
-    		dateFormat.setCalendar(cal);
-    		String sDate = dateFormat.format(date);
-			serializer.startTag(null, TYPE_DATE_TIME_ISO8601).text(sDate).endTag(null, TYPE_DATE_TIME_ISO8601);
-		} else
-		if (object instanceof byte[] ){
-			String value = new String(Base64Coder.encode((byte[])object));
-			serializer.startTag(null, TYPE_BASE64).text(value).endTag(null, TYPE_BASE64);
-		}else
-		if (object instanceof List<?>) {
+		if (List.class.isAssignableFrom(type)) {
+			return LIST;
+		} else
+		if (Object[].class.isAssignableFrom(type)) {
+			return ARRAY;
+		} else
+		if (Map.class.isAssignableFrom(type)) {
+			return MAP;
+		} else
+		if (XMLRPCBindings.isStruct(type)) {
+			// class with @XMLRPCMember fields
+			return new BindingEncoder(XMLRPCBindings.forClass(type));
+		}
+		return UNSUPPORTED;
+	}
+
+	/**
+	 * @return the binding registered for the class or its nearest
+	 *         superclass or interface, or null
+	 */
+	private static XMLRPCEncoder<?> customBinding(Class<?> type) {
+		if (customBindings.isEmpty()) {
+			return null;
+		}
+		for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+			XMLRPCEncoder<?> binding = customBindings.get(c);
+			if (binding != null) {
+				return binding;
+			}
+			for (Class<?> i : c.getInterfaces()) {
+				binding = customBindings.get(i);
+				if (binding != null) {
+					return binding;
+				}
+			}
+		}
+		return null;
+	}
+
+	private static final Encoder I4 = new Encoder() {
+		public void write(XmlSerializer serializer, Object value, FileSink sink) throws IOException {
+			ScalarCodec.get().writeInt(serializer, TYPE_I4, ((Number) value).intValue());
+		}
+	};
+
+	private static final Encoder I8 = new Encoder() {
+		public void write(XmlSerializer serializer, Object value, FileSink sink) throws IOException {
+			ScalarCodec.get().writeLong(serializer, TYPE_I8, ((Long) value).longValue());
+		}
+	};
+
+	private static final Encoder DOUBLE = new Encoder() {
+		public void write(XmlSerializer serializer, Object value, FileSink sink) throws IOException {
+			if (value instanceof Double) {
+				ScalarCodec.get().writeDouble(serializer, TYPE_DOUBLE, ((Double) value).doubleValue());
+			} else {
+				// a float's own toString(), which is shorter than the double it widens to
+				serializer.startTag(null, TYPE_DOUBLE).text(value.toString()).endTag(null, TYPE_DOUBLE);
+			}
+		}
+	};
+
+	private static final Encoder BOOLEAN = new Encoder() {
+		public void write(XmlSerializer serializer, Object value, FileSink sink) throws IOException {
+			String boolStr = ((Boolean) value).booleanValue() ? "1" : "0";
+			serializer.startTag(null, TYPE_BOOLEAN).text(boolStr).endTag(null, TYPE_BOOLEAN);
+		}
+	};
+
+	private static final Encoder STRING = new Encoder() {
+		public void write(XmlSerializer serializer, Object value, FileSink sink) throws IOException {
+			serializer.startTag(null, TYPE_STRING).text((String) value).endTag(null, TYPE_STRING);
+		}
+	};
+
+	private static final Encoder DATE = new Encoder() {
+		public void write(XmlSerializer serializer, Object value, FileSink sink) throws IOException {
+			ScalarCodec.get().writeDateTime(serializer, TYPE_DATE_TIME_ISO8601, (Date) value);
+		}
+	};
+
+	private static final Encoder CALENDAR = new Encoder() {
+		public void write(XmlSerializer serializer, Object value, FileSink sink) throws IOException {
+			DATE.write(serializer, ((Calendar) value).getTime(), sink);
+		}
+	};
+
+	private static final Encoder BASE64 = new Encoder() {
+		public void write(XmlSerializer serializer, Object value, FileSink sink) throws IOException {
+			byte[] bytes = (byte[]) value;
+			char[] chunk = new char[Base64Coder.encodedLength(Math.min(bytes.length, BASE64_CHUNK))];
+			serializer.startTag(null, TYPE_BASE64);
+			for (int off = 0; off < bytes.length; off += BASE64_CHUNK) {
+				int len = Base64Coder.encode(bytes, off, Math.min(bytes.length - off, BASE64_CHUNK), chunk, 0);
+				serializer.text(chunk, 0, len);
+			}
+			serializer.endTag(null, TYPE_BASE64);
+		}
+	};
+
+	private static final Encoder INT_ARRAY = new Encoder() {
+		public void write(XmlSerializer serializer, Object value, FileSink sink) throws IOException {
+			int[] values = (int[]) value;
+			ScalarCodec codec = ScalarCodec.get();
+			serializer.startTag(null, TYPE_ARRAY).startTag(null, TAG_DATA);
+			for (int i = 0; i < values.length; i++) {
+				serializer.startTag(null, TAG_VALUE);
+				codec.writeInt(serializer, TYPE_I4, values[i]);
+				serializer.endTag(null, TAG_VALUE);
+			}
+			serializer.endTag(null, TAG_DATA).endTag(null, TYPE_ARRAY);
+		}
+	};
+
+	private static final Encoder DOUBLE_ARRAY = new Encoder() {
+		public void write(XmlSerializer serializer, Object value, FileSink sink) throws IOException {
+			double[] values = (double[]) value;
+			ScalarCodec codec = ScalarCodec.get();
+			serializer.startTag(null, TYPE_ARRAY).startTag(null, TAG_DATA);
+			for (int i = 0; i < values.length; i++) {
+				serializer.startTag(null, TAG_VALUE);
+				codec.writeDouble(serializer, TYPE_DOUBLE, values[i]);
+				serializer.endTag(null, TAG_VALUE);
+			}
+			serializer.endTag(null, TAG_DATA).endTag(null, TYPE_ARRAY);
+		}
+	};
+
+	private static final Encoder BOOLEAN_ARRAY = new Encoder() {
+		public void write(XmlSerializer serializer, Object value, FileSink sink) throws IOException {
+			boolean[] values = (boolean[]) value;
 			serializer.startTag(null, TYPE_ARRAY).startTag(null, TAG_DATA);
-			List<Object> list = (List<Object>) object;
+			for (int i = 0; i < values.length; i++) {
+				serializer.startTag(null, TAG_VALUE);
+				serializer.startTag(null, TYPE_BOOLEAN).text(values[i] ? "1" : "0").endTag(null, TYPE_BOOLEAN);
+				serializer.endTag(null, TAG_VALUE);
+			}
+			serializer.endTag(null, TAG_DATA).endTag(null, TYPE_ARRAY);
+		}
+	};
+
+	private static final Encoder STREAM = new Encoder() {
+		public void write(XmlSerializer serializer, Object value, FileSink sink) throws IOException {
+			// streamed as base64 until the end of the stream, which is left open
+			writeBase64(serializer, (InputStream) value);
+		}
+	};
+
+	private static final Encoder FILE = new Encoder() {
+		public void write(XmlSerializer serializer, Object value, FileSink sink) throws IOException {
+			if (sink != null) {
+				sink.file(serializer, (File) value);
+			} else {
+				writeBase64(serializer, (File) value);
+			}
+		}
+	};
+
+	private static final Encoder LIST = new Encoder() {
+		@SuppressWarnings("unchecked")
+		public void write(XmlSerializer serializer, Object value, FileSink sink) throws IOException {
+			serializer.startTag(null, TYPE_ARRAY).startTag(null, TAG_DATA);
+			List<Object> list = (List<Object>) value;
 			Iterator<Object> iter = list.iterator();
 			while (iter.hasNext()) {
 				Object o = iter.next();
 				serializer.startTag(null, TAG_VALUE);
-				serialize(serializer, o);
+				serialize(serializer, o, sink);
 				serializer.endTag(null, TAG_VALUE);
 			}
 			serializer.endTag(null, TAG_DATA).endTag(null, TYPE_ARRAY);
-		} else
-		if (object instanceof Object[]) {
+		}
+	};
+
+	private static final Encoder ARRAY = new Encoder() {
+		public void write(XmlSerializer serializer, Object value, FileSink sink) throws IOException {
 			serializer.startTag(null, TYPE_ARRAY).startTag(null, TAG_DATA);
-			Object[] objects = (Object[]) object;
+			Object[] objects = (Object[]) value;
 			for (int i=0; i<objects.length; i++) {
 				Object o = objects[i];
 				serializer.startTag(null, TAG_VALUE);
-				serialize(serializer, o);
+				serialize(serializer, o, sink);
 				serializer.endTag(null, TAG_VALUE);
 			}
 			serializer.endTag(null, TAG_DATA).endTag(null, TYPE_ARRAY);
-		} else
-		if (object instanceof Map) {
+		}
+	};
+
+	private static final Encoder MAP = new Encoder() {
+		@SuppressWarnings("unchecked")
+		public void write(XmlSerializer serializer, Object value, FileSink sink) throws IOException {
 			serializer.startTag(null, TYPE_STRUCT);
-			Map<String, Object> map = (Map<String, Object>) object;
+			Map<String, Object> map = (Map<String, Object>) value;
 			Iterator<Entry<String, Object>> iter = map.entrySet().iterator();
 			while (iter.hasNext()) {
 				Entry<String, Object> entry = iter.next();
 				String key = entry.getKey();
-				Object value = entry.getValue();
+				Object memberValue = entry.getValue();
 
 				serializer.startTag(null, TAG_MEMBER);
 				serializer.startTag(null, TAG_NAME).text(key).endTag(null, TAG_NAME);
 				serializer.startTag(null, TAG_VALUE);
-				serialize(serializer, value);
+				serialize(serializer, memberValue, sink);
 				serializer.endTag(null, TAG_VALUE);
 				serializer.endTag(null, TAG_MEMBER);
 			}
 			serializer.endTag(null, TYPE_STRUCT);
-		} else {
-			throw new IOException("Cannot serialize " + object);
+		}
+	};
+
+	private static final Encoder UNSUPPORTED = new Encoder() {
+		public void write(XmlSerializer serializer, Object value, FileSink sink) throws IOException {
+			throw new IOException("Cannot serialize " + value);
+		}
+	};
+
+	/**
+	 * Writes values with a binding, for registered types and classes with
+	 * {@link XMLRPCMember} fields.
+	 */
+	private static class BindingEncoder implements Encoder {
+		private final XMLRPCEncoder<Object> binding;
+
+		@SuppressWarnings("unchecked")
+		BindingEncoder(XMLRPCEncoder<?> binding) {
+			this.binding = (XMLRPCEncoder<Object>) binding;
+		}
+
+		public void write(XmlSerializer serializer, Object value, FileSink sink) throws IOException {
+			binding.write(serializer, value);
 		}
 	}
 	
 	static Object deserialize(XmlPullParser parser) throws XmlPullParserException, IOException {
+		return deserialize(parser, false);
+	}
+
+	/**
+	 * @param primitiveArrays true to read arrays of nothing but ints,
+	 *        doubles or booleans as int[], double[] or boolean[] rather
+	 *        than Object[]
+	 */
+	static Object deserialize(XmlPullParser parser, boolean primitiveArrays) throws XmlPullParserException, IOException {
 		parser.require(XmlPullParser.START_TAG, null, TAG_VALUE);
 
 		parser.nextTag(); 
-		String typeNodeName = parser.getName();
-		
+		Object obj = deserializeType(parser, parser.getName(), primitiveArrays);
+		parser.nextTag(); // TAG_VALUE (</value>)
+		parser.require(XmlPullParser.END_TAG, null, TAG_VALUE);
+		return obj;
+	}
+
+	/**
+	 * Reads a value's contents, starting on its type tag and ending on the
+	 * matching end tag.
+	 */
+	static Object deserializeType(XmlPullParser parser, String typeNodeName) throws XmlPullParserException, IOException {
+		return deserializeType(parser, typeNodeName, false);
+	}
+
+	private static Object deserializeType(XmlPullParser parser, String typeNodeName, boolean primitiveArrays) throws XmlPullParserException, IOException {
 		Object obj;
-		if (typeNodeName.equals(TYPE_INT) || typeNodeName.equals(TYPE_I4)) {
-			String value = parser.nextText();
-			obj = Integer.parseInt(value);
-		} else
-		if (typeNodeName.equals(TYPE_I8)) {
-			String value = parser.nextText();
-			obj = Long.parseLong(value);
-		} else
-		if (typeNodeName.equals(TYPE_DOUBLE)) {
-			String value = parser.nextText();
-			obj = Double.parseDouble(value);
-		} else
-		if (typeNodeName.equals(TYPE_BOOLEAN)) {
-			String value = parser.nextText();
-			obj = value.equals("1") ? Boolean.TRUE : Boolean.FALSE;
-		} else
-		if (typeNodeName.equals(TYPE_STRING)) {
-			obj = parser.nextText();
+		if (typeNodeName.equals(TYPE_ARRAY)) {
+			parser.nextTag(); // TAG_DATA (<data>)
+			parser.require(XmlPullParser.START_TAG, null, TAG_DATA);
+
+			parser.nextTag();
+			obj = deserializeElements(parser, primitiveArrays);
+			parser.require(XmlPullParser.END_TAG, null, TAG_DATA);
+			parser.nextTag(); // TAG_ARRAY (</array>)
+			parser.require(XmlPullParser.END_TAG, null, TYPE_ARRAY);
 		} else
-		if (typeNodeName.equals(TYPE_DATE_TIME_ISO8601)) {
-			dateFormat.setCalendar(cal);
-			String value = parser.nextText();
-			try {
-				obj = dateFormat.parseObject(value);
-			} catch (ParseException e) {
-				e.printStackTrace();
-				obj = value;
-				//throw new IOException("Cannot deserialize dateTime " + value); 
+		if (typeNodeName.equals(TYPE_STRUCT)) {
+			parser.nextTag();
+			Map<String, Object> map = new StructMap();
+			while (parser.getName().equals(TAG_MEMBER)) {
+				String memberName = null;
+				Object memberValue = null;
+				while (true) {
+					parser.nextTag();
+					String name = parser.getName();
+					if (name.equals(TAG_NAME)) {
+						memberName = ScalarCodec.get().readName(parser);
+					} else
+					if (name.equals(TAG_VALUE)) {
+						memberValue = deserialize(parser, primitiveArrays);
+					} else {
+						break;
+					}
+				}
+				if (memberName != null && memberValue != null) {
+					map = StructMap.put(map, memberName, memberValue);
+				}
+				parser.require(XmlPullParser.END_TAG, null, TAG_MEMBER);
+				parser.nextTag();
 			}
-		} else
-		if (typeNodeName.equals(TYPE_BASE64)) {
-			String value = parser.nextText();
-			BufferedReader reader = new BufferedReader(new StringReader(value));
-			String line;
-			StringBuffer sb = new StringBuffer();
-			while ((line = reader.readLine()) != null) {
-				sb.append(line);
+			parser.require(XmlPullParser.END_TAG, null, TYPE_STRUCT);
+			obj = map;
+		} else {
+			obj = deserializeScalar(parser, typeNodeName);
+		}
+		return obj;
+	}
+
+	/**
+	 * Reads an array's elements, starting on the first &lt;value&gt; tag, or
+	 * on &lt;/data&gt; if there are none, and ending on &lt;/data&gt;.
+	 */
+	private static Object deserializeElements(XmlPullParser parser, boolean primitiveArrays) throws XmlPullParserException, IOException {
+		List<Object> list;
+		if (primitiveArrays && parser.getName().equals(TAG_VALUE)) {
+			parser.nextTag();
+			String type = parser.getName();
+			int kind = primitiveKind(type);
+			int count = 0;
+			if (kind != NOT_PRIMITIVE) {
+				// values go into the codec's scratch array while they are all the same kind
+				ScalarCodec codec = ScalarCodec.get();
+				while (primitiveKind(type) == kind) {
+					if (kind == PRIMITIVE_INT) {
+						codec.ints(count + 1)[count++] = codec.readInt(parser);
+					} else
+					if (kind == PRIMITIVE_DOUBLE) {
+						codec.doubles(count + 1)[count++] = codec.readDouble(parser);
+					} else {
+						codec.booleans(count + 1)[count++] = codec.readBoolean(parser);
+					}
+					parser.nextTag(); // TAG_VALUE (</value>)
+					parser.require(XmlPullParser.END_TAG, null, TAG_VALUE);
+					parser.nextTag();
+					if (!parser.getName().equals(TAG_VALUE)) {
+						return kind == PRIMITIVE_INT ? codec.copyInts(count)
+							: kind == PRIMITIVE_DOUBLE ? codec.copyDoubles(count) : codec.copyBooleans(count);
+					}
+					parser.nextTag();
+					type = parser.getName();
+				}
+				// a different type, so box what has been read so far and carry on
+				list = new ArrayList<Object>(count * 2);
+				for (int i = 0; i < count; i++) {
+					if (kind == PRIMITIVE_INT) {
+						list.add(codec.ints(count)[i]);
+					} else
+					if (kind == PRIMITIVE_DOUBLE) {
+						list.add(codec.doubles(count)[i]);
+					} else {
+						list.add(codec.booleans(count)[i]);
+					}
+				}
+			} else {
+				list = new ArrayList<Object>();
 			}
-			obj = Base64Coder.decode(sb.toString());
+			// finish off the element whose type tag the parser is on
+			list.add(deserializeType(parser, type, primitiveArrays));
+			parser.nextTag(); // TAG_VALUE (</value>)
+			parser.require(XmlPullParser.END_TAG, null, TAG_VALUE);
+			parser.nextTag();
+		} else {
+			list = new ArrayList<Object>();
+		}
+		while (parser.getName().equals(TAG_VALUE)) {
+			list.add(deserialize(parser, primitiveArrays));
+			parser.nextTag();
+		}
+		return list.toArray();
+	}
+
+	// Element types that arrays are read into primitive arrays for.
+	private static final int NOT_PRIMITIVE = 0;
+	private static final int PRIMITIVE_INT = 1;
+	private static final int PRIMITIVE_DOUBLE = 2;
+	private static final int PRIMITIVE_BOOLEAN = 3;
+
+	private static int primitiveKind(String type) {
+		if (type.equals(TYPE_I4) || type.equals(TYPE_INT)) {
+			return PRIMITIVE_INT;
+		} else
+		if (type.equals(TYPE_DOUBLE)) {
+			return PRIMITIVE_DOUBLE;
 		} else
+		if (type.equals(TYPE_BOOLEAN)) {
+			return PRIMITIVE_BOOLEAN;
+		}
+		return NOT_PRIMITIVE;
+	}
+
+	/**
+	 * Streams a value to a visitor instead of building it up in memory.
+	 * Like {@link #deserialize(XmlPullParser)}, this starts on the
+	 * value's <value> tag and ends on its </value> tag.
+	 * 
+	 * @return false if the visitor stopped parsing, in which case the
+	 *         parser is left wherever the visitor stopped it
+	 */
+	static boolean visit(XmlPullParser parser, XMLRPCVisitor visitor) throws XmlPullParserException, IOException {
+		parser.require(XmlPullParser.START_TAG, null, TAG_VALUE);
+
+		parser.nextTag(); 
+		String typeNodeName = parser.getName();
+		
 		if (typeNodeName.equals(TYPE_ARRAY)) {
+			if (!visitor.startArray()) {
+				return false;
+			}
 			parser.nextTag(); // TAG_DATA (<data>)
 			parser.require(XmlPullParser.START_TAG, null, TAG_DATA);
 
 			parser.nextTag();
-			List<Object> list = new ArrayList<Object>();
 			while (parser.getName().equals(TAG_VALUE)) {
-				list.add(deserialize(parser));
+				if (!visit(parser, visitor)) {
+					return false;
+				}
 				parser.nextTag();
 			}
 			parser.require(XmlPullParser.END_TAG, null, TAG_DATA);
 			parser.nextTag(); // TAG_ARRAY (</array>)
 			parser.require(XmlPullParser.END_TAG, null, TYPE_ARRAY);
-			obj = list.toArray();
+			if (!visitor.endArray()) {
+				return false;
+			}
 		} else
 		if (typeNodeName.equals(TYPE_STRUCT)) {
+			if (!visitor.startStruct()) {
+				return false;
+			}
 			parser.nextTag();
-			Map<String, Object> map = new HashMap<String, Object>();
 			while (parser.getName().equals(TAG_MEMBER)) {
-				String memberName = null;
-				Object memberValue = null;
 				while (true) {
 					parser.nextTag();
 					String name = parser.getName();
 					if (name.equals(TAG_NAME)) {
-						memberName = parser.nextText();
+						if (!visitor.member(ScalarCodec.get().readName(parser))) {
+							return false;
+						}
 					} else
 					if (name.equals(TAG_VALUE)) {
-						memberValue = deserialize(parser);
+						if (!visit(parser, visitor)) {
+							return false;
+						}
 					} else {
 						break;
 					}
 				}
-				if (memberName != null && memberValue != null) {
-					map.put(memberName, memberValue);
-				}
 				parser.require(XmlPullParser.END_TAG, null, TAG_MEMBER);
 				parser.nextTag();
 			}
 			parser.require(XmlPullParser.END_TAG, null, TYPE_STRUCT);
-			obj = map;
+			if (!visitor.endStruct()) {
+				return false;
+			}
 		} else {
-			throw new IOException("Cannot deserialize " + parser.getName());
+			if (!visitor.value(deserializeScalar(parser, typeNodeName))) {
+				return false;
+			}
 		}
 		parser.nextTag(); // TAG_VALUE (</value>)
 		parser.require(XmlPullParser.END_TAG, null, TAG_VALUE);
+		return true;
+	}
+
+	/**
+	 * Writes a stream's contents as a base64 value, a chunk at a time.
+	 */
+	static void writeBase64(XmlSerializer serializer, InputStream in) throws IOException {
+		byte[] bytes = new byte[BASE64_CHUNK];
+		char[] chunk = new char[Base64Coder.encodedLength(BASE64_CHUNK)];
+		serializer.startTag(null, TYPE_BASE64);
+		while (true) {
+			// fill the whole chunk, so padding only ever comes at the end
+			int len = 0;
+			int read = 0;
+			while (len < bytes.length && (read = in.read(bytes, len, bytes.length - len)) != -1) {
+				len += read;
+			}
+			if (len > 0) {
+				serializer.text(chunk, 0, Base64Coder.encode(bytes, 0, len, chunk, 0));
+			}
+			if (read == -1) {
+				break;
+			}
+		}
+		serializer.endTag(null, TYPE_BASE64);
+	}
+
+	/**
+	 * Writes a file's contents as a base64 value, a chunk at a time.
+	 */
+	static void writeBase64(XmlSerializer serializer, File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			ByteBuffer bytes = ByteBuffer.allocate(BASE64_CHUNK);
+			char[] chunk = new char[Base64Coder.encodedLength(BASE64_CHUNK)];
+			serializer.startTag(null, TYPE_BASE64);
+			while (readChunk(channel, bytes) > 0) {
+				serializer.text(chunk, 0, Base64Coder.encode(bytes.array(), 0, bytes.position(), chunk, 0));
+			}
+			serializer.endTag(null, TYPE_BASE64);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Fills a buffer from a channel, so padding only ever comes at the end
+	 * of the data.
+	 * 
+	 * @return number of bytes read, 0 at the end of the channel
+	 */
+	static int readChunk(FileChannel channel, ByteBuffer bytes) throws IOException {
+		bytes.clear();
+		while (bytes.hasRemaining() && channel.read(bytes) != -1) {
+			// short reads just mean going round again
+		}
+		return bytes.position();
+	}
+
+	/**
+	 * Decodes a base64 value's text straight from the parser's buffer into
+	 * a stream, starting on its base64 tag and ending on the matching end tag.
+	 * 
+	 * @return number of bytes written to the stream
+	 */
+	static long readBase64(XmlPullParser parser, OutputStream out) throws XmlPullParserException, IOException {
+		parser.require(XmlPullParser.START_TAG, null, TYPE_BASE64);
+		Base64Coder.Decoder decoder = new Base64Coder.Decoder(out);
+		int[] holder = new int[2];
+		int event;
+		while ((event = parser.next()) != XmlPullParser.END_TAG) {
+			if (event != XmlPullParser.TEXT) {
+				throw new XmlPullParserException("Expected text in <" + TYPE_BASE64 + ">", parser, null);
+			}
+			char[] chars = parser.getTextCharacters(holder);
+			try {
+				decoder.decode(chars, holder[0], holder[1]);
+			} catch (IllegalArgumentException e) {
+				throw new IOException("Cannot deserialize base64: " + e.getMessage());
+			}
+		}
+		try {
+			decoder.finish();
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Cannot deserialize base64: " + e.getMessage());
+		}
+		return decoder.getCount();
+	}
+
+	/**
+	 * Reads a scalar value, starting on its type tag and ending on the
+	 * matching end tag.
+	 */
+	private static Object deserializeScalar(XmlPullParser parser, String typeNodeName) throws XmlPullParserException, IOException {
+		Object obj;
+		if (typeNodeName.equals(TYPE_INT) || typeNodeName.equals(TYPE_I4)) {
+			obj = ScalarCodec.get().readInt(parser);
+		} else
+		if (typeNodeName.equals(TYPE_I8)) {
+			obj = ScalarCodec.get().readLong(parser);
+		} else
+		if (typeNodeName.equals(TYPE_DOUBLE)) {
+			obj = ScalarCodec.get().readDouble(parser);
+		} else
+		if (typeNodeName.equals(TYPE_BOOLEAN)) {
+			obj = ScalarCodec.get().readBoolean(parser) ? Boolean.TRUE : Boolean.FALSE;
+		} else
+		if (typeNodeName.equals(TYPE_STRING)) {
+			obj = parser.nextText();
+		} else
+		if (typeNodeName.equals(TYPE_DATE_TIME_ISO8601)) {
+			obj = ScalarCodec.get().readDateTime(parser);
+		} else
+		if (typeNodeName.equals(TYPE_BASE64)) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			readBase64(parser, out);
+			obj = out.toByteArray();
+		} else {
+			throw new IOException("Cannot deserialize " + parser.getName());
+		}
 		return obj;
 	}
 }
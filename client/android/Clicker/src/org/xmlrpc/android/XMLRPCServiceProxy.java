@@ -0,0 +1,157 @@
+package org.xmlrpc.android;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Proxy;
+import java.lang.reflect.Type;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+
+/**
+ * Handler behind the proxies returned by {@link XMLRPCClient#getService(Class)}.
+ * The XML-RPC method name and the parameter and return value bindings are
+ * worked out the first time an interface method is called, and reused for
+ * every call after that.
+ */
+class XMLRPCServiceProxy implements InvocationHandler {
+	private static final Object[] NO_PARAMS = new Object[0];
+
+	// Shared by all proxies, so a method is only worked out once however
+	// many clients implement its interface.
+	private static final ConcurrentMap<Method, ServiceMethod> methods = new ConcurrentHashMap<Method, ServiceMethod>();
+
+	private final XMLRPCClient client;
+	private final Class<?> service;
+
+	private XMLRPCServiceProxy(XMLRPCClient client, Class<?> service) {
+		this.client = client;
+		this.service = service;
+	}
+
+	static <T> T newProxy(XMLRPCClient client, Class<T> service) {
+		if (!service.isInterface()) {
+			throw new IllegalArgumentException(service + " is not an interface");
+		}
+		Object proxy = Proxy.newProxyInstance(service.getClassLoader(), new Class<?>[] { service },
+				new XMLRPCServiceProxy(client, service));
+		return service.cast(proxy);
+	}
+
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		if (method.getDeclaringClass() == Object.class) {
+			return invokeObjectMethod(proxy, method, args);
+		}
+		ServiceMethod serviceMethod = methods.get(method);
+		if (serviceMethod == null) {
+			serviceMethod = new ServiceMethod(method);
+			methods.putIfAbsent(method, serviceMethod);
+		}
+		Object[] params = args != null ? args : NO_PARAMS;
+		if (serviceMethod.async) {
+			return client.invokeAsync(serviceMethod.name, params, serviceMethod.encoders, serviceMethod.result);
+		}
+		return client.invoke(serviceMethod.name, params, serviceMethod.encoders, serviceMethod.result);
+	}
+
+	private Object invokeObjectMethod(Object proxy, Method method, Object[] args) {
+		String name = method.getName();
+		if (name.equals("equals")) {
+			return proxy == args[0];
+		} else
+		if (name.equals("hashCode")) {
+			return System.identityHashCode(proxy);
+		}
+		return service.getName() + " proxy";
+	}
+
+	/**
+	 * Everything needed to make the call for one interface method.
+	 */
+	private static class ServiceMethod {
+		final String name;
+		final XMLRPCEncoder<?>[] encoders;
+		final XMLRPCDecoder<?> result;
+		final boolean async;
+
+		ServiceMethod(Method method) {
+			XMLRPCMethod annotation = method.getAnnotation(XMLRPCMethod.class);
+			name = annotation != null ? annotation.value() : methodName(method.getName());
+
+			Class<?>[] types = method.getParameterTypes();
+			encoders = new XMLRPCEncoder<?>[types.length];
+			for (int i = 0; i < types.length; i++) {
+				encoders[i] = encoderFor(types[i]);
+			}
+
+			Class<?> returnType = method.getReturnType();
+			if (returnType == XMLRPCFuture.class || returnType == Future.class) {
+				async = true;
+				Type type = method.getGenericReturnType();
+				Type valueType = type instanceof ParameterizedType ? ((ParameterizedType) type).getActualTypeArguments()[0] : Object.class;
+				if (!(valueType instanceof Class)) {
+					throw new IllegalArgumentException("No XML-RPC binding for " + valueType + " in " + method);
+				}
+				result = decoderFor((Class<?>) valueType);
+			} else {
+				async = false;
+				if (!throwsXMLRPCException(method)) {
+					throw new IllegalArgumentException(method + " must declare XMLRPCException");
+				}
+				result = decoderFor(returnType);
+			}
+		}
+
+		/**
+		 * Parameters whose type has no binding of its own, like List or
+		 * HashMap, are serialized by looking at each value.
+		 */
+		private static XMLRPCEncoder<?> encoderFor(Class<?> type) {
+			try {
+				return XMLRPCBindings.forClass(type);
+			} catch (IllegalArgumentException e) {
+				return XMLRPCBindings.OBJECT;
+			}
+		}
+
+		/**
+		 * Methods that return nothing skip the result.
+		 */
+		private static XMLRPCDecoder<?> decoderFor(Class<?> type) {
+			if (type == void.class || type == Void.class) {
+				return XMLRPCBindings.VOID;
+			}
+			return XMLRPCBindings.forClass(type);
+		}
+
+		private static boolean throwsXMLRPCException(Method method) {
+			for (Class<?> exception : method.getExceptionTypes()) {
+				if (exception.isAssignableFrom(XMLRPCException.class)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Turns a Java method name into an XML-RPC one, deviceListButtons
+		 * into device_list_buttons.
+		 */
+		private static String methodName(String javaName) {
+			StringBuilder name = new StringBuilder(javaName.length() + 4);
+			for (int i = 0; i < javaName.length(); i++) {
+				char c = javaName.charAt(i);
+				if (Character.isUpperCase(c)) {
+					if (i > 0) {
+						name.append('_');
+					}
+					name.append(Character.toLowerCase(c));
+				} else {
+					name.append(c);
+				}
+			}
+			return name.toString();
+		}
+	}
+}
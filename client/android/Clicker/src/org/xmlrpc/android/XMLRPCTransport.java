@@ -0,0 +1,113 @@
+package org.xmlrpc.android;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Carries calls to the server as HTTP POSTs.  {@link XMLRPCClient} writes
+ * the request body and reads the response body; a transport only moves the
+ * bytes, so any of them can be used with any client, see
+ * {@link XMLRPCClient#setTransport(XMLRPCTransport)}.
+ *
+ * <p>
+ * The ones that come with the client are {@link ApacheTransport}, the
+ * default, {@link URLConnectionTransport}, {@link SocketTransport},
+ * {@link NioTransport} and {@link Http2Transport}.
+ * Transports are shared by every call a client makes, from any thread.
+ */
+public interface XMLRPCTransport {
+	/**
+	 * Sends a request and waits for the response's status line and headers.
+	 *
+	 * @param uri server URI
+	 * @param headers request headers, in the order they should be sent
+	 * @param request request body
+	 * @return the response, which the caller has to close
+	 */
+	Response post(URI uri, Map<String, String> headers, Request request) throws IOException;
+
+	/**
+	 * A request body.
+	 */
+	interface Request {
+		/**
+		 * @return number of bytes in the body, or -1 if the length isn't
+		 *         known up front and the body has to be sent chunked.  Bodies
+		 *         with a known length can be written more than once, so the
+		 *         request can be sent again if a kept-alive connection turns
+		 *         out to be closed.
+		 */
+		long getContentLength();
+
+		/**
+		 * Writes the body, which is also flushed.
+		 */
+		void writeTo(OutputStream out) throws IOException;
+	}
+
+	/**
+	 * A response, with its body still to be read.
+	 */
+	interface Response {
+		int getStatusCode();
+
+		String getReasonPhrase();
+
+		/**
+		 * @return number of bytes in the body, or -1 if not known
+		 */
+		long getContentLength();
+
+		InputStream getBody() throws IOException;
+
+		/**
+		 * Skips whatever is left of the body, so the connection can be used
+		 * again, and lets go of it.
+		 */
+		void close() throws IOException;
+	}
+
+	/**
+	 * Implemented by transports that can pipeline requests, sending several
+	 * back to back on one kept-alive connection before reading any of the
+	 * responses, see {@link XMLRPCClient#setPipelining(boolean)}.
+	 */
+	interface Pipelining {
+		/**
+		 * Sends the requests, which all have a known length, back to back
+		 * on one connection.
+		 *
+		 * @return the responses, to be read in the order the requests were
+		 *         sent; the caller has to close the pipeline
+		 */
+		Pipeline pipeline(URI uri, Map<String, String> headers, List<? extends Request> requests) throws IOException;
+	}
+
+	/**
+	 * Responses to pipelined requests.
+	 */
+	interface Pipeline {
+		/**
+		 * Waits for the response to the next request.  The previous response
+		 * has to be closed first.
+		 *
+		 * @return the response, or null if the last response said the
+		 *         connection ends after it, in which case the server won't
+		 *         have acted on this request or any after it, and they can
+		 *         be sent again
+		 * @throws IOException if the connection was lost, in which case the
+		 *         server may have acted on this request
+		 */
+		Response next() throws IOException;
+
+		/**
+		 * Lets go of the connection, which is closed unless every response
+		 * was read to its end.
+		 */
+		void close();
+	}
+}
@@ -0,0 +1,50 @@
+package org.xmlrpc.android;
+
+/**
+ * Receives a response value as a stream of events instead of a fully built
+ * tree, see {@link XMLRPCClient#callStreaming(String, Object[], XMLRPCVisitor)}.
+ * Events arrive in document order, so a struct shows up as
+ * startStruct(), then a member() followed by that member's value events for
+ * each member, then endStruct().
+ *
+ * <p>
+ * Every method returns whether parsing should go on.  Returning false stops
+ * parsing right away and the rest of the response is discarded, which is
+ * handy for picking a single field out of a large response.
+ */
+public interface XMLRPCVisitor {
+	/**
+	 * A struct starts.
+	 */
+	boolean startStruct();
+
+	/**
+	 * The next struct member's value follows.
+	 * 
+	 * @param name member name
+	 */
+	boolean member(String name);
+
+	/**
+	 * The current struct ends.
+	 */
+	boolean endStruct();
+
+	/**
+	 * An array starts.
+	 */
+	boolean startArray();
+
+	/**
+	 * The current array ends.
+	 */
+	boolean endArray();
+
+	/**
+	 * A scalar value, deserialized to the same type
+	 * {@link XMLRPCClient#call(String, Object[])} would return for it.
+	 * 
+	 * @param value the value
+	 */
+	boolean value(Object value);
+}
@@ -0,0 +1,135 @@
+package org.xmlrpc.android;
+
+import java.io.Writer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+import org.xmlpull.v1.XmlSerializer;
+
+import android.util.Xml;
+
+/**
+ * Idle serializers, request writers and parsers, shared by every client.
+ * Clients come and go with each task and device, so keeping the pool here
+ * means a call almost never has to create a new one.  They are reset by setOutput()
+ * and setInput() before each use, and let go of their streams when they
+ * are handed back.
+ */
+class XmlPool {
+	// Don't hang on to more than this many of each; more than that are
+	// only ever needed during a burst of calls.
+	private static final int MAX_IDLE = 8;
+
+	private static final Queue<XmlSerializer> serializers = new ConcurrentLinkedQueue<XmlSerializer>();
+	private static final Queue<RequestWriter> writers = new ConcurrentLinkedQueue<RequestWriter>();
+	private static final Queue<XmlPullParser> parsers = new ConcurrentLinkedQueue<XmlPullParser>();
+	private static final AtomicInteger idleSerializers = new AtomicInteger();
+	private static final AtomicInteger idleWriters = new AtomicInteger();
+	private static final AtomicInteger idleParsers = new AtomicInteger();
+
+	private static final AtomicLong hits = new AtomicLong();
+	private static final AtomicLong misses = new AtomicLong();
+
+	// Looking the factory up means a service lookup and reflection, so it's only done once.
+	private static XmlPullParserFactory factory;
+
+	static XmlSerializer acquireSerializer() {
+		XmlSerializer serializer = serializers.poll();
+		if (serializer != null) {
+			idleSerializers.decrementAndGet();
+			hits.incrementAndGet();
+			return serializer;
+		}
+		misses.incrementAndGet();
+		return Xml.newSerializer();
+	}
+
+	static XmlSerializer acquireWriter() {
+		RequestWriter writer = writers.poll();
+		if (writer != null) {
+			idleWriters.decrementAndGet();
+			hits.incrementAndGet();
+			return writer;
+		}
+		misses.incrementAndGet();
+		return new RequestWriter();
+	}
+
+	static XmlPullParser acquireParser() throws XmlPullParserException {
+		XmlPullParser parser = parsers.poll();
+		if (parser != null) {
+			idleParsers.decrementAndGet();
+			hits.incrementAndGet();
+			return parser;
+		}
+		misses.incrementAndGet();
+		XmlPullParserFactory factory = getFactory();
+		synchronized (factory) {
+			return factory.newPullParser();
+		}
+	}
+
+	static void release(XmlSerializer serializer) {
+		try {
+			serializer.setOutput((Writer) null);
+		} catch (Exception e) {
+			// can't be reset, so don't reuse it
+			return;
+		}
+		if (serializer instanceof RequestWriter) {
+			if (idleWriters.incrementAndGet() <= MAX_IDLE) {
+				writers.offer((RequestWriter) serializer);
+			} else {
+				idleWriters.decrementAndGet();
+			}
+		} else
+		if (idleSerializers.incrementAndGet() <= MAX_IDLE) {
+			serializers.offer(serializer);
+		} else {
+			idleSerializers.decrementAndGet();
+		}
+	}
+
+	static void release(XmlPullParser parser) {
+		try {
+			parser.setInput(null);
+		} catch (Exception e) {
+			return;
+		}
+		if (idleParsers.incrementAndGet() <= MAX_IDLE) {
+			parsers.offer(parser);
+		} else {
+			idleParsers.decrementAndGet();
+		}
+	}
+
+	/**
+	 * @return number of times an idle serializer or parser was reused
+	 */
+	static long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return number of times a serializer or parser had to be created
+	 */
+	static long getMisses() {
+		return misses.get();
+	}
+
+	private static synchronized XmlPullParserFactory getFactory() throws XmlPullParserException {
+		if (factory == null) {
+			factory = XmlPullParserFactory.newInstance();
+		}
+		return factory;
+	}
+
+	// Only static members.
+	private XmlPool() {
+	}
+}